@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import io.SampleUtil;
+import models.AlignmentBasedModel;
+
+/**
+ * Benchmarks {@link AlignmentBasedModel#getLogProbFor(Sequence, int, int)} on all windows of a foreground alignment and
+ * {@link AlignmentBasedModel#train(Sample, double[])} on the windows of the first foreground alignments. The weights
+ * are drawn from a seeded random generator, about 5% of the windows are used for training.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlignmentBasedModelBenchmark {
+
+    @Param({ "3", "5" })
+    public int species;
+
+    @Param({ "tree1", "tree2", "tree3" })
+    public String tree;
+
+    @Param({ "8", "16" })
+    public int motifLength;
+
+    @Param({ "0", "1" })
+    public int order;
+
+    private Sequence<?>[] alignments;
+    private int next;
+    private Sample windows;
+    private double[] weights;
+    private AlignmentBasedModel model;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.quiet();
+        AlignmentBasedModel.SKIP_TRAINING_STEPS = 0;
+        Sample fg = BenchmarkData.getAlignments(tree, "fg", species, 20);
+        alignments = fg.getAllElements();
+        model = new AlignmentBasedModel(motifLength, (byte) order, BenchmarkData.ALPHABET);
+        windows = SampleUtil.generateTrainingSample(fg, motifLength);
+        weights = BenchmarkData.getWeights(1, windows.getNumberOfElements());
+        model.train(windows, weights);
+    }
+
+    @Benchmark
+    public double scanAlignment() throws Exception {
+        next = next + 1 < alignments.length ? next + 1 : 0;
+        Sequence<?> seq = alignments[next];
+        double sum = 0;
+        for (int u = 0; u <= seq.getLength() - motifLength; u++) {
+            sum += model.getLogProbFor(seq, u, u + motifLength - 1);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public AlignmentBasedModel train() throws Exception {
+        model.train(windows, weights);
+        return model;
+    }
+}
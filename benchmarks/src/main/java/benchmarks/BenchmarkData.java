@@ -0,0 +1,242 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
+import io.SampleUtil;
+
+/**
+ * Inputs of the benchmarks. All alignments are taken from the bundled synthetic data sets
+ * (data/synthetic_data/trees), the directory can be changed with the system property phyfoo.data. Alignments of less
+ * than 5 species are obtained by removing SPECIES_k, ..., SPECIES_4 from the alignments and the tree. Model parameters
+ * are drawn from a seeded random generator, so all runs benchmark the same models.
+ */
+public final class BenchmarkData {
+
+    /** the directory of the synthetic data sets */
+    public static final String DATA_DIR = System.getProperty("phyfoo.data", "../data/synthetic_data");
+
+    /** the trees of the synthetic data sets, see data/synthetic_data/trees/description_tree*.txt */
+    private static final Map<String, String> TREES = new HashMap<String, String>();
+    static {
+        TREES.put("tree1", "((((SPECIES_0:0.2,SPECIES_1:0.2):0.2,SPECIES_2:0.2):0.2,SPECIES_3:0.2):0.2,SPECIES_4:0.2)");
+        TREES.put("tree2", "(((SPECIES_0:0.2,SPECIES_1:0.2):0.2,SPECIES_2:0.2):0.2,(SPECIES_3:0.2,SPECIES_4:0.2):0.2)");
+        TREES.put("tree3", "((SPECIES_0:0.2,SPECIES_1:0.2):0.2,(SPECIES_2:0.2,SPECIES_3:0.2,SPECIES_4:0.2):0.2)");
+    }
+
+    /** the alphabet of all data sets */
+    public static final AlphabetContainer ALPHABET;
+    static {
+        try {
+            ALPHABET = new AlphabetContainer(new UnobservableDNAAlphabet());
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BenchmarkData() {
+    }
+
+    /** reduces the logging of PhyFoo to warnings, the training methods log each step */
+    public static void quiet() {
+        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+        java.util.logging.Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+    }
+
+    /**
+     * @param tree
+     *            one of tree1, tree2, tree3
+     * @param species
+     *            the number of species, between 2 and 5
+     * @return the newick string of the tree restricted to SPECIES_0, ..., SPECIES_{species - 1}
+     */
+    public static String getNewick(String tree, int species) {
+        String newick = TREES.get(tree);
+        if (newick == null) {
+            throw new IllegalArgumentException("Unknown tree " + tree + ", expected one of " + TREES.keySet());
+        }
+        if (species < 2 || species > 5) {
+            throw new IllegalArgumentException("Number of species must be between 2 and 5, but was " + species);
+        }
+        Node root = new Parser(newick).parse();
+        return prune(root, species).toString();
+    }
+
+    /**
+     * Loads the first alignments of a synthetic data set.
+     *
+     * @param tree
+     *            one of tree1, tree2, tree3
+     * @param kind
+     *            fg for alignments with a motif, bg for alignments without
+     * @param species
+     *            the number of species, between 2 and 5
+     * @param alignments
+     *            the number of alignments
+     */
+    public static Sample getAlignments(String tree, String kind, int species, int alignments) throws Exception {
+        File file = new File(DATA_DIR, "trees/data_" + tree + "_1.0." + kind);
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("Data set " + file.getAbsolutePath()
+                    + " not found, set -Dphyfoo.data to the directory data/synthetic_data");
+        }
+        Sample all = SampleUtil.getDataSet(file.getPath(), getNewick(tree, species), ALPHABET);
+        Sequence<?>[] seqs = new Sequence<?>[Math.min(alignments, all.getNumberOfElements())];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = all.getElementAt(i);
+        }
+        return new Sample(kind + " alignments of " + tree, seqs);
+    }
+
+    /**
+     * Draws conditional probabilities. Each block of {@link io.Alphabet#size} consecutive values of a row sums to 1.
+     *
+     * @param seed
+     *            the seed of the random generator
+     * @param dims
+     *            the length of each row
+     */
+    public static double[][] getCondProbs(long seed, int... dims) {
+        Random r = new Random(seed);
+        double[][] p = new double[dims.length][];
+        for (int i = 0; i < dims.length; i++) {
+            p[i] = new double[dims[i]];
+            for (int k = 0; k < dims[i]; k += 4) {
+                double sum = 0;
+                for (int a = 0; a < 4; a++) {
+                    p[i][k + a] = 0.1 + r.nextDouble();
+                    sum += p[i][k + a];
+                }
+                for (int a = 0; a < 4; a++) {
+                    p[i][k + a] /= sum;
+                }
+            }
+        }
+        return p;
+    }
+
+    /** @return the conditional probabilities of a motif model with the given length and order */
+    public static double[][] getMotifCondProbs(long seed, int motifLength, int order) {
+        int[] dims = new int[motifLength];
+        Arrays.fill(dims, 4 << (2 * order));
+        return getCondProbs(seed, dims);
+    }
+
+    /** @return the conditional probabilities of a background model of the given order */
+    public static double[][] getBackgroundCondProbs(long seed, int order) {
+        int[] dims = new int[order + 1];
+        for (int o = 0; o <= order; o++) {
+            dims[o] = 4 << (2 * o);
+        }
+        return getCondProbs(seed, dims);
+    }
+
+    /**
+     * Draws weights of windows, about 5% of the windows get a weight above
+     * {@link models.PhyloPreparedAbstractModel#PROB_THRESH_FOR_WEIGHTS} and are used for training.
+     */
+    public static double[] getWeights(long seed, int windows) {
+        Random r = new Random(seed);
+        double[] weights = new double[windows];
+        for (int i = 0; i < windows; i++) {
+            weights[i] = r.nextInt(20) == 0 ? 0.9 : 0.001;
+        }
+        return weights;
+    }
+
+    /** @return the given window of an alignment, whose symbols are the int[] columns of the alignment */
+    @SuppressWarnings("unchecked")
+    public static Sequence<int[]> asWindow(Sequence<?> window) {
+        return (Sequence<int[]>) window;
+    }
+
+    /** removes all leaves SPECIES_k with k >= species and all inner nodes with less than two children */
+    private static Node prune(Node node, int species) {
+        if (node.children.isEmpty()) {
+            return Integer.parseInt(node.name.substring(node.name.indexOf('_') + 1)) < species ? node : null;
+        }
+        List<Node> children = new ArrayList<Node>();
+        for (Node child : node.children) {
+            Node c = prune(child, species);
+            if (c != null) {
+                children.add(c);
+            }
+        }
+        node.children = children;
+        if (children.isEmpty()) {
+            return null;
+        }
+        if (children.size() == 1) {
+            Node c = children.get(0);
+            c.length = node.length == null ? null : c.length + node.length;
+            return c;
+        }
+        return node;
+    }
+
+    private static final class Node {
+        String name = "";
+        Double length;
+        List<Node> children = new ArrayList<Node>();
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if (!children.isEmpty()) {
+                sb.append('(');
+                for (int i = 0; i < children.size(); i++) {
+                    sb.append(i > 0 ? "," : "").append(children.get(i));
+                }
+                sb.append(')');
+            }
+            sb.append(name);
+            if (length != null) {
+                sb.append(':').append(length);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** a minimal parser for the newick strings of the synthetic data sets */
+    private static final class Parser {
+        private final String s;
+        private int p;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Node parse() {
+            Node node = new Node();
+            if (s.charAt(p) == '(') {
+                do {
+                    p++;
+                    node.children.add(parse());
+                } while (s.charAt(p) == ',');
+                p++; // ')'
+            }
+            int start = p;
+            while (p < s.length() && ":,()".indexOf(s.charAt(p)) < 0) {
+                p++;
+            }
+            node.name = s.substring(start, p);
+            if (p < s.length() && s.charAt(p) == ':') {
+                start = ++p;
+                while (p < s.length() && ",()".indexOf(s.charAt(p)) < 0) {
+                    p++;
+                }
+                node.length = Double.valueOf(s.substring(start, p));
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import algorithm.MeanFieldForBayesNet;
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import io.SampleUtil;
+import models.PhyloBayesModel;
+
+/**
+ * Benchmarks the variational inference of a motif window: {@link MeanFieldForBayesNet#optimizeByNormalisation()}
+ * followed by {@link MeanFieldForBayesNet#calcFreeEnergy()}, and the free energy of a uniform q alone. Each operation
+ * moves one meanfield to the next window of the foreground alignments, like the training of {@link PhyloBayesModel}
+ * does with its cached meanfields.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MeanFieldBenchmark {
+
+    @Param({ "3", "5" })
+    public int species;
+
+    @Param({ "tree1", "tree2", "tree3" })
+    public String tree;
+
+    @Param({ "8", "16" })
+    public int motifLength;
+
+    @Param({ "0", "1" })
+    public int order;
+
+    private Sequence<?>[] windows;
+    private int next;
+    private MeanFieldForBayesNet mf;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.quiet();
+        Sample fg = BenchmarkData.getAlignments(tree, "fg", species, 10);
+        PhyloBayesModel model = new PhyloBayesModel(motifLength, (byte) order, BenchmarkData.getNewick(tree, species),
+                BenchmarkData.ALPHABET);
+        model.setCondProbs(BenchmarkData.getMotifCondProbs(1, motifLength, order));
+        windows = SampleUtil.generateTrainingSample(fg, motifLength).getAllElements();
+        mf = new MeanFieldForBayesNet(model.getBNH(), BenchmarkData.asWindow(windows[0]));
+        mf.initObservation();
+        mf.init();
+    }
+
+    private Sequence<int[]> nextWindow() {
+        next = next + 1 < windows.length ? next + 1 : 0;
+        return BenchmarkData.asWindow(windows[next]);
+    }
+
+    @Benchmark
+    public double optimizeByNormalisation() {
+        mf.moveTo(nextWindow());
+        mf.optimizeByNormalisation();
+        return mf.calcFreeEnergy();
+    }
+
+    @Benchmark
+    public double calcFreeEnergy() {
+        mf.moveTo(nextWindow());
+        return mf.calcFreeEnergy();
+    }
+}
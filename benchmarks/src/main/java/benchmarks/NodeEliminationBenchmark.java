@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import algorithm.MeanFieldForBayesNet;
+import algorithm.SimpleNodeElimination;
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import io.SampleUtil;
+import models.PhyloBayesModel;
+
+/**
+ * Benchmarks the exact likelihood of a motif window by {@link SimpleNodeElimination#getLikelihood()}. The elimination
+ * works on the whole net and is only feasible for small nets, hence the parameters are restricted to few species and
+ * short motifs. Each operation writes the observation of the next window into the net.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NodeEliminationBenchmark {
+
+    @Param({ "2", "3" })
+    public int species;
+
+    @Param({ "tree1", "tree2", "tree3" })
+    public String tree;
+
+    @Param({ "2", "4" })
+    public int motifLength;
+
+    @Param({ "0", "1" })
+    public int order;
+
+    private Sequence<?>[] windows;
+    private int next;
+    private MeanFieldForBayesNet mf;
+    private SimpleNodeElimination elimination;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.quiet();
+        Sample fg = BenchmarkData.getAlignments(tree, "fg", species, 10);
+        PhyloBayesModel model = new PhyloBayesModel(motifLength, (byte) order, BenchmarkData.getNewick(tree, species),
+                BenchmarkData.ALPHABET);
+        model.setCondProbs(BenchmarkData.getMotifCondProbs(1, motifLength, order));
+        windows = SampleUtil.generateTrainingSample(fg, motifLength).getAllElements();
+        mf = new MeanFieldForBayesNet(model.getBNH(), BenchmarkData.asWindow(windows[0]));
+        mf.initObservation();
+        mf.init();
+        elimination = model.getBNH().getNodeElimination();
+    }
+
+    @Benchmark
+    public double getLikelihood() {
+        next = next + 1 < windows.length ? next + 1 : 0;
+        mf.moveTo(BenchmarkData.asWindow(windows[next]));
+        mf.applyObservationToNet();
+        return elimination.getLikelihood();
+    }
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import models.PhyloBackground;
+
+/**
+ * Benchmarks {@link PhyloBackground#getLogProbFor(Sequence, int, int)}: scoring a whole background alignment with an
+ * empty score cache, and scoring windows of alignments whose scores are already cached, as done by the motif scan.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhyloBackgroundBenchmark {
+
+    /** the length of the windows scored by {@link #scoreCachedWindow()} */
+    private static final int WINDOW = 16;
+
+    @Param({ "3", "5" })
+    public int species;
+
+    @Param({ "tree1", "tree2", "tree3" })
+    public String tree;
+
+    @Param({ "0", "1", "2" })
+    public int order;
+
+    private Sequence<?>[] alignments;
+    private int next;
+    private int[] starts;
+    private int nextStart;
+    private PhyloBackground model;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.quiet();
+        Sample bg = BenchmarkData.getAlignments(tree, "bg", species, 20);
+        alignments = bg.getAllElements();
+        model = new PhyloBackground((byte) order, BenchmarkData.getNewick(tree, species), BenchmarkData.ALPHABET);
+        model.setCondProbs(BenchmarkData.getBackgroundCondProbs(1, order));
+        Random r = new Random(1);
+        starts = new int[1024];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = r.nextInt(alignments[i % alignments.length].getLength() - WINDOW + 1);
+        }
+        // fill the score cache
+        for (Sequence<?> seq : alignments) {
+            model.getLogProbFor(seq, 0, seq.getLength() - 1);
+        }
+    }
+
+    @Benchmark
+    public double scoreAlignment() throws Exception {
+        next = next + 1 < alignments.length ? next + 1 : 0;
+        Sequence<?> seq = alignments[next];
+        model.cleanCache();
+        return model.getLogProbFor(seq, 0, seq.getLength() - 1);
+    }
+
+    @Benchmark
+    public double scoreCachedWindow() throws Exception {
+        nextStart = nextStart + 1 < starts.length ? nextStart + 1 : 0;
+        int start = starts[nextStart];
+        return model.getLogProbFor(alignments[nextStart % alignments.length], start, start + WINDOW - 1);
+    }
+}
@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import models.PhyloBayesModel;
+
+/**
+ * Benchmarks {@link PhyloBayesModel#getLogProbFor(Sequence, int, int)} as used by the motif scan: each operation
+ * scores all windows of the next foreground alignment.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhyloBayesModelBenchmark {
+
+    @Param({ "3", "5" })
+    public int species;
+
+    @Param({ "tree1", "tree2", "tree3" })
+    public String tree;
+
+    @Param({ "8", "16" })
+    public int motifLength;
+
+    @Param({ "0", "1" })
+    public int order;
+
+    private Sequence<?>[] alignments;
+    private int next;
+    private PhyloBayesModel model;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.quiet();
+        Sample fg = BenchmarkData.getAlignments(tree, "fg", species, 20);
+        alignments = fg.getAllElements();
+        model = new PhyloBayesModel(motifLength, (byte) order, BenchmarkData.getNewick(tree, species),
+                BenchmarkData.ALPHABET);
+        model.setCondProbs(BenchmarkData.getMotifCondProbs(1, motifLength, order));
+    }
+
+    @Benchmark
+    public double scanAlignment() throws Exception {
+        next = next + 1 < alignments.length ? next + 1 : 0;
+        Sequence<?> seq = alignments[next];
+        double sum = 0;
+        for (int u = 0; u <= seq.getLength() - motifLength; u++) {
+            sum += model.getLogProbFor(seq, u, u + motifLength - 1);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,98 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import algorithm.MeanFieldForBayesNet;
+import de.jstacs.data.Sample;
+import io.ColumnPatterns;
+import io.SampleUtil;
+import io.SequenceSpecificDataSelector;
+import models.PhyloBayesModel;
+import models.PhyloPreparedAbstractModel;
+import optimizing.FE_byParameter_ForBayesNodeJstacs;
+
+/**
+ * Benchmarks the optimization of a single motif position by {@link FE_byParameter_ForBayesNodeJstacs}, prepared like
+ * in {@link PhyloBayesModel#train(Sample, double[])}: the weighted windows are compressed to their column patterns and
+ * the meanfields of all patterns are optimized once. Before each operation the parameters of the model are reset, so
+ * every optimization starts from the same point.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PositionOptimizationBenchmark {
+
+    @Param({ "3", "5" })
+    public int species;
+
+    @Param({ "tree1", "tree2", "tree3" })
+    public String tree;
+
+    @Param({ "8", "16" })
+    public int motifLength;
+
+    @Param({ "0", "1" })
+    public int order;
+
+    private PhyloBayesModel model;
+    private double[][] condProbs;
+    private MeanFieldForBayesNet[] meanFields;
+    private double[] weights;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.quiet();
+        Sample fg = BenchmarkData.getAlignments(tree, "fg", species, 10);
+        model = new PhyloBayesModel(motifLength, (byte) order, BenchmarkData.getNewick(tree, species),
+                BenchmarkData.ALPHABET);
+        condProbs = BenchmarkData.getMotifCondProbs(1, motifLength, order);
+        model.setCondProbs(condProbs);
+
+        Sample windows = SampleUtil.generateTrainingSample(fg, motifLength);
+        SequenceSpecificDataSelector tdm = new SequenceSpecificDataSelector(windows, BenchmarkData.getWeights(1,
+                windows.getNumberOfElements()));
+        tdm.prepareForTraining(PhyloPreparedAbstractModel.PROB_THRESH_FOR_WEIGHTS,
+                PhyloPreparedAbstractModel.MOTIF_QUALITY_THRESHOLD);
+        ColumnPatterns patterns = new ColumnPatterns(tdm.seqsForTraining, tdm.weightsForTraining);
+        weights = patterns.weights;
+        meanFields = new MeanFieldForBayesNet[patterns.size()];
+        for (int m = 0; m < meanFields.length; m++) {
+            meanFields[m] = new MeanFieldForBayesNet(model.getBNH(), BenchmarkData.asWindow(patterns.windows[m]));
+            meanFields[m].initObservation();
+            meanFields[m].init();
+            meanFields[m].optimizeByNormalisation();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void resetParameters() {
+        model.setCondProbs(condProbs);
+    }
+
+    @Benchmark
+    public PhyloBayesModel optimizePosition() throws Exception {
+        FE_byParameter_ForBayesNodeJstacs optimizer = new FE_byParameter_ForBayesNodeJstacs();
+        optimizer.setVariationalLikelihood(meanFields);
+        optimizer.setModel(model);
+        optimizer.setWeights(weights);
+        optimizer.initPosition(motifLength / 2);
+        optimizer.startOptimizing(false);
+        return model;
+    }
+}
@@ -1,18 +1,29 @@
 package algorithm;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.log4j.Logger;
 
 import de.jstacs.NonParsableException;
 import de.jstacs.data.Sample;
 import de.jstacs.models.mixture.StrandModel;
 import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
-import io.FileUtil;
+import models.BinaryModelFormat;
+import models.ModelUtil;
 import models.PhyloPreparedAbstractModel;
+import util.Util;
 
 /**
  * This class handles several iterations of an EM algorithm containing only one model. If a new optimum was found the
  * last written file is overwritten with the current model. This handler was implemented, because the functionality of
- * the internal repeat mechanism was not sufficient.
+ * the internal repeat mechanism was not sufficient. The repeats are independent and run in parallel on up to
+ * {@link #THREADS} threads. Each repeat trains its own instance of the model and draws from its own random generator,
+ * seeded with {@link Util#randomSeed} + the number of the repeat.
  * 
  * @author Martin Nettling
  */
@@ -20,23 +31,27 @@ public class EMHandler {
 
 	private static Logger LOGGER = Logger.getLogger(EMHandler.class);
 
-    String initialModel;
+    /** the maximal number of repeats trained in parallel */
+    public static int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** the initial model in the {@link BinaryModelFormat} */
+    byte[] initialModel;
     private int repeats;
     private Sample data;
 
     private double[] finalScores;
-    private String[] finalModels;
+    private byte[][] finalModels;
     private int iteration = 0;
 
     private EMHandler(SingleHiddenMotifMixture initialModel, int repeats, Sample data) {
         if (repeats < 1) {
             repeats = 1;
         }
-        this.initialModel = initialModel.toXML().toString();
+        this.initialModel = BinaryModelFormat.toByteArray(initialModel);
         this.repeats = repeats;
         this.data = data;
         finalScores = new double[repeats];
-        finalModels = new String[repeats];
+        finalModels = new byte[repeats][];
     }
 
     /**
@@ -53,7 +68,6 @@ public class EMHandler {
      */
     public static EMHandler train(SingleHiddenMotifMixture initialModel, int repeats, Sample data, String saveFileName)
             throws Exception {
-        PhyloPreparedAbstractModel motifModel = null;
         if(initialModel.model[0] instanceof PhyloPreparedAbstractModel) {
             // do nothing
         } else if (initialModel.model[0] instanceof StrandModel && ((StrandModel)initialModel.model[0]).model[0] instanceof PhyloPreparedAbstractModel) {
@@ -67,10 +81,47 @@ public class EMHandler {
         }
         
         EMHandler em = new EMHandler(initialModel, repeats, data);
-        double best=Double.NEGATIVE_INFINITY;
-        for (; em.iteration < em.repeats; em.iteration++) {
-			LOGGER.info("EMHandler: Start " + (em.iteration + 1) + " of " + repeats);
-            SingleHiddenMotifMixture shm = new SingleHiddenMotifMixture(new StringBuffer(em.initialModel));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, em.repeats)));
+        try {
+            List<Future<?>> runs = new ArrayList<Future<?>>();
+            for (int i = 0; i < em.repeats; i++) {
+                final int run = i;
+                runs.add(executor.submit(() -> {
+                    em.train(run);
+                    return null;
+                }));
+            }
+            // collect the repeats in their order, so the best model and the saved files do not depend on the order in
+            // which the repeats finish
+            double best = Double.NEGATIVE_INFINITY;
+            for (int run = 0; run < em.repeats; run++) {
+                try {
+                    runs.get(run).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                em.iteration = run + 1;
+                if (run == 0 || em.finalScores[run] > best) {
+                    best = em.finalScores[run];
+                    LOGGER.info("New best run (" + run + ") = " + em.finalScores[run]);
+                }
+                if (saveFileName != null) {
+                    ModelUtil.saveModel(em.getBestModel(), saveFileName);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return em;
+    }
+
+    /** trains the given repeat on a new instance of the initial model */
+    private void train(int run) throws Exception {
+        Util.setThreadSeed(Util.randomSeed + run);
+        try {
+			LOGGER.info("EMHandler: Start " + (run + 1) + " of " + repeats);
+            SingleHiddenMotifMixture shm = (SingleHiddenMotifMixture) BinaryModelFormat.fromByteArray(initialModel);
+            PhyloPreparedAbstractModel motifModel = null;
             if(shm.model[0] instanceof PhyloPreparedAbstractModel) {
                 motifModel =  (PhyloPreparedAbstractModel)shm.model[0];           
             } else if (shm.model[0] instanceof StrandModel && ((StrandModel)shm.model[0]).model[0] instanceof PhyloPreparedAbstractModel) {
@@ -79,18 +130,12 @@ public class EMHandler {
 			if (repeats > 1) {
 				motifModel.fillLnCondProbRandomly();
 			}
-            shm.train(em.data);
-            em.finalModels[em.iteration] = shm.toXML().toString();
-            em.finalScores[em.iteration] = shm.getScoreForBestRun();
-            if(em.iteration == 0 || em.finalScores[em.iteration] > best) {
-                best = em.finalScores[em.iteration];
-				LOGGER.info("New best run (" + em.iteration + ") = " + em.finalScores[em.iteration]);
-            }
-            if (saveFileName != null) {
-				FileUtil.writeFile(saveFileName, em.getBestModel().toXML().toString());
-            }
+            shm.train(data);
+            finalModels[run] = BinaryModelFormat.toByteArray(shm);
+            finalScores[run] = shm.getScoreForBestRun();
+        } finally {
+            Util.clearThreadSeed();
         }
-        return em;
     }
     
     /**
@@ -100,7 +145,7 @@ public class EMHandler {
      * @throws NonParsableException
      */
     public SingleHiddenMotifMixture getBestModel() throws NonParsableException {
-        String bestModel = finalModels[0];
+        byte[] bestModel = finalModels[0];
         double bestScore = finalScores[0];
         for (int i = 1; i < iteration; i++) {
             if (finalScores[i] > bestScore && finalModels[i] != null) {
@@ -108,6 +153,6 @@ public class EMHandler {
                 bestModel = finalModels[i];
             }
         }
-        return new SingleHiddenMotifMixture(new StringBuffer(bestModel));
+        return (SingleHiddenMotifMixture) BinaryModelFormat.fromByteArray(bestModel);
     }
 }
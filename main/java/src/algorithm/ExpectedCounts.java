@@ -0,0 +1,66 @@
+package algorithm;
+
+import bayesNet.BayesNetNode;
+import bayesNet.CompiledBayesNet;
+import io.Alphabet;
+
+/**
+ * Expected number of times each entry of the conditional probabilities of a {@link bayesNet.BayesNet} is used under
+ * the meanfields of one or more {@link MeanFieldForBayesNet}s. The free energy is linear in the logarithm of the
+ * conditional probabilities with these counts as coefficients, so for fixed meanfields the counts are all that is
+ * needed to calculate the gradient of the free energy concerning the conditional probabilities. See
+ * {@link MeanFieldForBayesNet#addExpectedCounts(int, int, double, ExpectedCounts)}.
+ */
+public class ExpectedCounts {
+
+    /** counts[i][l * Alphabet.size + a] is the expected count of entry [l][a] of the conditional probabilities of node i */
+    public final double[][] counts;
+
+    /**
+     * independentCounts[i][l * Alphabet.size + a] is the expected count of entry [l][a] of the independent
+     * conditional probabilities of node i. These are only used for unobserved phylo leafs.
+     */
+    public final double[][] independentCounts;
+
+    public ExpectedCounts(CompiledBayesNet net) {
+        counts = new double[net.numberOfNodes][];
+        independentCounts = new double[net.numberOfNodes][];
+        for (int i = 0; i < net.numberOfNodes; i++) {
+            counts[i] = new double[net.cpfSize[i] * Alphabet.size];
+            independentCounts[i] = new double[net.cpfSize[i] * Alphabet.size];
+        }
+    }
+
+    /** adds the given counts to these counts */
+    public void add(ExpectedCounts other) {
+        for (int i = 0; i < counts.length; i++) {
+            for (int k = 0; k < counts[i].length; k++) {
+                counts[i][k] += other.counts[i][k];
+                independentCounts[i][k] += other.independentCounts[i][k];
+            }
+        }
+    }
+
+    /**
+     * Returns the derivative of the expected log likelihood concerning each entry of the conditional probabilities of
+     * the given node, i.e. count / probability. Entries without counts have derivative 0.
+     *
+     * @param node
+     *            the node
+     * @param independent
+     *            true, if the derivative concerning the independent conditional probabilities should be returned
+     */
+    public double[][] getDerivatives(BayesNetNode node, boolean independent) {
+        double[] c = independent ? independentCounts[node.nodeNumber] : counts[node.nodeNumber];
+        double[] prob = node.CPF.getCondProb(independent);
+        double[][] derivatives = new double[c.length / Alphabet.size][Alphabet.size];
+        for (int l = 0; l < derivatives.length; l++) {
+            for (int a = 0; a < Alphabet.size; a++) {
+                if (c[l * Alphabet.size + a] != 0) {
+                    derivatives[l][a] = c[l * Alphabet.size + a] / prob[l * Alphabet.size + a];
+                }
+            }
+        }
+        return derivatives;
+    }
+}
@@ -0,0 +1,156 @@
+package algorithm;
+
+import bayesNet.CompiledBayesNet;
+import io.Alphabet;
+
+/**
+ * Exact likelihood of tree structured nets by Felsenstein's pruning algorithm. The algorithm is applicable, if each
+ * node has at most one parent and this parent lies in the same virtual tree, i.e. each motif position is an
+ * independent phylogenetic tree (e.g. Markov models of order 0). The partial likelihoods of the nodes are calculated
+ * in post order, so the log likelihood of a tree costs O(nodes * Alphabet.size^2). Partial likelihoods are rescaled
+ * whenever they become small to avoid underflow.
+ *
+ * For all other structures use {@link SimpleNodeElimination}.
+ */
+public class FelsensteinPruning {
+
+    /** partial likelihoods smaller than this value are rescaled */
+    private static final double SCALING_THRESHOLD = 1e-100;
+
+    /** the underlying net */
+    public final CompiledBayesNet net;
+
+    /** nodes of tree t in post order (children before parents) in postOrder[net.treeStart[t]] ... */
+    private final int[] postOrder;
+
+    /** buffer for the partial likelihoods of all nodes, one per thread, since the instance is shared */
+    private final ThreadLocal<double[]> partial;
+
+    /**
+     * Use {@link CompiledBayesNet#getPruning()}, which shares one instance per net.
+     *
+     * @throws IllegalArgumentException
+     *             if the structure of the net is not supported, see {@link #isApplicable(CompiledBayesNet)}
+     */
+    public FelsensteinPruning(CompiledBayesNet net) {
+        if (!isApplicable(net)) {
+            throw new IllegalArgumentException("Felsenstein's algorithm is only applicable for trees.");
+        }
+        this.net = net;
+        final int size = net.numberOfNodes * Alphabet.size;
+        partial = ThreadLocal.withInitial(() -> new double[size]);
+        postOrder = new int[net.treeNodes.length];
+        for (int t = 0; t < net.numberOfTrees; t++) {
+            // breadth first search from the root lists parents before children
+            int first = net.treeStart[t], last = first;
+            for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+                if (net.numberOfParents(net.treeNodes[j]) == 0) {
+                    postOrder[last++] = net.treeNodes[j];
+                }
+            }
+            for (int k = first; k < last; k++) {
+                for (int c = net.childStart[postOrder[k]]; c < net.childStart[postOrder[k] + 1]; c++) {
+                    postOrder[last++] = net.children[c];
+                }
+            }
+            // reverse
+            for (int k = first, l = last - 1; k < l; k++, l--) {
+                int tmp = postOrder[k];
+                postOrder[k] = postOrder[l];
+                postOrder[l] = tmp;
+            }
+        }
+    }
+
+    /**
+     * @return true, if each virtual tree of the net has exactly one root and each node has at most one parent within
+     *         the same tree
+     */
+    public static boolean isApplicable(CompiledBayesNet net) {
+        int[] tree = new int[net.numberOfNodes];
+        for (int t = 0; t < net.numberOfTrees; t++) {
+            for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+                tree[net.treeNodes[j]] = t;
+            }
+        }
+        for (int t = 0; t < net.numberOfTrees; t++) {
+            int roots = 0;
+            for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+                int i = net.treeNodes[j];
+                if (net.numberOfParents(i) == 0) {
+                    roots++;
+                } else if (net.numberOfParents(i) > 1 || tree[net.parents[net.parentStart[i]]] != t) {
+                    return false;
+                }
+            }
+            if (roots != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the log likelihood of the observation in the trees start, ..., end.
+     *
+     * @param observation
+     *            the observed index of each node, -1 if the node is unobserved
+     */
+    public double getLogLikelihood(int[] observation, int start, int end) {
+        double[] partial = this.partial.get();
+        double logLikelihood = 0;
+        for (int t = start; t <= end; t++) {
+            logLikelihood += getLogLikelihood(observation, t, partial);
+        }
+        return logLikelihood;
+    }
+
+    /** calculates the log likelihood of tree t, partial is used as buffer for the partial likelihoods */
+    private double getLogLikelihood(int[] observation, int t, double[] partial) {
+        final int[] lookup = net.lookup, lookupStart = net.lookupStart;
+        double logScale = 0;
+        int root = -1;
+        for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+            final int i = postOrder[j];
+            final int offset = i * Alphabet.size;
+            // partial likelihood of the subtree below i given the state of i
+            for (int a = 0; a < Alphabet.size; a++) {
+                partial[offset + a] = observation[i] < 0 || observation[i] == a ? 1 : 0;
+            }
+            for (int c = net.childStart[i]; c < net.childStart[i + 1]; c++) {
+                final int child = net.children[c];
+                final int childOffset = child * Alphabet.size;
+                final double[] p = net.getCondProb(child, observation[child] >= 0);
+                // each row of the conditional probabilities of the child encodes one state of i
+                for (int l = 0; l < net.cpfSize[child]; l++) {
+                    final int row = l * Alphabet.size;
+                    double sum = 0;
+                    for (int b = 0; b < Alphabet.size; b++) {
+                        sum += p[row + b] * partial[childOffset + b];
+                    }
+                    partial[offset + lookup[lookupStart[child] + l]] *= sum;
+                }
+            }
+            double max = 0;
+            for (int a = 0; a < Alphabet.size; a++) {
+                max = Math.max(max, partial[offset + a]);
+            }
+            if (max == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            if (max < SCALING_THRESHOLD) {
+                for (int a = 0; a < Alphabet.size; a++) {
+                    partial[offset + a] /= max;
+                }
+                logScale += Math.log(max);
+            }
+            root = i;
+        }
+        final double[] p = net.getCondProb(root, observation[root] >= 0);
+        double likelihood = 0;
+        for (int a = 0; a < Alphabet.size; a++) {
+            likelihood += p[a] * partial[root * Alphabet.size + a];
+        }
+        return Math.log(likelihood) + logScale;
+    }
+}
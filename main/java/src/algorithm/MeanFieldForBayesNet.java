@@ -1,14 +1,18 @@
 package algorithm;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import bayesNet.BayesNet;
 import bayesNet.BayesNetHandler;
-import bayesNet.BayesNetNode;
+import bayesNet.BayesNetNodeProperties;
+import bayesNet.CPF;
+import bayesNet.CompiledBayesNet;
 import de.jstacs.data.Sequence;
 import de.jstacs.data.Sequence.SubSequence;
 import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
 import io.Alphabet;
+import io.PackedAlignment;
 
 /**
  * Calculates and optimizes the meanfield parameters of a {@link BayesNet}
@@ -35,37 +39,103 @@ public class MeanFieldForBayesNet {
      */
     public MultiDimensionalDiscreteSequence parent;
 
+    /** flat representation of the net, see {@link BayesNetHandler#getCompiledNet()} */
+    private CompiledBayesNet net;
+
+    /** observed index for each node, -1 if the node is unobserved */
+    private int[] observation;
+
+    /** pointers to the logarithm of the conditional probabilities of each node, refreshed before each calculation */
+    private double[][] lnCondProbs;
+
     private int[] node2hiddenNodeMap;
     private int hiddenNodes;
 
+    /** buffer for the updates of q */
+    private double[] newQ;
+
+    /** the sequence the current observation has been initialized for */
+    private Sequence<int[]> observedSeq;
+
+    /** cached free energy of each tree (motif position) */
+    private double[] treeFreeEnergy;
+
+    /**
+     * sum of the versions of all {@link CPF}s of a tree at the time its free energy has been cached, -1 if the cache
+     * is invalid
+     */
+    private long[] treeVersion;
+
+    /**
+     * value of {@link models.ModelContext#allowIndependentTransitions} at the time the free energies have been cached
+     */
+    private boolean cachedAllowIndependent;
+
+    /** source of the unique state stamps of all instances, see {@link #getState()} */
+    private static final AtomicLong STATE_COUNTER = new AtomicLong();
+
+    /** unique stamp of the current observation and q */
+    private long state;
+
     public MeanFieldForBayesNet(BayesNetHandler bnh, Sequence<int[]> seq) {
         this.bnh = bnh;
         this.seq = seq;
         // determine the underlying MultiDimensionalDiscreteSequence for faster lookups
+        parent = getParent(seq);
+    }
+
+    /**
+     * Estimates the memory used by this instance in bytes, including the buffers needed by
+     * {@link #optimizeByNormalisation()}.
+     */
+    public long getMemorySize() {
+        final long header = 16;
+        long size = 64;
+        if (observation != null) {
+            size += 3 * header + 4L * observation.length + 4L * node2hiddenNodeMap.length + 8L * lnCondProbs.length;
+            size += 2 * header + 8L * treeFreeEnergy.length + 8L * treeVersion.length;
+        }
+        if (q != null) {
+            // q and the buffer for its updates
+            size += 2 * header + 16L * q.length;
+        }
+        return size;
+    }
+
+    /** @return the underlying {@link MultiDimensionalDiscreteSequence} of seq */
+    private static MultiDimensionalDiscreteSequence getParent(Sequence<?> seq) {
         if (seq instanceof MultiDimensionalDiscreteSequence) {
-            parent = (MultiDimensionalDiscreteSequence) seq;
-        } else {
-            parent = (MultiDimensionalDiscreteSequence) ((SubSequence<?>) seq).getParent();
+            return (MultiDimensionalDiscreteSequence) seq;
         }
+        return (MultiDimensionalDiscreteSequence) ((SubSequence<?>) seq).getParent();
+    }
+
+    /** @return the position of seq within its underlying {@link MultiDimensionalDiscreteSequence} */
+    private static int getOffset(Sequence<?> seq) {
+        return seq instanceof MultiDimensionalDiscreteSequence ? 0 : ((SubSequence<?>) seq).start;
     }
 
     public void init() {
+        if (observation == null) {
+            initObservation();
+        }
         // estimate number of unkown nodes
         hiddenNodes = 0;
-        node2hiddenNodeMap = new int[bnh.getNet().numberOfNodes];
-        for (int i = 0; i < this.bnh.getNet().numberOfNodes; i++) {
-            if (!bnh.getNet().getNode(i).props._isObserved) {
+        node2hiddenNodeMap = new int[net.numberOfNodes];
+        for (int i = 0; i < net.numberOfNodes; i++) {
+            if (observation[i] < 0) {
                 node2hiddenNodeMap[i] = hiddenNodes * 4;
                 hiddenNodes++;
             } else {
                 node2hiddenNodeMap[i] = -1;
             }
         }
-        if (hiddenNodes == bnh.getNet().numberOfNodes) {
+        if (hiddenNodes == net.numberOfNodes) {
             System.out.println("+++++ Warning +++++ MeanFieldForBayesNet: There are no observed nodes.");
         }
         this.q = new double[hiddenNodes * Alphabet.size];
         Arrays.fill(this.q, 1. / Alphabet.size); // initializing uniform distributed
+        invalidateFreeEnergies();
     }
 
     public void setSequence(Sequence<int[]> seq) {
@@ -73,135 +143,262 @@ public class MeanFieldForBayesNet {
     }
 
     /**
-     * initialisiert die Beobachtung f�r das Netz, sollte immer vor irgendeiner Berechnung passieren
+     * initialisiert die Beobachtung f�r diesen MeanField, sollte immer vor irgendeiner Berechnung passieren. The
+     * observation is kept within this instance and is not written into the shared {@link BayesNetNodeProperties}, so
+     * that different instances can be used concurrently on the same {@link BayesNetHandler}. Nodes of trees that are
+     * not covered by the sequence are unobserved.
      */
     public void initObservation() {
-        int offset = 0;
-        if (!(seq instanceof MultiDimensionalDiscreteSequence)) {
-            offset = ((SubSequence<?>) seq).start;
+        if (observedSeq == seq && net == bnh.getCompiledNet()) {
+            // the observation is up to date
+            return;
+        }
+        int offset = getOffset(seq);
+        final boolean netChanged = net != null && net != bnh.getCompiledNet();
+        net = bnh.getCompiledNet();
+        if (observation == null || observation.length != net.numberOfNodes) {
+            observation = new int[net.numberOfNodes];
+            lnCondProbs = new double[net.numberOfNodes][];
+            treeFreeEnergy = new double[net.numberOfTrees];
+            treeVersion = new long[net.numberOfTrees];
         }
+        Arrays.fill(observation, -1);
+        invalidateFreeEnergies();
+        observedSeq = seq;
 
         for (int m = 0; m < Math.min(bnh.motifLength, seq.getLength()); m++) {
-            // _bnh._myTreesArray[m].setObservation(getObservation(m));
-            int[] tmp = parent.containerForPhyloBayes[m + offset];
-            bnh._myTreesArray[m].setObservation(tmp);
+            int species = parent.getNumberOfSequences();
+            // this should be the standard case
+            if (species == net.leafStart[m + 1] - net.leafStart[m]) {
+                for (int i = 0; i < species; i++) {
+                    int symbol = PackedAlignment.getSymbol(parent, m + offset, i);
+                    observation[net.treeLeafs[net.leafStart[m] + i]] = symbol < Alphabet.size ? symbol : -1;
+                }
+            } else if (species == net.treeStart[m + 1] - net.treeStart[m]) {
+                for (int i = 0; i < species; i++) {
+                    int symbol = PackedAlignment.getSymbol(parent, m + offset, i);
+                    observation[net.treeNodes[net.treeStart[m] + i]] = symbol < Alphabet.size ? symbol : -1;
+                }
+            } else {
+                throw new IllegalArgumentException("Can not map Observation to tree.");
+            }
+        }
+        if (netChanged && q != null) {
+            // the hidden nodes of the new structure differ
+            init();
+        }
+    }
+
+    /**
+     * Moves this meanfield to another window of the same alignment, e.g. to the next window while scanning a sequence.
+     * The observation is updated and q is initialized uniformly like in {@link #init()}, so the result of
+     * {@link #optimizeByNormalisation()} does not depend on the previous window. As long as the net does not change, no
+     * memory is allocated.
+     *
+     * @param window
+     *            the new window, a subsequence of the same {@link MultiDimensionalDiscreteSequence}
+     */
+    public void moveTo(Sequence<int[]> window) {
+        if (q == null || getParent(window) != parent || net != bnh.getCompiledNet()) {
+            seq = window;
+            parent = getParent(window);
+            initObservation();
+            init();
+            return;
+        }
+        seq = window;
+        initObservation();
+        hiddenNodes = 0;
+        for (int i = 0; i < net.numberOfNodes; i++) {
+            node2hiddenNodeMap[i] = observation[i] < 0 ? Alphabet.size * hiddenNodes++ : -1;
+        }
+        if (q.length < hiddenNodes * Alphabet.size) {
+            q = new double[net.numberOfNodes * Alphabet.size];
+        }
+        Arrays.fill(q, 1. / Alphabet.size);
+        invalidateFreeEnergies();
+    }
+
+    /**
+     * Writes the observation of this instance into the {@link BayesNetNodeProperties} of the underlying net. This is
+     * only needed for algorithms working directly on the net, like {@link SimpleNodeElimination}.
+     */
+    public void applyObservationToNet() {
+        applyObservationToNet(net.numberOfTrees - 1);
+    }
+
+    /**
+     * Writes the observation of the trees 0, ..., lastTree into the {@link BayesNetNodeProperties} of the underlying
+     * net, the nodes of all other trees are set unobserved, see {@link #applyObservationToNet()}.
+     */
+    private void applyObservationToNet(int lastTree) {
+        BayesNet bn = bnh.getNet();
+        for (int i = 0; i < net.numberOfNodes; i++) {
+            bn.getNode(i).props.setObservation(Alphabet.size);
+        }
+        for (int j = 0; j < net.treeStart[lastTree + 1]; j++) {
+            int i = net.treeNodes[j];
+            if (observation[i] >= 0) {
+                bn.getNode(i).props.setObservation(observation[i]);
+            }
+        }
+    }
+
+    /** collects the pointers to the logarithm of the conditional probabilities of all nodes */
+    private void fetchCondProbs() {
+        for (int i = 0; i < net.numberOfNodes; i++) {
+            lnCondProbs[i] = net.getLnCondProb(i, observation[i] >= 0);
+        }
+    }
+
+    /** marks the cached free energies of all trees as invalid. Has to be called whenever q changes. */
+    private void invalidateFreeEnergies() {
+        if (treeVersion != null) {
+            Arrays.fill(treeVersion, -1);
+        }
+        state = STATE_COUNTER.incrementAndGet();
+    }
+
+    /**
+     * Returns a stamp of the current observation and q. The stamp is unique among all instances and changes whenever
+     * the observation or q changes, so it can be used to detect stale values derived from this meanfield, like
+     * {@link ExpectedCounts}.
+     */
+    public long getState() {
+        return state;
+    }
+
+    /** @return the sum of the versions of all {@link CPF}s in tree t */
+    private long getTreeVersion(int t) {
+        long version = 0;
+        for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+            version += net.cpf[net.treeNodes[j]].getVersion();
         }
+        return version;
     }
 
     /** optimizes the free energy concerning q (the meanfields) */
     public void optimizeByNormalisation() {
+        optimizeByNormalisation(0, net.numberOfTrees - 1, seq.getLength() - 1);
+    }
+
+    /**
+     * Optimizes the free energy of the trees start, ..., end concerning q of their nodes. q of all other nodes is kept
+     * fixed and convergence is checked on the free energy of these trees only. If the trees are independent of all
+     * other trees (order 0), the updates of their nodes do not depend on the other trees. So q agrees with
+     * {@link #optimizeByNormalisation()} for these trees up to the convergence tolerance, but not exactly, as that
+     * method stops when the free energy of all trees has converged.
+     */
+    public void optimizeByNormalisation(int start, int end) {
+        optimizeByNormalisation(start, end, end);
+    }
+
+    /**
+     * Optimizes q of the nodes of the trees start, ..., end until the free energy of the trees start, ..., lastScored
+     * converges.
+     */
+    private void optimizeByNormalisation(int start, int end, int lastScored) {
         if (CALC_LIKELIHOOD) {
             return;
         }
-        BayesNetNode aktNode, aktChild;
+        final int[] parents = net.parents, parentStart = net.parentStart, treeNodes = net.treeNodes;
+        final int[] children = net.children, childStart = net.childStart, childParentIndex = net.childParentIndex;
+        final int[] lookup = net.lookup, lookupStart = net.lookupStart, cpfSize = net.cpfSize;
         double prod = 1;
-        int[] query;
-        double[] newQ = new double[q.length];
+        if (newQ == null || newQ.length < q.length) {
+            newQ = new double[q.length];
+        }
+        fetchCondProbs();
 
         // variables for convergence
         int maxSteps = 100, minsteps = 2;
         boolean converged = false;
         int k = 0;
-        double oldScore = calcFreeEnergy(), newScore;
+        double oldScore = calcFreeEnergy(start, lastScored), newScore;
 
         while (k < maxSteps && !converged || k < minsteps) { // minsteps is needed
-            NODES: for (int i = 0; i < bnh.getNet().numberOfNodes; i++) { // run over all nodes
-                aktNode = bnh.getNet().getNode(i); // remember actual node
-                if (aktNode.props._isObserved) { // if the current node is observed, nothing must be done
+            NODES: for (int j = net.treeStart[start]; j < net.treeStart[end + 1]; j++) { // run over all nodes
+                final int i = treeNodes[j];
+                if (observation[i] >= 0) { // if the current node is observed, nothing must be done
                     continue NODES;
                 }
+                final int hi = node2hiddenNodeMap[i];
+                final int np = parentStart[i + 1] - parentStart[i];
+                final double[] lnP = lnCondProbs[i];
                 for (int a = 0; a < Alphabet.size; a++) { // run over all possible obeservations
-                    // System.out.println("-------------- Behandle " + aktNode.getName() + " symb " + a);
-                    newQ[node2hiddenNodeMap[i] + a] = 0;
+                    newQ[hi + a] = 0;
                     // ####################### berechne Grundsumme des Knotens
-                    for (int l = 0; l < aktNode.CPF._size; l++) {
-                        query = aktNode.CPF._lookup[l]; // getQueryByIndex
+                    for (int l = 0; l < cpfSize[i]; l++) {
+                        int query = lookupStart[i] + l * np;
                         prod = 1;
-                        for (int p = 0; p < aktNode.numberOfParents; p++) {
-                            if (!aktNode.Aparents[p].props._isObserved) { // nur das Q eines eltern ansprechen, wenn
-                                                                          // dieser nicht beobachtet ist (sonst gibt es
-                                                                          // kein q)
-                                prod *= this.q[node2hiddenNodeMap[aktNode.Aparents[p].nodeNumber] + query[p]];
-                                // System.out.println(" * " +
-                                // this.q[_nodeNumber2hiddenNodeNumber[aktNode.Aparents[p].nodeNumber]][query[p]]);
+                        for (int p = 0; p < np; p++) {
+                            int parent = parents[parentStart[i] + p];
+                            // nur das Q eines eltern ansprechen, wenn dieser nicht beobachtet ist (sonst gibt es kein q)
+                            if (observation[parent] < 0) {
+                                prod *= this.q[node2hiddenNodeMap[parent] + lookup[query + p]];
                             }
                         }
                         // TODO: nur summieren wenn CPF stimmt (�berpr�fen der beobachteten eltern
-                        // System.out.println(" + " + prod + " * " + Math.log(aktNode.CPF.get(l,a)));
-                        newQ[node2hiddenNodeMap[i] + a] += prod * Math.log(aktNode.CPF.get(l, a));
-                        // if(aktNode.CPF.get(l,a) == 0) {
-                        // System.err.println("schei�e");
-                        // }
+                        newQ[hi + a] += prod * lnP[l * Alphabet.size + a];
                     }
-                    // System.out.println(aktNode.getName() + " " + sum);
 
                     // Kindersumme des Knotens
-                    for (int c = 0; c < aktNode.numberOfChilds; c++) {
-                        aktChild = aktNode.Achildren[c];
-                        // System.out.println("      ------- " + aktChild.getName());
-                        for (int ac = 0; ac < Alphabet.size; ac++) // laufe �ber jede m�gliche Realisierung des
-                                                                   // Kindes
-                        {
+                    for (int c = childStart[i]; c < childStart[i + 1]; c++) {
+                        final int child = children[c];
+                        final int childObs = observation[child];
+                        final int ncp = parentStart[child + 1] - parentStart[child];
+                        final int myIndex = childParentIndex[c];
+                        final double[] lnPChild = lnCondProbs[child];
+                        // laufe �ber jede m�gliche Realisierung des Kindes
+                        for (int ac = 0; ac < Alphabet.size; ac++) {
                             // wenn das aktuelle kind beobachtet ist, dann nur aufsummieren, wenn die Beobachtung
                             // getroffen wurde
-                            if (!aktChild.props._isObserved || aktChild.props._isObserved
-                                    && aktChild.props._observedIndex == ac) {
-                                for (int l = 0; l < aktChild.CPF._size; l++) {
-                                    boolean trueObs = true;
-                                    query = aktChild.CPF._lookup[l]; // getQueryByIndex(l);
-                                    if (aktChild.props._isObserved) {
-                                        prod = 1;
-                                    } else {
-                                        // System.out.println(Arrays.toString(_nodeNumber2hiddenNodeNumber));
-                                        // System.out.println("step " + k + "  node " + aktChild.nodeNumber + " parent "
-                                        // + aktNode.nodeNumber + " " +ac + " =?= " + aktChild.props._observedIndex);
-                                        prod = this.q[node2hiddenNodeMap[aktChild.nodeNumber] + ac];
-                                    }
-                                    // laufe �ber alle Eltern des Kindes
-                                    for (int p = 0; p < aktChild.numberOfParents; p++) {
-                                        // �berpr�fe ob in Query die wahre Beobachtung steht
-                                        if (aktChild.Aparents[p].props._isObserved
-                                                && aktChild.Aparents[p].props._observedIndex != query[p]) {
+                            if (childObs >= 0 && childObs != ac) {
+                                continue;
+                            }
+                            for (int l = 0; l < cpfSize[child]; l++) {
+                                boolean trueObs = true;
+                                int query = lookupStart[child] + l * ncp;
+                                if (childObs >= 0) {
+                                    prod = 1;
+                                } else {
+                                    prod = this.q[node2hiddenNodeMap[child] + ac];
+                                }
+                                // laufe �ber alle Eltern des Kindes
+                                for (int p = 0; p < ncp; p++) {
+                                    int parent = parents[parentStart[child] + p];
+                                    // �berpr�fe ob in Query die wahre Beobachtung steht
+                                    if (observation[parent] >= 0) {
+                                        if (observation[parent] != lookup[query + p]) {
                                             trueObs = false;
                                         }
+                                    } else if (p != myIndex) {
                                         // nur q aufmultiplizieren, wenn es nicht gerade abgeleitet wurde, also das q
-                                        // des aktuellen Knotens ist
-                                        // oder der Vater beobachtet wurde (dann gibt es kein q -> nullpointer)
-                                        if (aktChild.Aparents[p].nodeNumber != aktNode.nodeNumber &&
-                                                !aktChild.Aparents[p].props._isObserved) {
-                                            // System.out.println("      * " +
-                                            // this.q[_nodeNumber2hiddenNodeNumber[aktChild.Aparents[p].nodeNumber]][query[p]]);
-                                            prod *= this.q[node2hiddenNodeMap[aktChild.Aparents[p].nodeNumber]
-                                                    + query[p]];
-                                        }
-                                    }
-                                    // nur aufsummieren, wenn die Beobachtung die des elternknotens aktnode ist
-                                    // TODO: nur aufsummieren wenn query = wirklichen beobachtungen der eltern
-                                    // etnspricht
-                                    if (query[aktChild.getParentIndex(aktNode)] == a && trueObs) {
-                                        newQ[node2hiddenNodeMap[i] + a] += prod * Math.log(aktChild.CPF.get(l, ac));
-                                        // if(aktChild.CPF.get(l,ac) == 0) {
-                                        // System.err.println(aktChild.CPF.get(l,ac));
-                                        // }
-                                        // System.out.println("      " + prod + " * " + aktChild.CPF.get(l,ac));
+                                        // des aktuellen Knotens ist oder der Vater beobachtet wurde
+                                        prod *= this.q[node2hiddenNodeMap[parent] + lookup[query + p]];
                                     }
                                 }
+                                // nur aufsummieren, wenn die Beobachtung die des elternknotens aktnode ist
+                                if (lookup[query + myIndex] == a && trueObs) {
+                                    newQ[hi + a] += prod * lnPChild[l * Alphabet.size + ac];
+                                }
                             }
                         }
                     }
-                    newQ[node2hiddenNodeMap[i] + a] = Math.exp(newQ[node2hiddenNodeMap[i] + a]);
+                    newQ[hi + a] = Math.exp(newQ[hi + a]);
                 }
 
                 double sum = 0;
                 for (int a = 0; a < 4; a++) {
-                    sum += newQ[node2hiddenNodeMap[i] + a];
+                    sum += newQ[hi + a];
                 }
                 for (int a = 0; a < 4; a++) {
-                    this.q[node2hiddenNodeMap[i] + a] = newQ[node2hiddenNodeMap[i] + a] / sum;
+                    this.q[hi + a] = newQ[hi + a] / sum;
                 }
             }
+            invalidateFreeEnergies();
 
-            newScore = calcFreeEnergy();
+            newScore = calcFreeEnergy(start, lastScored);
             if (Math.abs(oldScore - newScore) < 1e-5) {
                 converged = true;
             }
@@ -215,28 +412,124 @@ public class MeanFieldForBayesNet {
         return calcFreeEnergy(0, seq.getLength() - 1);
     }
 
-    /** berechnet aus dem Klasse-q und einem Virtuellen Baum die Freie Energie */
-    NodeSumming ns;
-
+    /**
+     * Calculates the exact log likelihood of the observation in the trees start, ..., end given the observation in the
+     * trees 0, ..., start - 1. If each tree of the net is independent (see
+     * {@link FelsensteinPruning#isApplicable(CompiledBayesNet)}), this is the likelihood of the trees start, ..., end
+     * and Felsenstein's pruning algorithm is used. Otherwise the likelihoods of the observation in the trees 0, ...,
+     * end and 0, ..., start - 1 are determined by {@link SimpleNodeElimination}, summing out all other trees. So the
+     * scores of consecutive ranges add up to the likelihood of the whole observation.
+     */
     public double calcLogLikelihood(int start, int end) {
         // NodeSumming ns = new NodeSumming(_bnh); // TODO: buggy
         // return Math.log(ns.getLikelihood(end)) - Math.log(ns.getLikelihood(start));
-        SimpleNodeElimination.instantiate(this.bnh.getNet());
-        return Math.log(SimpleNodeElimination.INSTANCE.getLikelihood());
+        FelsensteinPruning pruning = net.getPruning();
+        if (pruning != null) {
+            return pruning.getLogLikelihood(observation, start, end);
+        }
+        double logLikelihood = eliminate(end);
+        if (start > 0) {
+            logLikelihood -= eliminate(start - 1);
+        }
+        return logLikelihood;
     }
 
+    /** @return the log likelihood of the observation in the trees 0, ..., lastTree by node elimination */
+    private double eliminate(int lastTree) {
+        SimpleNodeElimination elimination = bnh.getNodeElimination();
+        synchronized (elimination) {
+            applyObservationToNet(lastTree);
+            return Math.log(elimination.getLikelihood());
+        }
+    }
+
+    /** Calculates the exact log likelihood of the observation in the whole net. */
     public double calcLogLikelihood() {
-        return Math.log(SimpleNodeElimination.INSTANCE.getLikelihood());
+        return calcLogLikelihood(0, net.numberOfTrees - 1);
     }
 
+    /**
+     * Calculates the free energy of the trees start, ..., end. The free energy of each tree is cached and only
+     * recalculated, if q or the conditional probabilities of the tree have changed since the last call.
+     */
     public double calcFreeEnergy(int start, int end) {
         // only for debugging purposes
         if (MeanFieldForBayesNet.CALC_LIKELIHOOD) {
             return -calcLogLikelihood(start, end);
         }
         // #############################################
+        final boolean allowIndependent = bnh.getContext().allowIndependentTransitions;
+        if (cachedAllowIndependent != allowIndependent) {
+            invalidateFreeEnergies();
+            cachedAllowIndependent = allowIndependent;
+        }
+        double fe = 0;
+        for (int t = start; t <= end; t++) {
+            long version = getTreeVersion(t);
+            if (treeVersion[t] != version) {
+                treeFreeEnergy[t] = calcTreeFreeEnergy(t);
+                treeVersion[t] = version;
+            }
+            fe += treeFreeEnergy[t];
+        }
+        return fe;
+    }
+
+    /**
+     * Adds the expected number of times each entry of the conditional probabilities of the trees start, ..., end is
+     * used under q, multiplied by weight, to counts. Entries skipped by {@link #calcFreeEnergy(int, int)} are skipped
+     * here as well.
+     */
+    public void addExpectedCounts(int start, int end, double weight, ExpectedCounts counts) {
+        final int[] parents = net.parents, parentStart = net.parentStart, treeNodes = net.treeNodes;
+        final int[] lookup = net.lookup, lookupStart = net.lookupStart;
+        final boolean independent = bnh.getContext().allowIndependentTransitions;
+
+        for (int j = net.treeStart[start]; j < net.treeStart[end + 1]; j++) {
+            final int i = treeNodes[j];
+            final int np = parentStart[i + 1] - parentStart[i];
+            final int obs = observation[i];
+            final int hn = node2hiddenNodeMap[i];
+            final double[] c = net.isPhyloLeaf[i] && obs < 0 && independent ? counts.independentCounts[i]
+                    : counts.counts[i];
+
+            if (net.isRoot[i] && obs < 0) {
+                final double[] lnP = net.getLnCondProb(i, false);
+                for (int h = 0; h < 4; h++) {
+                    if (lnP[h] > Double.NEGATIVE_INFINITY) {
+                        c[h] += weight * q[hn + h];
+                    }
+                }
+                continue;
+            }
+            // l encodes the observation of the parents
+            ROWS: for (int l = 0; l < net.cpfSize[i]; l++) {
+                double prod = weight;
+                for (int p = 0; p < np; p++) {
+                    int aktParent = parents[parentStart[i] + p];
+                    int hp = lookup[lookupStart[i] + l * np + p];
+                    if (observation[aktParent] < 0) {
+                        prod *= q[node2hiddenNodeMap[aktParent] + hp];
+                    } else if (hp != observation[aktParent]) {
+                        continue ROWS;
+                    }
+                }
+                if (obs >= 0) {
+                    c[l * Alphabet.size + obs] += prod;
+                } else {
+                    for (int h2 = 0; h2 < 4; h2++) {
+                        c[l * Alphabet.size + h2] += prod * q[hn + h2];
+                    }
+                }
+            }
+        }
+    }
+
+    /** berechnet aus dem Klasse-q die Freie Energie des Baumes t */
+    private double calcTreeFreeEnergy(int t) {
+        final int[] parents = net.parents, parentStart = net.parentStart, treeNodes = net.treeNodes;
+        final int[] lookup = net.lookup, lookupStart = net.lookupStart;
 
-        // TODO: hier kann viel gecached werden, vor allem bei der Minimierung durch anpassen der Q
         double part1 = 0; // erste Summe der VE
         double part2 = 0; // zweite Summe der VE
         double tmp = 0;
@@ -244,121 +537,87 @@ public class MeanFieldForBayesNet {
         int hn = 0; // hiddenNodeNumber
         int hnp = 0; // hiddenNodeNumberParent
 
-        BayesNetNode aktNode, aktParent;
-
         // Term 1, entropie
-        for (int t = start; t <= end; t++) {
-            for (int i = 0; i < bnh._myTreesArray[t].numberOfNodes; i++) {
-                aktNode = bnh._myTreesArray[t].getNode(i);
-                tmp = 0;
-                if (!aktNode.props._isObserved) {
-                    hn = node2hiddenNodeMap[aktNode.nodeNumber];
-                    // laufe �ber alle Zust�nde in q[i]
-                    for (int h = 0; h < 4; h++) {
-                        if (q[hn + h] > 0) {
-                            tmp += q[hn + h] * Math.log(q[hn + h]);
-                        } else {
-                            // System.err.println("1) log = -inf");
-                        }
+        for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+            int i = treeNodes[j];
+            tmp = 0;
+            if (observation[i] < 0) {
+                hn = node2hiddenNodeMap[i];
+                // laufe �ber alle Zust�nde in q[i]
+                for (int h = 0; h < 4; h++) {
+                    if (q[hn + h] > 0) {
+                        tmp += q[hn + h] * Math.log(q[hn + h]);
                     }
                 }
-                part1 += tmp;
             }
+            part1 += tmp;
         }
 
-        for (int t = start; t <= end; t++) {
-            for (int i = 0; i < bnh._myTreesArray[t].numberOfNodes; i++) {
-                aktNode = bnh._myTreesArray[t].getNode(i);
-                int cpfSize = aktNode.CPF._size;
-                double[][] PaktNodeCondProb;
-                PaktNodeCondProb = aktNode.CPF.getCondProb(); // for fast access;
-                // Util.visualizeMatrix(PaktNodeCondProb);
-                // System.out.println("-------");
-                int[][] PaktLookup = aktNode.CPF.getLookUpPointer();
-                // System.out.println("aktNode: " + aktNode.getName());
-                tmp = 0;
-                hn = node2hiddenNodeMap[aktNode.nodeNumber];
-
-                if (aktNode.isRoot() && !aktNode.props._isObserved) {
-                    for (int h = 0; h < 4; h++) {
-                        // System.out.println(q[hn][h] + " * log( " + aktNode.CPF.get(0, h) + " )");
-                        if (PaktNodeCondProb[0][h] > 0) {// (aktNode.CPF.get(0, h) > 0)
-                            tmp += q[hn + h] * Math.log(PaktNodeCondProb[0][h]); // (aktNode.CPF.get(0, h));
-                        } else {
-                            // tmp = Double.NEGATIVE_INFINITY;
-                            // System.err.println("log = -inf");
+        for (int j = net.treeStart[t]; j < net.treeStart[t + 1]; j++) {
+            final int i = treeNodes[j];
+            final int cpfSize = net.cpfSize[i];
+            final int np = parentStart[i + 1] - parentStart[i];
+            final int obs = observation[i];
+            final double[] lnP = lnCondProbs[i] = net.getLnCondProb(i, obs >= 0); // for fast access;
+            tmp = 0;
+            hn = node2hiddenNodeMap[i];
+
+            if (net.isRoot[i] && obs < 0) {
+                for (int h = 0; h < 4; h++) {
+                    if (lnP[h] > Double.NEGATIVE_INFINITY) {
+                        tmp += q[hn + h] * lnP[h];
+                    }
+                }
+            } else if (obs >= 0) {
+                // laufe �ber condprob-array, l codiert die Beobachtung der eltern
+                for (int l = 0; l < cpfSize; l++) {
+                    double prod = 1;
+                    for (int p = 0; p < np; p++) {
+                        int aktParent = parents[parentStart[i] + p];
+                        hnp = node2hiddenNodeMap[aktParent];
+                        hp = lookup[lookupStart[i] + l * np + p];
+
+                        if (observation[aktParent] < 0) {
+                            // das Produkt der q's berechnen
+                            prod *= q[hnp + hp];
+                        } else if (hp != observation[aktParent]) {
+                            prod = 0;
                         }
                     }
-                } else if (aktNode.props._isObserved) {
-                    // laufe �ber condprob-array, l codiert die Beobachtung der eltern
-                    // System.out.println("Fall 2 " + aktNode.getName());
+                    if (lnP[l * Alphabet.size + obs] > Double.NEGATIVE_INFINITY) {
+                        prod *= lnP[l * Alphabet.size + obs];
+                    } else {
+                        prod = Double.NEGATIVE_INFINITY;
+                    }
+                    tmp += prod;
+                }
+            } else {
+                for (int h2 = 0; h2 < 4; h2++) {
                     for (int l = 0; l < cpfSize; l++) {
                         double prod = 1;
-                        // int[] lookupParents = aktNode.CPF.getQueryByIndex(l);
-                        for (int p = 0; p < aktNode.numberOfParents; p++) {
-                            aktParent = aktNode.Aparents[p];
-                            // System.out.println("parent: " + aktParent.getName());
-
-                            hnp = node2hiddenNodeMap[aktParent.nodeNumber];
-                            hp = PaktLookup[l][p]; // lookupParents[p];
-
-                            if (!aktParent.props._isObserved) {
-                                // das Produkt der q's berechnen
+                        for (int p = 0; p < np; p++) { // laufe �ber Eltern
+                            int aktParent = parents[parentStart[i] + p];
+                            hnp = node2hiddenNodeMap[aktParent]; // merke hiddenNodeNumber von den Eltern
+                            hp = lookup[lookupStart[i] + l * np + p]; // Beobachtung des Eltern p merken
+                            if (observation[aktParent] < 0) {
+                                // das Produkt der q's berechnen: hnp = hiddennodenumber vom eltern, hp = Beobachtung
+                                // in Eltern
                                 prod *= q[hnp + hp];
-                            } else if (hp != aktParent.props._observedIndex) {
-                                // prod *= aktParent.props._observation[hp]; //TODO: - is observable
+                            } else if (hp != observation[aktParent]) {
+                                // TODO: Check this case
                                 prod = 0;
                             }
                         }
-                        // System.out.println(l + ", " + aktNode.props._observedIndex+ ": " + prod + " * log( " +
-                        // (aktNode.CPF.get(l,aktNode.props._observedIndex)) + " )");
-                        if (PaktNodeCondProb[l][aktNode.props._observedIndex] > 0) { // (aktNode.CPF.get(l,
-                                                                                     // aktNode.props._observedIndex) >
-                                                                                     // 0) {
-                            prod *= Math.log(PaktNodeCondProb[l][aktNode.props._observedIndex]);// aktNode.CPF.get(l,
-                                                                                                // aktNode.props._observedIndex));
+                        if (lnP[l * Alphabet.size + h2] > Double.NEGATIVE_INFINITY) {
+                            prod *= q[hn + h2] * lnP[l * Alphabet.size + h2];
                         } else {
-                            // System.err.println("2) log = -inf( "+ aktNode.CPF.get(l,aktNode.props._observedIndex)
-                            // + " )");
                             prod = Double.NEGATIVE_INFINITY;
                         }
                         tmp += prod;
                     }
-                } else /* if (!aktNode.props.isPhyloLeaf()) */{
-                    for (int h2 = 0; h2 < 4; h2++) {
-                        for (int l = 0; l < cpfSize; l++) {
-                            double prod = 1;
-                            // int[] lookupParents = aktNode.CPF.getQueryByIndex(l); // Merke Beobachtung zu l in den
-                            // Eltern
-                            for (int p = 0; p < aktNode.numberOfParents; p++) { // laufe �ber Eltern
-                                aktParent = aktNode.Aparents[p]; // merke aktuellen Eltern knoten
-                                hnp = node2hiddenNodeMap[aktParent.nodeNumber]; // merke hiddenNodeNumber
-                                                                                // von den Eltern
-                                hp = PaktLookup[l][p]; // lookupParents[p]; // Beobachtung des Eltern p merken
-                                if (!aktParent.props._isObserved) {
-                                    prod *= q[hnp + hp]; // das Produkt der q's berechnen: hnp = hiddennodenumber vom
-                                                         // eltern, hp = Beobachtung in Eltern
-                                } else if (hp != aktParent.props._observedIndex) {
-                                    // prod *= aktParent.props._observation[hp]; //TODO: - is observable
-                                    // TODO: Check this case
-                                    prod = 0;
-                                }
-                            }
-                            // System.out.println(prod + " * " + q[hn][h2] + " * log( " + (aktNode.CPF.get(l, h2)) +
-                            // " )");
-                            if (PaktNodeCondProb[l][h2] > 0) { // aktNode.CPF.get(l, h2)
-                                prod *= q[hn + h2] * Math.log(PaktNodeCondProb[l][h2]); // aktNode.CPF.get(l, h2));
-                            } else {
-                                // System.err.println("3) log = -inf log( "+ aktNode.CPF.get(l, h2) + " )");
-                                prod = Double.NEGATIVE_INFINITY;
-                            }
-                            tmp += prod;
-                        }
-                    }
                 }
-                // System.out.println(tmp);
-                part2 += tmp;
             }
+            part2 += tmp;
         }
 
         return part1 - part2;
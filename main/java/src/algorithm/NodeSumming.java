@@ -91,27 +91,29 @@ public class NodeSumming {
         BayesNetNode aktNode;
         double product = 1;
         double factor;
-        int[] obsParent;
+        int[] sizeBuffer;
+        int l;
         
         for (int k=0; k <= end; k++) {
             for(int i =0; i < bnh.getVirtualTree(k).numberOfNodes; i++) {
 //                System.out.println("Tree " + k + " node " + i);
                 aktNode = bnh.getVirtualTree(k).getNode(i);
                 // System.out.println("======> " + aktNode.getName());
-                obsParent = new int[aktNode.numberOfParents];
+                // row of the parent observations in the CondProb array
+                sizeBuffer = aktNode.CPF.getSizeBuffer();
+                l = 0;
                 for (int p = 0; p < aktNode.numberOfParents; p++) {
-                    if (aktNode.getParent(p).props.isObserved()) {
-                        obsParent[p] = aktNode.getParent(p).props.getObservedIndex();
+                    if (aktNode.Aparents[p].props.isObserved()) {
+                        l += sizeBuffer[p] * aktNode.Aparents[p].props.getObservedIndex();
                     } else {
-                        obsParent[p] = obs[_nodeNumber2hiddenNodeNumber[aktNode.getParent(p).nodeNumber]];
+                        l += sizeBuffer[p] * obs[_nodeNumber2hiddenNodeNumber[aktNode.Aparents[p].nodeNumber]];
                     }
                 }
-                // System.out.println("parent: " + Util.array2string(",",obsParent));
                 
                 if (aktNode.props.isObserved()) {
-                    factor = aktNode.CPF.get(obsParent, aktNode.props.getObservedIndex());
+                    factor = aktNode.CPF.getCondProb(false)[l * Alphabet.size + aktNode.props.getObservedIndex()];
                 } else {
-                    factor = aktNode.CPF.get(obsParent, obs[_nodeNumber2hiddenNodeNumber[aktNode.nodeNumber]]);
+                    factor = aktNode.CPF.getCondProb(false)[l * Alphabet.size + obs[_nodeNumber2hiddenNodeNumber[aktNode.nodeNumber]]];
                 }
                 // System.out.println(product + " * " + factor);
                 product *= factor;
@@ -138,18 +138,20 @@ public class SimpleNodeElimination {
         if (!this.roots[aktNode.nodeNumber]) {
             int oldSumVecInd = 0;
             int nodeInd;
+            final int[] sizeBuffer = aktNode.CPF.getSizeBuffer();
+            final double[] condProb = aktNode.CPF.getCondProb(false);
 
             for (int l1 = 0; l1 < lengthAllNodes; l1++) {
 //                a = this.getObs(l1, aktNodeInd, newLength - 1);
                 a = lookup[l1][aktNodeInd];
 
                 // bestimme Position im CondProb-array, um auf die �bergangsWK zugreifen zu k�nnen
-                int[] query = new int[aktNode.numberOfParents];
+                int l = 0;
                 for (int p = 0; p < aktNode.numberOfParents; p++) {
                     nodeInd = this.queueIndices[aktNode.Aparents[p].nodeNumber]; 
                     //nodeInd = this.nodeQueue.indexOf(aktNode.Aparents[p]);
 //                    query[p] = this.getObs(l1, nodeInd, newLength - 1);
-                    query[p] = lookup[l1][nodeInd];
+                    l += sizeBuffer[p] * lookup[l1][nodeInd];
                 }
 
                 // bestimme Position im alten SumVectorArray
@@ -164,7 +166,7 @@ public class SimpleNodeElimination {
                 // System.out.println(aktNode.CPF.get(query, a) + " x " + this.sumVector[step-1][oldSumVecInd]);
 
                 // Berechne die neuen Werte im Array
-                this.genVector[this.step][l1] = aktNode.CPF.get(query, a) * this.sumVector[step-1][oldSumVecInd];
+                this.genVector[this.step][l1] = condProb[l * Alphabet.size + a] * this.sumVector[step-1][oldSumVecInd];
             }
         }
         // wurde eine Wurzel erreicht, reicht es den alten SumVector als generativen Vector zu verwenden
@@ -239,10 +241,4 @@ public class SimpleNodeElimination {
     
     
     
-    public static SimpleNodeElimination INSTANCE;
-    public static void instantiate(BayesNet net) {
-        if( INSTANCE  == null ) {
-            INSTANCE = new SimpleNodeElimination(net);
-        }
-    }
 }
\ No newline at end of file
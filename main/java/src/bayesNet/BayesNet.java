@@ -1,8 +1,11 @@
 package bayesNet;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import models.ModelContext;
+
 /**
  * 
  * @author m.nettling
@@ -23,6 +26,15 @@ public class BayesNet {
 	/** The number of nodes */
 	public int numberOfNodes = 0;
 
+	/** the runtime settings of the model using this net, see {@link BayesNetHandler#setContext(ModelContext)} */
+	public ModelContext context = new ModelContext();
+
+	/**
+	 * is incremented on each change of a {@link CPF} of the nodes, shared by all subnets of a {@link BayesNetHandler}
+	 * like {@link #context}, see {@link BayesNetHandler#getParameterVersion()}
+	 */
+	public AtomicLong parameterVersion = new AtomicLong();
+
 	public BayesNet() {
 		this.init(null, "BayesNet");
 	}
@@ -1,13 +1,20 @@
 package bayesNet;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.logging.Logger;
 
+import algorithm.SimpleNodeElimination;
 import de.jstacs.NonParsableException;
 import de.jstacs.io.XMLParser;
+import evolution.EvolModel;
 import evolution.FS81alpha;
+import evolution.TransitionCache;
+import models.ModelContext;
 import util.Util;
 
 /**
@@ -24,6 +31,12 @@ public class BayesNetHandler {
     private int[][] _connectionTable;
     public int motifLength = 0;
 
+    /** flat representation of the structure, compiled on demand, see {@link #getCompiledNet()} */
+    private volatile CompiledBayesNet _compiledNet;
+
+    /** exact inference for arbitrary structures, created on demand */
+    private SimpleNodeElimination _nodeElimination;
+
 	// ######### variables for topological sorting #####################
 	private int[] maxNodeDepth;
     private int maxDepth = 0;
@@ -43,8 +56,19 @@ public class BayesNetHandler {
         fromXML(xml);
     }
 
+    /**
+     * Constructor: loads the Bayesnet and the BayesNetHandler from the binary representation written by
+     * {@link #write(ByteBuffer)}, starting at the current position of buf
+     */
+    public BayesNetHandler(ByteBuffer buf) throws NonParsableException {
+        read(buf);
+    }
+
     /** f�gt dem aktuellen Bayesnetz ein SubNetz hinzu */
     public void addBayesNet(BayesNet net, String newickString) {
+        net.context = _myNet.context;
+        net.parameterVersion = _myNet.parameterVersion;
+        _myNet.parameterVersion.incrementAndGet();
         for (int i = 0; i < net.numberOfNodes; i++) {
             _myNet.addNode(net.getNode(i));
         }
@@ -52,6 +76,122 @@ public class BayesNetHandler {
         _myTrees.add(new VirtualTree(net, newickString));
         _myTreesArray = _myTrees.toArray(new VirtualTree[0]);
         _connectionTable = this.generateNewConnectionTable();
+        _compiledNet = null;
+        _nodeElimination = null;
+    }
+
+    /**
+     * Returns the version of the parameters of this net. It changes whenever a {@link CPF} of the net changes, and
+     * reading it costs O(1) independent of the size of the net.
+     */
+    public long getParameterVersion() {
+        return _myNet.parameterVersion.get();
+    }
+
+    /** @return the runtime settings of the model using this net */
+    public ModelContext getContext() {
+        return _myNet.context;
+    }
+
+    /** sets the runtime settings of the model using this net, they are shared by all subnets */
+    public void setContext(ModelContext context) {
+        _myNet.context = context;
+        for (BayesNetNode node : _myNet.nodes) {
+            node._myNet.context = context;
+        }
+    }
+
+    /**
+     * Returns the flat representation of the structure of the underlying net. The representation is compiled on the
+     * first call and after each change of the structure. Concurrent callers get the same instance, so the parallel
+     * observations of a net do not see a structural change.
+     */
+    public CompiledBayesNet getCompiledNet() {
+        CompiledBayesNet compiledNet = _compiledNet;
+        if (compiledNet == null) {
+            synchronized (this) {
+                compiledNet = _compiledNet;
+                if (compiledNet == null) {
+                    compiledNet = new CompiledBayesNet(this);
+                    _compiledNet = compiledNet;
+                }
+            }
+        }
+        return compiledNet;
+    }
+
+    /**
+     * Returns the {@link SimpleNodeElimination} for the underlying net. It works on the observations set in the
+     * {@link BayesNetNodeProperties} of the net, so calls have to be synchronized on the returned instance.
+     */
+    public synchronized SimpleNodeElimination getNodeElimination() {
+        if (_nodeElimination == null) {
+            _nodeElimination = new SimpleNodeElimination(_myNet);
+        }
+        return _nodeElimination;
+    }
+
+    /**
+     * Creates a structural copy of this handler without parsing any newick string. The copy has its own nodes, CPFs and
+     * evolutionary models with the same names, structure, branch lengths and parameters. Immutable parts are shared,
+     * i.e. the flat representation of the structure and the transition matrices of the {@link TransitionCache}, which
+     * are replaced and not modified if the parameters of one of both nets change. The random initial values of the new
+     * CPFs are overwritten by {@link VirtualTree#initParametersFromGF()}, so they are drawn with a fixed seed and do
+     * not change the numbers drawn by the caller.
+     */
+    public BayesNetHandler copy() {
+        return Util.callWithThreadSeed(0, this::copyStructure);
+    }
+
+    /** see {@link #copy()} */
+    private BayesNetHandler copyStructure() {
+        BayesNetHandler copy = new BayesNetHandler(new BayesNet(_myNet.getName()));
+        IdentityHashMap<BayesNetNode, BayesNetNode> copies = new IdentityHashMap<BayesNetNode, BayesNetNode>();
+        for (VirtualTree vt : _myTreesArray) {
+            // the newick string is generated on demand by the virtual tree
+            copy.addBayesNet(io.NewickToBayesNet.copyTree(vt.net, vt.net.getName(), copies), null);
+        }
+
+        // connections between the trees, the parents are added in their original order, as the CPFs depend on it
+        for (BayesNetNode node : _myNet.nodes) {
+            for (BayesNetNode parent : node.parents) {
+                if (parent._myNet != node._myNet) {
+                    copies.get(parent).addChild(copies.get(node));
+                }
+            }
+        }
+        for (BayesNetNode node : _myNet.nodes) {
+            BayesNetNode c = copies.get(node);
+            c.children.clear();
+            for (BayesNetNode child : node.children) {
+                c.children.add(copies.get(child));
+            }
+            c.Achildren = c.children.toArray(new BayesNetNode[c.children.size()]);
+        }
+        if (_myNet.getRoot() != null) {
+            copy._myNet.setRoot(copies.get(_myNet.getRoot()));
+        }
+        copy._connectionTable = new int[motifLength][];
+        for (int i = 0; i < motifLength; i++) {
+            copy._connectionTable[i] = _connectionTable[i].clone();
+        }
+
+        for (int i = 0; i < motifLength; i++) {
+            VirtualTree vt = copy.getVirtualTree(i);
+            vt.TEMPERATURE = getVirtualTree(i).TEMPERATURE;
+            vt.setEvolModel(getVirtualTree(i).getEvolModel().copy());
+            vt.initParametersFromGF();
+        }
+
+        // the compiled structure can be shared, if the nodes of the copy have the same numbers
+        boolean sameNumbers = copy._myNet.numberOfNodes == _myNet.numberOfNodes;
+        for (int i = 0; i < _myNet.numberOfNodes && sameNumbers; i++) {
+            sameNumbers = copies.get(_myNet.getNode(i)) == copy._myNet.getNode(i);
+        }
+        if (_compiledNet != null && sameNumbers) {
+            copy._compiledNet = new CompiledBayesNet(_compiledNet, copy);
+        }
+        return copy;
     }
 
     /**
@@ -72,6 +212,26 @@ public class BayesNetHandler {
         return _myTreesArray[i];
     }
 
+    /** @return the branch lengths of each virtual tree, see {@link VirtualTree#getBranchLengths()} */
+    public double[][] getBranchLengths() {
+        double[][] lengths = new double[_myTreesArray.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = _myTreesArray[i].getBranchLengths();
+        }
+        return lengths;
+    }
+
+    /** sets the branch lengths of each virtual tree, see {@link VirtualTree#setBranchLengths(double[])} */
+    public void setBranchLengths(double[][] lengths) {
+        if (lengths.length != _myTreesArray.length) {
+            throw new IllegalArgumentException("Expected branch lengths for " + _myTreesArray.length
+                    + " trees, but got " + lengths.length + ".");
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            _myTreesArray[i].setBranchLengths(lengths[i]);
+        }
+    }
+
     /** setzt den ersten knoten in der Knotenliste als Wurzel */
     public void setSimpleRoot() {
         for (int i = 0; i < _myNet.numberOfNodes; i++) {
@@ -130,15 +290,8 @@ public class BayesNetHandler {
     }
 
     private int drawObservationForNode(BayesNetNode aktNode, int[] fullObs) {
-        int[] query = new int[aktNode.numberOfParents];
-        for (int p = 0; p < aktNode.numberOfParents; p++) {
-            query[p] = fullObs[aktNode.getParent(p).nodeNumber];
-        }
-
         double r = Util.getRandomDouble(0, 1);
-        // System.out.println("Distr: ("+aktNode.nodeNumber+")" +
-        // Arrays.toString(aktNode.CPF.get(query)));
-        return Util.getRandomIndex(aktNode.CPF.get(query), r);
+        return aktNode.CPF.getRandomIndex(aktNode.CPF.getIndexByObservation(fullObs), r);
     }
 
     // ################################################################################################################
@@ -160,6 +313,8 @@ public class BayesNetHandler {
             newNodeList.get(i).nodeNumber = i;
         }
         _myNet.nodes = newNodeList;
+        _compiledNet = null;
+        _nodeElimination = null;
     }
 
     /**
@@ -213,6 +368,8 @@ public class BayesNetHandler {
             t1.getNode(i).removeChild(t2.getNode(i));
         }
         _connectionTable[pos1][pos2] = 0;
+        _compiledNet = null;
+        _nodeElimination = null;
     }
 
     /**
@@ -253,6 +410,8 @@ public class BayesNetHandler {
                     // t1.getNode(i).addChild(t2.getNode(i).getChild(c));
                 }
         }
+        _compiledNet = null;
+        _nodeElimination = null;
     }
 
     /** �berpr�ft, ob durch das Modell wirklich nur Dimere behandelt werden */
@@ -355,4 +514,167 @@ public class BayesNetHandler {
             vt.initParametersFromGF();
         }
     }
+
+    /** @return the number of bytes written by {@link #write(ByteBuffer)} */
+    public int getBinarySize() {
+        String topology = getVirtualTree(0).getTopology();
+        int size = 4 + 4 + topology.getBytes(StandardCharsets.UTF_8).length + 4;
+        for (int i = 0; i < motifLength; i++) {
+            size += 8 * countConnections(i);
+            VirtualTree vt = getVirtualTree(i);
+            String t = vt.getTopology();
+            size += 1 + (t.equals(topology) ? 0 : 4 + t.getBytes(StandardCharsets.UTF_8).length);
+            double[][] pi = vt.getEvolModel().getStatDistr();
+            size += 8 + 4 + vt.getEvolModel().getModelClass().getBytes(StandardCharsets.UTF_8).length;
+            size += 4 + 4 + 4 + 8 * pi.length * pi[0].length + 4 + 8 * vt.getNumberOfBranches();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the structure and the parameters in a binary representation to buf. In contrast to {@link #toXML()} the
+     * topology is stored only once if all trees have the same topology, the branch lengths are not rounded and the
+     * class of the evolutionary model of each tree is stored (see {@link EvolModel#getModelClass()}). The
+     * representation is read by {@link #BayesNetHandler(ByteBuffer)}.
+     * 
+     * @param buf
+     *            needs at least {@link #getBinarySize()} remaining bytes
+     */
+    public void write(ByteBuffer buf) {
+        String topology = getVirtualTree(0).getTopology();
+        buf.putInt(motifLength);
+        putString(buf, topology);
+
+        // connections in the order used by fromXML
+        int connections = 0;
+        for (int i = 0; i < motifLength; i++) {
+            connections += countConnections(i);
+        }
+        buf.putInt(connections);
+        for (int i = motifLength - 1; i >= 0; i--) {
+            for (int j = 0; j < motifLength; j++) {
+                if (_connectionTable[i][j] == 1) {
+                    buf.putInt(i).putInt(j);
+                }
+            }
+        }
+
+        for (int i = 0; i < motifLength; i++) {
+            VirtualTree vt = getVirtualTree(i);
+            String t = vt.getTopology();
+            if (t.equals(topology)) {
+                buf.put((byte) 0);
+            } else {
+                buf.put((byte) 1);
+                putString(buf, t);
+            }
+            buf.putDouble(vt.TEMPERATURE);
+            putString(buf, vt.getEvolModel().getModelClass());
+            double[][] pi = vt.getEvolModel().getStatDistr();
+            buf.putInt(vt.getEvolModel().getDimension()).putInt(pi.length).putInt(pi[0].length);
+            for (double[] row : pi) {
+                putDoubles(buf, row);
+            }
+            double[] lengths = vt.getBranchLengths();
+            buf.putInt(lengths.length);
+            putDoubles(buf, lengths);
+        }
+    }
+
+    /** loads the representation written by {@link #write(ByteBuffer)}, see {@link #fromXML(StringBuffer)} */
+    private void read(ByteBuffer buf) throws NonParsableException {
+        int ml = buf.getInt();
+        String topology = getString(buf);
+        int[][] connections = new int[buf.getInt()][2];
+        for (int[] c : connections) {
+            c[0] = buf.getInt();
+            c[1] = buf.getInt();
+        }
+
+        _myTrees = new ArrayList<VirtualTree>(ml);
+        _myNet = new BayesNet();
+        // the topology is parsed only once, the other trees are copies
+        BayesNet template = null;
+        EvolModel[] gfs = new EvolModel[ml];
+        double[] temperatures = new double[ml];
+        double[][] lengths = new double[ml][];
+        for (int i = 0; i < ml; i++) {
+            String newick = topology;
+            BayesNet net;
+            if (buf.get() == 0) {
+                net = template == null ? io.NewickToBayesNet.getTree(topology, "pos_" + i)
+                        : io.NewickToBayesNet.copyTree(template, "pos_" + i);
+                if (template == null) {
+                    template = net;
+                }
+            } else {
+                newick = getString(buf);
+                net = io.NewickToBayesNet.getTree(newick, "pos_" + i);
+            }
+            temperatures[i] = buf.getDouble();
+            String modelClass = getString(buf);
+            try {
+                gfs[i] = EvolModel.getInstance(modelClass, buf.getInt());
+            } catch (IllegalArgumentException e) {
+                throw new NonParsableException("Unknown evolutionary model " + modelClass + " of tree " + i);
+            }
+            double[][] pi = new double[buf.getInt()][buf.getInt()];
+            double[][] expected = gfs[i].getStatDistr();
+            if (pi.length != expected.length || pi[0].length != expected[0].length) {
+                throw new NonParsableException("The stationary distributions of tree " + i + " do not match "
+                        + modelClass + " of dimension " + gfs[i].getDimension());
+            }
+            for (double[] row : pi) {
+                getDoubles(buf, row);
+            }
+            gfs[i].setStatDistr(pi);
+            lengths[i] = new double[buf.getInt()];
+            getDoubles(buf, lengths[i]);
+            this.addBayesNet(net, newick);
+        }
+
+        for (int[] c : connections) {
+            this.connectVirtualTrees(c[0], c[1]);
+        }
+
+        for (int i = 0; i < ml; i++) {
+            VirtualTree vt = this.getVirtualTree(i);
+            vt.TEMPERATURE = temperatures[i];
+            vt.setEvolModel(gfs[i]);
+            vt.setBranchLengths(lengths[i]);
+        }
+    }
+
+    /** @return the number of trees connected to tree i */
+    private int countConnections(int i) {
+        int connections = 0;
+        for (int j = 0; j < motifLength; j++) {
+            connections += _connectionTable[i][j];
+        }
+        return connections;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** bulk copy of the doubles, advances the position of buf */
+    private static void putDoubles(ByteBuffer buf, double[] values) {
+        buf.asDoubleBuffer().put(values);
+        buf.position(buf.position() + 8 * values.length);
+    }
+
+    /** bulk copy of the doubles, advances the position of buf */
+    private static void getDoubles(ByteBuffer buf, double[] values) {
+        buf.asDoubleBuffer().get(values);
+        buf.position(buf.position() + 8 * values.length);
+    }
 }
+
@@ -1,6 +1,7 @@
 package bayesNet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import io.Alphabet;
@@ -8,9 +9,14 @@ import util.Util;
 
 /**
  * CPF = Conditional Probability Function
+ * 
+ * All tables are stored row-major in flat arrays. Row l of the conditional probabilities encodes the observation of the
+ * parents and starts at index l * {@link Alphabet#size}, the observation of parent p for row l is stored at
+ * _lookup[l * numberOfParents + p].
  */
 public class CPF {
 	private Logger _logger = Logger.getLogger(this.getClass().getName());
+	/** default of {@link models.ModelContext#allowIndependentTransitions} for new models */
 	public static boolean ALLOW_RETURN_INDEPENDENT_TRANSITION = true;
 	/** enth�lt einen Zeiger auf den besitzenden BayesKnoten */
 	private BayesNetNode _myNode;
@@ -18,12 +24,21 @@ public class CPF {
 	/**
 	 * enth�lt die Bedingten WKs, zeilen entsprechen den Beobachtungen in _myNode
 	 */
-	private double[][] _condProb;
+	private double[] _condProb;
 
-	public double[][] _indepedentCondProb;
+	private double[] _indepedentCondProb;
+
+	/** natural logarithm of {@link #_condProb}, updated whenever _condProb is set */
+	private double[] _lnCondProb;
+
+	/** natural logarithm of {@link #_indepedentCondProb}, updated whenever _indepedentCondProb is set */
+	private double[] _lnIndependentCondProb;
+
+	/** is incremented on each change of the conditional probabilities */
+	private int _version;
 
 	/** enth�lt die Verbundwahrscheinlichkeit mit den Eltern */
-	private double[][] _combinedProb;
+	private double[] _combinedProb;
 
 	/**
 	 * enth�lt die Gr��e der _condProb, abh�ngig vom Alphabet und der Menge der Eltern
@@ -31,7 +46,7 @@ public class CPF {
 	public int _size;
 
 	/** enth�lt eine LookupTable, l kodiert Beobachtung der eltern */
-	public int[][] _lookup;
+	public int[] _lookup;
 
 	/**
 	 * sizebuffer erleichtert die Konvertierung von der wahren position im Condprob-Array zu Beobachtung der eltern und umgedreht
@@ -46,9 +61,14 @@ public class CPF {
 	/** reinitialisiert die CPF, ACHTUNG: evtl enthaltene Werte gehen verloren */
 	public void reinit() {
 		_size = (int) Math.pow(Alphabet.size, _myNode.numberOfParents);
-		_condProb = new double[_size][Alphabet.size];
-		_combinedProb = new double[_size][Alphabet.size];
-		_condProb = Util.getRandomStochMatrix(_size, Alphabet.size);
+		_condProb = new double[_size * Alphabet.size];
+		double[] row = new double[Alphabet.size];
+		for (int l = 0; l < _size; l++) {
+			System.arraycopy(Util.fillRandomStochVector(row, 1), 0, _condProb, l * Alphabet.size, Alphabet.size);
+		}
+		_lnCondProb = log(_condProb);
+		_combinedProb = null;
+		changed();
 
 		// _SizeBuffer erzeugen ==> beschleunigt zugriff auf CondProb array
 		_SizeBuffer = new int[_myNode.numberOfParents];
@@ -68,9 +88,11 @@ public class CPF {
 	 */
 	public void calculateCombinedProb() {
 		double[] parentMargin;
-		int[] query;
 		BayesNetNode parent;
-		_combinedProb = Util.arraycopy(_condProb);
+		if (_combinedProb == null || _combinedProb.length != _condProb.length) {
+			_combinedProb = new double[_condProb.length];
+		}
+		System.arraycopy(_condProb, 0, _combinedProb, 0, _condProb.length);
 		// System.out.println("---------");
 		// Util.visualizeMatrix(_combinedProb, 4, true);
 		if (_myNode.numberOfParents == 0) {
@@ -78,13 +100,13 @@ public class CPF {
 		} else {
 			// Eltern m�ssen aufmultipliziert werden
 			for (int l = 0; l < _size; l++) {
-				query = getQueryByIndex(l);
 				for (int p = 0; p < _myNode.numberOfParents; p++) {
 					parent = _myNode.getParent(p);
 					parentMargin = parent.CPF.getFullMarginalizedDistr();
+					double parentProb = parentMargin[_lookup[l * _myNode.numberOfParents + p]];
 					for (int a = 0; a < Alphabet.size; a++) {
 						// System.out.println("P(X="+a+"|Y="+query[p]+") * P(Y="+query[p]+")");
-						_combinedProb[l][a] *= parentMargin[query[p]];
+						_combinedProb[l * Alphabet.size + a] *= parentProb;
 					}
 				}
 			}
@@ -95,9 +117,12 @@ public class CPF {
 	/** */
 	public double[] getFullMarginalizedDistr() {
 		double[] margin = new double[Alphabet.size];
+		if (_combinedProb == null) {
+			return margin;
+		}
 		for (int l1 = 0; l1 < _size; l1++) {
 			for (int a = 0; a < Alphabet.size; a++) {
-				margin[a] += _combinedProb[l1][a];
+				margin[a] += _combinedProb[l1 * Alphabet.size + a];
 			}
 		}
 		// System.out.println(Util.array2string(" ,", margin));
@@ -122,7 +147,7 @@ public class CPF {
 		// entsprechend auf
 		for (int l1 = 0; l1 < _size; l1++) {
 			for (int a = 0; a < Alphabet.size; a++) {
-				margin[0][a] += _combinedProb[l1][a];
+				margin[0][a] += _combinedProb[l1 * Alphabet.size + a];
 				// TODO:
 				// for(int i=0; i < nodes.size(); i++) {
 				// pos = _myNode.getParentIndex(nodes.get(i));
@@ -137,14 +162,34 @@ public class CPF {
 
 	}
 
+	/** @return true, if the context of the net of this node allows independent transitions for unobserved leafs */
+	private boolean allowIndependent() {
+		return _myNode._myNet.context.allowIndependentTransitions;
+	}
+
 	/** gibt die VerbundWK zur�ck, diese sollte vorher berechnet werden */
-	public double[][] getCombinedProb() {
+	public double[] getCombinedProb() {
 		return _combinedProb;
 	}
 
-	/** returns a pointer to the conditional probabilty matrix */
-	public double[][] getCondProb() {
-		if (_myNode.props.isPhyloLeaf() && !_myNode.props._isObserved && ALLOW_RETURN_INDEPENDENT_TRANSITION) {
+	/** returns a pointer to the conditional probabilty matrix, row l starts at l * {@link Alphabet#size} */
+	public double[] getCondProb() {
+		if (_myNode.props.isPhyloLeaf() && !_myNode.props._isObserved && allowIndependent()) {
+			return _indepedentCondProb;
+		} else {
+			return _condProb;
+		}
+	}
+
+	/**
+	 * returns a pointer to the conditional probabilty matrix without looking at the current observation of the node,
+	 * row l starts at l * {@link Alphabet#size}
+	 *
+	 * @param unobservedLeaf
+	 *            true, if the node should be treated as an unobserved phylo leaf
+	 */
+	public double[] getCondProb(boolean unobservedLeaf) {
+		if (unobservedLeaf && allowIndependent()) {
 			return _indepedentCondProb;
 		} else {
 			return _condProb;
@@ -154,12 +199,113 @@ public class CPF {
 	/** setzt neue bedingte Wahrscheinlichkeiten f�r die CPF */
 	public void setCondProb(double[][] condProb) {
 		// �berpr�fen ob die zu setzende bedingte WK, die gleiche Dimension hat
-		if (condProb.length != _condProb.length || condProb[0].length != _condProb[0].length) {
-			System.out.println(condProb.length + " : " + condProb[0].length + " expected " + _condProb.length + " : " + _condProb[0].length);
+		if (condProb.length != _size || condProb[0].length != Alphabet.size) {
+			System.out.println(condProb.length + " : " + condProb[0].length + " expected " + _size + " : " + Alphabet.size);
 			_logger.severe("Falsche Dimension in setCondProb f�r Knoten " + _myNode.getName());
+		} else {
+			double[] flat = flatten(condProb);
+			setCondProb(flat, log(flat));
+		}
+	}
+
+	/**
+	 * sets new conditional probabilities (row-major, see {@link #getCondProb(boolean)}) together with their
+	 * precalculated logarithm. Both arrays are used as they are, e.g. shared matrices of
+	 * {@link evolution.TransitionCache}, and must not be modified afterwards.
+	 */
+	public void setCondProb(double[] condProb, double[] lnCondProb) {
+		if (condProb.length != _size * Alphabet.size) {
+			_logger.severe("Falsche Dimension in setCondProb f�r Knoten " + _myNode.getName() + ": " + condProb.length
+					+ " expected " + _size * Alphabet.size);
 		} else {
 			_condProb = condProb;
+			_lnCondProb = lnCondProb;
+			changed();
+		}
+	}
+
+	/** sets the transitions used for unobserved phylo leafs, see {@link models.ModelContext#allowIndependentTransitions} */
+	public void setIndependentCondProb(double[][] independentCondProb) {
+		double[] flat = flatten(independentCondProb);
+		setIndependentCondProb(flat, log(flat));
+	}
+
+	/**
+	 * sets the transitions used for unobserved phylo leafs together with their precalculated logarithm, see
+	 * {@link #setCondProb(double[], double[])}
+	 */
+	public void setIndependentCondProb(double[] independentCondProb, double[] lnIndependentCondProb) {
+		_indepedentCondProb = independentCondProb;
+		_lnIndependentCondProb = lnIndependentCondProb;
+		changed();
+	}
+
+	/**
+	 * returns a pointer to the logarithm of the conditional probabilty matrix without looking at the current
+	 * observation of the node, row l starts at l * {@link Alphabet#size}
+	 *
+	 * @param unobservedLeaf
+	 *            true, if the node should be treated as an unobserved phylo leaf
+	 */
+	public double[] getLnCondProb(boolean unobservedLeaf) {
+		if (unobservedLeaf && allowIndependent()) {
+			return _lnIndependentCondProb;
+		} else {
+			return _lnCondProb;
+		}
+	}
+
+	/**
+	 * Returns the version of the conditional probabilities. The version changes whenever one of the setters of the
+	 * conditional probabilities or {@link #reinit()} is called, so consumers can detect stale values.
+	 */
+	public int getVersion() {
+		return _version;
+	}
+
+	/** increments the version of this CPF and the parameter version of the net, see {@link BayesNet#parameterVersion} */
+	private void changed() {
+		_version++;
+		_myNode._myNet.parameterVersion.incrementAndGet();
+	}
+
+	/** calculates the elementwise natural logarithm of the given matrix */
+	public static double[] log(double[] prob) {
+		if (prob == null) {
+			return null;
+		}
+		double[] ln = new double[prob.length];
+		for (int k = 0; k < prob.length; k++) {
+			ln[k] = Math.log(prob[k]);
 		}
+		return ln;
+	}
+
+	/** @return the rows of the given matrix concatenated to one array */
+	public static double[] flatten(double[][] matrix) {
+		if (matrix == null) {
+			return null;
+		}
+		int length = 0;
+		for (double[] row : matrix) {
+			length += row.length;
+		}
+		double[] flat = new double[length];
+		int k = 0;
+		for (double[] row : matrix) {
+			System.arraycopy(row, 0, flat, k, row.length);
+			k += row.length;
+		}
+		return flat;
+	}
+
+	/** @return the given row-major array as matrix with rows of length {@link Alphabet#size} */
+	public static double[][] toMatrix(double[] flat) {
+		double[][] matrix = new double[flat.length / Alphabet.size][];
+		for (int l = 0; l < matrix.length; l++) {
+			matrix[l] = Arrays.copyOfRange(flat, l * Alphabet.size, (l + 1) * Alphabet.size);
+		}
+		return matrix;
 	}
 
 	/** gibt die vorberechnete Gr��e der CPF zur�ck, (Alphabet ^ Eltern) */
@@ -196,11 +342,11 @@ public class CPF {
 			_logger.severe("get(): Es konnte keine Position im Array bestimmt werden");
 			return -1;
 		} else {
-			return _condProb[l][obs];
+			return _condProb[l * Alphabet.size + obs];
 		}
 	}
 
-	/** gibt den zugeh�rigen Vektor aus dem CondProb array zur�ck */
+	/** returns a copy of the row of the CondProb array given by query */
 	public double[] get(int[] query) {
 		int l = getIndexByQuery(query);
 		if (l == -1) {
@@ -209,24 +355,73 @@ public class CPF {
 		} else {
 
 		}
-		return _condProb[l];
+		return Arrays.copyOfRange(_condProb, l * Alphabet.size, (l + 1) * Alphabet.size);
+	}
+
+	/**
+	 * draws an observation from the row of the CondProb array given by query without copying the row
+	 *
+	 * @param rand
+	 *            a uniformly distributed random number in [0,1)
+	 */
+	public int getRandomIndex(int[] query, double rand) {
+		return getRandomIndex(getIndexByQuery(query), rand);
+	}
+
+	/**
+	 * draws an observation from row l of the CondProb array without copying the row
+	 *
+	 * @param rand
+	 *            a uniformly distributed random number in [0,1)
+	 */
+	public int getRandomIndex(int l, double rand) {
+		int offset = l * Alphabet.size;
+		for (int a = 0; a < Alphabet.size; a++) {
+			rand -= _condProb[offset + a];
+			if (rand <= 0) {
+				return a;
+			}
+		}
+		return Alphabet.size - 1;
 	}
 
 	/**
 	 * gibt den zugeh�rigen Wert aus dem CondProb array zur�ck, l ist ihr die direkte Adresse
 	 */
 	public double get(int l, int obs) {
-		if (_myNode.props.isPhyloLeaf() && !_myNode.props._isObserved && ALLOW_RETURN_INDEPENDENT_TRANSITION) {
-			return _indepedentCondProb[l][obs];
+		if (_myNode.props.isPhyloLeaf() && !_myNode.props._isObserved && allowIndependent()) {
+			return _indepedentCondProb[l * Alphabet.size + obs];
 		} else {
-			return _condProb[l][obs];
+			return _condProb[l * Alphabet.size + obs];
 		}
 	}
 
-	public int[][] getLookUpPointer() {
+	/**
+	 * @return a pointer to the flat lookup table, the observation of parent p for row l is at
+	 *         {@link #getLookupOffset(int)} + p
+	 */
+	public int[] getLookup() {
 		return _lookup;
 	}
 
+	/** @return the start of the observations of the parents for row l in {@link #getLookup()} */
+	public int getLookupOffset(int l) {
+		return l * _myNode.numberOfParents;
+	}
+
+	/**
+	 * @return the row of the CondProb array for the observations of the parents in obs, which is indexed by node
+	 *         number. Unlike {@link #getIndexByQuery(int[])} no query has to be allocated
+	 */
+	public int getIndexByObservation(int[] obs) {
+		int l = 0;
+		for (int p = 0; p < _myNode.numberOfParents; p++) {
+			l += _SizeBuffer[p] * obs[_myNode.Aparents[p].nodeNumber];
+		}
+		return l;
+	}
+
+	/** returns a copy of the observations of the parents for row l, hot code should use {@link #getLookup()} */
 	public int[] getQueryByIndex(int l) {
 		return this.getQueryByIndex(l, true);
 	}
@@ -234,11 +429,14 @@ public class CPF {
 	/**
 	 * erzeugt aus einem Index ein Beobachtungsarray der Eltern dies kann w�hrend der Laufzeit geschehen oder bereits vor alle m�glichen Indices vorberechnet
 	 * werden. Aufgrund der Modulo-Operation sehr teuer.
+	 * <br>
+	 * The returned array is always a new copy, changing it does not change the lookup table. Use
+	 * {@link #getLookup()} to read the lookup table without a copy.
 	 */
 	public int[] getQueryByIndex(int l, boolean cache) {
 		// wenn cache = true, dann gib den vorkalkulierten wert zur�ck
 		if (cache) {
-			return _lookup[l];
+			return Arrays.copyOfRange(_lookup, l * _myNode.numberOfParents, (l + 1) * _myNode.numberOfParents);
 		}
 
 		// initialisiere Anfrage
@@ -257,9 +455,9 @@ public class CPF {
 
 	/** �berpr�ft ob die �bergebene beobachtung der Wahrheit entspricht */
 	public boolean isTrueObs(int l) {
-		int[] query = getQueryByIndex(l);
+		final int offset = l * _myNode.numberOfParents;
 		for (int p = 0; p < _myNode.numberOfParents; p++) {
-			if (_myNode.getParent(p).props.isObserved() && _myNode.getParent(p).props.getObservedIndex() == query[p]) {
+			if (_myNode.getParent(p).props.isObserved() && _myNode.getParent(p).props.getObservedIndex() == _lookup[offset + p]) {
 				return false;
 			}
 		}
@@ -279,11 +477,12 @@ public class CPF {
 	/** erzeugt eine Lookuptable, l kodiert dabei eine Beobachtung in den eltern */
 	private void generateLookUpTable() {
 		// initialisiere LookupTable
-		_lookup = new int[_size][_myNode.numberOfParents];
+		_lookup = new int[_size * _myNode.numberOfParents];
 		// laufe �ber alle m�glichen indexe und generiere zu jedem die
 		// Beobachtung
 		for (int l = 0; l < _size; l++) {
-			_lookup[l] = this.getQueryByIndex(l, false);
+			System.arraycopy(this.getQueryByIndex(l, false), 0, _lookup, l * _myNode.numberOfParents,
+					_myNode.numberOfParents);
 		}
 		// Util.visualizeMatrix(_lookup, 1, true);
 	}
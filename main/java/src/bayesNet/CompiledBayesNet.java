@@ -0,0 +1,194 @@
+package bayesNet;
+
+import algorithm.FelsensteinPruning;
+
+/**
+ * Flat, index based representation of the structure of a {@link BayesNet} managed by a {@link BayesNetHandler}. All
+ * relations between nodes are stored in primitive arrays (struct of arrays), so that inference kernels like the mean
+ * field updates in {@link algorithm.MeanFieldForBayesNet} can run without walking object graphs.
+ *
+ * Nodes are addressed by their index in {@link BayesNet#nodes} which is equal to {@link BayesNetNode#nodeNumber}. The
+ * structure is immutable. If the structure of the underlying net changes (new trees, new connections), a new instance
+ * has to be compiled, see {@link BayesNetHandler#getCompiledNet()}.
+ */
+public class CompiledBayesNet {
+
+    /** number of nodes in the net */
+    public final int numberOfNodes;
+
+    /** number of virtual trees (motif positions) in the net */
+    public final int numberOfTrees;
+
+    /** parents of node i are stored in parents[parentStart[i]] ... parents[parentStart[i+1]-1] */
+    public final int[] parentStart;
+    public final int[] parents;
+
+    /** children of node i are stored in children[childStart[i]] ... children[childStart[i+1]-1] */
+    public final int[] childStart;
+    public final int[] children;
+
+    /** childParentIndex[c] is the index of node i within the parents of children[c] */
+    public final int[] childParentIndex;
+
+    /** size of the CPF of node i, i.e. Alphabet.size ^ numberOfParents */
+    public final int[] cpfSize;
+
+    /**
+     * lookup[lookupStart[i] + l * numberOfParents + p] is the observation of parent p encoded by row l of the CPF of
+     * node i
+     */
+    public final int[] lookupStart;
+    public final int[] lookup;
+
+    /** true, if node i has no parents */
+    public final boolean[] isRoot;
+
+    /** true, if node i is a leaf of a phylogenetic tree */
+    public final boolean[] isPhyloLeaf;
+
+    /** nodes of tree t are stored in treeNodes[treeStart[t]] ... treeNodes[treeStart[t+1]-1] */
+    public final int[] treeStart;
+    public final int[] treeNodes;
+
+    /** leafs of tree t are stored in treeLeafs[leafStart[t]] ... treeLeafs[leafStart[t+1]-1] */
+    public final int[] leafStart;
+    public final int[] treeLeafs;
+
+    /** pointers to the conditional probability functions of all nodes */
+    public final CPF[] cpf;
+
+    /** exact inference for tree structured nets, created on demand, see {@link #getPruning()} */
+    private volatile FelsensteinPruning pruning;
+    private volatile boolean pruningChecked;
+
+    public CompiledBayesNet(BayesNetHandler bnh) {
+        BayesNet net = bnh.getNet();
+        numberOfNodes = net.numberOfNodes;
+        numberOfTrees = bnh.motifLength;
+
+        parentStart = new int[numberOfNodes + 1];
+        childStart = new int[numberOfNodes + 1];
+        lookupStart = new int[numberOfNodes + 1];
+        cpfSize = new int[numberOfNodes];
+        isRoot = new boolean[numberOfNodes];
+        isPhyloLeaf = new boolean[numberOfNodes];
+        cpf = new CPF[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            BayesNetNode node = net.getNode(i);
+            parentStart[i + 1] = parentStart[i] + node.numberOfParents;
+            childStart[i + 1] = childStart[i] + node.numberOfChilds;
+            lookupStart[i + 1] = lookupStart[i] + node.CPF._size * node.numberOfParents;
+            cpfSize[i] = node.CPF._size;
+            isRoot[i] = node.isRoot();
+            isPhyloLeaf[i] = node.props.isPhyloLeaf();
+            cpf[i] = node.CPF;
+        }
+
+        parents = new int[parentStart[numberOfNodes]];
+        children = new int[childStart[numberOfNodes]];
+        childParentIndex = new int[childStart[numberOfNodes]];
+        lookup = new int[lookupStart[numberOfNodes]];
+        for (int i = 0; i < numberOfNodes; i++) {
+            BayesNetNode node = net.getNode(i);
+            for (int p = 0; p < node.numberOfParents; p++) {
+                parents[parentStart[i] + p] = node.Aparents[p].nodeNumber;
+            }
+            for (int c = 0; c < node.numberOfChilds; c++) {
+                children[childStart[i] + c] = node.Achildren[c].nodeNumber;
+                childParentIndex[childStart[i] + c] = node.Achildren[c].getParentIndex(node);
+            }
+            System.arraycopy(node.CPF.getLookup(), 0, lookup, lookupStart[i], lookupStart[i + 1] - lookupStart[i]);
+        }
+
+        treeStart = new int[numberOfTrees + 1];
+        leafStart = new int[numberOfTrees + 1];
+        for (int t = 0; t < numberOfTrees; t++) {
+            treeStart[t + 1] = treeStart[t] + bnh.getVirtualTree(t).numberOfNodes;
+            leafStart[t + 1] = leafStart[t] + bnh.getVirtualTree(t).numberOfLeafs;
+        }
+        treeNodes = new int[treeStart[numberOfTrees]];
+        treeLeafs = new int[leafStart[numberOfTrees]];
+        for (int t = 0; t < numberOfTrees; t++) {
+            VirtualTree tree = bnh.getVirtualTree(t);
+            for (int i = 0; i < tree.numberOfNodes; i++) {
+                treeNodes[treeStart[t] + i] = tree.getNode(i).nodeNumber;
+            }
+            for (int i = 0; i < tree.numberOfLeafs; i++) {
+                treeLeafs[leafStart[t] + i] = tree.getLeaf(i).nodeNumber;
+            }
+        }
+    }
+
+    /**
+     * Creates the representation of a structural copy of the net of template, see {@link BayesNetHandler#copy()}. The
+     * arrays describing the structure are shared with template, only the pointers to the CPFs belong to the copy.
+     */
+    CompiledBayesNet(CompiledBayesNet template, BayesNetHandler bnh) {
+        numberOfNodes = template.numberOfNodes;
+        numberOfTrees = template.numberOfTrees;
+        parentStart = template.parentStart;
+        parents = template.parents;
+        childStart = template.childStart;
+        children = template.children;
+        childParentIndex = template.childParentIndex;
+        cpfSize = template.cpfSize;
+        lookupStart = template.lookupStart;
+        lookup = template.lookup;
+        isRoot = template.isRoot;
+        isPhyloLeaf = template.isPhyloLeaf;
+        treeStart = template.treeStart;
+        treeNodes = template.treeNodes;
+        leafStart = template.leafStart;
+        treeLeafs = template.treeLeafs;
+        cpf = new CPF[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            cpf[i] = bnh.getNet().getNode(i).CPF;
+        }
+    }
+
+    /**
+     * Returns Felsenstein's pruning algorithm for this net. The instance is created on the first call and shared by all
+     * users of this net.
+     *
+     * @return the pruning algorithm or null, if the structure is not supported, see
+     *         {@link FelsensteinPruning#isApplicable(CompiledBayesNet)}
+     */
+    public FelsensteinPruning getPruning() {
+        if (!pruningChecked) {
+            synchronized (this) {
+                if (!pruningChecked) {
+                    pruning = FelsensteinPruning.isApplicable(this) ? new FelsensteinPruning(this) : null;
+                    pruningChecked = true;
+                }
+            }
+        }
+        return pruning;
+    }
+
+    /** @return the number of parents of node i */
+    public int numberOfParents(int i) {
+        return parentStart[i + 1] - parentStart[i];
+    }
+
+    /**
+     * Returns the conditional probabilities used for node i. Unobserved leafs use the independent transitions, if
+     * allowed by {@link models.ModelContext#allowIndependentTransitions}.
+     *
+     * @param i
+     *            the index of the node
+     * @param observed
+     *            true, if node i is observed
+     */
+    public double[] getCondProb(int i, boolean observed) {
+        return cpf[i].getCondProb(isPhyloLeaf[i] && !observed);
+    }
+
+    /**
+     * Returns the logarithm of the conditional probabilities used for node i.
+     *
+     * @see #getCondProb(int, boolean)
+     */
+    public double[] getLnCondProb(int i, boolean observed) {
+        return cpf[i].getLnCondProb(isPhyloLeaf[i] && !observed);
+    }
+}
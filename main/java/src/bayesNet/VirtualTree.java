@@ -4,14 +4,17 @@ import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import algorithm.ExpectedCounts;
 import bayesNet.BayesNet;
 import bayesNet.BayesNetNode;
 import bayesNet.CPF;
 import optimizing.TemperatureBasedMotifParamOptimizer;
 import util.Util;
-import de.jstacs.utils.DoubleList;
+import de.jstacs.utils.IntList;
 import de.jstacs.utils.Normalisation;
 import evolution.EvolModel;
+import evolution.TransitionCache;
+import io.Alphabet;
 
 /** Virtual environment in a BayesNet. Represents all nodes within a phylogenetic tree */
 public class VirtualTree {
@@ -30,6 +33,12 @@ public class VirtualTree {
 
     private String newickString;
 
+    /** matches the branch lengths within a newick string including exponents, group 1 is the number */
+    public static final Pattern BRANCH_LENGTH = Pattern.compile(":([0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?)");
+
+    /** for each branch length of the newick string its index in {@link #getBranchLengths()}, see {@link #getNewickOrder()} */
+    private int[] newickOrder;
+
     /** the underlying evolutionary model of this tree. */
     private EvolModel evolutionaryModel;
 
@@ -65,6 +74,11 @@ public class VirtualTree {
         return newickString;
     }
 
+    /** @return the newick string without branch lengths, trees with the same topology return the same string */
+    public String getTopology() {
+        return BRANCH_LENGTH.matcher(getNewickString()).replaceAll("");
+    }
+
     /** returns a pointer to the used evolutionary model */
     public EvolModel getEvolModel() {
         return evolutionaryModel;
@@ -77,7 +91,8 @@ public class VirtualTree {
 
     /**
      * Copies all relevant parameters from the underlying evolutionary model to the conditional probability function
-     * {@link CPF}
+     * {@link CPF}. The transition matrices are taken from the shared {@link TransitionCache}, so nodes with the same
+     * branch length and stationary distributions share one matrix.
      */
     public void initParametersFromGF() {
         BayesNetNode aktNode;
@@ -86,24 +101,18 @@ public class VirtualTree {
             for (int i = 0; i < numberOfNodes; i++) {
                 aktNode = myNodes.get(i);
                 if (aktNode.props.isPhyloRoot()) {
-                    aktNode.CPF.setCondProb(Util.arraycopy(evolutionaryModel.getStatDistr()));
-                    aktNode.CPF._indepedentCondProb = Util.arraycopy(evolutionaryModel.getStatDistr());
+                    TransitionCache.Matrix pi = evolutionaryModel.getCachedStatDistr();
+                    aktNode.CPF.setCondProb(pi.prob, pi.lnProb);
+                    aktNode.CPF.setIndependentCondProb(pi.prob, pi.lnProb);
                 } else {
-                    evolutionaryModel.reinit(aktNode.getDistanceToParent());
-                    aktNode.CPF.setCondProb(Util.arraycopy(evolutionaryModel.getCurrentTransitions()));
-                    aktNode.CPF._indepedentCondProb = evolutionaryModel.getUnweightedTransitions();
+                    TransitionCache.Matrix t = evolutionaryModel.getCachedTransitions(aktNode.getDistanceToParent());
+                    TransitionCache.Matrix u = evolutionaryModel.getCachedUnweightedTransitions();
+                    aktNode.CPF.setCondProb(t.prob, t.lnProb);
+                    aktNode.CPF.setIndependentCondProb(u.prob, u.lnProb);
                 }
             }
         } else {
-            // TODO fix this
-            if (evolutionaryModel.getStatDistr().length > 1) {
-                throw new IllegalArgumentException(
-                        "Temperature based parameter setting only allowed for Markov Models of order 0.");
-            }
-            if (numberOfLeafs +1 > numberOfNodes) {
-                throw new IllegalArgumentException(
-                        "A star topology is expected. In a star topology there exists only one non leaf node, the root");
-            }
+            checkTemperatureAllowed();
 
             // ###################### Step 1)
             // initialize conditional probabilities for species 1
@@ -122,8 +131,8 @@ public class VirtualTree {
                 // TODO: respect order > 0
                 // ###################### Step 2)
                 // mutate distribution in species 1 to obtain distribution for the root (premordial species)
-                evolutionaryModel.reinit(this.getLeaf(0).getDistanceToParent()); // use unfiltered mutation matrix
-                double[][] F_pi = evolutionaryModel.getCurrentTransitions();
+                // use unfiltered mutation matrix
+                double[][] F_pi = evolutionaryModel.getCachedTransitions(this.getLeaf(0).getDistanceToParent()).toMatrix();
                 double[][] pi_Y = new double[1][];
                 pi_Y[0] = times(pi_A[0], F_pi);
                 this.getNode(0).CPF.setCondProb(pi_Y);
@@ -134,13 +143,166 @@ public class VirtualTree {
                 this.getLeaf(0).CPF.setCondProb(reverse_F_pi);
                 
                 for(int o = 1; o < this.numberOfLeafs; o++) {
-                    evolutionaryModel.reinit(getLeaf(o).getDistanceToParent());
-                    getLeaf(o).CPF.setCondProb(Util.arraycopy(evolutionaryModel.getCurrentTransitions()));
+                    TransitionCache.Matrix t = evolutionaryModel.getCachedTransitions(getLeaf(o).getDistanceToParent());
+                    getLeaf(o).CPF.setCondProb(t.prob, t.lnProb);
                 }
             }
         }
     }
     
+    private void checkTemperatureAllowed() {
+        // TODO fix this
+        if (evolutionaryModel.getStatDistr().length > 1) {
+            throw new IllegalArgumentException(
+                    "Temperature based parameter setting only allowed for Markov Models of order 0.");
+        }
+        if (numberOfLeafs +1 > numberOfNodes) {
+            throw new IllegalArgumentException(
+                    "A star topology is expected. In a star topology there exists only one non leaf node, the root");
+        }
+    }
+
+    /**
+     * Adds the derivative of the expected log likelihood of this tree concerning the stationary distributions of the
+     * evolutionary model to gradient. The derivative respects the parametrisation used in
+     * {@link #initParametersFromGF()}.
+     * 
+     * @param counts
+     *            the expected counts of the conditional probabilities of the net
+     * @param gradient
+     *            has the same dimension as the stationary distributions
+     */
+    public void addStatDistrGradient(ExpectedCounts counts, double[][] gradient) {
+        if (TEMPERATURE == 1) {
+            for (int i = 0; i < numberOfNodes; i++) {
+                BayesNetNode aktNode = myNodes.get(i);
+                double[][] d = counts.getDerivatives(aktNode, false);
+                double[][] dIndependent = counts.getDerivatives(aktNode, true);
+                if (aktNode.props.isPhyloRoot()) {
+                    // the conditional probabilities are the stationary distributions
+                    for (int k = 0; k < d.length; k++) {
+                        for (int a = 0; a < Alphabet.size; a++) {
+                            gradient[k][a] += d[k][a] + dIndependent[k][a];
+                        }
+                    }
+                } else {
+                    evolutionaryModel.addStatDistrGradient(d, gradient, aktNode.getDistanceToParent());
+                    // the unweighted transitions contain the stationary distributions in each row
+                    for (int k = 0; k < dIndependent.length; k++) {
+                        for (int a = 0; a < Alphabet.size; a++) {
+                            gradient[k / Alphabet.size][a] += dIndependent[k][a];
+                        }
+                    }
+                }
+            }
+        } else {
+            checkTemperatureAllowed();
+            double[] pi = evolutionaryModel.getStatDistr()[0];
+            double[] pi_A = getSharpenedStatDistr(pi);
+            double[] dPi_A = new double[pi.length];
+            double[][] dF = getTemperatureDerivatives(counts, pi_A, dPi_A);
+
+            // chain rule for pi_A = pi^TEMPERATURE / sum(pi^TEMPERATURE)
+            double mean = 0;
+            for (int a = 0; a < pi.length; a++) {
+                mean += dPi_A[a] * pi_A[a];
+            }
+            for (int a = 0; a < pi.length; a++) {
+                gradient[0][a] += TEMPERATURE / pi[a] * pi_A[a] * (dPi_A[a] - mean);
+            }
+            evolutionaryModel.addStatDistrGradient(dF, gradient, getLeaf(0).getDistanceToParent());
+            for (int o = 1; o < numberOfLeafs; o++) {
+                evolutionaryModel.addStatDistrGradient(counts.getDerivatives(getLeaf(o), false), gradient,
+                        getLeaf(o).getDistanceToParent());
+            }
+        }
+    }
+
+    /**
+     * Returns the derivative of the expected log likelihood of this tree concerning the distance of the given node to
+     * its parent.
+     * 
+     * @see #addStatDistrGradient(ExpectedCounts, double[][])
+     */
+    public double getBranchLengthGradient(ExpectedCounts counts, BayesNetNode node) {
+        if (node.props.isPhyloRoot()) {
+            return 0;
+        }
+        if (TEMPERATURE != 1 && node == getLeaf(0)) {
+            checkTemperatureAllowed();
+            double[] pi_A = getSharpenedStatDistr(evolutionaryModel.getStatDistr()[0]);
+            double[][] dF = getTemperatureDerivatives(counts, pi_A, new double[pi_A.length]);
+            return evolutionaryModel.getBranchLengthGradient(dF, node.getDistanceToParent());
+        }
+        return evolutionaryModel.getBranchLengthGradient(counts.getDerivatives(node, false),
+                node.getDistanceToParent());
+    }
+
+    /**
+     * Returns the derivative of the expected log likelihood of this tree concerning {@link #TEMPERATURE}. At
+     * TEMPERATURE = 1 both parametrisations of {@link #initParametersFromGF()} coincide.
+     * 
+     * @see #addStatDistrGradient(ExpectedCounts, double[][])
+     */
+    public double getTemperatureGradient(ExpectedCounts counts) {
+        checkTemperatureAllowed();
+        double[] pi = evolutionaryModel.getStatDistr()[0];
+        double[] pi_A = getSharpenedStatDistr(pi);
+        double[] dPi_A = new double[pi.length];
+        getTemperatureDerivatives(counts, pi_A, dPi_A);
+
+        // dpi_A[a] / dTEMPERATURE = pi_A[a] * (log(pi[a]) - sum_b pi_A[b] * log(pi[b]))
+        double meanLog = 0;
+        for (int a = 0; a < pi.length; a++) {
+            meanLog += pi_A[a] * Math.log(pi[a]);
+        }
+        double gradient = 0;
+        for (int a = 0; a < pi.length; a++) {
+            gradient += dPi_A[a] * pi_A[a] * (Math.log(pi[a]) - meanLog);
+        }
+        return gradient;
+    }
+
+    /** @return pi^TEMPERATURE normalized to 1 */
+    private double[] getSharpenedStatDistr(double[] pi) {
+        double[] pi_A = new double[pi.length];
+        for (int a = 0; a < pi_A.length; a++) {
+            pi_A[a] = Math.pow(pi[a], TEMPERATURE);
+        }
+        Normalisation.sumNormalisation(pi_A);
+        return pi_A;
+    }
+
+    /**
+     * Calculates the derivatives of the expected log likelihood of the root and leaf 0 for the temperature based
+     * parametrisation, where the root uses pi_Y = pi_A * F_pi and leaf 0 the reverse of F_pi. Adds the derivative
+     * concerning pi_A to dPi_A and returns the derivative concerning F_pi, the transitions of leaf 0.
+     */
+    private double[][] getTemperatureDerivatives(ExpectedCounts counts, double[] pi_A, double[] dPi_A) {
+        double[][] F_pi = evolutionaryModel.getCachedTransitions(getLeaf(0).getDistanceToParent()).toMatrix();
+        double[] pi_Y = times(pi_A, F_pi);
+        double[] cRoot = counts.counts[getNode(0).nodeNumber];
+        // cLeaf[c * size + r] counts leaf 0 in state r given the root in state c
+        double[] cLeaf = counts.counts[getLeaf(0).nodeNumber];
+        int size = pi_A.length;
+
+        // log P(A=r|Y=c) = log pi_A[r] + log F_pi[r][c] - log pi_Y[c]
+        double[][] dF = new double[size][size];
+        for (int c = 0; c < size; c++) {
+            double dPi_Y = cRoot[c];
+            for (int r = 0; r < size; r++) {
+                dPi_Y -= cLeaf[c * size + r];
+            }
+            dPi_Y = dPi_Y == 0 ? 0 : dPi_Y / pi_Y[c];
+            for (int r = 0; r < size; r++) {
+                double count = cLeaf[c * size + r];
+                dPi_A[r] += dPi_Y * F_pi[r][c] + (count == 0 ? 0 : count / pi_A[r]);
+                dF[r][c] = dPi_Y * pi_A[r] + (count == 0 ? 0 : count / F_pi[r][c]);
+            }
+        }
+        return dF;
+    }
+
     public static double[] times(double[] vector, double[][] matrix) {
         double[] result = new double[vector.length];
         for (int row = 0; row < matrix.length; row++) {
@@ -236,21 +398,119 @@ public class VirtualTree {
     /** Reinits for the egdelenghts of the underlying phylogenetic trees. */
     public void reinitEdglengths(String newick) {
         // TODO: check for each tree correctness of topology against actual topology
-        DoubleList dl = new DoubleList();
-        Pattern p = Pattern.compile(":([0-9]*\\.[0-9]*)");
-        Matcher m = p.matcher(newick);
+        this.setBranchLengths(this.parseBranchLengths(newick));
+    }
+
+    /** @return the number of branches, i.e. the number of nodes except the phylogenetic root */
+    public int getNumberOfBranches() {
+        int branches = 0;
+        for (int n = 0; n < numberOfNodes; n++) {
+            if (!getNode(n).props.isPhyloRoot()) {
+                branches++;
+            }
+        }
+        return branches;
+    }
+
+    /** @return the branch lengths of all nodes except the phylogenetic root, in the order of the nodes */
+    public double[] getBranchLengths() {
+        double[] lengths = new double[getNumberOfBranches()];
         int i = 0;
-        while (m.find()) {
-            dl.add(Double.valueOf(m.group(1)));
+        for (int n = 0; n < numberOfNodes; n++) {
+            BayesNetNode node = getNode(n);
+            if (!node.props.isPhyloRoot()) {
+                lengths[i++] = node.getDistanceToParent();
+            }
         }
+        return lengths;
+    }
 
-        i = 0;
+    /**
+     * Sets the branch lengths of all nodes except the phylogenetic root and recalculates the conditional probabilities.
+     * 
+     * @param lengths
+     *            the branch lengths in the order of {@link #getBranchLengths()}
+     */
+    public void setBranchLengths(double[] lengths) {
+        if (lengths.length != getNumberOfBranches()) {
+            throw new IllegalArgumentException("Expected " + getNumberOfBranches() + " branch lengths, but got "
+                    + lengths.length + ".");
+        }
+        int i = 0;
         for (int n = 0; n < numberOfNodes; n++) {
             BayesNetNode node = getNode(n);
             if (!node.props.isPhyloRoot()) {
-                node.setDistanceToParent(dl.get(i++));
+                node.setDistanceToParent(lengths[i++]);
             }
         }
         this.initParametersFromGF();
     }
+
+    /**
+     * Parses the branch lengths of the given newick string, which must have the topology of this tree with the children
+     * in the same order, e.g. a string generated by {@link #getNewickString()}. A branch length of the root is ignored.
+     * 
+     * @return the branch lengths in the order of {@link #getBranchLengths()}
+     */
+    public double[] parseBranchLengths(String newick) {
+        int[] order = getNewickOrder();
+        double[] lengths = new double[order.length];
+        Matcher m = BRANCH_LENGTH.matcher(newick);
+        int k = 0;
+        while (k < order.length && m.find()) {
+            lengths[order[k++]] = Double.parseDouble(m.group(1));
+        }
+        if (k < order.length) {
+            throw new IllegalArgumentException("The newick string " + newick + " contains only " + k
+                    + " branch lengths, but " + order.length + " are expected.");
+        }
+        return lengths;
+    }
+
+    /**
+     * Orders branch lengths given in the order of a newick string like {@link #parseBranchLengths(String)}, without
+     * parsing the string. A branch length of the root is ignored.
+     * 
+     * @param newickLengths
+     *            the branch lengths in the order they appear in the newick string
+     * @return the branch lengths in the order of {@link #getBranchLengths()}
+     */
+    public double[] orderBranchLengths(double[] newickLengths) {
+        int[] order = getNewickOrder();
+        if (newickLengths.length < order.length) {
+            throw new IllegalArgumentException("Only " + newickLengths.length + " branch lengths are given, but "
+                    + order.length + " are expected.");
+        }
+        double[] lengths = new double[order.length];
+        for (int k = 0; k < order.length; k++) {
+            lengths[order[k]] = newickLengths[k];
+        }
+        return lengths;
+    }
+
+    /** @return for each branch length of the newick string its index in {@link #getBranchLengths()} */
+    private int[] getNewickOrder() {
+        if (newickOrder == null) {
+            int[] branch = new int[numberOfNodes];
+            int i = 0;
+            for (int n = 0; n < numberOfNodes; n++) {
+                branch[n] = getNode(n).props.isPhyloRoot() ? -1 : i++;
+            }
+            IntList order = new IntList();
+            addNewickOrder(getNode(0), branch, order);
+            newickOrder = order.toArray();
+        }
+        return newickOrder;
+    }
+
+    /** adds the branches below aktnode in the order used by {@link #generateNewickString(BayesNetNode, int)} */
+    private void addNewickOrder(BayesNetNode aktnode, int[] branch, IntList order) {
+        for (int c = 0; c < aktnode.numberOfChilds; c++) {
+            int pos = myNodes.indexOf(aktnode.getChild(c));
+            if (pos >= 0) {
+                addNewickOrder(aktnode.getChild(c), branch, order);
+                order.add(branch[pos]);
+            }
+        }
+    }
 }
@@ -11,6 +11,7 @@ import de.jstacs.results.Result;
 import de.jstacs.results.ResultSet;
 import de.jstacs.utils.IntList;
 import io.PhyloSample;
+import models.PhyloBayesModel;
 import util.IntPair;
 
 public class ClassificationUtil {
@@ -205,8 +206,12 @@ public class ClassificationUtil {
         for (int i = 0; i < scores.length; i++) {
             // if sequence is shorter than motif, no scores can be calculated -> scores[i].length=0 
             scores[i] = new double[ Math.max(0, sample.getElementAt(i).getLength() - model.getLength() + 1)];
+            // phylogenetic motifs score all positions of a sequence in one scan
+            double[] scan = model instanceof PhyloBayesModel ? ((PhyloBayesModel) model).scanAll(sample
+                    .getElementAt(i)) : null;
             for (int u = 0; u < sample.getElementAt(i).getLength() - model.getLength() + 1; u++) {
-                scores[i][u] = model.getLogProbFor(sample.getElementAt(i), u, u + model.getLength() - 1);
+                scores[i][u] = scan != null ? scan[u] : model.getLogProbFor(sample.getElementAt(i), u,
+                        u + model.getLength() - 1);
                 count ++;
                 if(Math.ceil(count * 100. / sumPositions) > last) {
                     last = (int) Math.ceil(count * 100. / sumPositions);
@@ -0,0 +1,223 @@
+package classification;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import de.jstacs.data.AlphabetContainer;
+import io.MafReader;
+import io.MafReader.Block;
+import models.PhyloBackground;
+import models.PhyloBayesModel;
+import util.Util;
+
+/**
+ * Scans whole genome alignments in MAF format (see {@link MafReader}) with a trained {@link PhyloBayesModel} against a
+ * {@link PhyloBackground}. Each offset of each block is scored by the log-likelihood ratio of motif and background and
+ * each window with a score of at least the threshold is written as a hit.
+ * <br>
+ * Only the strand of the block given by the MAF file is scanned, the reverse complement is not. So all hits are on the
+ * strand of the reference in the block, use a model of the reverse complement of the motif for the other strand.
+ * <br>
+ * The blocks run through a pipeline of bounded memory: one thread parses the files, up to {@link #THREADS} workers
+ * score the blocks, each with its own copy of the models, and the calling thread applies the threshold and writes the
+ * hits in the order of the blocks. At most {@link #BLOCKS_IN_FLIGHT} blocks are parsed but not yet written.
+ */
+public class GenomeScanner {
+    private static Logger LOGGER = Logger.getLogger(GenomeScanner.class);
+
+    /** the maximal number of blocks scored in parallel */
+    public static int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** the maximal number of blocks parsed but not yet written */
+    public static int BLOCKS_IN_FLIGHT = 256;
+
+    /** the throughput is reported every REPORT_INTERVAL milli seconds */
+    public static long REPORT_INTERVAL = 10000;
+
+    private final PhyloBayesModel motif;
+    private final PhyloBackground bg;
+    private final double threshold;
+    private final List<String> species;
+
+    /** number of blocks, columns and hits of the last scan */
+    public long blocks, columns, hits;
+
+    /**
+     * @param motif
+     *            the trained motif model, it is not changed by the scan
+     * @param bg
+     *            the trained background model with the same species as the motif, it is not changed by the scan
+     * @param threshold
+     *            the minimal log-likelihood ratio of a hit
+     */
+    public GenomeScanner(PhyloBayesModel motif, PhyloBackground bg, double threshold) {
+        if (!motif.isTrained() || !bg.isTrained()) {
+            throw new IllegalArgumentException("The models must be trained.");
+        }
+        if (!motif.getContext().cloningAllowed || !bg.getContext().cloningAllowed) {
+            throw new IllegalArgumentException("The models must allow cloning, each worker uses its own copies.");
+        }
+        this.motif = motif;
+        this.bg = bg;
+        this.threshold = threshold;
+        this.species = Util.getOrderedArrayListFromTree(motif.getBNH().getVirtualTree(0).getNewickString());
+        List<String> bgSpecies = Util.getOrderedArrayListFromTree(bg.getBNH().getVirtualTree(0).getNewickString());
+        if (!species.equals(bgSpecies)) {
+            throw new IllegalArgumentException("The species of motif " + species + " and background " + bgSpecies
+                    + " differ.");
+        }
+    }
+
+    /** @return the species of the models in the order of the leafs, each block is mapped onto this order */
+    public List<String> getSpecies() {
+        return species;
+    }
+
+    /**
+     * Scans all blocks of the given files and writes one line per hit: reference, strand, position of the window on
+     * the strand of the reference, block, column of the window in the block and score, separated by tabs. The strand is
+     * the strand of the reference in the block, the reverse complement of a block is not scanned.
+     *
+     * @param mafFiles
+     *            the alignment files, scanned one after the other
+     * @param out
+     *            receives the hits, it is not closed
+     * @return the number of hits
+     */
+    public long scan(final List<String> mafFiles, Writer out) throws Exception {
+        blocks = columns = hits = 0;
+        final AlphabetContainer con = motif.getAlphabetContainer();
+        final int length = motif.getLength();
+
+        // one copy of the models per worker, made before the scan. The scores of a block are never requested again
+        final int threads = Math.max(1, THREADS);
+        final BlockingQueue<Models> copies = new ArrayBlockingQueue<Models>(threads);
+        for (int t = 0; t < threads; t++) {
+            copies.add(new Models(motif, bg));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // the scores of the blocks in the order of the file, the end is marked by null
+        final BlockingQueue<Future<Scores>> queue = new ArrayBlockingQueue<Future<Scores>>(Math.max(1, BLOCKS_IN_FLIGHT));
+        Thread parser = new Thread(() -> {
+            try {
+                for (String mafFile : mafFiles) {
+                    try (MafReader reader = new MafReader(mafFile, species, con)) {
+                        while (reader.hasNext()) {
+                            final Block block = reader.next();
+                            queue.put(executor.submit(() -> score(block, copies, length)));
+                        }
+                    }
+                }
+                queue.put(CompletableFuture.completedFuture(null));
+            } catch (InterruptedException e) {
+                // the scan has been aborted
+            } catch (Exception e) {
+                CompletableFuture<Scores> failed = new CompletableFuture<Scores>();
+                failed.completeExceptionally(e);
+                try {
+                    queue.put(failed);
+                } catch (InterruptedException ie) {
+                    // the scan has been aborted
+                }
+            }
+        }, "MAF parser");
+
+        long startTime = System.currentTimeMillis(), lastReport = startTime;
+        parser.start();
+        try {
+            Scores scores;
+            while ((scores = get(queue.take())) != null) {
+                write(scores, out);
+                blocks++;
+                columns += scores.block.alignment.getLength();
+                if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+                    lastReport = System.currentTimeMillis();
+                    report(startTime);
+                }
+            }
+            out.flush();
+            report(startTime);
+        } finally {
+            parser.interrupt();
+            executor.shutdownNow();
+        }
+        return hits;
+    }
+
+    /** the copies of the models used by one worker at a time */
+    private static class Models {
+        final PhyloBayesModel motif;
+        final PhyloBackground bg;
+
+        Models(PhyloBayesModel motif, PhyloBackground bg) {
+            this.motif = motif.clone();
+            this.motif.getContext().enableCaching = false;
+            this.motif.getContext().cloningAllowed = false;
+            this.bg = bg.clone();
+            this.bg.getContext().enableCaching = false;
+        }
+    }
+
+    /** the scores of all windows of a block */
+    private static class Scores {
+        final Block block;
+        final double[] values;
+
+        Scores(Block block, double[] values) {
+            this.block = block;
+            this.values = values;
+        }
+    }
+
+    /** scores the block with copies of the models, there are as many copies as workers, so none has to wait */
+    private static Scores score(Block block, BlockingQueue<Models> copies, int length) throws Exception {
+        Models models = copies.take();
+        try {
+            double[] scores = models.motif.scanAll(block.alignment);
+            for (int u = 0; u < scores.length; u++) {
+                scores[u] -= models.bg.getLogProbFor(block.alignment, u, u + length - 1);
+            }
+            models.bg.cleanCache();
+            return new Scores(block, scores);
+        } finally {
+            copies.add(models);
+        }
+    }
+
+    private void write(Scores scores, Writer out) throws IOException {
+        Block block = scores.block;
+        for (int u = 0; u < scores.values.length; u++) {
+            if (scores.values[u] >= threshold) {
+                out.write(block.reference + "\t" + block.strand + "\t" + block.positions[u] + "\t" + block.index + "\t"
+                        + u + "\t" + String.format(Locale.US, "%.4f", scores.values[u]) + "\n");
+                hits++;
+            }
+        }
+    }
+
+    private void report(long startTime) {
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+        LOGGER.info(String.format(Locale.US, "Scanned %d blocks, %d columns (%.0f columns/s), %d hits", blocks,
+                columns, columns / seconds, hits));
+    }
+
+    private static Scores get(Future<Scores> scores) throws Exception {
+        try {
+            return scores.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
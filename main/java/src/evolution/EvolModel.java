@@ -1,18 +1,32 @@
 package evolution;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.MatrixLinearisation;
+
 public abstract class EvolModel {
-	/*
-	 * The class of the Evolutionary model to use. TODO: don't use a static class
+	/**
+	 * The class of the Evolutionary model to use, default of {@link models.ModelContext#evolModelClass} for new models
 	 */
 	public static String MODEL_CLASS = "FS81alpha";
 
 	// TODO: must be configurable.
 	protected int _alphabetSize = 4;
 
+    /** source of the versions of the stationary distributions, unique across all models */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /** the version of the stationary distributions, see {@link #getStatDistrVersion()} */
+    private volatile long statDistrVersion = VERSIONS.incrementAndGet();
+
 
     /** @return the dimension of thie evolutionary model */
     public abstract int getDimension();
 
+    /** @return the class of this model including its parameters, as accepted by {@link #getInstance(String, int)} */
+    public abstract String getModelClass();
+
     /**
      * Reinitializes the transition matrix with the underlying stationary distributions and the given meta parameters,
      * e.g. the branch length
@@ -21,12 +35,117 @@ public abstract class EvolModel {
      */
     public abstract void reinit(double... metaparam);
 
-    /** @return a pointer to the stationary distributions */
+    /**
+     * Fills the given buffer with the transition matrix for the underlying stationary distributions and the given meta
+     * parameters. The current transition matrix is not changed.
+     * 
+     * @param transitions
+     *            the buffer, has the dimension of {@link #getCurrentTransitions()}
+     * @param metaparam
+     *            the meta parameters, e.g. the branch length
+     */
+    public abstract void fillTransitions(double[][] transitions, double... metaparam);
+
+    /**
+     * @return a pointer to the stationary distributions. The stationary distributions must not be modified, use
+     *         {@link #setStatDistr(double[]...)} or {@link #fillStatDistr(double[])} instead
+     */
     public abstract double[][] getStatDistr();
 
-    /** Sets the given stationary distributions */
+    /** Sets the given stationary distributions. Implementations must call {@link #statDistrChanged()}. */
     public abstract void setStatDistr(double[]... A);
 
+    /**
+     * Sets the stationary distributions to the given linearized stationary distributions (see
+     * {@link MatrixLinearisation#linearize(double[][])}). The version is only changed, if the stationary distributions
+     * change.
+     */
+    public void fillStatDistr(double[] pi) {
+        double[][] statDistr = getStatDistr();
+        int k = 0;
+        boolean changed = false;
+        for (int i = 0; i < statDistr.length && !changed; i++) {
+            changed = !Arrays.equals(statDistr[i], Arrays.copyOfRange(pi, k, k + statDistr[i].length));
+            k += statDistr[i].length;
+        }
+        if (changed) {
+            MatrixLinearisation.fillMatrix(pi, statDistr);
+            statDistrChanged();
+        }
+    }
+
+    /** assigns a new version to the stationary distributions, has to be called whenever they change */
+    protected void statDistrChanged() {
+        statDistrVersion = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * @return the version of the stationary distributions. The version changes whenever the stationary distributions
+     *         change and is unique across all models.
+     */
+    public long getStatDistrVersion() {
+        return statDistrVersion;
+    }
+
+    /**
+     * Returns the transition matrix for the given branch length from the shared {@link TransitionCache}. The matrix is
+     * shared between all nodes with the same parameters and must not be modified.
+     */
+    public TransitionCache.Matrix getCachedTransitions(double branchLength) {
+        long version = statDistrVersion;
+        TransitionCache cache = TransitionCache.getShared();
+        TransitionCache.Matrix m = cache.get(version, TransitionCache.TRANSITIONS, branchLength);
+        if (m == null) {
+            double[][] transitions = new double[getDimension() * _alphabetSize][_alphabetSize];
+            fillTransitions(transitions, branchLength);
+            m = new TransitionCache.Matrix(transitions);
+            cache.put(version, TransitionCache.TRANSITIONS, branchLength, m);
+        }
+        return m;
+    }
+
+    /**
+     * @return the unweighted transitions (see {@link #getUnweightedTransitions()}) from the shared
+     *         {@link TransitionCache}, must not be modified
+     */
+    @SuppressWarnings("deprecation")
+    public TransitionCache.Matrix getCachedUnweightedTransitions() {
+        long version = statDistrVersion;
+        TransitionCache cache = TransitionCache.getShared();
+        TransitionCache.Matrix m = cache.get(version, TransitionCache.UNWEIGHTED_TRANSITIONS, 0);
+        if (m == null) {
+            m = new TransitionCache.Matrix(getUnweightedTransitions());
+            cache.put(version, TransitionCache.UNWEIGHTED_TRANSITIONS, 0, m);
+        }
+        return m;
+    }
+
+    /** @return a copy of the stationary distributions from the shared {@link TransitionCache}, must not be modified */
+    public TransitionCache.Matrix getCachedStatDistr() {
+        long version = statDistrVersion;
+        TransitionCache cache = TransitionCache.getShared();
+        TransitionCache.Matrix m = cache.get(version, TransitionCache.STAT_DISTR, 0);
+        if (m == null) {
+            m = new TransitionCache.Matrix(getStatDistr());
+            cache.put(version, TransitionCache.STAT_DISTR, 0, m);
+        }
+        return m;
+    }
+
+    /**
+     * @return a copy of this model with its own stationary distributions. The copy shares the version of the
+     *         stationary distributions and thus the matrices of the {@link TransitionCache} until one of both models
+     *         changes.
+     */
+    public abstract EvolModel copy();
+
+    /** copies the stationary distributions and their version to the given new instance, used by {@link #copy()} */
+    protected <T extends EvolModel> T copyStatDistrTo(T copy) {
+        copy.setStatDistr(getStatDistr());
+        ((EvolModel) copy).statDistrVersion = statDistrVersion;
+        return copy;
+    }
+
     /** Copies this EvolModel to an XML-encoded StringBuffer */
     public abstract StringBuffer toXML();
 
@@ -35,22 +154,55 @@ public abstract class EvolModel {
     @Deprecated
     public abstract double[][] getUnweightedTransitions();
 
+    /**
+     * Adds the derivative of sum_{k,a} weights[k][a] * T[k][a] concerning the stationary distributions to gradient,
+     * i.e. gradient[i][b] += sum_{k,a} weights[k][a] * dT[k][a] / dpi[i][b]. T is the transition matrix for the given
+     * meta parameters, see {@link #reinit(double...)}. The current transition matrix is not changed.
+     * 
+     * @param weights
+     *            the derivative of the objective concerning each entry of the transition matrix
+     * @param gradient
+     *            the gradient concerning the stationary distributions, has the dimension of {@link #getStatDistr()}
+     * @param metaparam
+     *            the meta parameters, e.g. the branch length
+     */
+    public abstract void addStatDistrGradient(double[][] weights, double[][] gradient, double... metaparam);
+
+    /**
+     * Returns the derivative of sum_{k,a} weights[k][a] * T[k][a] concerning the branch length metaparam[0].
+     * 
+     * @see #addStatDistrGradient(double[][], double[][], double...)
+     */
+    public abstract double getBranchLengthGradient(double[][] weights, double... metaparam);
+
     /**
      * This factory method creates a concrete instance of an {@link EvolModel}.
      * 
      * @param dimension
-     * @return a concrete instance of an {@link EvolModel}
+     * @return a concrete instance of {@link #MODEL_CLASS}
      */
     public static EvolModel getInstance(int dimension) {
-		if (MODEL_CLASS.equals("FS81alpha")) {
+        return getInstance(MODEL_CLASS, dimension);
+    }
+
+    /**
+     * This factory method creates a concrete instance of an {@link EvolModel}.
+     * 
+     * @param modelClass
+     *            FS81alpha, FS81beta or HKY:alpha_beta_ratio
+     * @param dimension
+     * @return a concrete instance of the given modelClass
+     */
+    public static EvolModel getInstance(String modelClass, int dimension) {
+		if (modelClass.equals("FS81alpha")) {
             return new FS81alpha(dimension);
-		} else if (MODEL_CLASS.equals("FS81beta")) {
+		} else if (modelClass.equals("FS81beta")) {
             return new FS81beta(dimension);
-		} else if (MODEL_CLASS.startsWith("HKY")) {
-			double alpha_beta_ratio = Double.valueOf(MODEL_CLASS.split(":")[1]);
+		} else if (modelClass.startsWith("HKY")) {
+			double alpha_beta_ratio = Double.valueOf(modelClass.split(":")[1]);
 			return new HKY(dimension, alpha_beta_ratio);
         } else {
-			throw new IllegalArgumentException("Can't handle class " + MODEL_CLASS);
+			throw new IllegalArgumentException("Can't handle class " + modelClass);
         }
     }
 }
@@ -39,6 +39,7 @@ public class FS81alpha extends EvolModel {
 			Arrays.fill(_pi[i], 1);
 			Normalisation.sumNormalisation(_pi[i]);
         }
+		statDistrChanged();
 		_transitionMatrix = new double[_dimension * _alphabetSize][_alphabetSize];
 		reinit(1);
     }
@@ -48,6 +49,16 @@ public class FS81alpha extends EvolModel {
 		return _dimension;
     }
 
+    @Override
+    public String getModelClass() {
+        return "FS81alpha";
+    }
+
+    @Override
+    public FS81alpha copy() {
+		return copyStatDistrTo(new FS81alpha(_dimension));
+    }
+
     @Override
     public double[][] getUnweightedTransitions() {
         int indexTmp;
@@ -74,6 +85,11 @@ public class FS81alpha extends EvolModel {
 
     @Override
     public void reinit(double... evolDist) {
+        fillTransitions(_transitionMatrix, evolDist);
+    }
+
+    @Override
+    public void fillTransitions(double[][] transitions, double... evolDist) {
         int indexTmp;
         double alpha = evolDist[0];
 
@@ -82,15 +98,40 @@ public class FS81alpha extends EvolModel {
 				for (int a2 = 0; a2 < _alphabetSize; a2++) {
 					indexTmp = a1 + i * _alphabetSize;
                     if (a1 == a2) {
-						_transitionMatrix[indexTmp][a2] = 1 - alpha + _pi[i][a2] * alpha;
+						transitions[indexTmp][a2] = 1 - alpha + _pi[i][a2] * alpha;
                     } else {
-						_transitionMatrix[indexTmp][a2] = _pi[i][a2] * alpha;
+						transitions[indexTmp][a2] = _pi[i][a2] * alpha;
                     }
                 }
             }
         }
     }
 
+    @Override
+    public void addStatDistrGradient(double[][] weights, double[][] gradient, double... evolDist) {
+        double alpha = evolDist[0];
+		for (int i = 0; i < _dimension; i++) {
+			for (int a1 = 0; a1 < _alphabetSize; a1++) {
+				for (int a2 = 0; a2 < _alphabetSize; a2++) {
+					gradient[i][a2] += alpha * weights[a1 + i * _alphabetSize][a2];
+				}
+			}
+		}
+    }
+
+    @Override
+    public double getBranchLengthGradient(double[][] weights, double... evolDist) {
+        double gradient = 0;
+		for (int i = 0; i < _dimension; i++) {
+			for (int a1 = 0; a1 < _alphabetSize; a1++) {
+				for (int a2 = 0; a2 < _alphabetSize; a2++) {
+					gradient += weights[a1 + i * _alphabetSize][a2] * (_pi[i][a2] - (a1 == a2 ? 1 : 0));
+				}
+			}
+		}
+        return gradient;
+    }
+
     @Override
     public double[][] getStatDistr() {
 		return _pi;
@@ -102,6 +143,7 @@ public class FS81alpha extends EvolModel {
             return;
         }
 		_pi = Util.arraycopy(A);
+		statDistrChanged();
 		reinit(1);
     }
 
@@ -40,6 +40,7 @@ public class FS81beta extends EvolModel {
 			Arrays.fill(_pi[i], 1);
 			Normalisation.sumNormalisation(_pi[i]);
         }
+		statDistrChanged();
 		_transitionMatrix = new double[_dimension * _alphabetSize][_alphabetSize];
 		reinit(0);
     }
@@ -64,6 +65,16 @@ public class FS81beta extends EvolModel {
         return _dimension;
     }
 
+    @Override
+    public String getModelClass() {
+        return "FS81beta";
+    }
+
+    @Override
+    public FS81beta copy() {
+        return copyStatDistrTo(new FS81beta(_dimension));
+    }
+
     /**
      * @return a pointer to the underlying transition matrix. The transition matrix might change when calling
      *         {@link #reinit(double...)}
@@ -79,6 +90,11 @@ public class FS81beta extends EvolModel {
      */
     @Override
     public void reinit(double... v) {
+        fillTransitions(_transitionMatrix, v);
+    }
+
+    @Override
+    public void fillTransitions(double[][] transitions, double... v) {
         int indexTmp;
         double eps = 1e-4;
         for (int i = 0; i < _dimension; i++) {
@@ -93,15 +109,65 @@ public class FS81beta extends EvolModel {
 				for (int a2 = 0; a2 < _alphabetSize; a2++) {
 					indexTmp = a1 + i * _alphabetSize;
                     if (a1 == a2) {
-						_transitionMatrix[indexTmp][a2] = tmpAlpha + _pi[i][a2] * (1. - tmpAlpha);
+						transitions[indexTmp][a2] = tmpAlpha + _pi[i][a2] * (1. - tmpAlpha);
                     } else {
-						_transitionMatrix[indexTmp][a2] = _pi[i][a2] * (1. - tmpAlpha);
+						transitions[indexTmp][a2] = _pi[i][a2] * (1. - tmpAlpha);
                     }
                 }
             }
         }
     }
 
+    @Override
+    public void addStatDistrGradient(double[][] weights, double[][] gradient, double... v) {
+        double eps = 1e-4;
+        for (int i = 0; i < _dimension; i++) {
+			double beta = 1. / (1. - _pi[i][0] * _pi[i][0] - _pi[i][1] * _pi[i][1] - _pi[i][2] * _pi[i][2] - _pi[i][3] * _pi[i][3]);
+            double tmpAlpha = Math.exp(-v[0] * beta);
+            // the derivative of tmpAlpha concerning beta, 0 if tmpAlpha is clamped
+            double dAlpha = -v[0] * tmpAlpha;
+            if (tmpAlpha < 0 + eps) {
+                tmpAlpha = 0;
+                dAlpha = 0;
+            } else if (tmpAlpha > 1 - eps) {
+                tmpAlpha = 1;
+                dAlpha = 0;
+            }
+            // derivative concerning tmpAlpha
+            double sum = 0;
+			for (int a1 = 0; a1 < _alphabetSize; a1++) {
+				for (int a2 = 0; a2 < _alphabetSize; a2++) {
+					sum += weights[a1 + i * _alphabetSize][a2] * ((a1 == a2 ? 1 : 0) - _pi[i][a2]);
+					gradient[i][a2] += weights[a1 + i * _alphabetSize][a2] * (1. - tmpAlpha);
+                }
+            }
+			for (int b = 0; b < _alphabetSize; b++) {
+				// dbeta / dpi[i][b] = 2 * pi[i][b] * beta^2
+				gradient[i][b] += sum * dAlpha * 2 * _pi[i][b] * beta * beta;
+			}
+        }
+    }
+
+    @Override
+    public double getBranchLengthGradient(double[][] weights, double... v) {
+        double eps = 1e-4;
+        double gradient = 0;
+        for (int i = 0; i < _dimension; i++) {
+			double beta = 1. / (1. - _pi[i][0] * _pi[i][0] - _pi[i][1] * _pi[i][1] - _pi[i][2] * _pi[i][2] - _pi[i][3] * _pi[i][3]);
+            double tmpAlpha = Math.exp(-v[0] * beta);
+            if (tmpAlpha < 0 + eps || tmpAlpha > 1 - eps) {
+                continue; // clamped
+            }
+			for (int a1 = 0; a1 < _alphabetSize; a1++) {
+				for (int a2 = 0; a2 < _alphabetSize; a2++) {
+					gradient += weights[a1 + i * _alphabetSize][a2] * ((a1 == a2 ? 1 : 0) - _pi[i][a2]) * -beta
+							* tmpAlpha;
+                }
+            }
+        }
+        return gradient;
+    }
+
     @Override
     public double[][] getStatDistr() {
 		return _pi;
@@ -113,6 +179,7 @@ public class FS81beta extends EvolModel {
             return;
         }
 		_pi = Util.arraycopy(A);
+		statDistrChanged();
 		reinit(0);
     }
 
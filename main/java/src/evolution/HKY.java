@@ -29,7 +29,7 @@ public class HKY extends EvolModel {
 			throw new IllegalStateException("Only alphabets of size 4 supported by HKY");
 		}
 
-		alpha_beta_ratio = alpha_beta_ratio;
+		this.alpha_beta_ratio = alpha_beta_ratio;
         dimension = dim;
         init();
     }
@@ -40,6 +40,7 @@ public class HKY extends EvolModel {
 			Arrays.fill(pi[i], 1);
 			Normalisation.sumNormalisation(pi[i]);
         }
+		statDistrChanged();
 		transitionMatrix = new double[dimension * _alphabetSize][_alphabetSize];
 		reinit(1);
     }
@@ -49,6 +50,16 @@ public class HKY extends EvolModel {
         return dimension;
     }
 
+    @Override
+    public String getModelClass() {
+        return "HKY:" + alpha_beta_ratio;
+    }
+
+    @Override
+    public HKY copy() {
+        return copyStatDistrTo(new HKY(dimension, alpha_beta_ratio));
+    }
+
     @Override
     public double[][] getUnweightedTransitions() {
         int indexTmp;
@@ -75,6 +86,11 @@ public class HKY extends EvolModel {
 
     @Override
     public void reinit(double... evolDist) {
+        fillTransitions(transitionMatrix, evolDist);
+    }
+
+    @Override
+    public void fillTransitions(double[][] transitions, double... evolDist) {
         double alpha = evolDist[0];
 		double beta = alpha * alpha_beta_ratio;
 
@@ -83,26 +99,62 @@ public class HKY extends EvolModel {
 			double aPiA = alpha * pi[i][0], aPiC = alpha * pi[i][1], aPiG = alpha * pi[i][2], aPiT = alpha * pi[i][3];
 			double bPiA = beta * pi[i][0], bPiC = beta * pi[i][1], bPiG = beta * pi[i][2], bPiT = beta * pi[i][3];
 
-			transitionMatrix[0 + i * _alphabetSize][0] = 1 - (aPiG + bPiT + bPiC); // A->A
-			transitionMatrix[0 + i * _alphabetSize][1] = bPiC; // A->C
-			transitionMatrix[0 + i * _alphabetSize][2] = aPiG; // A->G
-			transitionMatrix[0 + i * _alphabetSize][3] = bPiT; // A->T
-
-			transitionMatrix[1 + i * _alphabetSize][0] = bPiA; // C->A
-			transitionMatrix[1 + i * _alphabetSize][1] = 1 - (aPiT + bPiA + bPiG); // C->C
-			transitionMatrix[1 + i * _alphabetSize][2] = bPiG; // C->G
-			transitionMatrix[1 + i * _alphabetSize][3] = aPiT; // C->T
-
-			transitionMatrix[2 + i * _alphabetSize][0] = aPiA; // G->A
-			transitionMatrix[2 + i * _alphabetSize][1] = bPiC; // G->C
-			transitionMatrix[2 + i * _alphabetSize][2] = 1 - (aPiA + bPiT + bPiC); // G->G
-			transitionMatrix[2 + i * _alphabetSize][3] = bPiT; // G->T
-
-			transitionMatrix[3 + i * _alphabetSize][0] = bPiA; // T->A
-			transitionMatrix[3 + i * _alphabetSize][1] = aPiC; // T->C
-			transitionMatrix[3 + i * _alphabetSize][2] = bPiG; // T->G
-			transitionMatrix[3 + i * _alphabetSize][3] = 1 - (aPiC + bPiA + bPiG); // T->T
+			transitions[0 + i * _alphabetSize][0] = 1 - (aPiG + bPiT + bPiC); // A->A
+			transitions[0 + i * _alphabetSize][1] = bPiC; // A->C
+			transitions[0 + i * _alphabetSize][2] = aPiG; // A->G
+			transitions[0 + i * _alphabetSize][3] = bPiT; // A->T
+
+			transitions[1 + i * _alphabetSize][0] = bPiA; // C->A
+			transitions[1 + i * _alphabetSize][1] = 1 - (aPiT + bPiA + bPiG); // C->C
+			transitions[1 + i * _alphabetSize][2] = bPiG; // C->G
+			transitions[1 + i * _alphabetSize][3] = aPiT; // C->T
+
+			transitions[2 + i * _alphabetSize][0] = aPiA; // G->A
+			transitions[2 + i * _alphabetSize][1] = bPiC; // G->C
+			transitions[2 + i * _alphabetSize][2] = 1 - (aPiA + bPiT + bPiC); // G->G
+			transitions[2 + i * _alphabetSize][3] = bPiT; // G->T
+
+			transitions[3 + i * _alphabetSize][0] = bPiA; // T->A
+			transitions[3 + i * _alphabetSize][1] = aPiC; // T->C
+			transitions[3 + i * _alphabetSize][2] = bPiG; // T->G
+			transitions[3 + i * _alphabetSize][3] = 1 - (aPiC + bPiA + bPiG); // T->T
+        }
+    }
+
+    /**
+     * The transition matrix is linear in the stationary distribution. Each off-diagonal entry a1->a2 is
+     * pi[a2] * alpha for transitions (A<->G, C<->T) and pi[a2] * beta for transversions, the diagonal takes the rest.
+     */
+    @Override
+    public void addStatDistrGradient(double[][] weights, double[][] gradient, double... evolDist) {
+        double alpha = evolDist[0];
+		double beta = alpha * alpha_beta_ratio;
+        for (int i = 0; i < dimension; i++) {
+			for (int a1 = 0; a1 < _alphabetSize; a1++) {
+				double[] w = weights[a1 + i * _alphabetSize];
+				for (int b = 0; b < _alphabetSize; b++) {
+					if (b != a1) {
+						gradient[i][b] += ((a1 - b) % 2 == 0 ? alpha : beta) * (w[b] - w[a1]);
+					}
+				}
+			}
+        }
+    }
+
+    @Override
+    public double getBranchLengthGradient(double[][] weights, double... evolDist) {
+        double gradient = 0;
+        for (int i = 0; i < dimension; i++) {
+			for (int a1 = 0; a1 < _alphabetSize; a1++) {
+				double[] w = weights[a1 + i * _alphabetSize];
+				for (int a2 = 0; a2 < _alphabetSize; a2++) {
+					if (a2 != a1) {
+						gradient += ((a1 - a2) % 2 == 0 ? 1 : alpha_beta_ratio) * pi[i][a2] * (w[a2] - w[a1]);
+					}
+				}
+			}
         }
+        return gradient;
     }
 
     @Override
@@ -116,6 +168,7 @@ public class HKY extends EvolModel {
             return;
         }
 		pi = Util.arraycopy(A);
+		statDistrChanged();
 		reinit(1);
     }
 
@@ -136,7 +189,7 @@ public class HKY extends EvolModel {
     public static HKY getObjectFromXML(StringBuffer xml) throws NonParsableException {
         double[][] stat = (double[][]) XMLParser.extractObjectForTags(xml, "statDistr");
         int dim = (Integer) XMLParser.extractObjectForTags(xml, "dimension");
-		double alpha_beta_ratio = (Integer) XMLParser.extractObjectForTags(xml, "alpha_beta_ratio");
+		double alpha_beta_ratio = (Double) XMLParser.extractObjectForTags(xml, "alpha_beta_ratio");
 
 		HKY Otmp = new HKY(dim, alpha_beta_ratio);
         Otmp.setStatDistr(stat);
@@ -0,0 +1,187 @@
+package evolution;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bayesNet.CPF;
+
+/**
+ * Bounded cache for the transition matrices of {@link EvolModel}s, shared by all models and virtual trees. A matrix is
+ * identified by the version of the stationary distributions of its model ({@link EvolModel#getStatDistrVersion()}), its
+ * kind and the branch length. Versions are unique across all models, so a version determines the model and its
+ * stationary distributions. Cached matrices are shared between all nodes with the same parameters and must not be
+ * modified.
+ * <p>
+ * The cache is split into {@link #SEGMENTS} segments by the hash of the key, each with its own lock and an equal share
+ * of {@link #CAPACITY}, so threads reading different matrices rarely wait for each other. If a segment holds more than
+ * its share, its least recently used matrices are removed.
+ */
+public class TransitionCache {
+
+    /** the maximal number of cached values of the shared cache */
+    public static long CAPACITY = 1 << 20;
+
+    /** the number of independently locked segments */
+    private static final int SEGMENTS = 16;
+
+    /** the kinds of cached matrices */
+    static final int TRANSITIONS = 0, UNWEIGHTED_TRANSITIONS = 1, STAT_DISTR = 2;
+
+    private static final TransitionCache SHARED = new TransitionCache();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private TransitionCache() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /** @return the cache shared by all {@link EvolModel}s */
+    public static TransitionCache getShared() {
+        return SHARED;
+    }
+
+    private Segment getSegment(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /** @return the cached matrix, null if there is none */
+    Matrix get(long version, int kind, double branchLength) {
+        Key key = new Key(version, kind, branchLength);
+        Matrix m = getSegment(key).get(key);
+        if (m == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return m;
+    }
+
+    /** caches the given matrix and removes the least recently used matrices of its segment if necessary */
+    void put(long version, int kind, double branchLength, Matrix m) {
+        Key key = new Key(version, kind, branchLength);
+        getSegment(key).put(key, m, CAPACITY / SEGMENTS);
+    }
+
+    /** removes all matrices, the counters are kept */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /** @return the number of cached matrices */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        long values = 0;
+        for (Segment segment : segments) {
+            values += segment.values();
+        }
+        return "TransitionCache: " + size() + " matrices, " + values + " of " + CAPACITY + " values, hits="
+                + hits.get() + ", misses=" + misses.get();
+    }
+
+    /** a part of the cache with its own lock, ordered by access */
+    private static final class Segment {
+        /** number of currently cached values */
+        private long size;
+
+        private final LinkedHashMap<Key, Matrix> entries = new LinkedHashMap<Key, Matrix>(16, 0.75f, true);
+
+        synchronized Matrix get(Key key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, Matrix m, long capacity) {
+            Matrix old = entries.put(key, m);
+            if (old != null) {
+                size -= old.size();
+            }
+            size += m.size();
+            Iterator<Matrix> it = entries.values().iterator();
+            while (size > capacity && it.hasNext()) {
+                Matrix eldest = it.next();
+                if (eldest != m) {
+                    size -= eldest.size();
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long values() {
+            return size;
+        }
+    }
+
+    /**
+     * an immutable matrix together with its elementwise natural logarithm, both stored row-major like the tables of
+     * {@link CPF}
+     */
+    public static final class Matrix {
+        public final double[] prob;
+        public final double[] lnProb;
+
+        Matrix(double[][] prob) {
+            this.prob = CPF.flatten(prob);
+            this.lnProb = CPF.log(this.prob);
+        }
+
+        /** @return a copy of the matrix with rows of length {@link io.Alphabet#size} */
+        public double[][] toMatrix() {
+            return CPF.toMatrix(prob);
+        }
+
+        private long size() {
+            return 2L * prob.length;
+        }
+    }
+
+    private static final class Key {
+        private final long version;
+        private final int kind;
+        private final long branchLength;
+
+        Key(long version, int kind, double branchLength) {
+            this.version = version;
+            this.kind = kind;
+            this.branchLength = Double.doubleToLongBits(branchLength);
+        }
+
+        @Override
+        public int hashCode() {
+            long h = (version * 31 + kind) * 31 + branchLength;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return version == k.version && kind == k.kind && branchLength == k.branchLength;
+        }
+    }
+}
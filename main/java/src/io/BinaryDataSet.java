@@ -0,0 +1,381 @@
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+
+import bayesNet.VirtualTree;
+import de.jstacs.NonParsableException;
+import de.jstacs.WrongAlphabetException;
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.EmptySampleException;
+import de.jstacs.data.WrongLengthException;
+import de.jstacs.data.alphabets.DoubleSymbolException;
+import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+
+/**
+ * A versioned binary format for {@link PhyloSample}s. The alignments are stored as packed columns (see
+ * {@link PackedAlignment}) together with their annotations, their weights and the branch lengths of their
+ * {@link MultiDimensionalDiscreteSequence#learnedTopology}. {@link #load(String)} maps the file into memory and the
+ * loaded alignments read their columns directly from the mapping, so nothing has to be parsed except the annotations and
+ * the file is shared by the page cache of all processes using it.
+ * <p>
+ * Layout (big endian): the int {@link #MAGIC}, the int {@link #VERSION}, the alphabet, the number of species and their
+ * names, the number of topology templates and each template, the number of alignments, padding to a multiple of 8 bytes
+ * and a record for each alignment:
+ * <ul>
+ * <li>the size of the record in bytes as long, a multiple of 8
+ * <li>the annotations of the alignment and of the sequence of each species, each as number of annotations followed by
+ * type and identifier of each annotation
+ * <li>the weight as double
+ * <li>the index of the template of the learned topology as int, -1 if there is none, and the branch lengths as number
+ * and doubles
+ * <li>the number of columns as int, padding to a multiple of 8 bytes and the packed columns as longs
+ * </ul>
+ * The alphabet is 0 for the DNA alphabet or 1 followed by the XML of the {@link AlphabetContainer}. A template of a
+ * topology is the newick string split at its branch lengths, stored as number of parts and the parts. Strings are stored
+ * as number of bytes followed by the UTF-8 bytes. Only type and identifier of the annotations are stored.
+ */
+public class BinaryDataSet {
+
+    /** the first four bytes of each file, "PHYD" */
+    public static final int MAGIC = 0x50485944;
+
+    /** the version of the format, files of other versions are rejected */
+    public static final int VERSION = 1;
+
+    /** the file extension of the binary format */
+    public static final String EXTENSION = ".pdat";
+
+    /** the maximal size of one mapping, the records are mapped in chunks of this size */
+    private static final long CHUNK = 1L << 30;
+
+    /**
+     * Writes the given sample to the given file. All alignments must be packable, i.e. consist of at most
+     * {@link PackedAlignment#MAX_SPECIES} species and the sequences of the species given by {@link PhyloSample#getSpecies()}.
+     *
+     * @throws IOException
+     */
+    public static void save(PhyloSample sample, String fileName) throws IOException {
+        List<String> species = sample.getSpecies();
+        double[] weights = sample.getWeights();
+        AlphabetContainer con = sample.getAlphabetContainer();
+
+        // the templates of all learned topologies
+        HashMap<String, Integer> templateIndex = new HashMap<String, Integer>();
+        List<String[]> templates = new ArrayList<String[]>();
+        for (int i = 0; i < sample.getNumberOfElements(); i++) {
+            String topology = ((MultiDimensionalDiscreteSequence) sample.getElementAt(i)).learnedTopology;
+            if (topology != null) {
+                String[] template = getTemplate(topology);
+                String key = String.join("\0", template);
+                if (!templateIndex.containsKey(key)) {
+                    templateIndex.put(key, templates.size());
+                    templates.add(template);
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            if (isDNA(con)) {
+                header.writeByte(0);
+            } else {
+                header.writeByte(1);
+                putString(header, con.toXML().toString());
+            }
+            header.writeInt(species.size());
+            for (String s : species) {
+                putString(header, s);
+            }
+            header.writeInt(templates.size());
+            for (String[] template : templates) {
+                header.writeInt(template.length);
+                for (String part : template) {
+                    putString(header, part);
+                }
+            }
+            header.writeInt(sample.getNumberOfElements());
+            pad(header);
+            bytes.writeTo(out);
+
+            for (int i = 0; i < sample.getNumberOfElements(); i++) {
+                MultiDimensionalDiscreteSequence alignment = (MultiDimensionalDiscreteSequence) sample.getElementAt(i);
+                if (alignment.getNumberOfSequences() != species.size()) {
+                    throw new IllegalArgumentException("Alignment " + i + " does not consist of " + species.size() + " species.");
+                }
+                long[] columns = getColumns(alignment);
+                bytes.reset();
+                DataOutputStream record = new DataOutputStream(bytes);
+                // the size of the record is written in front of it
+                record.writeLong(0);
+                putAnnotation(record, alignment.getAnnotation());
+                for (int o = 0; o < species.size(); o++) {
+                    putAnnotation(record, alignment.getSequence(o).getAnnotation());
+                }
+                record.writeDouble(weights == null ? 1 : weights[i]);
+                String topology = alignment.learnedTopology;
+                if (topology == null) {
+                    record.writeInt(-1);
+                    record.writeInt(0);
+                } else {
+                    record.writeInt(templateIndex.get(String.join("\0", getTemplate(topology))));
+                    double[] branchLengths = getBranchLengths(alignment);
+                    record.writeInt(branchLengths.length);
+                    for (double b : branchLengths) {
+                        record.writeDouble(b);
+                    }
+                }
+                record.writeInt(columns.length);
+                pad(record);
+                long size = bytes.size() + 8L * columns.length;
+                byte[] head = bytes.toByteArray();
+                ByteBuffer.wrap(head).putLong(0, size);
+                out.write(head);
+                for (long column : columns) {
+                    out.writeLong(column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a sample written by {@link #save(PhyloSample, String)}. The file is mapped into memory and must not be
+     * changed as long as the sample is used.
+     *
+     * @throws IOException
+     *             if the file is not in the binary format
+     */
+    public static PhyloSample load(String fileName) throws IOException, EmptySampleException, WrongAlphabetException,
+            WrongLengthException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            Mapping mapping = new Mapping(channel);
+            ByteBuffer buf = mapping.at(0, Math.min(channel.size(), CHUNK));
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+                throw new IOException(fileName + " is not a binary data set.");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Can not handle version " + version + " of the binary data set format.");
+            }
+            AlphabetContainer con;
+            try {
+                con = buf.get() == 0 ? new AlphabetContainer(new UnobservableDNAAlphabet())
+                        : new AlphabetContainer(new StringBuffer(getString(buf)));
+            } catch (DoubleSymbolException | NonParsableException e) {
+                throw new IOException(e.getMessage());
+            }
+            List<String> species = new ArrayList<String>();
+            for (int s = buf.getInt(); s > 0; s--) {
+                species.add(getString(buf));
+            }
+            String[][] templates = new String[buf.getInt()][];
+            for (int t = 0; t < templates.length; t++) {
+                templates[t] = new String[buf.getInt()];
+                for (int p = 0; p < templates[t].length; p++) {
+                    templates[t][p] = getString(buf);
+                }
+            }
+            MultiDimensionalDiscreteSequence[] alignments = new MultiDimensionalDiscreteSequence[buf.getInt()];
+            double[] weights = new double[alignments.length];
+            long pos = align(buf.position());
+
+            SequenceAnnotation[][] annotations = new SequenceAnnotation[species.size()][];
+            for (int i = 0; i < alignments.length; i++) {
+                long size = mapping.at(pos, 8).getLong();
+                buf = mapping.at(pos, size);
+                int start = buf.position();
+                buf.getLong();
+                SequenceAnnotation[] annotation = getAnnotation(buf);
+                for (int o = 0; o < annotations.length; o++) {
+                    annotations[o] = getAnnotation(buf);
+                }
+                weights[i] = buf.getDouble();
+                int template = buf.getInt();
+                double[] branchLengths = new double[buf.getInt()];
+                for (int b = 0; b < branchLengths.length; b++) {
+                    branchLengths[b] = buf.getDouble();
+                }
+                int length = buf.getInt();
+                buf.position(start + (int) align(buf.position() - start));
+                LongBuffer columns = buf.slice().asLongBuffer();
+                columns.limit(length);
+                alignments[i] = new PackedAlignment(annotation, con, columns, annotations);
+                if (template >= 0) {
+                    // the string is the key of the cached scores, the models use the branch lengths
+                    ((PackedAlignment) alignments[i]).setLearnedTopology(getTopology(templates[template], branchLengths),
+                            branchLengths);
+                }
+                pos += size;
+            }
+            PhyloSample sample = new PhyloSample("multi-dimensional sample of " + fileName, alignments, species);
+            // unit weights are written for samples without weights, they are trained without weights like before
+            boolean weighted = false;
+            for (double w : weights) {
+                weighted |= w != 1;
+            }
+            sample.setWeights(weighted ? weights : null);
+            return sample;
+        }
+    }
+
+    /** @return true, if the given file starts with {@link #MAGIC} */
+    public static boolean isBinary(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic);
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /** the mapping of the current chunk of a file */
+    private static class Mapping {
+        private final FileChannel channel;
+        private MappedByteBuffer chunk;
+        private long start;
+
+        Mapping(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** @return a buffer positioned at pos, containing at least the next length bytes */
+        ByteBuffer at(long pos, long length) throws IOException {
+            if (chunk == null || pos < start || pos + length > start + chunk.capacity()) {
+                if (length > Integer.MAX_VALUE || pos + length > channel.size()) {
+                    throw new IOException("Corrupt binary data set.");
+                }
+                start = pos;
+                chunk = channel.map(MapMode.READ_ONLY, pos, Math.min(channel.size() - pos, Math.max(length, CHUNK)));
+            }
+            ByteBuffer buf = chunk.duplicate();
+            buf.position((int) (pos - start));
+            return buf;
+        }
+    }
+
+    /** @return the packed columns of the given alignment */
+    private static long[] getColumns(MultiDimensionalDiscreteSequence alignment) {
+        long[] columns = new long[alignment.getLength()];
+        if (alignment instanceof PackedAlignment) {
+            for (int u = 0; u < columns.length; u++) {
+                columns[u] = ((PackedAlignment) alignment).getColumn(u);
+            }
+            return columns;
+        }
+        byte[][] content = new byte[alignment.getNumberOfSequences()][columns.length];
+        for (int o = 0; o < content.length; o++) {
+            for (int u = 0; u < columns.length; u++) {
+                content[o][u] = (byte) PackedAlignment.getSymbol(alignment, u, o);
+            }
+        }
+        columns = PackedAlignment.pack(content, columns.length);
+        if (columns == null) {
+            throw new IllegalArgumentException("The alignment " + alignment.getAnnotation()[0] + " can not be packed.");
+        }
+        return columns;
+    }
+
+    /** @return the parts of the newick string around its branch lengths */
+    private static String[] getTemplate(String topology) {
+        List<String> parts = new ArrayList<String>();
+        Matcher m = VirtualTree.BRANCH_LENGTH.matcher(topology);
+        int last = 0;
+        while (m.find()) {
+            parts.add(topology.substring(last, m.start(1)));
+            last = m.end(1);
+        }
+        parts.add(topology.substring(last));
+        return parts.toArray(new String[0]);
+    }
+
+    /** @return the branch lengths of the learned topology of the given alignment in the order of the newick string */
+    private static double[] getBranchLengths(MultiDimensionalDiscreteSequence alignment) {
+        if (alignment instanceof PackedAlignment && ((PackedAlignment) alignment).getLearnedBranchLengths() != null) {
+            return ((PackedAlignment) alignment).getLearnedBranchLengths();
+        }
+        List<Double> branchLengths = new ArrayList<Double>();
+        Matcher m = VirtualTree.BRANCH_LENGTH.matcher(alignment.learnedTopology);
+        while (m.find()) {
+            branchLengths.add(Double.valueOf(m.group(1)));
+        }
+        double[] lengths = new double[branchLengths.size()];
+        for (int b = 0; b < lengths.length; b++) {
+            lengths[b] = branchLengths.get(b);
+        }
+        return lengths;
+    }
+
+    private static String getTopology(String[] template, double[] branchLengths) {
+        StringBuilder sb = new StringBuilder(template[0]);
+        for (int b = 0; b < branchLengths.length; b++) {
+            sb.append(branchLengths[b]).append(template[b + 1]);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isDNA(AlphabetContainer con) {
+        return con.isSimple() && con.getAlphabetAt(0).getClass() == UnobservableDNAAlphabet.class;
+    }
+
+    /** @return pos rounded up to a multiple of 8 */
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static void pad(DataOutputStream out) throws IOException {
+        while (out.size() % 8 != 0) {
+            out.writeByte(0);
+        }
+    }
+
+    private static void putAnnotation(DataOutputStream out, SequenceAnnotation[] annotation) throws IOException {
+        if (annotation == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(annotation.length);
+        for (SequenceAnnotation a : annotation) {
+            putString(out, a.getType());
+            putString(out, a.getIdentifier());
+        }
+    }
+
+    private static SequenceAnnotation[] getAnnotation(ByteBuffer buf) {
+        SequenceAnnotation[] annotation = new SequenceAnnotation[buf.getInt()];
+        for (int a = 0; a < annotation.length; a++) {
+            annotation[a] = new SequenceAnnotation(getString(buf), getString(buf));
+        }
+        return annotation;
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
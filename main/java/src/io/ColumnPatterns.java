@@ -0,0 +1,188 @@
+package io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import de.jstacs.data.Sequence.SubSequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.utils.DoubleList;
+
+/**
+ * Compresses windows of alignments to their distinct column patterns. The free energy and the likelihood of a window
+ * only depend on the observed symbols of all species in its columns
+ * ({@link PackedAlignment#getSymbol(MultiDimensionalDiscreteSequence, int, int)}). Hence, all windows with identical columns can be
+ * represented by one window, weighted with the summed weight of all these windows. Symbols that can not be observed
+ * (index >= {@link Alphabet#size}) are treated as identical. The columns of a {@link PackedAlignment} are compared by
+ * their packed words.
+ */
+public class ColumnPatterns {
+
+    /** one representative window for each distinct pattern, in order of the first occurrence */
+    public final Sequence<?>[] windows;
+
+    /** summed weights of all windows sharing the pattern of the corresponding representative */
+    public final double[] weights;
+
+    /** number of windows before compression */
+    public final int numberOfWindows;
+
+    /** index of each pattern in {@link #windows} */
+    private HashMap<Pattern, Integer> index = new HashMap<Pattern, Integer>();
+    private ArrayList<Sequence<?>> representatives = new ArrayList<Sequence<?>>();
+    private DoubleList summedWeights = new DoubleList();
+
+    /**
+     * Compresses the given windows.
+     *
+     * @param windows
+     *            the windows, all of the same length
+     * @param weights
+     *            the weight of each window, null if all windows are weighted equally
+     */
+    public ColumnPatterns(Sequence<?>[] windows, double[] weights) {
+        for (int i = 0; i < windows.length; i++) {
+            int offset = 0;
+            MultiDimensionalDiscreteSequence parent;
+            if (windows[i] instanceof MultiDimensionalDiscreteSequence) {
+                parent = (MultiDimensionalDiscreteSequence) windows[i];
+            } else {
+                parent = (MultiDimensionalDiscreteSequence) ((SubSequence<?>) windows[i]).getParent();
+                offset = ((SubSequence<?>) windows[i]).start;
+            }
+            Pattern p = new Pattern(parent, offset, windows[i].getLength());
+            add(p, weights == null ? 1 : weights[i], windows[i]);
+        }
+        numberOfWindows = windows.length;
+        this.windows = representatives.toArray(new Sequence<?>[0]);
+        this.weights = summedWeights.toArray();
+        index = null;
+        representatives = null;
+        summedWeights = null;
+    }
+
+    /**
+     * Compresses all windows of the given length of all sequences of data, i.e. the windows starting at positions 0,
+     * ..., length - windowLength of each sequence. Windows are only created for the first occurrence of each pattern.
+     *
+     * @param data
+     *            the alignments
+     * @param weights
+     *            the weight of each window in the order described above, null if all windows are weighted equally
+     * @param windowLength
+     *            the length of the windows
+     */
+    public ColumnPatterns(Sample data, double[] weights, int windowLength) {
+        int w = 0;
+        for (int i = 0; i < data.getNumberOfElements(); i++) {
+            Sequence<?> seq = data.getElementAt(i);
+            int offset = 0;
+            MultiDimensionalDiscreteSequence parent;
+            if (seq instanceof MultiDimensionalDiscreteSequence) {
+                parent = (MultiDimensionalDiscreteSequence) seq;
+            } else {
+                parent = (MultiDimensionalDiscreteSequence) ((SubSequence<?>) seq).getParent();
+                offset = ((SubSequence<?>) seq).start;
+            }
+            for (int u = 0; u <= seq.getLength() - windowLength; u++, w++) {
+                Pattern p = new Pattern(parent, offset + u, windowLength);
+                add(p, weights == null ? 1 : weights[w], index.containsKey(p) ? null : seq.getSubSequence(u,
+                        windowLength));
+            }
+        }
+        numberOfWindows = w;
+        this.windows = representatives.toArray(new Sequence<?>[0]);
+        this.weights = summedWeights.toArray();
+        index = null;
+        representatives = null;
+        summedWeights = null;
+    }
+
+    private void add(Pattern p, double weight, Sequence<?> window) {
+        Integer k = index.get(p);
+        if (k == null) {
+            index.put(p, representatives.size());
+            representatives.add(window);
+            summedWeights.add(weight);
+        } else {
+            summedWeights.addTo(k, k + 1, weight);
+        }
+    }
+
+    /**
+     * Numbers the distinct windows of the given length within the columns start, ..., start + length - 1 of parent in
+     * order of their first occurrence.
+     *
+     * @return the number of each window start, ..., start + length - windowLength, the number of distinct windows is
+     *         the maximum + 1
+     */
+    public static int[] getPatternIds(MultiDimensionalDiscreteSequence parent, int start, int length, int windowLength) {
+        HashMap<Pattern, Integer> ids = new HashMap<Pattern, Integer>();
+        int[] patternIds = new int[Math.max(0, length - windowLength + 1)];
+        for (int k = 0; k < patternIds.length; k++) {
+            Pattern p = new Pattern(parent, start + k, windowLength);
+            Integer id = ids.get(p);
+            if (id == null) {
+                id = ids.size();
+                ids.put(p, id);
+            }
+            patternIds[k] = id;
+        }
+        return patternIds;
+    }
+
+    /** @return the number of distinct patterns */
+    public int size() {
+        return windows.length;
+    }
+
+    /** the observed columns of a window, used as key */
+    private static final class Pattern {
+        private final int[] symbols;
+        /** the keys of the columns, if the parent is a {@link PackedAlignment}, else null */
+        private final long[] packed;
+        private final int hash;
+
+        Pattern(MultiDimensionalDiscreteSequence parent, int start, int length) {
+            if (parent instanceof PackedAlignment) {
+                PackedAlignment alignment = (PackedAlignment) parent;
+                symbols = null;
+                packed = new long[length + 1];
+                packed[0] = alignment.getNumberOfSequences();
+                for (int k = 0; k < length; k++) {
+                    packed[k + 1] = alignment.getColumnKey(start + k);
+                }
+                hash = Arrays.hashCode(packed);
+                return;
+            }
+            packed = null;
+            int species = parent.getNumberOfSequences();
+            symbols = new int[length * (species + 1)];
+            int s = 0;
+            for (int k = start; k < start + length; k++) {
+                symbols[s++] = species;
+                for (int o = 0; o < species; o++) {
+                    symbols[s++] = Math.min(PackedAlignment.getSymbol(parent, k, o), Alphabet.size);
+                }
+            }
+            hash = Arrays.hashCode(symbols);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pattern)) {
+                return false;
+            }
+            Pattern p = (Pattern) o;
+            // windows of packed and unpacked alignments are not merged
+            return packed == null ? Arrays.equals(symbols, p.symbols) : Arrays.equals(packed, p.packed);
+        }
+    }
+}
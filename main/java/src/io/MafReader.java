@@ -0,0 +1,319 @@
+package io;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import de.jstacs.WrongAlphabetException;
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.WrongLengthException;
+import de.jstacs.data.alphabets.DiscreteAlphabet;
+import de.jstacs.data.sequences.ByteSequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.data.sequences.SimpleDiscreteSequence;
+import de.jstacs.data.sequences.WrongSequenceTypeException;
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+import util.Util;
+
+/**
+ * Reads the blocks of a multiple alignment file in MAF format block by block, so whole genome alignments can be
+ * processed without keeping them in memory. Only the <code>a</code> and <code>s</code> lines are used, all other lines
+ * are skipped.
+ * <br>
+ * The source of an <code>s</code> line is mapped to a species of the tree by its full name or by the part in front of
+ * the first '.', e.g. <code>hg19.chr1</code> belongs to species <code>hg19</code>. The sequences of each block are
+ * ordered like the leafs of the tree, species missing in a block are filled with gaps, further rows of the same species
+ * and rows of species not in the tree are skipped. Symbols not contained in the alphabet (e.g. N) are read as gaps.
+ * Columns consisting only of gaps are removed. The first row of each block is the reference, its coordinates are kept
+ * for each column, see {@link Block#positions}.
+ */
+public class MafReader implements Closeable {
+
+	/** a block of the alignment file */
+	public static class Block {
+		/** the number of the block in the file, starting with 0 */
+		public final long index;
+		/** the alignment of the species of the tree */
+		public final MultiDimensionalDiscreteSequence alignment;
+		/** the source of the reference, i.e. of the first row of the block */
+		public final String reference;
+		/** the strand of the reference, '+' or '-' */
+		public final char strand;
+		/**
+		 * the coordinate of each column on the strand of the reference, i.e. the zero based position of the first
+		 * reference symbol at or behind the column
+		 */
+		public final int[] positions;
+
+		Block(long index, MultiDimensionalDiscreteSequence alignment, String reference, char strand, int[] positions) {
+			this.index = index;
+			this.alignment = alignment;
+			this.reference = reference;
+			this.strand = strand;
+			this.positions = positions;
+		}
+	}
+
+	private final String _dataFile;
+	private final HashMap<String, Integer> _speciesIndex;
+	private final AlphabetContainer _con;
+	/** the code of each byte, the gap for symbols not in the alphabet */
+	private final byte[] _codes = new byte[256];
+	private final byte _gap;
+	private final SequenceAnnotation[][] _annotation;
+
+	private final InputStream _in;
+	private final byte[] _buffer = new byte[1 << 16];
+	private int _pos, _limit;
+	private byte[] _line = new byte[1024];
+	private int _lineLength;
+	private final int[] _fields = new int[14];
+	private boolean _eof;
+	private long _blocks;
+
+	// buffers of the current block, one per species of the tree
+	private byte[][] _content;
+	private final boolean[] _seen;
+	private int[] _positions = new int[1024];
+
+	/** the next block, null at the end of the file */
+	private Block _next;
+
+	/**
+	 * @param dataFile
+	 *            the MAF file
+	 * @param newick
+	 *            the tree, its leafs determine the order of the sequences of each block
+	 * @param con
+	 *            the alphabet, must consist of one discrete alphabet with symbols of length 1 including the gap '-'
+	 */
+	public MafReader(String dataFile, String newick, AlphabetContainer con) throws IOException, WrongAlphabetException,
+			WrongLengthException, WrongSequenceTypeException {
+		this(dataFile, Util.getOrderedArrayListFromTree(newick), con);
+	}
+
+	public MafReader(String dataFile, List<String> speciesOrder, AlphabetContainer con) throws IOException,
+			WrongAlphabetException, WrongLengthException, WrongSequenceTypeException {
+		if (!con.isSimple() || !(con.getAlphabetAt(0) instanceof DiscreteAlphabet)
+				|| ((DiscreteAlphabet) con.getAlphabetAt(0)).getMaximalSymbolLength() != 1) {
+			throw new IllegalArgumentException("Only a discrete alphabet with symbols of length 1 can be read symbol by symbol.");
+		}
+		DiscreteAlphabet alphabet = (DiscreteAlphabet) con.getAlphabetAt(0);
+		_dataFile = dataFile;
+		_con = con;
+		_speciesIndex = new HashMap<String, Integer>();
+		_annotation = new SequenceAnnotation[speciesOrder.size()][];
+		for (int m = 0; m < speciesOrder.size(); m++) {
+			_speciesIndex.put(speciesOrder.get(m), m);
+			_annotation[m] = new SequenceAnnotation[] { new SequenceAnnotation("species", speciesOrder.get(m)) };
+		}
+
+		try {
+			_gap = (byte) alphabet.getCode("-");
+		} catch (WrongAlphabetException e) {
+			throw new IllegalArgumentException("The alphabet must contain the gap symbol '-'.");
+		}
+		for (int c = 0; c < _codes.length; c++) {
+			try {
+				// getCode ignores the case, so soft masked regions are read as well
+				_codes[c] = (byte) alphabet.getCode(String.valueOf((char) c));
+			} catch (WrongAlphabetException e) {
+				_codes[c] = _gap;
+			}
+		}
+		_content = new byte[speciesOrder.size()][1024];
+		_seen = new boolean[speciesOrder.size()];
+
+		_in = new FileInputStream(dataFile);
+		_next = readBlock();
+	}
+
+	/** @return true, if there is at least one more block */
+	public boolean hasNext() {
+		return _next != null;
+	}
+
+	/**
+	 * Reads the next block containing at least one column of a species of the tree.
+	 *
+	 * @return the next block or null at the end of the file
+	 */
+	public Block next() throws IOException, WrongAlphabetException, WrongLengthException, WrongSequenceTypeException {
+		Block block = _next;
+		if (block != null) {
+			_next = readBlock();
+		}
+		return block;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_in.close();
+	}
+
+	private Block readBlock() throws IOException, WrongAlphabetException, WrongLengthException, WrongSequenceTypeException {
+		while (readLine()) {
+			if (_lineLength == 0 || _line[0] != 'a' || (_lineLength > 1 && !isSpace(_line[1]))) {
+				continue;
+			}
+			Block block = readRows(_blocks++);
+			if (block != null) {
+				return block;
+			}
+		}
+		return null;
+	}
+
+	/** reads the rows of the block whose <code>a</code> line has just been read, null if no column remains */
+	private Block readRows(long index) throws IOException, WrongAlphabetException, WrongLengthException,
+			WrongSequenceTypeException {
+		Arrays.fill(_seen, false);
+		String reference = null;
+		char strand = '+';
+		int length = -1;
+		while (readLine() && _lineLength > 0) {
+			if (_line[0] != 's') {
+				continue;
+			}
+			// s src start size strand srcSize text, the start and end of each field
+			int n = 0;
+			for (int i = 0; i < _lineLength && n < _fields.length;) {
+				if (isSpace(_line[i])) {
+					i++;
+					continue;
+				}
+				_fields[n++] = i;
+				while (i < _lineLength && !isSpace(_line[i])) {
+					i++;
+				}
+				_fields[n++] = i;
+			}
+			if (n != _fields.length) {
+				throw new IOException("Malformed s line in block " + index + " of " + _dataFile + ".");
+			}
+			String src = new String(_line, _fields[2], _fields[3] - _fields[2], "ISO-8859-1");
+			int textStart = _fields[12], textLength = _fields[13] - _fields[12];
+			if (length < 0) {
+				length = textLength;
+				for (int m = 0; m < _content.length; m++) {
+					if (_content[m].length < length) {
+						_content[m] = new byte[Math.max(length, 2 * _content[m].length)];
+					}
+				}
+				if (_positions.length < length) {
+					_positions = new int[Math.max(length, 2 * _positions.length)];
+				}
+			} else if (textLength != length) {
+				throw new WrongLengthException("The rows of block " + index + " of " + _dataFile + " have different lengths.");
+			}
+			if (reference == null) {
+				reference = src;
+				strand = (char) _line[_fields[8]];
+				int position = Integer.parseInt(new String(_line, _fields[4], _fields[5] - _fields[4], "ISO-8859-1"));
+				for (int u = 0; u < length; u++) {
+					_positions[u] = position;
+					if (_line[textStart + u] != '-') {
+						position++;
+					}
+				}
+			}
+			Integer m = _speciesIndex.get(src);
+			if (m == null) {
+				int dot = src.indexOf('.');
+				m = dot < 0 ? null : _speciesIndex.get(src.substring(0, dot));
+			}
+			if (m == null || _seen[m]) {
+				continue;
+			}
+			_seen[m] = true;
+			byte[] content = _content[m];
+			for (int u = 0; u < length; u++) {
+				content[u] = _codes[_line[textStart + u] & 0xff];
+			}
+		}
+		if (length <= 0) {
+			return null;
+		}
+		for (int m = 0; m < _content.length; m++) {
+			if (!_seen[m]) {
+				Arrays.fill(_content[m], 0, length, _gap);
+			}
+		}
+
+		// remove the columns consisting only of gaps
+		int columns = 0;
+		for (int u = 0; u < length; u++) {
+			boolean gapsOnly = true;
+			for (int m = 0; m < _content.length && gapsOnly; m++) {
+				gapsOnly = _content[m][u] == _gap;
+			}
+			if (!gapsOnly) {
+				for (int m = 0; m < _content.length; m++) {
+					_content[m][columns] = _content[m][u];
+				}
+				_positions[columns++] = _positions[u];
+			}
+		}
+		if (columns == 0) {
+			return null;
+		}
+
+		SequenceAnnotation[] annotation = new SequenceAnnotation[] { new SequenceAnnotation("block", String.valueOf(index)),
+				new SequenceAnnotation("reference", reference) };
+		MultiDimensionalDiscreteSequence alignment;
+		long[] packed = PhyloSampleReader.PACK_ALIGNMENTS ? PackedAlignment.pack(_content, columns) : null;
+		if (packed != null) {
+			alignment = new PackedAlignment(annotation, _con, packed, _annotation);
+		} else {
+			SimpleDiscreteSequence[] rows = new SimpleDiscreteSequence[_content.length];
+			for (int m = 0; m < rows.length; m++) {
+				rows[m] = (SimpleDiscreteSequence) new ByteSequence(_con, Arrays.copyOf(_content[m], columns)).annotate(false, _annotation[m]);
+			}
+			alignment = new MultiDimensionalDiscreteSequence(annotation, rows);
+		}
+		return new Block(index, alignment, reference, strand, Arrays.copyOf(_positions, columns));
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	/** reads the next line into {@link #_line} without the line break, false at the end of the file */
+	private boolean readLine() throws IOException {
+		if (_eof) {
+			return false;
+		}
+		_lineLength = 0;
+		int b;
+		while ((b = read()) != -1 && b != '\n') {
+			if (b == '\r') {
+				continue;
+			}
+			if (_lineLength == _line.length) {
+				_line = Arrays.copyOf(_line, 2 * _lineLength);
+			}
+			_line[_lineLength++] = (byte) b;
+		}
+		if (b == -1) {
+			_eof = true;
+			return _lineLength > 0;
+		}
+		return true;
+	}
+
+	private int read() throws IOException {
+		if (_pos == _limit) {
+			_limit = _in.read(_buffer);
+			_pos = 0;
+			if (_limit <= 0) {
+				_limit = 0;
+				return -1;
+			}
+		}
+		return _buffer[_pos++] & 0xff;
+	}
+}
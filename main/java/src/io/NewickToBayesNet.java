@@ -5,6 +5,7 @@ import java.io.Reader;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,23 +20,21 @@ import bayesNet.BayesNetNode;
  */
 public class NewickToBayesNet {
 
-    private static String prefix;
-
     public static BayesNet getTree(String r, String name) {
         if (!r.endsWith(";")) {
             r += ";";
         }
-        prefix = name;
         StringReader sr = new StringReader(r);
         return getTree(sr, name);
     }
 
     public static BayesNet getTree(String r) {
-        prefix = "default";
         return getTree(r, "default");
     }
 
     public static BayesNet getTree(StringReader r, String name) {
+        // the prefix of all node names, a local variable so that trees can be read in parallel
+        String prefix = name;
         NewickStreamTokenizer st = new NewickStreamTokenizer(r);
         BayesNet t = new BayesNet(name);
         if (t.getRoot() == null) {
@@ -120,7 +119,7 @@ public class NewickToBayesNet {
                         break;
                     // Subtree wird geschlossen
                     case ')':
-                        setLabel(n, label, nhx);
+                        setLabel(n, label, nhx, prefix);
                         if (d != -1.0) {
                             n.setDistanceToParent(d);
                             d = -1.0;
@@ -130,7 +129,7 @@ public class NewickToBayesNet {
                         n = n.getParent(0);
                         break;
                     case ',':
-                        setLabel(n, label, nhx);
+                        setLabel(n, label, nhx, prefix);
                         if (d != -1.0) {
                             n.setDistanceToParent(d);
                             d = -1.0;
@@ -207,7 +206,55 @@ public class NewickToBayesNet {
         return t;
     }
 
-    private static void setLabel(BayesNetNode n, StringBuffer label, StringBuffer nhxB) {
+    /**
+     * Creates a copy of the structure of a tree created by {@link #getTree(String, String)}, as if the same newick
+     * string was parsed with the given name. The names of the nodes, their types, their branch lengths and the order of
+     * the children are preserved, parameters are not copied.
+     * 
+     * @param template
+     *            a tree created by {@link #getTree(String, String)}, edges to nodes of other trees are not copied
+     * @param name
+     *            the name of the copy, replaces the name of template in the names of all nodes
+     */
+    public static BayesNet copyTree(BayesNet template, String name) {
+        return copyTree(template, name, new HashMap<BayesNetNode, BayesNetNode>());
+    }
+
+    /**
+     * Creates a copy of the structure of the given tree, see {@link #copyTree(BayesNet, String)}. Edges to nodes of
+     * other trees are not copied.
+     * 
+     * @param copies
+     *            the copy of each node of template is added
+     */
+    public static BayesNet copyTree(BayesNet template, String name, Map<BayesNetNode, BayesNetNode> copies) {
+        String prefix = template.getName();
+        BayesNet t = new BayesNet(name);
+        for (BayesNetNode node : template.nodes) {
+            BayesNetNode c = new BayesNetNode(name + node.getName().substring(prefix.length()), t);
+            if (node == template.getRoot()) {
+                t.setRoot(c);
+            }
+            c.setRealName(prefix.equals(node.getRealName()) ? name : node.getRealName());
+            c.setDistanceToParent(node.getDistanceToParent());
+            if (node.props.isPhyloRoot()) {
+                c.props.setPhyloRoot();
+            } else if (node.props.isPhyloLeaf()) {
+                c.props.setPhyloLeaf();
+            }
+            copies.put(node, c);
+        }
+        for (BayesNetNode node : template.nodes) {
+            for (BayesNetNode child : node.children) {
+                if (template.nodes.contains(child)) {
+                    copies.get(node).addChild(copies.get(child));
+                }
+            }
+        }
+        return t;
+    }
+
+    private static void setLabel(BayesNetNode n, StringBuffer label, StringBuffer nhxB, String prefix) {
         if (nhxB.length() > 0) {
             String nhx = nhxB.substring(6);
             String[] tags = nhx.split(":");
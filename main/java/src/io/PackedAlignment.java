@@ -0,0 +1,228 @@
+package io;
+
+import java.nio.LongBuffer;
+
+import de.jstacs.WrongAlphabetException;
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.Sequence;
+import de.jstacs.data.WrongLengthException;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.data.sequences.SimpleDiscreteSequence;
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+
+/**
+ * A {@link MultiDimensionalDiscreteSequence} of up to {@link #MAX_SPECIES} species storing each column in one
+ * <code>long</code>. The symbol of species o is stored in the bits 2o and 2o+1, bit 32+o is set if the symbol can not be
+ * observed (gap or N, i.e. code >= {@link Alphabet#size}). For unobserved symbols the two bits hold code -
+ * {@link Alphabet#size}, so the alignment is stored without loss.
+ * <br>
+ * {@link MultiDimensionalDiscreteSequence#containerForPhyloBayes} is null for this class, the columns are read by
+ * {@link #getSymbol(MultiDimensionalDiscreteSequence, int, int)}. The sequences of the species are views of the packed
+ * columns, so a column needs 8 bytes instead of an <code>int[]</code> and one byte per species. The columns may be a
+ * view of a memory mapped file, see {@link BinaryDataSet}.
+ */
+public class PackedAlignment extends MultiDimensionalDiscreteSequence {
+
+    /** the maximal number of species of a packed alignment */
+    public static final int MAX_SPECIES = 16;
+
+    /** one word per column, see {@link PackedAlignment} */
+    private final LongBuffer columns;
+
+    /** the topology the branch lengths were set with, see {@link #getLearnedBranchLengths()} */
+    private String branchLengthsTopology;
+
+    /** the branch lengths of {@link #branchLengthsTopology} in the order of the newick string */
+    private double[] learnedBranchLengths;
+
+    /**
+     * @param annotation
+     *            the annotation of the alignment
+     * @param con
+     *            the alphabet of the sequences
+     * @param columns
+     *            the packed columns, see {@link #pack(byte[][], int)}
+     * @param annotations
+     *            the annotation of the sequence of each species
+     */
+    public PackedAlignment(SequenceAnnotation[] annotation, AlphabetContainer con, long[] columns,
+            SequenceAnnotation[][] annotations) throws WrongLengthException, WrongAlphabetException {
+        this(annotation, con, LongBuffer.wrap(columns), annotations);
+    }
+
+    /**
+     * @param columns
+     *            the packed columns from position 0 to the limit, the buffer is not copied
+     */
+    public PackedAlignment(SequenceAnnotation[] annotation, AlphabetContainer con, LongBuffer columns,
+            SequenceAnnotation[][] annotations) throws WrongLengthException, WrongAlphabetException {
+        super(annotation, getRows(con, columns, annotations));
+        this.columns = columns;
+        // the rows are empty during the construction, so the super constructor does not fill containerForPhyloBayes
+        for (Sequence<?> row : content) {
+            ((Row) row).length = columns.limit();
+        }
+        containerForPhyloBayes = null;
+    }
+
+    private static Row[] getRows(AlphabetContainer con, LongBuffer columns, SequenceAnnotation[][] annotations)
+            throws WrongAlphabetException {
+        if (annotations.length > MAX_SPECIES) {
+            throw new IllegalArgumentException("At most " + MAX_SPECIES + " species can be packed.");
+        }
+        Row[] rows = new Row[annotations.length];
+        for (int o = 0; o < rows.length; o++) {
+            rows[o] = new Row(con, annotations[o], columns, o);
+        }
+        return rows;
+    }
+
+    /**
+     * Packs the columns 0, ..., length - 1 of the given sequences.
+     *
+     * @param content
+     *            the codes of the symbols of each species
+     * @return the packed columns or null, if the species or the symbols can not be packed
+     */
+    public static long[] pack(byte[][] content, int length) {
+        if (content.length > MAX_SPECIES) {
+            return null;
+        }
+        long[] columns = new long[length];
+        for (int u = 0; u < length; u++) {
+            long column = 0;
+            for (int o = 0; o < content.length; o++) {
+                int code = content[o][u];
+                if (code >= Alphabet.size) {
+                    code -= Alphabet.size;
+                    column |= 1L << (32 + o);
+                }
+                if (code < 0 || code > 3) {
+                    return null;
+                }
+                column |= (long) code << (2 * o);
+            }
+            columns[u] = column;
+        }
+        return columns;
+    }
+
+    /** @return the packed column u, see {@link PackedAlignment} */
+    public long getColumn(int u) {
+        return columns.get(u);
+    }
+
+    /**
+     * @return the packed column u without the codes of the unobserved symbols. All unobserved symbols are identical
+     *         within this key, like in {@link ColumnPatterns}
+     */
+    public long getColumnKey(int u) {
+        long column = columns.get(u);
+        // spread the mask bits to the two bits of each symbol
+        long mask = column >>> 32;
+        mask = (mask | (mask << 8)) & 0x00FF00FFL;
+        mask = (mask | (mask << 4)) & 0x0F0F0F0FL;
+        mask = (mask | (mask << 2)) & 0x33333333L;
+        mask = (mask | (mask << 1)) & 0x55555555L;
+        return column & ~(mask | (mask << 1));
+    }
+
+    /**
+     * Sets {@link MultiDimensionalDiscreteSequence#learnedTopology} together with its branch lengths, so a model can use
+     * the branch lengths without parsing the newick string.
+     * 
+     * @param topology
+     *            the newick string
+     * @param branchLengths
+     *            the branch lengths of the newick string in the order they appear in it, not copied
+     */
+    public void setLearnedTopology(String topology, double[] branchLengths) {
+        learnedTopology = topology;
+        branchLengthsTopology = topology;
+        learnedBranchLengths = branchLengths;
+    }
+
+    /**
+     * @return the branch lengths of {@link MultiDimensionalDiscreteSequence#learnedTopology} in the order of the newick
+     *         string, or null if they were not set by {@link #setLearnedTopology(String, double[])} or the topology has
+     *         been replaced since
+     */
+    public double[] getLearnedBranchLengths() {
+        return learnedTopology != null && learnedTopology == branchLengthsTopology ? learnedBranchLengths : null;
+    }
+
+    /** @return the code of the symbol of species o in column u */
+    public int getSymbol(int u, int o) {
+        return unpack(columns.get(u), o);
+    }
+
+    private static int unpack(long column, int o) {
+        int code = (int) (column >>> (2 * o)) & 3;
+        return (column >>> (32 + o) & 1) == 0 ? code : Alphabet.size + code;
+    }
+
+    /**
+     * Reads the symbol of species o in column u of parent. Use this method instead of
+     * {@link MultiDimensionalDiscreteSequence#containerForPhyloBayes}, which is null for a {@link PackedAlignment}.
+     */
+    public static int getSymbol(MultiDimensionalDiscreteSequence parent, int u, int o) {
+        if (parent.containerForPhyloBayes != null) {
+            return parent.containerForPhyloBayes[u][o];
+        }
+        return ((PackedAlignment) parent).getSymbol(u, o);
+    }
+
+    // the signature is given by the raw MultiDimensionalDiscreteSequence of Jstacs
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected MultiDimensionalDiscreteSequence getInstance(SequenceAnnotation[] annotation, Sequence... seqs)
+            throws WrongLengthException, WrongAlphabetException {
+        boolean views = seqs.length == content.length;
+        for (int o = 0; o < seqs.length && views; o++) {
+            views = seqs[o] instanceof Row && ((Row) seqs[o]).columns == columns && ((Row) seqs[o]).species == o;
+        }
+        if (!views) {
+            return super.getInstance(annotation, seqs);
+        }
+        SequenceAnnotation[][] annotations = new SequenceAnnotation[seqs.length][];
+        for (int o = 0; o < seqs.length; o++) {
+            annotations[o] = seqs[o].getAnnotation();
+        }
+        return new PackedAlignment(annotation, getAlphabetContainer(), columns, annotations);
+    }
+
+    /** the sequence of one species, a view of the packed columns */
+    private static final class Row extends SimpleDiscreteSequence {
+        private final LongBuffer columns;
+        private final int species;
+        private int length;
+
+        Row(AlphabetContainer con, SequenceAnnotation[] annotation, LongBuffer columns, int species)
+                throws WrongAlphabetException {
+            super(con, annotation);
+            this.columns = columns;
+            this.species = species;
+        }
+
+        @Override
+        public int discreteVal(int u) {
+            return unpack(columns.get(u), species);
+        }
+
+        @Override
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        protected Row flatCloneWithoutAnnotation() {
+            try {
+                Row row = new Row(getAlphabetContainer(), null, columns, species);
+                row.length = length;
+                return row;
+            } catch (WrongAlphabetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -7,8 +7,13 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,6 +52,7 @@ public class PhyloSample extends Sample {
 	private static final String GENE_IDENT = "gene";
 
 	private final List<String> _species;
+	private double[] _weights;
 	
 	public PhyloSample(String annotation, MultiDimensionalDiscreteSequence[] sequences, List<String> species)
 	        throws EmptySampleException, WrongAlphabetException {
@@ -137,10 +143,26 @@ public class PhyloSample extends Sample {
 		return seqs;
 	}
 
+	/** @return the species of the alignments in the order of their sequences */
 	public List<String> getSpecies() {
-		for (int i = 0; i < getNumberOfElements(); i++) {
+		return _species;
+	}
+
+	/** @return the weight of each alignment, e.g. loaded by {@link BinaryDataSet}, null if there are no weights */
+	public double[] getWeights() {
+		return _weights;
+	}
+
+	/**
+	 * Sets the weight of each alignment, which is stored by {@link BinaryDataSet} and used by
+	 * {@link training.TrainingUtil#trainModel(de.jstacs.models.Model, Sample, double, int, double[])}. The weights are
+	 * copied to the samples of {@link #getSubSample(int, int)}, but not to other derived samples.
+	 */
+	public void setWeights(double[] weights) {
+		if (weights != null && weights.length != getNumberOfElements()) {
+			throw new IllegalArgumentException("The number of weights does not match the number of alignments.");
 		}
-		return null;
+		_weights = weights;
 	}
 
 	/** @return the number of organism */
@@ -234,39 +256,76 @@ public class PhyloSample extends Sample {
 		return refIds;
 	}
 
+	/** the maximal number of alignments whose branch lengths are learned in parallel by {@link #train} */
+	public static int THREADS = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * The method trains for each {@link MultiDimensionalDiscreteSequence} in the given sample the branch lengths of given baseTopology using
 	 * {@link PhyloBackground} of order 0. It stores the trained topology in the particular instance of {@link MultiDimensionalDiscreteSequence}.
+	 * <br>
+	 * First a background is trained on the whole sample. Then the alignments are distributed on up to {@link #THREADS}
+	 * workers, each working on its own copy of this background. Each alignment is trained starting from the parameters and
+	 * the topology of the whole sample, so the result does not depend on the number of threads or on the order of the
+	 * alignments.
 	 * 
 	 * @author Martin Nettling
 	 */
 	public static void train(PhyloSample sample, double weight, String baseTopology) throws Exception {
 		PhyloBackground bg = new PhyloBackground((byte) 0, baseTopology, sample.getAlphabetContainer());
-		PhyloBackground.ENABLE_CACHING = true;
-		PhyloBackground.EDGE_LEARNING = true;
-
-		double[] initialWeights = new double[sample.getNumberOfElements()];
-		for (int i = 0; i < sample.getNumberOfElements(); i++) {
-			initialWeights[i] = (1 - weight) / sample.getNumberOfElements();
-		}
+		bg.getContext().enableCaching = true;
+		bg.getContext().edgeLearning = 1;
 
 		for (int k = 0; k < 5; k++) {
 			bg.train(sample, null);
 		}
-		String globalTopology = bg.getBNH().getVirtualTree(0).getNewickString();
-		for (int i = 0; i < sample.getNumberOfElements(); i++) {
-			System.out.println("Optimizing alignment " + (i + 1) + " of " + sample.getNumberOfElements());
-			bg.reinitEdgelengths(baseTopology);
-			double[] weights = Arrays.copyOf(initialWeights, initialWeights.length);
-			weights[i] = weight;
-			Sample trainingSample = new Sample("SubSample " + i, sample.getElementAt(i));
-			bg.train(trainingSample, weights);
-			String topology = combineBranchLengths(bg.getBNH().getVirtualTree(0).getNewickString(), globalTopology, weight);
-			((MultiDimensionalDiscreteSequence) sample.getElementAt(i)).learnedTopology = topology;
-		}
+		final String globalTopology = bg.getBNH().getVirtualTree(0).getNewickString();
+		final double[][] globalCondProbs = bg.getCondProbs();
+
+		// one copy of the background per worker, the meanfields of an alignment are not needed after its training
+		final ThreadLocal<PhyloBackground> replicas = ThreadLocal.withInitial(() -> {
+			PhyloBackground replica;
+			synchronized (bg) {
+				replica = bg.clone();
+			}
+			replica.getContext().enableCaching = false;
+			return replica;
+		});
+
+		final int n = sample.getNumberOfElements();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, n)));
+		try {
+			long startTime = System.currentTimeMillis();
+			List<Future<?>> alignments = new ArrayList<Future<?>>(n);
+			for (int i = 0; i < n; i++) {
+				final MultiDimensionalDiscreteSequence alignment = (MultiDimensionalDiscreteSequence) sample.getElementAt(i);
+				final String name = "SubSample " + i;
+				alignments.add(executor.submit(() -> {
+					PhyloBackground replica = replicas.get();
+					replica.setCondProbs(globalCondProbs);
+					replica.reinitEdgelengths(globalTopology);
+					replica.train(new Sample(name, alignment), new double[] { weight });
+					String topology = replica.getBNH().getVirtualTree(0).getNewickString();
+					alignment.learnedTopology = combineBranchLengths(topology, globalTopology, weight);
+					return null;
+				}));
+			}
 
-		PhyloBackground.ENABLE_CACHING = false;
-		PhyloBackground.EDGE_LEARNING = false;
+			int step = Math.max(1, n / 100);
+			for (int i = 0; i < n; i++) {
+				try {
+					alignments.get(i).get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+				if ((i + 1) % step == 0 || i + 1 == n) {
+					double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+					System.out.println(String.format(Locale.US, "Optimized %d of %d alignments (%.2f alignments/s)", i + 1,
+							n, (i + 1) / seconds));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
 	/**
@@ -294,20 +353,16 @@ public class PhyloSample extends Sample {
 
 		Matcher m3 = p.matcher(newick1);
 		int last = 0;
-		String combined = "";
+		StringBuilder combined = new StringBuilder(newick1.length() + 16 * dl1.length());
 		int s = 0;
 		while (m3.find()) {
-			for (int i = last; i < m3.start(1); i++) {
-				combined += newick1.charAt(i);
-			}
-			combined += String.valueOf((dl1.get(s) * weight + dl2.get(s) * (1 - weight)));
+			combined.append(newick1, last, m3.start(1));
+			combined.append(dl1.get(s) * weight + dl2.get(s) * (1 - weight));
 			last = m3.end(1);
 			s++;
 		}
-		for (int i = last; i < newick1.length(); i++) {
-			combined += newick1.charAt(i);
-		}
-		return combined;
+		combined.append(newick1, last, newick1.length());
+		return combined.toString();
 	}
 
 	public static PhyloSample diff(PhyloSample data, PhyloSample... samples) throws EmptySampleException, WrongAlphabetException {
@@ -461,13 +516,19 @@ public class PhyloSample extends Sample {
 			idSet.add(i);
 		}
 		MultiDimensionalDiscreteSequence[] result = new MultiDimensionalDiscreteSequence[sequences];
+		double[] weights = _weights == null ? null : new double[sequences];
 		Random r = new Random(splitSeed);
 		for (int i = 0; i < sequences && idSet.size() > 0; i++) {
 			int element = r.nextInt(idSet.size());
 			result[i] = (MultiDimensionalDiscreteSequence) getElementAt(idSet.get(element));
+			if (weights != null) {
+				weights[i] = _weights[idSet.get(element)];
+			}
 			idSet.remove(element);
 		}
-		return new PhyloSample("Subsample of " + getAnnotation(), result, _species);
+		PhyloSample sample = new PhyloSample("Subsample of " + getAnnotation(), result, _species);
+		sample.setWeights(weights);
+		return sample;
 	}
 
 	public PhyloSample shuffle(String newick)
@@ -0,0 +1,406 @@
+package io;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import de.jstacs.WrongAlphabetException;
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.EmptySampleException;
+import de.jstacs.data.WrongLengthException;
+import de.jstacs.data.alphabets.DiscreteAlphabet;
+import de.jstacs.data.sequences.ByteSequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.data.sequences.SimpleDiscreteSequence;
+import de.jstacs.data.sequences.WrongSequenceTypeException;
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+import de.jstacs.data.sequences.annotation.SplitSequenceAnnotationParser;
+import util.Util;
+
+/**
+ * Reads the alignments of a fasta file alignment by alignment, so a data set has not to be kept in memory as a whole. The
+ * file has the format read by {@link SampleUtil#getDataSet(String, String, AlphabetContainer)}: each sequence is
+ * annotated by <code>gene=...; species=...;</code> and the sequences of one gene form one alignment. An alignment is
+ * returned as soon as its sequences of all species of the tree have been read. The sequences of one alignment should
+ * follow each other in the file, sequences of alignments interrupted by other genes are kept in memory until the
+ * alignment is complete. So in contrast to {@link PhyloSample#PhyloSample(de.jstacs.data.Sample, List)} the alignments
+ * are returned in the order of their completion.
+ * <br>
+ * The symbols are encoded byte by byte into reused buffers, no String is created for a sequence. The alignments are
+ * built in the same way as by {@link PhyloSample}, i.e. the sequences are ordered like the leafs of the tree, sequences
+ * of species not in the tree are skipped and columns consisting only of gaps are removed. If possible, the alignments
+ * are stored as {@link PackedAlignment}s.
+ * <br>
+ * {@link SampleUtil#getDataSet(String, String, AlphabetContainer)} still collects all alignments of the file, see there
+ * why the training and classification tools do not read batches.
+ */
+public class PhyloSampleReader implements Closeable {
+
+	/** if true, alignments of up to {@link PackedAlignment#MAX_SPECIES} species are read as {@link PackedAlignment}s */
+	public static boolean PACK_ALIGNMENTS = true;
+
+	private static final String SPECIES_IDENT = "species";
+	private static final String GENE_IDENT = "gene";
+
+	private final String _dataFile;
+	private final List<String> _species;
+	private final HashMap<String, Integer> _speciesIndex;
+	private final AlphabetContainer _con;
+	/** the code of each byte, -1 if it is no symbol of the alphabet */
+	private final byte[] _codes = new byte[256];
+	/** the code of the gap symbol, -1 if the alphabet has no gap */
+	private final int _gap;
+
+	private final InputStream _in;
+	private final byte[] _buffer = new byte[1 << 16];
+	private int _pos, _limit;
+
+	private final SplitSequenceAnnotationParser _parser = new SplitSequenceAnnotationParser("=", ";");
+	/** the header of the next sequence, null at the end of the file */
+	private String _header;
+	private int _record = -1;
+
+	/** the sequences of incomplete alignments whose sequences are interrupted by other genes */
+	private final LinkedHashMap<String, Pending> _pending = new LinkedHashMap<String, Pending>();
+
+	// buffers of the current alignment, one per species of the tree
+	private byte[][] _content;
+	private int[] _length;
+	private final SequenceAnnotation[][] _annotation;
+	private final int[] _reference;
+
+	/**
+	 * @param dataFile
+	 *            the fasta file
+	 * @param newick
+	 *            the tree, its leafs determine the order of the sequences of each alignment
+	 * @param con
+	 *            the alphabet, must consist of one discrete alphabet with symbols of length 1
+	 */
+	public PhyloSampleReader(String dataFile, String newick, AlphabetContainer con) throws IOException, WrongAlphabetException {
+		this(dataFile, Util.getOrderedArrayListFromTree(newick), con);
+	}
+
+	public PhyloSampleReader(String dataFile, List<String> speciesOrder, AlphabetContainer con) throws IOException, WrongAlphabetException {
+		if (!con.isSimple() || !(con.getAlphabetAt(0) instanceof DiscreteAlphabet)
+				|| ((DiscreteAlphabet) con.getAlphabetAt(0)).getMaximalSymbolLength() != 1) {
+			throw new IllegalArgumentException("Only a discrete alphabet with symbols of length 1 can be read symbol by symbol.");
+		}
+		_dataFile = dataFile;
+		_species = speciesOrder;
+		_con = con;
+		_speciesIndex = new HashMap<String, Integer>();
+		for (int m = 0; m < speciesOrder.size(); m++) {
+			_speciesIndex.put(speciesOrder.get(m), m);
+		}
+
+		DiscreteAlphabet alphabet = (DiscreteAlphabet) con.getAlphabetAt(0);
+		for (int c = 0; c < _codes.length; c++) {
+			_codes[c] = (byte) getCode(alphabet, String.valueOf((char) c));
+		}
+		_gap = getCode(alphabet, "-");
+
+		_content = new byte[speciesOrder.size()][1024];
+		_length = new int[speciesOrder.size()];
+		_annotation = new SequenceAnnotation[speciesOrder.size()][];
+		_reference = new int[speciesOrder.size()];
+
+		_in = new FileInputStream(dataFile);
+		// skip everything in front of the first header
+		int b = read();
+		while (b != -1 && b != '>') {
+			b = skipLine();
+		}
+		_header = b == -1 ? null : readHeader();
+	}
+
+	/** @return true, if there is at least one more alignment */
+	public boolean hasNext() {
+		return _header != null || !_pending.isEmpty();
+	}
+
+	/**
+	 * Reads the next alignment.
+	 *
+	 * @return the next alignment or null at the end of the file
+	 * @throws IOException
+	 *             if an alignment misses a species of the tree or contains a species twice
+	 */
+	public MultiDimensionalDiscreteSequence next() throws IOException, WrongAlphabetException, WrongLengthException,
+			WrongSequenceTypeException {
+		while (_header != null) {
+			String gene = readGene();
+			if (complete(gene)) {
+				return createAlignment(gene);
+			}
+		}
+		if (!_pending.isEmpty()) {
+			// the remaining alignments miss a species, complete reports the first one
+			Arrays.fill(_annotation, null);
+			complete(_pending.keySet().iterator().next());
+		}
+		return null;
+	}
+
+	/** reads the sequences up to the next header of another gene into the buffers and returns the gene */
+	private String readGene() throws IOException, WrongAlphabetException {
+		Arrays.fill(_annotation, null);
+		String gene = null;
+		while (_header != null) {
+			_parser.clearAnnotation();
+			_parser.addToAnnotation(_header);
+			SequenceAnnotation[] annotation = _parser.getCurrentAnnotation();
+			String g = getIdentifier(annotation, GENE_IDENT);
+			if (gene == null) {
+				gene = g;
+			} else if (!gene.equals(g)) {
+				break;
+			}
+			_record++;
+			Integer m = _speciesIndex.get(getIdentifier(annotation, SPECIES_IDENT));
+			if (m == null) {
+				// species not in the tree
+				readSequence(-1);
+			} else {
+				if (_annotation[m] != null) {
+					throw new IOException("Alignment " + gene + " contains species " + _species.get(m) + " twice.");
+				}
+				_annotation[m] = annotation;
+				_reference[m] = _record;
+				readSequence(m);
+			}
+		}
+		return gene;
+	}
+
+	/**
+	 * Adds the sequences of gene read before to the buffers. If the alignment is still incomplete, the buffers are kept
+	 * in {@link #_pending} until the remaining sequences are read.
+	 *
+	 * @return true, if the buffers contain all species of the tree, false if the alignment is incomplete or the
+	 *         sequences contain no species of the tree
+	 * @throws IOException
+	 *             if a species is contained twice or, at the end of the file, is missing
+	 */
+	private boolean complete(String gene) throws IOException {
+		Pending pending = _pending.remove(gene);
+		if (pending != null) {
+			for (int m = 0; m < _species.size(); m++) {
+				if (pending.annotation[m] == null) {
+					continue;
+				}
+				if (_annotation[m] != null) {
+					throw new IOException("Alignment " + gene + " contains species " + _species.get(m) + " twice.");
+				}
+				_length[m] = pending.content[m].length;
+				if (_content[m].length < _length[m]) {
+					_content[m] = new byte[_length[m]];
+				}
+				System.arraycopy(pending.content[m], 0, _content[m], 0, _length[m]);
+				_annotation[m] = pending.annotation[m];
+				_reference[m] = pending.reference[m];
+			}
+		}
+		int found = 0;
+		for (int m = 0; m < _species.size(); m++) {
+			if (_annotation[m] != null) {
+				found++;
+			}
+		}
+		if (found == 0) {
+			// only species not in the tree, e.g. behind the complete alignment
+			return false;
+		}
+		for (int m = 0; m < _species.size(); m++) {
+			if (_annotation[m] == null) {
+				if (_header == null) {
+					throw new IOException("A species-name (" + _species.get(m) + ") exisiting in the tree does not exist in alignment " + gene + ".");
+				}
+				_pending.put(gene, new Pending());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** builds the alignment of gene from the buffers */
+	private MultiDimensionalDiscreteSequence createAlignment(String gene) throws IOException, WrongLengthException,
+			WrongAlphabetException, WrongSequenceTypeException {
+		for (int m = 0; m < _species.size(); m++) {
+			if (_length[m] != _length[0]) {
+				throw new WrongLengthException("The sequences of alignment " + gene + " have different lengths.");
+			}
+		}
+		int length = removeGapColumns();
+
+		StringBuilder id = new StringBuilder("(");
+		StringBuilder refId = new StringBuilder("(");
+		for (int m = 0; m < _species.size(); m++) {
+			if (m > 0) {
+				id.append(", ");
+				refId.append(", ");
+			}
+			id.append(getIdentifier(_annotation[m], SPECIES_IDENT));
+			refId.append(_reference[m]);
+		}
+		SequenceAnnotation[] seqAn = new SequenceAnnotation[] { new SequenceAnnotation(GENE_IDENT, gene),
+				new SequenceAnnotation(SPECIES_IDENT, id.append(")").toString()),
+				new SequenceAnnotation("SampleReference", refId.append(")").toString()) };
+
+		long[] columns = PACK_ALIGNMENTS ? PackedAlignment.pack(_content, length) : null;
+		if (columns != null) {
+			return new PackedAlignment(seqAn, _con, columns, _annotation);
+		}
+		SimpleDiscreteSequence[] content = new SimpleDiscreteSequence[_species.size()];
+		for (int m = 0; m < content.length; m++) {
+			content[m] = (SimpleDiscreteSequence) new ByteSequence(_con, Arrays.copyOf(_content[m], length)).annotate(false, _annotation[m]);
+		}
+		return new MultiDimensionalDiscreteSequence(seqAn, content);
+	}
+
+	/**
+	 * Reads the next alignments into a {@link PhyloSample}.
+	 *
+	 * @param maxAlignments
+	 *            the maximal number of alignments of the batch
+	 * @return the batch or null at the end of the file
+	 */
+	public PhyloSample nextBatch(int maxAlignments) throws IOException, WrongAlphabetException, WrongLengthException,
+			WrongSequenceTypeException, EmptySampleException {
+		ArrayList<MultiDimensionalDiscreteSequence> batch = new ArrayList<MultiDimensionalDiscreteSequence>();
+		MultiDimensionalDiscreteSequence alignment;
+		while (batch.size() < maxAlignments && (alignment = next()) != null) {
+			batch.add(alignment);
+		}
+		if (batch.isEmpty()) {
+			return null;
+		}
+		return new PhyloSample("multi-dimensional sample of " + _dataFile, batch.toArray(new MultiDimensionalDiscreteSequence[0]), _species);
+	}
+
+	@Override
+	public void close() throws IOException {
+		_in.close();
+	}
+
+	/** the sequences of an incomplete alignment, copied from the buffers */
+	private class Pending {
+		final byte[][] content = new byte[_species.size()][];
+		final SequenceAnnotation[][] annotation = _annotation.clone();
+		final int[] reference = _reference.clone();
+
+		Pending() {
+			for (int m = 0; m < content.length; m++) {
+				if (annotation[m] != null) {
+					content[m] = Arrays.copyOf(_content[m], _length[m]);
+				}
+			}
+		}
+	}
+
+	/** @return the code of the symbol, -1 if it is no symbol of the alphabet */
+	private static int getCode(DiscreteAlphabet alphabet, String symbol) {
+		try {
+			// getCode ignores the case, if the alphabet does so
+			return alphabet.getCode(symbol);
+		} catch (WrongAlphabetException e) {
+			return -1;
+		}
+	}
+
+	private static String getIdentifier(SequenceAnnotation[] annotation, String type) throws IOException {
+		for (SequenceAnnotation a : annotation) {
+			if (a.getType().equals(type)) {
+				return a.getIdentifier();
+			}
+		}
+		throw new IOException("Sequence without annotation " + type + ".");
+	}
+
+	/** removes the columns consisting only of gaps from the buffers and returns the new length */
+	private int removeGapColumns() {
+		int length = 0;
+		for (int u = 0; u < _length[0]; u++) {
+			boolean gapsOnly = _gap >= 0;
+			for (int m = 0; m < _content.length && gapsOnly; m++) {
+				gapsOnly = _content[m][u] == _gap;
+			}
+			if (!gapsOnly) {
+				for (int m = 0; m < _content.length; m++) {
+					_content[m][length] = _content[m][u];
+				}
+				length++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encodes the lines up to the next header into the buffer of species m, or skips them if m is -1. Afterwards
+	 * {@link #_header} is the next header.
+	 */
+	private void readSequence(int m) throws IOException, WrongAlphabetException {
+		int length = 0;
+		boolean lineStart = true;
+		int b;
+		while ((b = read()) != -1) {
+			if (b == '>' && lineStart) {
+				break;
+			}
+			lineStart = b == '\n';
+			if (b == '\n' || b == '\r' || b == ' ' || b == '\t' || m < 0) {
+				continue;
+			}
+			byte code = _codes[b];
+			if (code < 0) {
+				throw new WrongAlphabetException("Unknown symbol '" + (char) b + "' in sequence " + _record + " of " + _dataFile + ".");
+			}
+			if (length == _content[m].length) {
+				_content[m] = Arrays.copyOf(_content[m], 2 * length);
+			}
+			_content[m][length++] = code;
+		}
+		_header = b == -1 ? null : readHeader();
+		if (m >= 0) {
+			_length[m] = length;
+		}
+	}
+
+	/** reads the rest of the header line, the leading '&gt;' is already read */
+	private String readHeader() throws IOException {
+		StringBuilder sb = new StringBuilder(">");
+		int b;
+		while ((b = read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				sb.append((char) b);
+			}
+		}
+		return sb.toString();
+	}
+
+	/** skips the rest of the line and returns the first byte of the next line */
+	private int skipLine() throws IOException {
+		int b;
+		while ((b = read()) != -1 && b != '\n') {
+		}
+		return b == -1 ? -1 : read();
+	}
+
+	private int read() throws IOException {
+		if (_pos == _limit) {
+			_limit = _in.read(_buffer);
+			_pos = 0;
+			if (_limit <= 0) {
+				_limit = 0;
+				return -1;
+			}
+		}
+		return _buffer[_pos++] & 0xff;
+	}
+}
@@ -4,6 +4,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Random;
 import java.util.logging.Logger;
@@ -23,6 +25,7 @@ import de.jstacs.data.sequences.annotation.SequenceAnnotation;
 import de.jstacs.data.sequences.annotation.SplitSequenceAnnotationParser;
 import de.jstacs.io.SparseStringExtractor;
 import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
+import de.jstacs.utils.ToolBox;
 import util.Config;
 import util.Util;
 
@@ -48,7 +51,16 @@ public class SampleUtil {
     }
 
     /**
-     * This method loads a {@link PhyloSample} from the given dataFile and returns it.
+     * This method loads a {@link PhyloSample} from the given dataFile and returns it. The alignments are read one by one
+     * by a {@link PhyloSampleReader}, so the sequences of one alignment should follow each other in the file. Use
+     * {@link PhyloSampleReader#nextBatch(int)} directly, if the data set does not fit into memory. Files converted by
+     * {@link BinaryDataSet} are mapped into memory instead.
+     * <br>
+     * All alignments are kept in memory, as the training and classification tools need the whole data set: the splits
+     * by a seed index all alignments in the order of their genes, the models are trained by several passes over the
+     * training data and the classifiers of Jstacs evaluate whole samples. Only {@link tools.ShufflePhyloSample} reads
+     * batches. For large data sets, the alignments should be {@link PackedAlignment}s or converted by
+     * {@link BinaryDataSet}.
      * 
      * @param dataFile
      * @param newick
@@ -59,10 +71,30 @@ public class SampleUtil {
             throws EmptySampleException, WrongAlphabetException, WrongLengthException, IOException,
             WrongSequenceTypeException {
         ArrayList<String> speciesOrder = Util.getOrderedArrayListFromTree(newick);
-        SplitSequenceAnnotationParser parser = new SplitSequenceAnnotationParser("=", ";");
-        Sample rawDataFGtrain = new Sample(con, new SparseStringExtractor(dataFile, '>', parser));
-		PhyloSample sampleTrainFG = new PhyloSample(rawDataFGtrain, speciesOrder);
-        return sampleTrainFG;
+        if (BinaryDataSet.isBinary(dataFile)) {
+            PhyloSample sample = BinaryDataSet.load(dataFile);
+            if (!sample.getSpecies().equals(speciesOrder)
+                    || !sample.getAlphabetContainer().toXML().toString().equals(con.toXML().toString())) {
+                throw new IOException("The species or the alphabet of " + dataFile + " do not match the tree or the alphabet.");
+            }
+            return sample;
+        }
+        ArrayList<MultiDimensionalDiscreteSequence> alignments = new ArrayList<MultiDimensionalDiscreteSequence>();
+        HashSet<String> genes = new HashSet<String>();
+        try (PhyloSampleReader reader = new PhyloSampleReader(dataFile, speciesOrder, con)) {
+            while (reader.hasNext()) {
+                MultiDimensionalDiscreteSequence alignment = reader.next();
+                alignments.add(alignment);
+                genes.add(alignment.getSequenceAnnotationByType("gene", 0).getIdentifier());
+            }
+        }
+        // same order of the alignments as in PhyloSample(Sample, List), so the splits by a seed do not change
+        Hashtable<String, Integer> index = ToolBox.parseHashSet2IndexHashtable(genes);
+        MultiDimensionalDiscreteSequence[] seqs = new MultiDimensionalDiscreteSequence[alignments.size()];
+        for (MultiDimensionalDiscreteSequence alignment : alignments) {
+            seqs[index.get(alignment.getSequenceAnnotationByType("gene", 0).getIdentifier())] = alignment;
+        }
+        return new PhyloSample("multi-dimensional sample of " + dataFile, seqs, speciesOrder);
     }
 
     /**
@@ -114,20 +146,10 @@ public class SampleUtil {
             AlphabetContainer con, String newick) throws EmptySampleException, WrongAlphabetException,
             WrongLengthException, IOException, WrongSequenceTypeException {
 		LOGGER.info("Loading without splitting from fg.train, fg.test, bg.train, bg.test file");
-        ArrayList<String> speciesOrder = Util.getOrderedArrayListFromTree(newick);
-        SplitSequenceAnnotationParser parser = new SplitSequenceAnnotationParser("=", ";");
-
-        Sample rawDataFGtrain = new Sample(con, new SparseStringExtractor(dataFileFGtrain, '>', parser));
-		PhyloSample sampleTrainFG = new PhyloSample(rawDataFGtrain, speciesOrder);
-
-        Sample rawDataFGtest = new Sample(con, new SparseStringExtractor(dataFileFGtest, '>', parser));
-		PhyloSample sampleTestFG = new PhyloSample(rawDataFGtest, speciesOrder);
-
-        Sample rawDataBGtrain = new Sample(con, new SparseStringExtractor(dataFileBGtrain, '>', parser));
-		PhyloSample sampleTrainBG = new PhyloSample(rawDataBGtrain, speciesOrder);
-
-        Sample rawDataBGtest = new Sample(con, new SparseStringExtractor(dataFileBGtest, '>', parser));
-		PhyloSample sampleTestBG = new PhyloSample(rawDataBGtest, speciesOrder);
+		PhyloSample sampleTrainFG = getDataSet(dataFileFGtrain, newick, con);
+		PhyloSample sampleTestFG = getDataSet(dataFileFGtest, newick, con);
+		PhyloSample sampleTrainBG = getDataSet(dataFileBGtrain, newick, con);
+		PhyloSample sampleTestBG = getDataSet(dataFileBGtest, newick, con);
 
 		return new PhyloSample[] { sampleTrainFG, sampleTestFG, sampleTrainBG, sampleTestBG };
     }
@@ -13,6 +13,9 @@ public abstract class AbstractAlignmentBasedModel extends PhyloPreparedAbstractM
     protected double[][] condProb;
     protected int[] pows;
 
+    /** incremented whenever the parameters are changed, see {@link #getVersion()} */
+    protected long version;
+
     /**
      * @param alphabets
      * @param order
@@ -30,6 +33,15 @@ public abstract class AbstractAlignmentBasedModel extends PhyloPreparedAbstractM
         super(xml);
     }
 
+    /**
+     * Returns the version of the parameters. The version changes whenever the parameters are set or trained by this
+     * model. Changes made directly to the arrays returned by {@link #getCondProbs()} or {@link #getLnCondProbs()} are
+     * not recognized.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     protected final void initPows() {
         pows = new int[order + 1];
         pows[0] = 1;
@@ -69,6 +81,7 @@ public abstract class AbstractAlignmentBasedModel extends PhyloPreparedAbstractM
             for (int a = 0; a < lambda.length; a++) {
                 this.condProb[position][a] = Math.exp(lambda[a]);
             }
+            version++;
         }
     }
 
@@ -85,6 +98,7 @@ public abstract class AbstractAlignmentBasedModel extends PhyloPreparedAbstractM
             for (int a = 0; a < condProb.length; a++) {
                 this.lnCondProb[position][a] = Math.log(condProb[a]);
             }
+            version++;
         }
     }
 
@@ -130,5 +144,6 @@ public abstract class AbstractAlignmentBasedModel extends PhyloPreparedAbstractM
                 lnCondProb[i][j] = Math.log(condProb[i][j]);
             }
         }
+        version++;
     }
 }
@@ -1,39 +1,58 @@
 package models;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.WeakHashMap;
 
 import algorithm.MeanFieldForBayesNet;
 import bayesNet.BayesNet;
 import bayesNet.BayesNetHandler;
 import bayesNet.CPF;
+import bayesNet.CompiledBayesNet;
 import bayesNet.VirtualTree;
 import de.jstacs.NonParsableException;
 import de.jstacs.data.AlphabetContainer;
 import de.jstacs.data.Sample;
 import de.jstacs.data.Sequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
 import evolution.EvolModel;
 import io.Alphabet;
+import io.PackedAlignment;
 import util.MatrixLinearisation;
 import util.Util;
 
 public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
     /**
      * false = Each branch is learned independently
-     * true = all branch lengths will have the same length
+     * true = all branch lengths will have the same length<br>
+     * default of {@link ModelContext#edgeLearningOneLength} for new models
      */
     public static boolean EDGE_LEARNING_ONE_LENGTH = false;
 
     /**
-     * indicates to cache the calculated MeanFieldForBayesNet-Objects. This brings performance much performance but it
-     * needs also much memory. So enable this for "small" Training-sets
+     * indicates to cache the calculated MeanFieldForBayesNet-Objects. This brings much performance, the memory is
+     * limited by {@link #MF_CACHE_MEMORY}. Default of {@link ModelContext#enableCaching} for new models
      */
     public static boolean ENABLE_CACHING = true;
 
+    /** the memory budget in bytes for the cached MeanFieldForBayesNet-Objects of each model */
+    public static long MF_CACHE_MEMORY = 256L << 20;
+
     /** a handler for the underlying bayesnet */
     protected BayesNetHandler bnh;
 
-    transient private HashMap<Sequence<?>, MeanFieldForBayesNet> mfCache = new HashMap<Sequence<?>, MeanFieldForBayesNet>();
+    transient private MeanFieldCache mfCache = new MeanFieldCache(MF_CACHE_MEMORY);
+
+    /**
+     * the runtime settings of this model, created by {@link #createContext()} on first use. No initializer, as
+     * {@link #fromXML(StringBuffer)} is called by the super constructor
+     */
+    transient private ModelContext context;
+
+    /** the parsed branch lengths of the topologies used by {@link #getNetForTopology(String)} */
+    transient private WeakHashMap<String, double[]> parsedTopologies;
+
+    /** the copy of the net of each thread used by {@link #getNetForTopology(String)} */
+    transient private final ThreadLocal<ScratchNet> scratchNets = new ThreadLocal<ScratchNet>();
 
     /**
      * @param alphabets
@@ -63,6 +82,27 @@ public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
         train(data, weights);
     }
 
+    /** @return the runtime settings of this model, shared with the underlying {@link BayesNetHandler} */
+    public ModelContext getContext() {
+        if (context == null) {
+            setContext(createContext());
+        }
+        return context;
+    }
+
+    /** sets the runtime settings of this model and of the underlying {@link BayesNetHandler} */
+    public void setContext(ModelContext context) {
+        this.context = context;
+        if (bnh != null) {
+            bnh.setContext(context);
+        }
+    }
+
+    /** @return a new context initialised with the static defaults of this model class */
+    protected ModelContext createContext() {
+        return new ModelContext();
+    }
+
     /** @return Pointer to the used {@link BayesNet} */
     public BayesNetHandler getBNH() {
         return bnh;
@@ -81,7 +121,7 @@ public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
             throw new IllegalArgumentException("The number of given trees must be equal to length of this model");
         }
         if (trees.length == 1) {
-            for (int i = 0; i <= (this.getLength() == 0 ? order : this.getLength() - 1); i++) {
+            for (int i = 0; i <= getLastTree(); i++) {
                 bnh.getVirtualTree(i).reinitEdglengths(trees[0]);
             }
         } else {
@@ -91,33 +131,169 @@ public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
         }
     }
 
+    /** @return the index of the last virtual tree used by this model */
+    private int getLastTree() {
+        return this.getLength() == 0 ? order : this.getLength() - 1;
+    }
+
     /**
-     * handles the cache for all Meanfieldcalculations
+     * Returns a net with the parameters of this model and the branch lengths of the given topology at each position,
+     * e.g. the topology learned for an alignment
+     * ({@link de.jstacs.data.sequences.MultiDimensionalDiscreteSequence#learnedTopology}). The net of this model is not
+     * changed, so {@link #getParameterVersion()} stays the same and scores cached for a topology have to be tagged with
+     * it. The newick string is only parsed on the first call with this topology.
+     * <p>
+     * For a topology, the branch lengths are set in a copy of the net kept by the current thread, which is only copied
+     * again if the structure of the net changes. The caller has to restore the branch lengths of this model by
+     * {@link #releaseNet(BayesNetHandler)} when the net is no longer used.
+     * 
+     * @param topology
+     *            the topology, null for the net of this model
+     * @return the net of this model, if topology is null, and the copy of the current thread otherwise
+     */
+    protected BayesNetHandler getNetForTopology(String topology) {
+        if (topology == null) {
+            return bnh;
+        }
+        return getNetForBranchLengths(getBranchLengths(topology));
+    }
+
+    /**
+     * Returns the net for the learned topology of the given alignment like {@link #getNetForTopology(String)}. The branch
+     * lengths of a {@link PackedAlignment} loaded by {@link io.BinaryDataSet} are used directly instead of parsing the
+     * newick string.
      * 
-     * @throws Exception
+     * @param alignment
+     *            the alignment, its {@link MultiDimensionalDiscreteSequence#learnedTopology} may be null
+     */
+    protected BayesNetHandler getNetForAlignment(MultiDimensionalDiscreteSequence alignment) {
+        double[] branchLengths = alignment instanceof PackedAlignment
+                ? ((PackedAlignment) alignment).getLearnedBranchLengths() : null;
+        if (branchLengths == null) {
+            return getNetForTopology(alignment.learnedTopology);
+        }
+        return getNetForBranchLengths(bnh.getVirtualTree(0).orderBranchLengths(branchLengths));
+    }
+
+    /** @return the branch lengths of the given topology, parsed on the first call */
+    private double[] getBranchLengths(String topology) {
+        double[] lengths;
+        synchronized (this) {
+            if (parsedTopologies == null) {
+                parsedTopologies = new WeakHashMap<String, double[]>();
+            }
+            lengths = parsedTopologies.get(topology);
+            if (lengths == null) {
+                lengths = bnh.getVirtualTree(0).parseBranchLengths(topology);
+                parsedTopologies.put(topology, lengths);
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the copy of the net of the current thread with the given branch lengths at each position, see
+     * {@link #getNetForTopology(String)}.
+     * 
+     * @param lengths
+     *            the branch lengths in the order of {@link VirtualTree#getBranchLengths()}
+     */
+    protected BayesNetHandler getNetForBranchLengths(double[] lengths) {
+        BayesNetHandler net = getScratchNet().net;
+        for (int i = 0; i <= getLastTree(); i++) {
+            net.getVirtualTree(i).setBranchLengths(lengths);
+        }
+        return net;
+    }
+
+    /** restores the branch lengths of this model in a net returned by {@link #getNetForTopology(String)} */
+    protected void releaseNet(BayesNetHandler net) {
+        if (net != bnh) {
+            ScratchNet scratch = scratchNets.get();
+            for (int i = 0; i <= getLastTree(); i++) {
+                net.getVirtualTree(i).setBranchLengths(scratch.lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the copy of the net of the current thread. It is copied on the first call of a thread and after a change
+     *         of the structure, after a change of the parameters the evolutionary models and branch lengths are set
+     */
+    private ScratchNet getScratchNet() {
+        ScratchNet scratch = scratchNets.get();
+        CompiledBayesNet compiledNet = bnh.getCompiledNet();
+        if (scratch == null || scratch.compiledNet != compiledNet) {
+            scratch = new ScratchNet();
+            scratch.compiledNet = compiledNet;
+            scratch.version = getParameterVersion();
+            scratch.lengths = bnh.getBranchLengths();
+            scratch.net = bnh.copy();
+            scratchNets.set(scratch);
+        } else if (scratch.version != getParameterVersion()) {
+            scratch.version = getParameterVersion();
+            scratch.lengths = bnh.getBranchLengths();
+            for (int i = 0; i < bnh.motifLength; i++) {
+                VirtualTree vt = scratch.net.getVirtualTree(i);
+                vt.TEMPERATURE = bnh.getVirtualTree(i).TEMPERATURE;
+                vt.setEvolModel(bnh.getVirtualTree(i).getEvolModel().copy());
+                vt.setBranchLengths(scratch.lengths[i]);
+            }
+        }
+        if (scratch.net.getContext() != getContext()) {
+            scratch.net.setContext(getContext());
+        }
+        return scratch;
+    }
+
+    /** a copy of the net of this model, see {@link AbstractPhyloModel#getNetForTopology(String)} */
+    private static class ScratchNet {
+        BayesNetHandler net;
+        /** the state of the net of this model the copy was made of */
+        CompiledBayesNet compiledNet;
+        long version;
+        /** the branch lengths of each tree of this model */
+        double[][] lengths;
+    }
+
+    /**
+     * handles the cache for all Meanfieldcalculations
      */
     @SuppressWarnings({ "unchecked", "rawtypes" })
     protected MeanFieldForBayesNet getMFfromCache(Sequence sequence) {
         MeanFieldForBayesNet tmpPointer;
         // if caching is not enabled, always instantiate new MeanField
-        if (!ENABLE_CACHING) {
+        if (!getContext().enableCaching) {
             tmpPointer = new MeanFieldForBayesNet(bnh, sequence);
             tmpPointer.initObservation();
             tmpPointer.init();
             return tmpPointer;
         } else {
-            if (!mfCache.containsKey(sequence.hashCode())) {
+            tmpPointer = mfCache.get(sequence);
+            if (tmpPointer == null) {
                 tmpPointer = new MeanFieldForBayesNet(bnh, sequence);
                 tmpPointer.initObservation();
                 tmpPointer.init();
                 mfCache.put(sequence, tmpPointer);
             }
-            tmpPointer = mfCache.get(sequence);
             tmpPointer.initObservation();
             return tmpPointer;
         }
     }
 
+    /** @return the cache of the MeanFieldForBayesNet-Objects of this model */
+    public MeanFieldCache getMFCache() {
+        return mfCache;
+    }
+
+    /**
+     * @return the version of the parameters, which changes whenever a {@link CPF} changes, see
+     *         {@link BayesNetHandler#getParameterVersion()}
+     */
+    protected long getParameterVersion() {
+        return bnh.getParameterVersion();
+    }
+
     @Override
     public void setLnCondProb(double[] lambda, int position) {
         double[] condProb = new double[lambda.length];
@@ -129,7 +305,7 @@ public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
 
     @Override
     public void setCondProb(double[] condProb, int position) {
-        MatrixLinearisation.fillMatrix(condProb, getBNH().getVirtualTree(position).getEvolModel().getStatDistr());
+        getBNH().getVirtualTree(position).getEvolModel().fillStatDistr(condProb);
         getBNH().getVirtualTree(position).initParametersFromGF();
     }
 
@@ -176,18 +352,13 @@ public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
             throw new UnsupportedOperationException("This method is not implemented for general topologies.");
         }
         double[][] m = new double[this.length == 0 ? order + 1 : this.length][];
-        boolean rememberMe = CPF.ALLOW_RETURN_INDEPENDENT_TRANSITION;
-        CPF.ALLOW_RETURN_INDEPENDENT_TRANSITION = false;
-        
         this.reinitParameters();
         for (int i = 0; i < m.length; i++) {
-            double[] root_pi = bnh.getVirtualTree(i).getNode(0).CPF.getCondProb()[0];
-            double[][] FS81 = bnh.getVirtualTree(i).getLeaf(s).CPF.getCondProb();
+            double[] root_pi = Arrays.copyOf(bnh.getVirtualTree(i).getNode(0).CPF.getCondProb(false), Alphabet.size);
+            double[][] FS81 = CPF.toMatrix(bnh.getVirtualTree(i).getLeaf(s).CPF.getCondProb(false));
 //            Util.visualizeMatrix(FS81);
             m[i] = VirtualTree.times(root_pi, FS81);
         }
-        
-        CPF.ALLOW_RETURN_INDEPENDENT_TRANSITION = rememberMe;
         return m;
     }
 
@@ -203,9 +374,11 @@ public abstract class AbstractPhyloModel extends PhyloPreparedAbstractModel {
 
     @Override
     public void fillLnCondProbRandomly() {
-        EvolModel gfs = EvolModel.getInstance(1);
+        String modelClass = getContext().evolModelClass;
+        EvolModel gfs;
         for (int i = 0; i < bnh.getVirtualTrees().length; i++) {
-            gfs = EvolModel.getInstance((int) Math.pow(Alphabet.size, bnh.getVirtualTree(i).getNode(0).numberOfParents));
+            gfs = EvolModel.getInstance(modelClass,
+                    (int) Math.pow(Alphabet.size, bnh.getVirtualTree(i).getNode(0).numberOfParents));
             bnh.getVirtualTree(i).setEvolModel(gfs);
 
             bnh.getVirtualTree(i).getEvolModel()
@@ -2,7 +2,6 @@ package models;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 
 import org.apache.log4j.Logger;
 
@@ -16,6 +15,7 @@ import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
 import de.jstacs.io.XMLParser;
 import de.jstacs.results.NumericalResultSet;
 import de.jstacs.utils.Normalisation;
+import io.PackedAlignment;
 
 /**
  * This Model is the optimized version of {@link PhyloBackground} with branch lengths equal to 1.
@@ -78,10 +78,10 @@ public class AlignmentBasedBGModel extends AbstractAlignmentBasedModel {
                     observations.clear();
                     int preSize = 0;
                     for (int k = 0; k <= order && k <= (l - start); k++) {
-                        if (parent.containerForPhyloBayes[l - k][o] == 4 && IGNORE_GAPS_IN_TRAINING) {
+                        if (PackedAlignment.getSymbol(parent, l - k, o) == 4 && IGNORE_GAPS_IN_TRAINING) {
                             observations.clear();
                             break;
-                        } else if (parent.containerForPhyloBayes[l - k][o] == 4) {
+                        } else if (PackedAlignment.getSymbol(parent, l - k, o) == 4) {
                             int oldPreSize = preSize;
                             preSize = observations.size();
                             if (observations.size() == 0) {
@@ -105,7 +105,7 @@ public class AlignmentBasedBGModel extends AbstractAlignmentBasedModel {
                                 observations.add(tmp);
                             }
                             for (int[] obs : observations) {
-                                obs[k] = parent.containerForPhyloBayes[l - k][o];
+                                obs[k] = PackedAlignment.getSymbol(parent, l - k, o);
                             }
                         }
                     }
@@ -136,6 +136,7 @@ public class AlignmentBasedBGModel extends AbstractAlignmentBasedModel {
                 lnCondProb[i][j] = Math.log(condProb[i][j]);
             }
         }
+        version++;
     }
 
     /**
@@ -151,6 +152,7 @@ public class AlignmentBasedBGModel extends AbstractAlignmentBasedModel {
                     + "), but is " + position + ".");
         } else {
             lnCondProb[position] = Arrays.copyOf(lambda, lambda.length);
+            version++;
         }
     }
 
@@ -233,16 +235,32 @@ public class AlignmentBasedBGModel extends AbstractAlignmentBasedModel {
         }
         check(sequence, startpos, endpos);
 
-        MultiDimensionalDiscreteSequence alignment = (MultiDimensionalDiscreteSequence) sequence;
-        double logSum = 0;
-        for (int l = startpos; l <= endpos; l++) {
-            for (int o = 0; o < alignment.getNumberOfSequences(); o++) {
-                logSum += this.getLnCondProb(alignment.getSequence(o), l);
+        // sum up all nucleotides and probabilities
+        double[] prefixSums = getScores((MultiDimensionalDiscreteSequence) sequence);
+        return prefixSums[endpos + 1] - prefixSums[startpos];
+    }
+
+    /**
+     * Returns the prefix sums (see {@link ScoreCache#toPrefixSums(double[])}) of the scores of all positions of the
+     * given alignment. The score of a position only depends on the position and its predecessors, so it is calculated
+     * once per alignment and cached until the parameters change.
+     */
+    private double[] getScores(MultiDimensionalDiscreteSequence alignment) {
+        long scoreVersion = 2 * version + (IGNORE_GAPS_IN_LIKELIHOOD_CALC ? 1 : 0);
+        double[][] cached = _cachedScores.get(alignment, scoreVersion);
+        if (cached != null) {
+            return cached[0];
+        }
+        double[] scores = new double[alignment.getLength()];
+        for (int o = 0; o < alignment.getNumberOfSequences(); o++) {
+            Sequence<?> sequence = alignment.getSequence(o);
+            for (int l = 0; l < scores.length; l++) {
+                scores[l] += this.getLnCondProb(sequence, l);
             }
         }
-
-        // sum up all nucleotides and probabilities
-        return logSum;
+        double[] prefixSums = ScoreCache.toPrefixSums(scores);
+        _cachedScores.put(alignment, scoreVersion, prefixSums);
+        return prefixSums;
     }
 
     @Override
@@ -314,35 +332,15 @@ public class AlignmentBasedBGModel extends AbstractAlignmentBasedModel {
         }
     }
 
-    // this caching speedups the Calculation of getLogProbFor by factor of five
-    private HashMap<Sequence, HashMap<Integer, HashMap<Integer, Double>>> _cachedScores = new HashMap<Sequence, HashMap<Integer, HashMap<Integer, Double>>>();
+    /** maximal number of scores cached by each instance, see {@link ScoreCache} */
+    public static long SCORE_CACHE_CAPACITY = 1 << 22;
+
+    // the scores of all positions of each alignment, so each call of getLogProbFor needs constant time
+    private transient ScoreCache _cachedScores = new ScoreCache(SCORE_CACHE_CAPACITY);
 
     /** cleans the cache */
     public void cleanCache() {
-        _cachedScores = new HashMap<Sequence, HashMap<Integer, HashMap<Integer, Double>>>();
-    }
-
-    /** true: if a score was already computed */
-    public boolean isScoreCached(Sequence sequence, int startpos, int endpos) {
-        if (_cachedScores.containsKey(sequence) && _cachedScores.get(sequence).containsKey(startpos)
-                && _cachedScores.get(sequence).get(startpos).containsKey(endpos)) {
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    /** inits needed HashMaps for storing a score */
-    public void prepareCache(Sequence sequence, int startpos, int endpos, double score) {
-        if (!_cachedScores.containsKey(sequence)) {
-            _cachedScores.put(sequence, new HashMap<Integer, HashMap<Integer, Double>>());
-        }
-
-        if (!_cachedScores.get(sequence).containsKey(startpos)) {
-            _cachedScores.get(sequence).put(startpos, new HashMap<Integer, Double>());
-        }
-
-        _cachedScores.get(sequence).get(startpos).put(endpos, score);
+        _cachedScores.clear();
     }
 
     /** Transforms this AlignmentBasedBGModel to a PhyloBackground 
@@ -14,6 +14,7 @@ import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
 import de.jstacs.io.XMLParser;
 import de.jstacs.results.NumericalResultSet;
 import de.jstacs.utils.Normalisation;
+import io.PackedAlignment;
 import io.SequenceSpecificDataSelector;
 
 /**
@@ -126,11 +127,11 @@ public class AlignmentBasedModel extends AbstractAlignmentBasedModel {
                     // observations.add(new int[order + 1]);
                     // Arrays.fill(observations.get(0), -1); // at least one observation can be made
                     for (int k = 0; k <= order && k <= (l - start); k++) {
-                        if (parent.containerForPhyloBayes[l - k][o] == 4 && IGNORE_GAPS_IN_TRAINING) {
+                        if (PackedAlignment.getSymbol(parent, l - k, o) == 4 && IGNORE_GAPS_IN_TRAINING) {
                             // System.out.println("ignoring shit");
                             accessHead = -1; // skip summation if IGNORE_GAPS_IN_TRAINING was true
                             break;
-                        } else if (parent.containerForPhyloBayes[l - k][o] == 4) {
+                        } else if (PackedAlignment.getSymbol(parent, l - k, o) == 4) {
                             int oldPreHead = preHead;
                             preHead = accessHead;
                             // here is an error: when adding new observations, old ones must be removed
@@ -142,7 +143,7 @@ public class AlignmentBasedModel extends AbstractAlignmentBasedModel {
                         } else {  // add to all observations the current base
                             accessHead = accessHead == 0 ? 1 : accessHead; // if no observation was made yet, add a observation
                             for (int i = preHead; i < accessHead; i++) {
-                                ACCESS_TABLE[i] += parent.containerForPhyloBayes[l - k][o] * pows[k];
+                                ACCESS_TABLE[i] += PackedAlignment.getSymbol(parent, l - k, o) * pows[k];
                             }
                         }
                     }
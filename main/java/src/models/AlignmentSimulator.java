@@ -0,0 +1,318 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bayesNet.CompiledBayesNet;
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.sequences.ByteSequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.data.sequences.SimpleDiscreteSequence;
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+import io.Alphabet;
+import io.PackedAlignment;
+import io.PhyloSample;
+import io.PhyloSampleReader;
+import util.Util;
+
+/**
+ * Draws alignments from a trained {@link PhyloBackground}, optionally containing a motif drawn from a trained
+ * {@link PhyloBayesModel}, like the synthetic data sets in data/synthetic_data. The conditional probabilities of the
+ * nets are copied once into cumulative tables, the symbols are drawn in topological order directly into byte arrays
+ * and stored as {@link PackedAlignment}s. Later changes of the models do not affect the simulator.
+ * <br>
+ * Each alignment is drawn with its own {@link SplittableRandom}, split from the seed in the order of the alignments.
+ * So the alignments are distributed on up to {@link #THREADS} workers and the result only depends on the seed.
+ */
+public class AlignmentSimulator {
+
+    /** the maximal number of threads drawing alignments in parallel */
+    public static int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** the type of the annotation of the alignments holding the first column of the motif */
+    public static final String MOTIF_POS = "MOTIF_POS";
+
+    private final AlphabetContainer con;
+    private final List<String> species;
+    private final Sampler background;
+    private final Sampler motif;
+    private final double zoops;
+
+    /**
+     * @param bg
+     *            the trained background
+     */
+    public AlignmentSimulator(PhyloBackground bg) {
+        this(bg, null, 0);
+    }
+
+    /**
+     * @param bg
+     *            the trained background drawing the flanking columns
+     * @param motif
+     *            the trained motif with the same species as bg, may be null
+     * @param zoops
+     *            the probability of an alignment to contain the motif at a uniformly drawn position
+     */
+    public AlignmentSimulator(PhyloBackground bg, PhyloBayesModel motif, double zoops) {
+        if (!bg.isTrained() || (motif != null && !motif.isTrained())) {
+            throw new IllegalArgumentException("The models must be trained.");
+        }
+        if (zoops < 0 || zoops > 1) {
+            throw new IllegalArgumentException("zoops must be in [0, 1].");
+        }
+        this.con = bg.getAlphabetContainer();
+        this.species = Util.getOrderedArrayListFromTree(bg.getBNH().getVirtualTree(0).getNewickString());
+        this.background = new Sampler(bg.getBNH().getCompiledNet(), bg.getOrder() + 1);
+        this.motif = motif == null ? null : new Sampler(motif.getBNH().getCompiledNet(), motif.getLength());
+        this.zoops = motif == null ? 0 : zoops;
+        if (motif != null) {
+            List<String> motifSpecies = Util.getOrderedArrayListFromTree(motif.getBNH().getVirtualTree(0).getNewickString());
+            if (!species.equals(motifSpecies)) {
+                throw new IllegalArgumentException("The species of background " + species + " and motif " + motifSpecies
+                        + " differ.");
+            }
+        }
+    }
+
+    /** @return the species in the order of the sequences of each alignment */
+    public List<String> getSpecies() {
+        return species;
+    }
+
+    /**
+     * Draws the columns of one background alignment.
+     *
+     * @param content
+     *            receives the codes of species o in content[o][0], ..., content[o][length - 1]
+     */
+    public void drawBackground(SplittableRandom rand, int length, byte[][] content) {
+        background.drawChain(rand, content, 0, length, new int[background.numberOfNodes]);
+    }
+
+    /**
+     * Draws n alignments.
+     *
+     * @param n
+     *            the number of alignments
+     * @param minLength
+     *            the minimal length of an alignment
+     * @param maxLength
+     *            the maximal length of an alignment, the lengths are drawn uniformly
+     * @param seed
+     *            the seed of the alignments
+     * @return the alignments, named <code>id_0</code>, <code>id_1</code>, ... by the annotation <code>gene</code>.
+     *         Alignments containing the motif are annotated by {@link #MOTIF_POS}.
+     */
+    public PhyloSample simulate(int n, final int minLength, final int maxLength, long seed) throws Exception {
+        if (minLength < 1 || maxLength < minLength || (motif != null && zoops > 0 && minLength < motif.length)) {
+            throw new IllegalArgumentException("Illegal lengths " + minLength + " to " + maxLength + ".");
+        }
+        final SplittableRandom[] streams = new SplittableRandom[n];
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int i = 0; i < n; i++) {
+            streams[i] = root.split();
+        }
+        final MultiDimensionalDiscreteSequence[] alignments = new MultiDimensionalDiscreteSequence[n];
+        int threads = Math.max(1, Math.min(THREADS, n));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> parts = new ArrayList<Future<?>>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int first = (int) ((long) n * t / threads), last = (int) ((long) n * (t + 1) / threads);
+                parts.add(executor.submit(() -> {
+                    byte[][] content = new byte[species.size()][maxLength];
+                    int[] states = new int[Math.max(background.numberOfNodes, motif == null ? 0 : motif.numberOfNodes)];
+                    for (int i = first; i < last; i++) {
+                        alignments[i] = draw(i, streams[i], minLength, maxLength, content, states);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> part : parts) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new PhyloSample("simulated sample of " + n + " alignments", alignments, species);
+    }
+
+    private MultiDimensionalDiscreteSequence draw(int i, SplittableRandom rand, int minLength, int maxLength,
+            byte[][] content, int[] states) throws Exception {
+        int length = minLength + rand.nextInt(maxLength - minLength + 1);
+        int motifPos = -1;
+        if (motif != null && rand.nextDouble() < zoops) {
+            motifPos = rand.nextInt(length - motif.length + 1);
+            background.drawChain(rand, content, 0, motifPos, states);
+            motif.drawColumns(rand, content, motifPos, motif.length, states);
+            background.drawChain(rand, content, motifPos + motif.length, length - motifPos - motif.length, states);
+        } else {
+            background.drawChain(rand, content, 0, length, states);
+        }
+
+        StringBuilder id = new StringBuilder("(");
+        SequenceAnnotation[][] annotations = new SequenceAnnotation[species.size()][];
+        for (int o = 0; o < annotations.length; o++) {
+            id.append(o > 0 ? ", " : "").append(species.get(o));
+            annotations[o] = new SequenceAnnotation[] { new SequenceAnnotation("species", species.get(o)) };
+        }
+        List<SequenceAnnotation> annotation = new ArrayList<SequenceAnnotation>();
+        annotation.add(new SequenceAnnotation("gene", "id_" + i));
+        annotation.add(new SequenceAnnotation("species", id.append(")").toString()));
+        if (motifPos >= 0) {
+            annotation.add(new SequenceAnnotation(MOTIF_POS, String.valueOf(motifPos)));
+        }
+        SequenceAnnotation[] seqAn = annotation.toArray(new SequenceAnnotation[0]);
+
+        long[] columns = PhyloSampleReader.PACK_ALIGNMENTS ? PackedAlignment.pack(content, length) : null;
+        if (columns != null) {
+            return new PackedAlignment(seqAn, con, columns, annotations);
+        }
+        SimpleDiscreteSequence[] rows = new SimpleDiscreteSequence[content.length];
+        for (int o = 0; o < rows.length; o++) {
+            byte[] row = new byte[length];
+            System.arraycopy(content[o], 0, row, 0, length);
+            rows[o] = (SimpleDiscreteSequence) new ByteSequence(con, row).annotate(false, annotations[o]);
+        }
+        return new MultiDimensionalDiscreteSequence(seqAn, rows);
+    }
+
+    /**
+     * The cumulative conditional probabilities of a net in topological order. Tree t of the net draws column t of a
+     * window, node j of tree t corresponds to node j of all other trees.
+     */
+    private static final class Sampler {
+        final int numberOfNodes;
+        /** the number of trees, i.e. columns of a window */
+        final int length;
+        /** the nodes of the net in topological order */
+        final int[] order;
+        /** the nodes of the last tree in topological order */
+        final int[] lastTree;
+        final int[] parentStart, parents;
+        /** the cumulative probabilities of node i in cdf[i], row l starts at l * {@link Alphabet#size} */
+        final double[][] cdf;
+        final int[] treeStart, treeNodes, leafStart, treeLeafs;
+
+        Sampler(CompiledBayesNet net, int length) {
+            this.numberOfNodes = net.numberOfNodes;
+            this.length = length;
+            this.parentStart = net.parentStart;
+            this.parents = net.parents;
+            this.treeStart = net.treeStart;
+            this.treeNodes = net.treeNodes;
+            this.leafStart = net.leafStart;
+            this.treeLeafs = net.treeLeafs;
+
+            cdf = new double[numberOfNodes][];
+            for (int i = 0; i < numberOfNodes; i++) {
+                double[] p = net.cpf[i].getCondProb(false);
+                cdf[i] = new double[p.length];
+                for (int l = 0; l < p.length; l += Alphabet.size) {
+                    double sum = 0;
+                    for (int a = 0; a < Alphabet.size; a++) {
+                        sum += p[l + a];
+                        cdf[i][l + a] = sum;
+                    }
+                }
+            }
+
+            // topological order by the number of drawn parents
+            order = new int[numberOfNodes];
+            int[] missing = new int[numberOfNodes];
+            int n = 0;
+            for (int i = 0; i < numberOfNodes; i++) {
+                missing[i] = parentStart[i + 1] - parentStart[i];
+                if (missing[i] == 0) {
+                    order[n++] = i;
+                }
+            }
+            for (int k = 0; k < n; k++) {
+                int node = order[k];
+                for (int c = net.childStart[node]; c < net.childStart[node + 1]; c++) {
+                    if (--missing[net.children[c]] == 0) {
+                        order[n++] = net.children[c];
+                    }
+                }
+            }
+            if (n != numberOfNodes) {
+                throw new IllegalArgumentException("The net contains a cycle.");
+            }
+            boolean[] inLastTree = new boolean[numberOfNodes];
+            for (int k = treeStart[length - 1]; k < treeStart[length]; k++) {
+                inLastTree[treeNodes[k]] = true;
+            }
+            lastTree = new int[treeStart[length] - treeStart[length - 1]];
+            for (int k = 0, m = 0; k < numberOfNodes; k++) {
+                if (inLastTree[order[k]]) {
+                    lastTree[m++] = order[k];
+                }
+            }
+        }
+
+        /** draws the state of node i given the states of its parents */
+        int draw(int i, int[] states, SplittableRandom rand) {
+            int l = 0;
+            for (int p = parentStart[i + 1] - 1; p >= parentStart[i]; p--) {
+                l = l * Alphabet.size + states[parents[p]];
+            }
+            double[] c = cdf[i];
+            l *= Alphabet.size;
+            double r = rand.nextDouble() * c[l + Alphabet.size - 1];
+            int a = 0;
+            while (a < Alphabet.size - 1 && r >= c[l + a]) {
+                a++;
+            }
+            return a;
+        }
+
+        /** draws one window of the net and writes the first columns columns to content, starting at column start */
+        void drawColumns(SplittableRandom rand, byte[][] content, int start, int columns, int[] states) {
+            for (int k = 0; k < numberOfNodes; k++) {
+                states[order[k]] = draw(order[k], states, rand);
+            }
+            for (int t = 0; t < columns; t++) {
+                writeColumn(t, content, start + t, states);
+            }
+        }
+
+        /**
+         * draws columns columns as a homogeneous Markov chain of order length - 1: the first window is drawn as a whole,
+         * afterwards the window is shifted by one column and only the last tree is drawn given the others
+         */
+        void drawChain(SplittableRandom rand, byte[][] content, int start, int columns, int[] states) {
+            if (columns <= 0) {
+                return;
+            }
+            drawColumns(rand, content, start, Math.min(columns, length), states);
+            int nodesPerTree = treeStart[1] - treeStart[0];
+            for (int u = length; u < columns; u++) {
+                for (int t = 1; t < length; t++) {
+                    for (int j = 0; j < nodesPerTree; j++) {
+                        states[treeNodes[treeStart[t - 1] + j]] = states[treeNodes[treeStart[t] + j]];
+                    }
+                }
+                for (int i : lastTree) {
+                    states[i] = draw(i, states, rand);
+                }
+                writeColumn(length - 1, content, start + u, states);
+            }
+        }
+
+        private void writeColumn(int tree, byte[][] content, int u, int[] states) {
+            for (int o = leafStart[tree]; o < leafStart[tree + 1]; o++) {
+                content[o - leafStart[tree]][u] = (byte) states[treeLeafs[o]];
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import bayesNet.BayesNetHandler;
+import de.jstacs.NonParsableException;
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.alphabets.DoubleSymbolException;
+import de.jstacs.data.Sample;
+import de.jstacs.data.Sequence;
+import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
+import de.jstacs.io.XMLParser;
+import de.jstacs.models.AbstractModel;
+import de.jstacs.models.Model;
+import de.jstacs.models.mixture.AbstractMixtureModel;
+import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
+import de.jstacs.results.NumericalResultSet;
+
+/**
+ * A versioned binary format for {@link PhyloBayesModel}s, {@link PhyloBackground}s and mixtures of them, e.g. a
+ * {@link SingleHiddenMotifMixture}. Compared to the XML representation the topology of the trees is stored only once
+ * per model, the parameters are stored as packed doubles and nothing has to be parsed except the topology. The
+ * parameters are stored exactly, the XML representation rounds the branch lengths.
+ * <p>
+ * Layout (big endian): the int {@link #MAGIC}, the int {@link #VERSION} and the kind of the model as byte, followed by
+ * <ul>
+ * <li>{@link PhyloBayesModel}: length as int, order as byte, alphabet, {@link BayesNetHandler#write(ByteBuffer)},
+ * {@link ModelContext#write(ByteBuffer)}
+ * <li>{@link PhyloBackground}: order as byte, alphabet, {@link BayesNetHandler#write(ByteBuffer)},
+ * {@link ModelContext#write(ByteBuffer)}
+ * <li>mixture: the number of contained {@link AbstractPhyloModel}s as int, each as kind and record as above, and the
+ * XML of the mixture, in which the {@link AbstractPhyloModel}s are replaced by {@link Placeholder}s
+ * </ul>
+ * The alphabet is 0 for the DNA alphabet or 1 followed by the XML of the {@link AlphabetContainer}. Strings are stored
+ * as number of bytes followed by the UTF-8 bytes.
+ */
+public class BinaryModelFormat {
+
+    /** the first four bytes of each file, "PHYB" */
+    public static final int MAGIC = 0x50485942;
+
+    /** the version of the format, files of other versions are rejected */
+    public static final int VERSION = 4;
+
+    /** the file extension of the binary format, see {@link ModelUtil#saveModel(Model, String)} */
+    public static final String EXTENSION = ".pbin";
+
+    private static final byte PHYLO_BAYES_MODEL = 1;
+    private static final byte PHYLO_BACKGROUND = 2;
+    private static final byte MIXTURE = 3;
+
+    /**
+     * Writes the given model to the given file.
+     *
+     * @param model
+     *            a {@link PhyloBayesModel}, a {@link PhyloBackground} or an {@link AbstractMixtureModel} of them
+     * @throws IOException
+     */
+    public static void save(Model model, String fileName) throws IOException {
+        ByteBuffer buf = toByteBuffer(model);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Loads a model written by {@link #save(Model, String)}. The file is mapped into memory.
+     *
+     * @throws IOException
+     * @throws NonParsableException
+     *             if the file is not in the binary format or the mixture can not be parsed
+     */
+    public static Model load(String fileName) throws IOException, NonParsableException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return fromByteBuffer(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** @return true, if the given file starts with {@link #MAGIC} */
+    public static boolean isBinary(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic);
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /** @return the binary representation of the given model, see {@link #save(Model, String)} */
+    public static byte[] toByteArray(Model model) {
+        return toByteBuffer(model).array();
+    }
+
+    /** @return the model of the given binary representation, see {@link #load(String)} */
+    public static Model fromByteArray(byte[] bytes) throws NonParsableException {
+        return fromByteBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @return a buffer with the binary representation of the given model, the buffer is backed by an array and ready to
+     *         be read
+     */
+    public static ByteBuffer toByteBuffer(Model model) {
+        ByteBuffer buf;
+        if (model instanceof AbstractPhyloModel) {
+            AbstractPhyloModel phyloModel = (AbstractPhyloModel) model;
+            buf = ByteBuffer.allocate(4 + 4 + getSize(phyloModel));
+            buf.putInt(MAGIC).putInt(VERSION);
+            write(buf, phyloModel);
+        } else if (model instanceof AbstractMixtureModel) {
+            AbstractMixtureModel mixture = (AbstractMixtureModel) model;
+            List<Model> phyloModels = new ArrayList<Model>();
+            byte[] xml;
+            // the models of the mixture are replaced temporarily, so the mixture must not be used concurrently
+            replace(mixture, phyloModels, true);
+            try {
+                StringBuffer sb = new StringBuffer();
+                XMLParser.appendObjectWithTags(sb, mixture, "mixture");
+                xml = sb.toString().getBytes(StandardCharsets.UTF_8);
+            } finally {
+                replace(mixture, phyloModels, false);
+            }
+            int size = 4 + 4 + 1 + 4 + 4 + xml.length;
+            for (Model phyloModel : phyloModels) {
+                size += getSize((AbstractPhyloModel) phyloModel);
+            }
+            buf = ByteBuffer.allocate(size);
+            buf.putInt(MAGIC).putInt(VERSION).put(MIXTURE).putInt(phyloModels.size());
+            for (Model phyloModel : phyloModels) {
+                write(buf, (AbstractPhyloModel) phyloModel);
+            }
+            buf.putInt(xml.length).put(xml);
+        } else {
+            throw new IllegalArgumentException("Can not handle " + model.getClass());
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /** @return the model of the binary representation starting at the current position of buf */
+    public static Model fromByteBuffer(ByteBuffer buf) throws NonParsableException {
+        if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+            throw new NonParsableException("Not a binary model.");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new NonParsableException("Can not handle version " + version + " of the binary model format.");
+        }
+        byte kind = buf.get();
+        if (kind != MIXTURE) {
+            return read(buf, kind);
+        }
+        List<Model> phyloModels = new ArrayList<Model>();
+        for (int i = buf.getInt(); i > 0; i--) {
+            phyloModels.add(read(buf, buf.get()));
+        }
+        byte[] xml = new byte[buf.getInt()];
+        buf.get(xml);
+        AbstractMixtureModel mixture = (AbstractMixtureModel) XMLParser.extractObjectForTags(
+                new StringBuffer(new String(xml, StandardCharsets.UTF_8)), "mixture");
+        replace(mixture, phyloModels, false);
+        return mixture;
+    }
+
+    /** @return the number of bytes written by {@link #write(ByteBuffer, AbstractPhyloModel)} */
+    private static int getSize(AbstractPhyloModel model) {
+        int size = 1 + (model instanceof PhyloBayesModel ? 4 : 0) + 1;
+        if (isDNA(model.getAlphabetContainer())) {
+            size += 1;
+        } else {
+            size += 1 + 4 + model.getAlphabetContainer().toXML().toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size + model.getBNH().getBinarySize() + model.getContext().getBinarySize();
+    }
+
+    /** writes the kind and the record of the given model */
+    private static void write(ByteBuffer buf, AbstractPhyloModel model) {
+        if (model instanceof PhyloBayesModel) {
+            buf.put(PHYLO_BAYES_MODEL).putInt(model.getLength());
+        } else if (model instanceof PhyloBackground) {
+            buf.put(PHYLO_BACKGROUND);
+        } else {
+            throw new IllegalArgumentException("Can not handle " + model.getClass());
+        }
+        buf.put(model.getOrder());
+        if (isDNA(model.getAlphabetContainer())) {
+            buf.put((byte) 0);
+        } else {
+            byte[] xml = model.getAlphabetContainer().toXML().toString().getBytes(StandardCharsets.UTF_8);
+            buf.put((byte) 1).putInt(xml.length).put(xml);
+        }
+        model.getBNH().write(buf);
+        model.getContext().write(buf);
+    }
+
+    /** reads the record of a model of the given kind */
+    private static AbstractPhyloModel read(ByteBuffer buf, byte kind) throws NonParsableException {
+        int length = 0;
+        if (kind == PHYLO_BAYES_MODEL) {
+            length = buf.getInt();
+        } else if (kind != PHYLO_BACKGROUND) {
+            throw new NonParsableException("Unknown kind of model " + kind);
+        }
+        byte order = buf.get();
+        AlphabetContainer con;
+        if (buf.get() == 0) {
+            try {
+                con = new AlphabetContainer(new UnobservableDNAAlphabet());
+            } catch (DoubleSymbolException e) {
+                throw new NonParsableException(e.getMessage());
+            }
+        } else {
+            byte[] xml = new byte[buf.getInt()];
+            buf.get(xml);
+            con = new AlphabetContainer(new StringBuffer(new String(xml, StandardCharsets.UTF_8)));
+        }
+        BayesNetHandler bnh = new BayesNetHandler(buf);
+        AbstractPhyloModel model;
+        if (kind == PHYLO_BAYES_MODEL) {
+            model = new PhyloBayesModel(length, order, bnh, con);
+        } else {
+            model = new PhyloBackground(order, bnh, con);
+        }
+        model.setContext(new ModelContext(buf));
+        return model;
+    }
+
+    private static boolean isDNA(AlphabetContainer con) {
+        return con.isSimple() && con.getAlphabetAt(0).getClass() == UnobservableDNAAlphabet.class;
+    }
+
+    /**
+     * Replaces the {@link AbstractPhyloModel}s of the given mixture and its sub mixtures by {@link Placeholder}s and
+     * collects them in phyloModels, or replaces the {@link Placeholder}s by the models of phyloModels.
+     */
+    private static void replace(AbstractMixtureModel mixture, List<Model> phyloModels, boolean toPlaceholder) {
+        for (int i = 0; i < mixture.model.length; i++) {
+            Model model = mixture.model[i];
+            if (toPlaceholder && model instanceof AbstractPhyloModel) {
+                mixture.model[i] = new Placeholder(phyloModels.size(), model);
+                phyloModels.add(model);
+            } else if (!toPlaceholder && model instanceof Placeholder) {
+                mixture.model[i] = phyloModels.get(((Placeholder) model).index);
+            } else if (model instanceof AbstractMixtureModel) {
+                replace((AbstractMixtureModel) model, phyloModels, toPlaceholder);
+            }
+        }
+    }
+
+    /**
+     * Stands in for an {@link AbstractPhyloModel} in the XML of a mixture, the model itself is stored in the binary
+     * format. Only the index of the model and its length, order and alphabet are stored, as required by the mixture.
+     */
+    public static class Placeholder extends AbstractModel {
+
+        /** the index of the replaced model in the binary representation */
+        int index;
+
+        /** the maximal markov order of the replaced model */
+        private byte order;
+
+        Placeholder(int index, Model model) {
+            super(model.getAlphabetContainer(), model.getLength());
+            this.index = index;
+            this.order = model.getMaximalMarkovOrder();
+        }
+
+        public Placeholder(StringBuffer xml) throws NonParsableException {
+            super(xml);
+        }
+
+        @Override
+        public StringBuffer toXML() {
+            StringBuffer xml = new StringBuffer();
+            XMLParser.appendObjectWithTags(xml, index, "index");
+            XMLParser.appendObjectWithTags(xml, length, "length");
+            XMLParser.appendObjectWithTags(xml, order, "order");
+            XMLParser.appendObjectWithTags(xml, alphabets, "alphabets");
+            XMLParser.addTags(xml, "placeholder");
+            return xml;
+        }
+
+        @Override
+        protected void fromXML(StringBuffer xml) throws NonParsableException {
+            xml = XMLParser.extractForTag(xml, "placeholder");
+            index = (Integer) XMLParser.extractObjectForTags(xml, "index");
+            length = (Integer) XMLParser.extractObjectForTags(xml, "length");
+            order = (Byte) XMLParser.extractObjectForTags(xml, "order");
+            alphabets = (AlphabetContainer) XMLParser.extractObjectForTags(xml, "alphabets");
+        }
+
+        @Override
+        public void train(Sample data, double[] weights) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        // the signature is given by the raw Model interface of Jstacs
+        @SuppressWarnings("rawtypes")
+        @Override
+        public double getLogProbFor(Sequence sequence, int startpos, int endpos) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public double getLogPriorTerm() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte getMaximalMarkovOrder() {
+            return order;
+        }
+
+        @Override
+        public String getInstanceName() {
+            return "Placeholder";
+        }
+
+        @Override
+        public boolean isTrained() {
+            return true;
+        }
+
+        @Override
+        public NumericalResultSet getNumericalCharacteristics() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            return "Placeholder " + index;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package models;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import algorithm.MeanFieldForBayesNet;
+import de.jstacs.data.Sequence;
+import de.jstacs.data.Sequence.SubSequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+
+/**
+ * Cache for the {@link MeanFieldForBayesNet}s of a model. A cached meanfield keeps its optimized q, so the next
+ * optimization of the same window starts close to its optimum. Windows are identified by the identity of the underlying
+ * {@link MultiDimensionalDiscreteSequence}, their start and their length, so different {@link SubSequence} objects of
+ * the same window share one meanfield. If the estimated memory of all cached meanfields exceeds the memory budget, the
+ * least recently used meanfields are removed.
+ */
+public class MeanFieldCache {
+
+    /** the maximal memory of all cached meanfields in bytes */
+    private final long memoryBudget;
+
+    /** estimated memory of all cached meanfields in bytes */
+    private long memory;
+
+    private long hits, misses, evictions;
+
+    private final LinkedHashMap<Window, Entry> entries = new LinkedHashMap<Window, Entry>(16, 0.75f, true);
+
+    /**
+     * @param memoryBudget
+     *            the maximal memory of all cached meanfields in bytes
+     */
+    public MeanFieldCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** @return the cached meanfield of the given window, null if there is none */
+    public synchronized MeanFieldForBayesNet get(Sequence<?> sequence) {
+        Entry entry = entries.get(new Window(sequence));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.meanField;
+    }
+
+    /** caches the given meanfield for the given window and removes the least recently used meanfields if necessary */
+    public synchronized void put(Sequence<?> sequence, MeanFieldForBayesNet meanField) {
+        Window window = new Window(sequence);
+        Entry entry = new Entry(meanField);
+        Entry old = entries.put(window, entry);
+        if (old != null) {
+            memory -= old.memory;
+        }
+        memory += entry.memory;
+        Iterator<Map.Entry<Window, Entry>> it = entries.entrySet().iterator();
+        while (memory > memoryBudget && it.hasNext()) {
+            Map.Entry<Window, Entry> eldest = it.next();
+            if (eldest.getValue() != entry) {
+                memory -= eldest.getValue().memory;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /** removes all meanfields, the counters are kept */
+    public synchronized void clear() {
+        entries.clear();
+        memory = 0;
+    }
+
+    /** @return the number of cached meanfields */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the estimated memory of all cached meanfields in bytes */
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    /** @return the maximal memory of all cached meanfields in bytes */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** @return the number of calls of {@link #get(Sequence)} which returned a meanfield */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of calls of {@link #get(Sequence)} which returned null */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of meanfields removed to keep the memory budget */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MeanFieldCache: " + entries.size() + " meanfields, " + (memory >> 20) + " of " + (memoryBudget >> 20)
+                + " MB, hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
+
+    /** identifies a window by the identity of its underlying alignment, its start and its length */
+    private static final class Window {
+        private final MultiDimensionalDiscreteSequence parent;
+        private final int start, length;
+
+        Window(Sequence<?> sequence) {
+            if (sequence instanceof MultiDimensionalDiscreteSequence) {
+                parent = (MultiDimensionalDiscreteSequence) sequence;
+                start = 0;
+            } else {
+                parent = (MultiDimensionalDiscreteSequence) ((SubSequence<?>) sequence).getParent();
+                start = ((SubSequence<?>) sequence).start;
+            }
+            length = sequence.getLength();
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(parent) * 31 + start) * 31 + length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Window)) {
+                return false;
+            }
+            Window w = (Window) o;
+            return parent == w.parent && start == w.start && length == w.length;
+        }
+    }
+
+    private static final class Entry {
+        final MeanFieldForBayesNet meanField;
+        final long memory;
+
+        Entry(MeanFieldForBayesNet meanField) {
+            this.meanField = meanField;
+            this.memory = meanField.getMemorySize();
+        }
+    }
+}
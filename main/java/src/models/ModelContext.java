@@ -0,0 +1,177 @@
+package models;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import bayesNet.CPF;
+import de.jstacs.NonParsableException;
+import de.jstacs.Storable;
+import de.jstacs.io.XMLParser;
+import evolution.EvolModel;
+import optimizing.AbstractFreeEnergyOptimizer;
+
+/**
+ * The runtime settings of a model. Each {@link AbstractPhyloModel} owns a context, which is initialised with the
+ * static defaults of the model class (e.g. {@link PhyloBayesModel#EDGE_LEARNING}) when the model is created. Changing
+ * the context of a model does not affect other models, so several models can be trained and used concurrently with
+ * different settings. The underlying net of the model shares the context, see
+ * {@link bayesNet.BayesNetHandler#getContext()}. The context is stored with the model, both in its XML representation
+ * and in the {@link BinaryModelFormat}.
+ */
+public class ModelContext implements Storable {
+
+    /**
+     * if true, unobserved phylo leafs use their independent transitions, default
+     * {@link CPF#ALLOW_RETURN_INDEPENDENT_TRANSITION}
+     */
+    public boolean allowIndependentTransitions = CPF.ALLOW_RETURN_INDEPENDENT_TRANSITION;
+
+    /** the class of new evolutionary models, see {@link EvolModel#getInstance(String, int)} */
+    public String evolModelClass = EvolModel.MODEL_CLASS;
+
+    /** if true, the MeanFieldForBayesNet-Objects are cached, default {@link AbstractPhyloModel#ENABLE_CACHING} */
+    public boolean enableCaching = AbstractPhyloModel.ENABLE_CACHING;
+
+    /**
+     * false = each branch is learned independently, true = all branches have the same length, default
+     * {@link AbstractPhyloModel#EDGE_LEARNING_ONE_LENGTH}
+     */
+    public boolean edgeLearningOneLength = AbstractPhyloModel.EDGE_LEARNING_ONE_LENGTH;
+
+    /**
+     * if true, the parameters and branch lengths of the positions are optimized at the same time, default
+     * {@link AbstractFreeEnergyOptimizer#PARALLEL_POSITIONS}
+     */
+    public boolean parallelPositions = AbstractFreeEnergyOptimizer.PARALLEL_POSITIONS;
+
+    /**
+     * if true, the optimizers calculate the free energies of the MeanFields in parallel, default
+     * {@link AbstractFreeEnergyOptimizer#PARALLEL_EVALUATION}
+     */
+    public boolean parallelEvaluation = AbstractFreeEnergyOptimizer.PARALLEL_EVALUATION;
+
+    /**
+     * if true, the optimizers use closed form gradients instead of numerical differentiation, default
+     * {@link AbstractFreeEnergyOptimizer#ANALYTIC_GRADIENTS}
+     */
+    public boolean analyticGradients = AbstractFreeEnergyOptimizer.ANALYTIC_GRADIENTS;
+
+    /** if true, the parameters are trained by calling #train() */
+    public boolean trainMotif = true;
+
+    /**
+     * Shows if the edge lengths should be learned during training.<br>
+     * 0 = off<br>
+     * 1 = train edges for all positions independent<br>
+     * 2 = train edges globally, only supported by {@link PhyloBayesModel}<br>
+     */
+    public int edgeLearning = 0;
+
+    /** if true, the likelihood is calculated instead of the free energy */
+    public boolean calcLogLikelihood = false;
+
+    /** if false, clone() returns the model itself */
+    public boolean cloningAllowed = true;
+
+    /** if filtered data is assumed, the temperatures are learned as well */
+    public int assumeFilteredData = 0;
+
+    /** creates a context with the global defaults */
+    public ModelContext() {
+    }
+
+    /** creates a copy of the given context */
+    public ModelContext(ModelContext context) {
+        allowIndependentTransitions = context.allowIndependentTransitions;
+        evolModelClass = context.evolModelClass;
+        enableCaching = context.enableCaching;
+        edgeLearningOneLength = context.edgeLearningOneLength;
+        parallelPositions = context.parallelPositions;
+        parallelEvaluation = context.parallelEvaluation;
+        analyticGradients = context.analyticGradients;
+        trainMotif = context.trainMotif;
+        edgeLearning = context.edgeLearning;
+        calcLogLikelihood = context.calcLogLikelihood;
+        cloningAllowed = context.cloningAllowed;
+        assumeFilteredData = context.assumeFilteredData;
+    }
+
+    /** creates a context from its XML representation, see {@link #toXML()} */
+    public ModelContext(StringBuffer xml) throws NonParsableException {
+        xml = XMLParser.extractForTag(xml, "modelContext");
+        allowIndependentTransitions = (Boolean) XMLParser.extractObjectForTags(xml, "allowIndependentTransitions");
+        evolModelClass = (String) XMLParser.extractObjectForTags(xml, "evolModelClass");
+        enableCaching = (Boolean) XMLParser.extractObjectForTags(xml, "enableCaching");
+        edgeLearningOneLength = (Boolean) XMLParser.extractObjectForTags(xml, "edgeLearningOneLength");
+        parallelPositions = (Boolean) XMLParser.extractObjectForTags(xml, "parallelPositions");
+        parallelEvaluation = (Boolean) XMLParser.extractObjectForTags(xml, "parallelEvaluation");
+        analyticGradients = (Boolean) XMLParser.extractObjectForTags(xml, "analyticGradients");
+        trainMotif = (Boolean) XMLParser.extractObjectForTags(xml, "trainMotif");
+        edgeLearning = (Integer) XMLParser.extractObjectForTags(xml, "edgeLearning");
+        calcLogLikelihood = (Boolean) XMLParser.extractObjectForTags(xml, "calcLogLikelihood");
+        cloningAllowed = (Boolean) XMLParser.extractObjectForTags(xml, "cloningAllowed");
+        assumeFilteredData = (Integer) XMLParser.extractObjectForTags(xml, "assumeFilteredData");
+    }
+
+    /** creates a context from the binary representation written by {@link #write(ByteBuffer)} */
+    public ModelContext(ByteBuffer buf) {
+        short flags = buf.getShort();
+        allowIndependentTransitions = (flags & 1) != 0;
+        enableCaching = (flags & 2) != 0;
+        edgeLearningOneLength = (flags & 4) != 0;
+        parallelPositions = (flags & 8) != 0;
+        trainMotif = (flags & 16) != 0;
+        calcLogLikelihood = (flags & 32) != 0;
+        cloningAllowed = (flags & 64) != 0;
+        parallelEvaluation = (flags & 128) != 0;
+        analyticGradients = (flags & 256) != 0;
+        edgeLearning = buf.getInt();
+        assumeFilteredData = buf.getInt();
+        byte[] modelClass = new byte[buf.getInt()];
+        buf.get(modelClass);
+        evolModelClass = new String(modelClass, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public StringBuffer toXML() {
+        StringBuffer xml = new StringBuffer();
+        XMLParser.appendObjectWithTags(xml, allowIndependentTransitions, "allowIndependentTransitions");
+        XMLParser.appendObjectWithTags(xml, evolModelClass, "evolModelClass");
+        XMLParser.appendObjectWithTags(xml, enableCaching, "enableCaching");
+        XMLParser.appendObjectWithTags(xml, edgeLearningOneLength, "edgeLearningOneLength");
+        XMLParser.appendObjectWithTags(xml, parallelPositions, "parallelPositions");
+        XMLParser.appendObjectWithTags(xml, parallelEvaluation, "parallelEvaluation");
+        XMLParser.appendObjectWithTags(xml, analyticGradients, "analyticGradients");
+        XMLParser.appendObjectWithTags(xml, trainMotif, "trainMotif");
+        XMLParser.appendObjectWithTags(xml, edgeLearning, "edgeLearning");
+        XMLParser.appendObjectWithTags(xml, calcLogLikelihood, "calcLogLikelihood");
+        XMLParser.appendObjectWithTags(xml, cloningAllowed, "cloningAllowed");
+        XMLParser.appendObjectWithTags(xml, assumeFilteredData, "assumeFilteredData");
+        XMLParser.addTags(xml, "modelContext");
+        return xml;
+    }
+
+    /** @return the number of bytes written by {@link #write(ByteBuffer)} */
+    public int getBinarySize() {
+        return 2 + 4 + 4 + 4 + evolModelClass.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Writes the context in a binary representation to buf, the flags as short followed by {@link #edgeLearning},
+     * {@link #assumeFilteredData} and {@link #evolModelClass}.
+     */
+    public void write(ByteBuffer buf) {
+        short flags = 0;
+        flags |= allowIndependentTransitions ? 1 : 0;
+        flags |= enableCaching ? 2 : 0;
+        flags |= edgeLearningOneLength ? 4 : 0;
+        flags |= parallelPositions ? 8 : 0;
+        flags |= trainMotif ? 16 : 0;
+        flags |= calcLogLikelihood ? 32 : 0;
+        flags |= cloningAllowed ? 64 : 0;
+        flags |= parallelEvaluation ? 128 : 0;
+        flags |= analyticGradients ? 256 : 0;
+        byte[] modelClass = evolModelClass.getBytes(StandardCharsets.UTF_8);
+        buf.putShort(flags).putInt(edgeLearning).putInt(assumeFilteredData).putInt(modelClass.length).put(modelClass);
+    }
+}
@@ -2,6 +2,7 @@ package models;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
@@ -19,11 +20,13 @@ import de.jstacs.io.FileManager;
 import de.jstacs.io.XMLParser;
 import de.jstacs.models.AbstractModel;
 import de.jstacs.models.Model;
+import de.jstacs.models.mixture.AbstractMixtureModel;
 import de.jstacs.models.mixture.AbstractMixtureModel.Parameterization;
 import de.jstacs.models.mixture.StrandModel;
 import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
 import de.jstacs.models.mixture.motif.positionprior.UniformPositionPrior;
 import de.jstacs.parameters.SimpleParameter.IllegalValueException;
+import io.FileUtil;
 import util.Config;
 
 /**
@@ -194,7 +197,7 @@ public class ModelUtil {
 
     /**
      * Accesses the parameter input.model.background and loads the corresponding {@link PhyloBackground} or
-     * {@link AlignmentBasedBGModel}.
+     * {@link AlignmentBasedBGModel}, stored as XML or in the {@link BinaryModelFormat}.
      * 
      * @return the already trained {@link PhyloPreparedAbstractModel} that is a {@link PhyloBackground} or
      *         {@link AlignmentBasedBGModel}
@@ -204,14 +207,18 @@ public class ModelUtil {
     public static PhyloPreparedAbstractModel getTrainedBackground(Properties props) throws NonParsableException,
             IOException {
         String trainedBGfile = Config.getProperty(props, "input.model.background", null).asString();
-        StringBuffer xml = FileManager.readFile(new File(trainedBGfile));
         PhyloPreparedAbstractModel bgModel = null;
-        // if a BayesNetHandler can be found this model is a PhlyoModel
-        // this method is not able to handle a BG-model in a strandmodel
-        if (XMLParser.hasTag(xml, "_bnh", null, null)) { // ugly hack
-            bgModel = new PhyloBackground(xml);
+        if (BinaryModelFormat.isBinary(trainedBGfile)) {
+            bgModel = (PhyloPreparedAbstractModel) BinaryModelFormat.load(trainedBGfile);
         } else {
-            bgModel = new AlignmentBasedBGModel(xml);
+            StringBuffer xml = FileManager.readFile(new File(trainedBGfile));
+            // if a BayesNetHandler can be found this model is a PhlyoModel
+            // this method is not able to handle a BG-model in a strandmodel
+            if (XMLParser.hasTag(xml, "_bnh", null, null)) { // ugly hack
+                bgModel = new PhyloBackground(xml);
+            } else {
+                bgModel = new AlignmentBasedBGModel(xml);
+            }
         }
         if (!bgModel.isTrained()) {
             throw new IllegalArgumentException("Tried to load an untrained BackgroundModel");
@@ -220,7 +227,8 @@ public class ModelUtil {
     }
 
     /**
-     * Accesses the parameter input.model.shm and loads the corresponding {@link SingleHiddenMotifMixture}.
+     * Accesses the parameter input.model.shm and loads the corresponding {@link SingleHiddenMotifMixture}, stored as
+     * XML or in the {@link BinaryModelFormat}.
      * 
      * @return the already trained {@link SingleHiddenMotifMixture}
      * @throws NonParsableException
@@ -228,11 +236,74 @@ public class ModelUtil {
      */
     public static SingleHiddenMotifMixture getTrainedSHM(Properties props) throws NonParsableException, IOException {
         String trainedSHMfile = Config.getProperty(props, "input.model.shm", false).asString();
-        StringBuffer xml = FileManager.readFile(new File(trainedSHMfile));
-        SingleHiddenMotifMixture bestShm = new SingleHiddenMotifMixture(xml);
+        SingleHiddenMotifMixture bestShm;
+        if (BinaryModelFormat.isBinary(trainedSHMfile)) {
+            bestShm = (SingleHiddenMotifMixture) BinaryModelFormat.load(trainedSHMfile);
+        } else {
+            bestShm = new SingleHiddenMotifMixture(FileManager.readFile(new File(trainedSHMfile)));
+        }
         if (!bestShm.isTrained()) {
             throw new IllegalArgumentException("Tried to load an untrained SingleHiddenMotifMixture");
         }
         return bestShm;
     }
+
+    /**
+     * Saves the given model in the given file. If the name of the file ends with {@link BinaryModelFormat#EXTENSION},
+     * the {@link BinaryModelFormat} is used, XML otherwise.
+     * 
+     * @throws IOException
+     */
+    public static void saveModel(Model model, String fileName) throws IOException {
+        if (fileName.endsWith(BinaryModelFormat.EXTENSION)) {
+            BinaryModelFormat.save(model, fileName);
+        } else {
+            FileUtil.writeFile(fileName, model.toXML().toString());
+        }
+    }
+
+    /**
+     * Collects the {@link AbstractPhyloModel}s of the given models, {@link SingleHiddenMotifMixture}s and
+     * {@link StrandModel}s are searched recursively. Used to change the {@link ModelContext} of loaded models.
+     * 
+     * @return the {@link AbstractPhyloModel}s of the given models
+     */
+    public static List<AbstractPhyloModel> getPhyloModels(Model... models) {
+        List<AbstractPhyloModel> phyloModels = new ArrayList<AbstractPhyloModel>();
+        for (Model model : models) {
+            if (model instanceof AbstractPhyloModel) {
+                phyloModels.add((AbstractPhyloModel) model);
+            } else if (model instanceof AbstractMixtureModel) {
+                phyloModels.addAll(getPhyloModels(((AbstractMixtureModel) model).model));
+            }
+        }
+        return phyloModels;
+    }
+
+    /**
+     * Disables the caching of all {@link AbstractPhyloModel}s of the given models and the cloning of all
+     * {@link PhyloBayesModel}s, as needed for the classification of large test sets.
+     */
+    public static void prepareForClassification(Model... models) {
+        for (AbstractPhyloModel model : getPhyloModels(models)) {
+            model.getContext().enableCaching = false;
+            if (model instanceof PhyloBayesModel) {
+                model.getContext().cloningAllowed = false;
+            }
+        }
+    }
+
+    /**
+     * Sets {@link ModelContext#assumeFilteredData} of all {@link PhyloBayesModel}s of the given models to fg and of all
+     * {@link PhyloBackground}s to bg.
+     */
+    public static void setAssumeFilteredData(int fg, int bg, Model... models) {
+        for (AbstractPhyloModel model : getPhyloModels(models)) {
+            if (model instanceof PhyloBayesModel) {
+                model.getContext().assumeFilteredData = fg;
+            } else if (model instanceof PhyloBackground) {
+                model.getContext().assumeFilteredData = bg;
+            }
+        }
+    }
 }
@@ -1,15 +1,15 @@
 package models;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import algorithm.MeanFieldForBayesNet;
-import algorithm.SimpleNodeElimination;
 import bayesNet.BayesNet;
 import bayesNet.BayesNetHandler;
+import bayesNet.CompiledBayesNet;
 import de.jstacs.NonParsableException;
 import de.jstacs.NotTrainedException;
 import de.jstacs.data.AlphabetContainer;
@@ -22,6 +22,7 @@ import de.jstacs.utils.DoubleList;
 import de.jstacs.utils.Normalisation;
 import evolution.EvolModel;
 import io.Alphabet;
+import io.ColumnPatterns;
 import optimizing.AbstractFreeEnergyOptimizer;
 import optimizing.FE_byParameter_ForBayesNodeJstacs;
 import optimizing.PreparedConditions;
@@ -35,12 +36,21 @@ import util.Util;
 public class PhyloBackground extends AbstractPhyloModel {
 	private static Logger LOGGER = Logger.getLogger(PhyloBackground.class);
 
+	/*
+	 * The following flags are the defaults of the ModelContext of new models, see #createContext(). Changing them does
+	 * not affect existing models, use getContext() instead.
+	 */
+
 	/** If filtered data is assumed another optimizer must be used */
 	public static int ASSUME_FILTERED_DATA = 0;
 
 	public static boolean TRAIN_MOTIF = true;
 	/** Shows if the edgle-lenghts should be learned during training */
 	public static boolean EDGE_LEARNING = false;
+	/**
+	 * Should the likelihood be calculated instead of free energy. For order 0 Felsenstein's algorithm is used, otherwise
+	 * the whole net is eliminated (may be very slow)
+	 */
 	public static boolean CALC_LOGLIKELIHOOD = false;
 	public static boolean CLONING_ALLOWED = true;
 
@@ -57,6 +67,7 @@ public class PhyloBackground extends AbstractPhyloModel {
 	public PhyloBackground(byte order, String newickString, AlphabetContainer con) {
 		super(con, order, 0);
 		bnh = buildStructure(newickString);
+		bnh.setContext(getContext());
 		fillParameter(false);
 	}
 
@@ -64,6 +75,20 @@ public class PhyloBackground extends AbstractPhyloModel {
 		super(xml);
 	}
 
+	/**
+	 * Constructor to instantiate a trained {@link PhyloBackground} from its parts, used by {@link BinaryModelFormat} and
+	 * {@link #clone()}
+	 * 
+	 * @param bnh
+	 *            the net with the parameters, must match order
+	 */
+	public PhyloBackground(byte order, BayesNetHandler bnh, AlphabetContainer con) {
+		super(con, order, 0);
+		this.bnh = bnh;
+		bnh.setSimpleRoot();
+		bnh.setContext(getContext());
+	}
+
 	public void preTrain(Sample data) {
 		int org = ((MultiDimensionalDiscreteSequence) data.getElementAt(0)).getEmptyContainer().length;
 		int a = (int) data.getAlphabetContainer().getAlphabetAt(0).length() - 1;
@@ -113,28 +138,23 @@ public class PhyloBackground extends AbstractPhyloModel {
 		long startTime = System.currentTimeMillis();
 		// extends the weights from sequencelevel to nucleotide level
 		double[] internalWeigths = weights != null ? extendWeights(data, weights) : null;
-		int size = 0;
-		for (int i = 0; i < data.getNumberOfElements(); i++) {
-			size += data.getElementAt(i).getLength() - order;
-		}
 
+		// zerlege jede Sequenz des samples in alle Teilsequenzen, identical windows are only used once
+		ColumnPatterns patterns = new ColumnPatterns(data, internalWeigths, order + 1);
+		internalWeigths = patterns.weights;
+
+		ModelContext context = getContext();
 		/* singlethreading */
-		MeanFieldForBayesNet[] tmpPointer = new MeanFieldForBayesNet[size];
-		// zerlege jede Sequenz des samples in alle Teilsequenzen
-		Sequence<?> subseq;
-		int p = 0;
-		LOGGER.info("Optimizing " + tmpPointer.length + " MeanFields of background.");
-		for (int i = 0; i < data.getNumberOfElements(); i++) {
-			for (int u = 0; u < data.getElementAt(i).getLength() - order; u++) {
-				subseq = data.getElementAt(i).getSubSequence(u, order + 1);
-				tmpPointer[p] = getMFfromCache(subseq);
-				tmpPointer[p].optimizeByNormalisation();
-				p++;
-			}
+		MeanFieldForBayesNet[] tmpPointer = new MeanFieldForBayesNet[patterns.size()];
+		LOGGER.info("Optimizing " + tmpPointer.length + " MeanFields of background for " + patterns.numberOfWindows
+				+ " windows.");
+		for (int p = 0; p < tmpPointer.length; p++) {
+			tmpPointer[p] = getMFfromCache(patterns.windows[p]);
+			tmpPointer[p].optimizeByNormalisation();
 		}
 		LOGGER.info("Optimized " + tmpPointer.length + " MeanFieldForBayesNet for background.");
 
-		if (TRAIN_MOTIF) {
+		if (context.trainMotif) {
 			LOGGER.info("Use AbstractFreeEnergyOptimizer.");
 			AbstractFreeEnergyOptimizer optPar = new FE_byParameter_ForBayesNodeJstacs();
 			optPar.setModel(this);
@@ -142,29 +162,38 @@ public class PhyloBackground extends AbstractPhyloModel {
 			optPar.setTerminationCondition(PreparedConditions.SMALL_DIFFERENCE_OF_FUNCTIONS.clone());
 			optPar.setWeights(internalWeigths);
 
-			for (int k = 0; k < bnh.motifLength; k++) {
-				((FE_byParameter_ForBayesNodeJstacs) optPar).initPosition(k);
-				optPar.startOptimizing(false);
+			if (context.parallelPositions) {
+				optPar.optimizePositionsInParallel(bnh.motifLength);
+			} else {
+				for (int k = 0; k < bnh.motifLength; k++) {
+					((FE_byParameter_ForBayesNodeJstacs) optPar).initPosition(k);
+					optPar.startOptimizing(false);
+				}
 			}
 
-			if (ASSUME_FILTERED_DATA > 0) {
+			if (context.assumeFilteredData > 0) {
 				LOGGER.info("Use TemperatureOptimizer.");
 				optPar = new TemperatureOptimizer(false);
 				optPar.setVariationalLikelihood(tmpPointer);
 				optPar.setModel(this);
+				optPar.setWeights(internalWeigths);
 				optPar.startOptimizing(false);
 				LOGGER.info("Learned Temperture (0) = " + bnh.getVirtualTree(0).TEMPERATURE);
 			}
 		}
 
-		if (EDGE_LEARNING) {
-			EdgeOptimizer edgeOptimizer = new EdgeOptimizer(false, EDGE_LEARNING_ONE_LENGTH);
+		if (context.edgeLearning > 0) {
+			EdgeOptimizer edgeOptimizer = new EdgeOptimizer(false, context.edgeLearningOneLength);
 			edgeOptimizer.setModel(this);
 			edgeOptimizer.setVariationalLikelihood(tmpPointer);
 			edgeOptimizer.setWeights(internalWeigths);
-			for (int k = 0; k < bnh.motifLength; k++) {
-				edgeOptimizer.initPosition(k);
-				edgeOptimizer.startOptimizing(false);
+			if (context.parallelPositions) {
+				edgeOptimizer.optimizePositionsInParallel(bnh.motifLength);
+			} else {
+				for (int k = 0; k < bnh.motifLength; k++) {
+					edgeOptimizer.initPosition(k);
+					edgeOptimizer.startOptimizing(false);
+				}
 			}
 
 			LOGGER.info("----- New NewickStrings PhyloBackground (" + (order + 1) + ")");
@@ -172,6 +201,7 @@ public class PhyloBackground extends AbstractPhyloModel {
 				LOGGER.info(bnh.getVirtualTree(k).getNewickString());
 			}
 		}
+		LOGGER.debug(getMFCache());
 		LOGGER.info("Finished Training in " + (System.currentTimeMillis() - startTime) + " milli seconds.");
 	}
 
@@ -185,6 +215,8 @@ public class PhyloBackground extends AbstractPhyloModel {
 		return extended.toArray();
 	}
 
+	// the raw Sequence is dictated by the Model interface of Jstacs
+	@SuppressWarnings("rawtypes")
 	public double getLogProbFor(Sequence sequence, int startpos, int endpos) throws IllegalArgumentException, NotTrainedException {
 		return getLogProbFor((MultiDimensionalDiscreteSequence) sequence, startpos, endpos);
 	}
@@ -193,42 +225,27 @@ public class PhyloBackground extends AbstractPhyloModel {
 		return (byte) (order);
 	}
 
-	// this caching speedups the Calculation of getLogProbFor by factor of five
-	private HashMap<MultiDimensionalDiscreteSequence, HashMap<Integer, HashMap<Integer, Double>>> _cachedScores = new HashMap<MultiDimensionalDiscreteSequence, HashMap<Integer, HashMap<Integer, Double>>>();
+	/** maximal number of scores cached by each instance, see {@link ScoreCache} */
+	public static long SCORE_CACHE_CAPACITY = 1 << 22;
+
+	// the scores of all positions of each sequence, so each call of getLogProbFor needs constant time
+	private transient ScoreCache _cachedScores = new ScoreCache(SCORE_CACHE_CAPACITY);
+
+	/** the compiled net the cached scores were calculated for, guarded by {@link #_cachedScores} */
+	private transient CompiledBayesNet _cachedNet;
 
 	/** cleans the cache */
 	public void cleanCache() {
 		_cachedScores.clear();
 	}
 
-	/** true: if a score was already computed */
-	public boolean isScoreCached(MultiDimensionalDiscreteSequence sequence, int startpos, int endpos) {
-		if (_cachedScores.containsKey(sequence) && _cachedScores.get(sequence).containsKey(startpos)
-		        && _cachedScores.get(sequence).get(startpos).containsKey(endpos)) {
-			return true;
-		} else {
-			return false;
-		}
-	}
-
-	/** inits needed HashMaps for storing a score */
-	public void prepareCache(MultiDimensionalDiscreteSequence sequence, int startpos, int endpos, double score) {
-		if (!_cachedScores.containsKey(sequence)) {
-			_cachedScores.put(sequence, new HashMap<Integer, HashMap<Integer, Double>>());
-		}
-
-		if (!_cachedScores.get(sequence).containsKey(startpos)) {
-			_cachedScores.get(sequence).put(startpos, new HashMap<Integer, Double>());
-		}
-
-		_cachedScores.get(sequence).get(startpos).put(endpos, score);
-	}
-
-	public long count = 0;
-	public static long calls = 0;
+	/** number of windows scored by a meanfield */
+	public final AtomicLong count = new AtomicLong();
 
 	/**
-	 * Calculates the log probability for the given {@link MultiDimensionalDiscreteSequence} from starpos to endpos
+	 * Calculates the log probability for the given {@link MultiDimensionalDiscreteSequence} from starpos to endpos. The
+	 * scores of all positions of the sequence are calculated once and cached as prefix sums, so each call needs constant
+	 * time until the parameters change.
 	 * 
 	 * @param sequence
 	 * @param startpos
@@ -243,65 +260,125 @@ public class PhyloBackground extends AbstractPhyloModel {
 			return 0;
 		}
 		this.check(sequence, startpos, endpos);
-		// if the score for this sequence and this start and endpos was already calculated, return it.
-		if (isScoreCached(sequence, startpos, endpos)) {
-			return _cachedScores.get(sequence).get(startpos).get(endpos);
+		if (endpos - startpos < order) {
+			return getShortLogProbFor(sequence, startpos, endpos);
 		}
-		String oldToplogy = this.getBNH().getVirtualTree(0).getNewickString();
-		if (sequence.learnedTopology != null) {
-			this.reinitEdgelengths(sequence.learnedTopology);
+		double[][] scores = getScores(sequence);
+		// the first order positions are scored without full context, all others by their window
+		double logProb = scores[0][endpos + 1] - scores[0][startpos + order];
+		if (order > 0) {
+			logProb += scores[1][startpos];
 		}
+		return logProb;
+	}
 
-		Sequence<?> subseq = null;
-		int seqLength = endpos - startpos + 1; // startpos and endpos are inclusive
-
-		ArrayList<MeanFieldForBayesNet> tmpPointer = new ArrayList<MeanFieldForBayesNet>();
-		// first position
-		subseq = sequence.getSubSequence(startpos, Math.min(order + 1, seqLength));
-		tmpPointer.add(getMFfromCache(subseq));
-		// divide the sequence in subsequences of length of order
-		for (int u = startpos + 1; u <= endpos - order; u++) {
-			subseq = sequence.getSubSequence(u, order + 1);
-			tmpPointer.add(getMFfromCache(subseq));
+	/**
+	 * Returns the scores of all positions of the given sequence, calculated for each window of length order + 1. Equal
+	 * windows are only calculated once.
+	 * 
+	 * @return the prefix sums (see {@link ScoreCache#toPrefixSums(double[])}) of the scores of the last position of each
+	 *         window and, for order > 0, the summed scores of the first order positions of each window
+	 */
+	private double[][] getScores(MultiDimensionalDiscreteSequence sequence) {
+		CompiledBayesNet compiledNet = bnh.getCompiledNet();
+		synchronized (_cachedScores) {
+			if (_cachedNet != compiledNet) {
+				_cachedScores.clear();
+				_cachedNet = compiledNet;
+			}
+		}
+		double[][] scores = _cachedScores.get(sequence, getScoreVersion(), sequence.learnedTopology);
+		if (scores != null) {
+			return scores;
+		}
+		int[] patterns = ColumnPatterns.getPatternIds(sequence, 0, sequence.getLength(), order + 1);
+		double[][] windowScores = new double[patterns.length][];
+		double[] positionScores = new double[sequence.getLength()];
+		double[] startScores = new double[order > 0 ? patterns.length : 0];
+		BayesNetHandler net = getNetForAlignment(sequence);
+		try {
+			MeanFieldForBayesNet mf = null;
+			for (int u = 0; u < patterns.length; u++) {
+				if (windowScores[patterns[u]] == null) {
+					Sequence<int[]> window = getWindow(sequence, u, order + 1);
+					if (mf == null) {
+						mf = new MeanFieldForBayesNet(net, window);
+						mf.initObservation();
+						mf.init();
+					} else {
+						mf.moveTo(window);
+					}
+					windowScores[patterns[u]] = getWindowScores(mf);
+					count.incrementAndGet();
+				}
+				double[] w = windowScores[patterns[u]];
+				positionScores[u + order] = w[order];
+				for (int i = 0; i < order; i++) {
+					startScores[u] += w[i];
+				}
+			}
+		} finally {
+			releaseNet(net);
 		}
 
-		// calculate log probability
-		double logSum = 0;
-		tmpPointer.get(0).initObservation();
-		tmpPointer.get(0).init();
-		tmpPointer.get(0).optimizeByNormalisation();
-		for (int i = 0; i < order && startpos <= endpos; i++, startpos++) {
-			if (CALC_LOGLIKELIHOOD) {
-				SimpleNodeElimination.instantiate(bnh.getNet());
-				logSum -= tmpPointer.get(0).calcLogLikelihood();
-				// logSum -= tmpPointer.get(0).calcLogLikelihood(i-1, i); //TODO: NodeSumming is buggy
-			} else {
-				logSum += tmpPointer.get(0).calcFreeEnergy(i, i);
+		scores = new double[][] { ScoreCache.toPrefixSums(positionScores), startScores };
+		synchronized (_cachedScores) {
+			// the net may have been recompiled by another thread in the meantime
+			if (_cachedNet == compiledNet) {
+				_cachedScores.put(sequence, getScoreVersion(), sequence.learnedTopology, scores);
 			}
-			count++;
-			// System.out.println("1 " + " " + pref + " = " + -logSum);
 		}
-		for (int i = 0; i < tmpPointer.size() && startpos <= endpos; i++, startpos++) {
-			tmpPointer.get(i).initObservation();
-			tmpPointer.get(i).init();
-			tmpPointer.get(i).optimizeByNormalisation();
-			if (CALC_LOGLIKELIHOOD) {
-				SimpleNodeElimination.instantiate(bnh.getNet());
-				logSum -= tmpPointer.get(i).calcLogLikelihood();
-				// logSum -= tmpPointer.get(i).calcLogLikelihood(); //TODO: NodeSumming is buggy
-			} else {
-				logSum += tmpPointer.get(i).calcFreeEnergy(order, order);
+		return scores;
+	}
+
+	/** getSubSequence of {@link MultiDimensionalDiscreteSequence} returns a raw {@link Sequence} of int[] */
+	@SuppressWarnings("unchecked")
+	private static Sequence<int[]> getWindow(MultiDimensionalDiscreteSequence sequence, int start, int length) {
+		return sequence.getSubSequence(start, length);
+	}
+
+	/** @return the score of each position of the window of mf */
+	private double[] getWindowScores(MeanFieldForBayesNet mf) {
+		double[] scores = new double[order + 1];
+		if (getContext().calcLogLikelihood) {
+			// position i is scored given the positions before, so the scores add up to the likelihood of the window
+			for (int i = 0; i < mf.seq.getLength(); i++) {
+				scores[i] = mf.calcLogLikelihood(i, i);
+			}
+		} else {
+			mf.optimizeByNormalisation();
+			for (int i = 0; i <= order; i++) {
+				scores[i] = -mf.calcFreeEnergy(i, i);
 			}
-			count++;
-			// System.out.println("2 " + " " + pref + " = " + -logSum);
 		}
-		prepareCache(sequence, startpos, endpos, -logSum);
-		// System.out.println(pref + " = " + -logSum);
+		return scores;
+	}
 
-		if (sequence.learnedTopology != null) {
-			this.reinitEdgelengths(oldToplogy);
+	/** Calculates the log probability of subsequences shorter than order + 1, which are not cached */
+	private double getShortLogProbFor(MultiDimensionalDiscreteSequence sequence, int startpos, int endpos) {
+		int seqLength = endpos - startpos + 1;
+		BayesNetHandler net = getNetForAlignment(sequence);
+		double[] scores;
+		try {
+			MeanFieldForBayesNet mf = new MeanFieldForBayesNet(net, getWindow(sequence, startpos, seqLength));
+			mf.initObservation();
+			mf.init();
+			scores = getWindowScores(mf);
+		} finally {
+			releaseNet(net);
 		}
-		return -logSum;
+		double logProb = 0;
+		for (int i = 0; i < seqLength; i++) {
+			logProb += scores[i];
+		}
+		count.addAndGet(seqLength);
+		return logProb;
+	}
+
+	/** @return the version of the parameters and flags the cached scores depend on */
+	private long getScoreVersion() {
+		return 4 * getParameterVersion() + (getContext().calcLogLikelihood ? 2 : 0)
+		        + (getContext().allowIndependentTransitions ? 1 : 0);
 	}
 
 	@Override
@@ -332,6 +409,7 @@ public class PhyloBackground extends AbstractPhyloModel {
 		XMLParser.addTags(xml, "_bnh");
 		XMLParser.appendObjectWithTags(xml, order, "order");
 		XMLParser.appendObjectWithTags(xml, alphabets, "alphabets");
+		XMLParser.appendObjectWithTags(xml, getContext(), "context");
 		return xml;
 	}
 
@@ -342,29 +420,45 @@ public class PhyloBackground extends AbstractPhyloModel {
 		order = (Byte) XMLParser.extractObjectForTags(xml, "order");
 		bnh = new BayesNetHandler(XMLParser.extractForTag(xml, "_bnh"));
 		bnh.setSimpleRoot();
+		// models written before the context was stored get the static defaults
+		if (XMLParser.hasTag(xml, "context", null, null)) {
+			setContext((ModelContext) XMLParser.extractObjectForTags(xml, "context"));
+		} else {
+			bnh.setContext(getContext());
+		}
 		trained = true;
 	}
 
 	@Override
 	public PhyloBackground clone() {
-		if (!CLONING_ALLOWED)
+		if (!getContext().cloningAllowed)
 			return this;
-		StringBuffer xml = this.toXML();
-		try {
-			return new PhyloBackground(xml);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return this;
+		// structural copy of the net, no detour over the XML representation
+		PhyloBackground bg = new PhyloBackground(order, bnh.copy(), alphabets);
+		bg.setContext(new ModelContext(getContext()));
+		return bg;
 	}
 
 	// #########################################################################
 	// ########################### Hilfsfunktionen #############################
 	// #########################################################################
+	/** @return a new context initialised with the static flags of {@link PhyloBackground} */
+	@Override
+	protected ModelContext createContext() {
+		ModelContext context = new ModelContext();
+		context.trainMotif = TRAIN_MOTIF;
+		context.edgeLearning = EDGE_LEARNING ? 1 : 0;
+		context.calcLogLikelihood = CALC_LOGLIKELIHOOD;
+		context.cloningAllowed = CLONING_ALLOWED;
+		context.assumeFilteredData = ASSUME_FILTERED_DATA;
+		return context;
+	}
+
 	public void fillParameter(boolean random) {
-		EvolModel gfs = EvolModel.getInstance(1);
+		String modelClass = getContext().evolModelClass;
+		EvolModel gfs;
 		for (int i = 0; i < bnh.getVirtualTrees().length; i++) {
-			gfs = EvolModel.getInstance((int) Math.pow(Alphabet.size, bnh.getVirtualTree(i).getNode(0).numberOfParents));
+			gfs = EvolModel.getInstance(modelClass, (int) Math.pow(Alphabet.size, bnh.getVirtualTree(i).getNode(0).numberOfParents));
 			bnh.getVirtualTree(i).setEvolModel(gfs);
 			if (random) {
 				bnh.getVirtualTree(i).getEvolModel().setStatDistr(Util.getRandomStochMatrix(gfs.getDimension(), Alphabet.size));
@@ -397,38 +491,20 @@ public class PhyloBackground extends AbstractPhyloModel {
 		return bnh;
 	}
 
-	/** Emitiert ein zuf�lliges Alignment */
+	/**
+	 * Draws a random alignment of the given length by an {@link AlignmentSimulator} seeded by {@link Util#getRandom()}.
+	 * Use {@link AlignmentSimulator} directly to draw many alignments.
+	 */
 	public String[] emitSample(int length) {
-		// TODO: iMM(1+)
-		int org = bnh.getVirtualTree(0).numberOfLeafs;
-		String[] seq = new String[org];
-		for (int o = 0; o < org; o++) {
-			seq[o] = "";
-		}
-		// generiere eine initiale vollst�ndige Beobachtung f�r das Netz
-		int[] oldObs;
-		int[] fullObs = bnh.drawFullObservation();
-		for (int i = 0; i <= order && i < length; i++) {
-			for (int o = 0; o < org; o++) {
-				alphabets.getSymbol(0, fullObs[bnh.getVirtualTree(i).getLeaf(o).nodeNumber]);
-			}
-		}
-
-		// generiere f�r alle weiteren Positionen die Volls�ndigen beobachtungen
-		// mit Erinnerung an die Alte
-		for (int u = order + 1; u < length; u++) {
-			oldObs = new int[bnh.getNet().numberOfNodes];
-			Arrays.fill(oldObs, -1);
-			// verschieben der Beobachtung um eine Position nach links
-			for (int i = 1; i <= order; i++) {
-				for (int k = 0; k < bnh.getVirtualTree(i).numberOfNodes; k++) {
-					oldObs[bnh.getVirtualTree(i - 1).getNode(k).nodeNumber] = fullObs[bnh.getVirtualTree(i).getNode(k).nodeNumber];
-				}
-			}
-			for (int o = 0; o < org; o++) {
-				alphabets.getSymbol(0, fullObs[bnh.getVirtualTree(order).getLeaf(o).nodeNumber]);
+		byte[][] content = new byte[bnh.getVirtualTree(0).numberOfLeafs][length];
+		new AlignmentSimulator(this).drawBackground(new SplittableRandom(Util.getRandom().nextLong()), length, content);
+		String[] seq = new String[content.length];
+		for (int o = 0; o < seq.length; o++) {
+			StringBuilder sb = new StringBuilder(length);
+			for (int u = 0; u < length; u++) {
+				sb.append(alphabets.getSymbol(0, content[o][u]));
 			}
-			fullObs = bnh.drawFullObservation(oldObs);
+			seq[o] = sb.toString();
 		}
 		return seq;
 	}
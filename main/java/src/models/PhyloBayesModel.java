@@ -5,9 +5,9 @@ import java.util.Arrays;
 import org.apache.log4j.Logger;
 
 import algorithm.MeanFieldForBayesNet;
-import algorithm.SimpleNodeElimination;
 import bayesNet.BayesNet;
 import bayesNet.BayesNetHandler;
+import bayesNet.CompiledBayesNet;
 import de.jstacs.NonParsableException;
 import de.jstacs.NotTrainedException;
 import de.jstacs.data.AlphabetContainer;
@@ -20,7 +20,7 @@ import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
 import de.jstacs.results.NumericalResultSet;
 import evolution.EvolModel;
 import io.Alphabet;
-import io.PhyloSample;
+import io.ColumnPatterns;
 import io.SequenceSpecificDataSelector;
 import optimizing.AbstractFreeEnergyOptimizer;
 import optimizing.FE_byParameter_ForBayesNodeJstacs;
@@ -39,6 +39,11 @@ import util.Util;
 public class PhyloBayesModel extends AbstractPhyloModel {
 	private static Logger LOGGER = Logger.getLogger(PhyloBayesModel.class);
 
+    /*
+     * The following flags are the defaults of the ModelContext of new models, see #createContext(). Changing them does
+     * not affect existing models, use getContext() instead.
+     */
+
     /** if true, the motif will be trained by calling #train() */
     public static boolean TRAIN_MOTIF = true;
 
@@ -50,7 +55,10 @@ public class PhyloBayesModel extends AbstractPhyloModel {
      */
     public static int EDGE_LEARNING = 0;
 
-    /** Should the likelihood be calculated instead of free energy (may be very slow) */
+    /**
+     * Should the likelihood be calculated instead of free energy. For order 0 Felsenstein's algorithm is used,
+     * otherwise the whole net is eliminated (may be very slow)
+     */
     public static boolean CALC_LOGLIKELIHOOD = false;
 
     /** During the training phase nothing will be done before this iteration is reached */
@@ -78,6 +86,9 @@ public class PhyloBayesModel extends AbstractPhyloModel {
     /** Remember the last Sample for training */
     private Sample lastData;
 
+    /** the last scan of each thread, see {@link #getLogProbFor(Sequence, int, int)} */
+    private final ThreadLocal<Scan> scans = ThreadLocal.withInitial(Scan::new);
+
     /**
      * Constructor for instantiating a {@link PhyloBayesModel}.
      * 
@@ -93,6 +104,7 @@ public class PhyloBayesModel extends AbstractPhyloModel {
     public PhyloBayesModel(int motifLength, byte order, String newickString, AlphabetContainer con) {
         super(con, order, motifLength);
         bnh = buildStructureSimpleForBasicModel(newickString);
+        bnh.setContext(getContext());
         fillParameter(true);
     }
 
@@ -101,6 +113,20 @@ public class PhyloBayesModel extends AbstractPhyloModel {
         super(xml);
     }
 
+    /**
+     * Constructor to instantiate a trained {@link PhyloBayesModel} from its parts, used by {@link BinaryModelFormat} and
+     * {@link #clone()}
+     * 
+     * @param bnh
+     *            the net with the parameters, must match motifLength and order
+     */
+    public PhyloBayesModel(int motifLength, byte order, BayesNetHandler bnh, AlphabetContainer con) {
+        super(con, order, motifLength);
+        this.bnh = bnh;
+        bnh.setSimpleRoot();
+        bnh.setContext(getContext());
+    }
+
     /** @return PhyloBayesModel#getLength() */
     public int getMotifLength() {
         return getLength();
@@ -130,28 +156,30 @@ public class PhyloBayesModel extends AbstractPhyloModel {
             return;
         }
 
+        ModelContext context = getContext();
         SequenceSpecificDataSelector tdm = new SequenceSpecificDataSelector(data, weights);
         tdm.prepareForTraining(PROB_THRESH_FOR_WEIGHTS, MOTIF_QUALITY_THRESHOLD);
 		LOGGER.info("Using " + (tdm.weightsForTraining.length) + " of " + weights.length + " for training.");
-        MeanFieldForBayesNet[] tmpPointer = new MeanFieldForBayesNet[tdm.weightsForTraining.length];
-        double[] myWeights = tdm.weightsForTraining;
+        // identical alignment windows are represented by one meanfield
+        ColumnPatterns patterns = new ColumnPatterns(tdm.seqsForTraining, tdm.weightsForTraining);
+        MeanFieldForBayesNet[] tmpPointer = new MeanFieldForBayesNet[patterns.size()];
+        double[] myWeights = patterns.weights;
 
         // ##################### start Training ##################################################
         // optimize markov model parameters
         for (int s = 0; s < INTERNAL_TRAINING_REPEATS || trainingStep == 0 && s < INTERNAL_TRAINING_REPEATS_FIRST_STEP; s++) {
-            for (int m = 0; m < tdm.weightsForTraining.length; m++) {
-                tmpPointer[m] = this.getMFfromCache(tdm.seqsForTraining[m]);
+            for (int m = 0; m < tmpPointer.length; m++) {
+                tmpPointer[m] = this.getMFfromCache(patterns.windows[m]);
                 tmpPointer[m].initObservation();
                 tmpPointer[m].optimizeByNormalisation();
-                myWeights[m] = tdm.weightsForTraining[m];
             }
 			LOGGER.info("Optimizing " + tmpPointer.length + " MeanFieldForBayesNet for PhyloBayesModel.");
 
-            if (TRAIN_MOTIF) {
+            if (context.trainMotif) {
                 if (OPTIMIZE_IN_TOTO) {
                     AbstractFreeEnergyOptimizer optPar;
-                    if (ASSUME_FILTERED_DATA > 0) {
-                        if (ASSUME_FILTERED_DATA != 1) {
+                    if (context.assumeFilteredData > 0) {
+                        if (context.assumeFilteredData != 1) {
                             throw new IllegalArgumentException("Cant learn local temperatures and motif at once.");
                         }
 						LOGGER.info("Use TemperatureBasedMotifParamOptimizer.");
@@ -172,15 +200,19 @@ public class PhyloBayesModel extends AbstractPhyloModel {
                     optPar.setModel(this);
                     optPar.setWeights(myWeights);
 
-                    int order[] = PWMUtil.getRandomOrder(length);
-                    for (int k = 0; k < bnh.motifLength; k++) {
-                        ((FE_byParameter_ForBayesNodeJstacs) optPar).initPosition(order[k]);
-                        optPar.startOptimizing(false);
+                    if (context.parallelPositions) {
+                        optPar.optimizePositionsInParallel(bnh.motifLength);
+                    } else {
+                        int order[] = PWMUtil.getRandomOrder(length);
+                        for (int k = 0; k < bnh.motifLength; k++) {
+                            ((FE_byParameter_ForBayesNodeJstacs) optPar).initPosition(order[k]);
+                            optPar.startOptimizing(false);
+                        }
                     }
 
-                    if (ASSUME_FILTERED_DATA > 0) {
+                    if (context.assumeFilteredData > 0) {
 						LOGGER.info("Use TemperatureOptimizer.");
-                        optPar = new TemperatureOptimizer(ASSUME_FILTERED_DATA == 2);
+                        optPar = new TemperatureOptimizer(context.assumeFilteredData == 2);
                         optPar.setVariationalLikelihood(tmpPointer);
                         optPar.setModel(this);
                         optPar.setWeights(myWeights);
@@ -190,16 +222,20 @@ public class PhyloBayesModel extends AbstractPhyloModel {
             }
 
             // optimize edges
-            if (EDGE_LEARNING == 1) {
-                EdgeOptimizer edgeOptimizer = new EdgeOptimizer(false, EDGE_LEARNING_ONE_LENGTH);
+            if (context.edgeLearning == 1) {
+                EdgeOptimizer edgeOptimizer = new EdgeOptimizer(false, context.edgeLearningOneLength);
                 edgeOptimizer.setModel(this);
                 edgeOptimizer.setVariationalLikelihood(tmpPointer);
                 edgeOptimizer.setWeights(myWeights);
-                for (int k = 0; k < bnh.motifLength; k++) {
-                    edgeOptimizer.initPosition(k);
-                    edgeOptimizer.startOptimizing(false);
+                if (context.parallelPositions) {
+                    edgeOptimizer.optimizePositionsInParallel(bnh.motifLength);
+                } else {
+                    for (int k = 0; k < bnh.motifLength; k++) {
+                        edgeOptimizer.initPosition(k);
+                        edgeOptimizer.startOptimizing(false);
+                    }
                 }
-            } else if (EDGE_LEARNING == 2) {
+            } else if (context.edgeLearning == 2) {
                 // TODO: GlobalSingleEdgeOptimizer
                 GlobalEdgeOptimizer edgeOptimizer = new GlobalEdgeOptimizer();
                 edgeOptimizer.setModel(this);
@@ -208,62 +244,174 @@ public class PhyloBayesModel extends AbstractPhyloModel {
                 edgeOptimizer.startOptimizing(false);
             }
         }
-        if (EDGE_LEARNING > 0) {
+        if (context.edgeLearning > 0) {
 			LOGGER.info("----- New NewickStrings -----");
             for (int k = 0; k < bnh.motifLength; k++) {
 				LOGGER.info(bnh.getVirtualTree(k).getNewickString());
             }
         }
+		LOGGER.info(getMFCache());
 		LOGGER.info("Finished Training in " + (System.currentTimeMillis() - startTime) + " milli seconds.");
         trainingStep++;
     }
 
+    /**
+     * Returns the score of the window startpos, ..., endpos. The scores of the last requested sequence are kept per
+     * thread until another sequence is requested or the parameters change, so several threads can score with the same
+     * model.
+     * <p>
+     * Note that the cost of a call depends on the previous calls of the thread. The first request for a sequence scores
+     * only the requested window. The first request for another window of the same sequence scores all windows of the
+     * sequence at once by {@link #scanAll(Sequence)}, and all further requests are answered from these scores. So
+     * scoring each offset of a sequence, like {@link SingleHiddenMotifMixture} does, costs one scan, while a caller
+     * scoring two windows of a long sequence pays for a scan of the whole sequence. The scores do not depend on the
+     * order of the requests.
+     */
     @Override
+    @SuppressWarnings("rawtypes")
     public double getLogProbFor(Sequence sequence, int startpos, int endpos)
             throws IllegalArgumentException, NotTrainedException {
-        MeanFieldForBayesNet tmpPointer;
-        this.check(sequence, startpos, endpos);
-        Sequence<int[]> subSequence = sequence.getSubSequence(startpos, endpos - startpos + 1);
+        Scan scan = scans.get();
+        if (sequence != scan.sequence || !scan.isUpToDate()) {
+            this.check(sequence, startpos, endpos);
+            scan.sequence = sequence;
+            scan.window = startpos;
+            scan.scores = scan(sequence, startpos, 1);
+            scan.all = false;
+            scan.setState();
+        } else if (startpos < 0 || startpos + length > sequence.getLength() || endpos - startpos + 1 != length) {
+            this.check(sequence, startpos, endpos);
+        } else if (startpos != scan.window && !scan.all) {
+            scan.scores = scanAll(sequence);
+            scan.window = 0;
+            scan.all = true;
+        }
+        return scan.scores[startpos - scan.window];
+    }
+
+    /**
+     * Calculates the score of each window of the given sequence, i.e. scores[u] is the score of the window u, ..., u +
+     * length - 1, equal to the score of a single window. All windows are calculated by one meanfield which is moved
+     * along the sequence. For order 0 the positions of the motif are independent, so the score of a position is only
+     * calculated once for each distinct column of the sequence and shared by all windows covering this column.
+     *
+     * @return the scores, an empty array if the sequence is shorter than the motif
+     */
+    public double[] scanAll(Sequence<?> sequence) throws IllegalArgumentException, NotTrainedException {
+        int numberOfWindows = sequence.getLength() - length + 1;
+        if (numberOfWindows <= 0) {
+            return new double[0];
+        }
+        this.check(sequence, 0, length - 1);
+        return scan(sequence, 0, numberOfWindows);
+    }
+
+    /** calculates the scores of the windows first, ..., first + numberOfWindows - 1, see {@link #scanAll(Sequence)} */
+    @SuppressWarnings("unchecked")
+    private double[] scan(Sequence<?> sequence, int first, int numberOfWindows) throws NotTrainedException {
         MultiDimensionalDiscreteSequence parent;
+        int offset = 0;
         if (sequence instanceof MultiDimensionalDiscreteSequence) {
             parent = (MultiDimensionalDiscreteSequence) sequence;
         } else {
-            parent = (MultiDimensionalDiscreteSequence) ((SubSequence<?>) subSequence).getParent();
+            parent = (MultiDimensionalDiscreteSequence) ((SubSequence<?>) sequence).getParent();
+            offset = ((SubSequence<?>) sequence).start;
         }
-        String[] oldTopologies = null;
-        String[] newTopologies = null;
+        final boolean likelihood = getContext().calcLogLikelihood;
+        double[] scores = new double[numberOfWindows];
         // if a topology from the dataset is available, use this to calculate the likelihood
-        if (parent.learnedTopology != null) {
-            oldTopologies = new String[this.getLength()];
-            newTopologies = new String[this.getLength()];
-
-            for (int i = 0; i < oldTopologies.length; i++) {
-                oldTopologies[i] = getBNH().getVirtualTree(i).getNewickString();
-            }
-            for (int i = 0; i < oldTopologies.length; i++) {
-                newTopologies[i] = PhyloSample.combineBranchLengths(parent.learnedTopology, oldTopologies[i], 1.0);
+        BayesNetHandler net = getNetForAlignment(parent);
+        try {
+            MeanFieldForBayesNet mf = new MeanFieldForBayesNet(net, (Sequence<int[]>) sequence.getSubSequence(first, length));
+            mf.initObservation();
+            mf.init();
+            if (order == 0) {
+                int[] columns = ColumnPatterns.getPatternIds(parent, offset + first, numberOfWindows + length - 1, 1);
+                int numberOfColumns = 0;
+                for (int c : columns) {
+                    numberOfColumns = Math.max(numberOfColumns, c + 1);
+                }
+                // score of each motif position for each distinct column
+                double[][] positionScores = new double[length][numberOfColumns];
+                for (int i = 0; i < length; i++) {
+                    Arrays.fill(positionScores[i], Double.NaN);
+                }
+                int window = 0;
+                for (int u = 0; u < numberOfWindows; u++) {
+                    for (int i = 0; i < length; i++) {
+                        double[] position = positionScores[i];
+                        if (Double.isNaN(position[columns[u + i]])) {
+                            if (window != u) {
+                                mf.moveTo((Sequence<int[]>) sequence.getSubSequence(first + u, length));
+                                window = u;
+                            }
+                            if (likelihood) {
+                                position[columns[u + i]] = mf.calcLogLikelihood(i, i);
+                            } else {
+                                mf.optimizeByNormalisation(i, i);
+                                position[columns[u + i]] = -mf.calcFreeEnergy(i, i);
+                            }
+                        }
+                        scores[u] += position[columns[u + i]];
+                    }
+                }
+            } else {
+                for (int u = 0; u < numberOfWindows; u++) {
+                    if (u > 0) {
+                        mf.moveTo((Sequence<int[]>) sequence.getSubSequence(first + u, length));
+                    }
+                    if (likelihood) {
+                        scores[u] = mf.calcLogLikelihood();
+                    } else {
+                        mf.optimizeByNormalisation();
+                        scores[u] = -mf.calcFreeEnergy();
+                    }
+                }
             }
-            this.reinitEdgelengths(newTopologies);
-            // this.reinitEdgelengths(parent.learnedTopology );
+        } finally {
+            releaseNet(net);
         }
+        return scores;
+    }
 
-        tmpPointer = this.getMFfromCache(subSequence);
-        tmpPointer.initObservation();
+    /** @return the topology learned for the alignment of the given sequence, null if there is none */
+    private static String getLearnedTopology(Sequence<?> sequence) {
+        if (sequence instanceof SubSequence) {
+            sequence = ((SubSequence<?>) sequence).getParent();
+        }
+        return ((MultiDimensionalDiscreteSequence) sequence).learnedTopology;
+    }
 
-        double logLikelihood = 0;
-        if (CALC_LOGLIKELIHOOD) {
-            SimpleNodeElimination.instantiate(bnh.getNet());
-            logLikelihood = tmpPointer.calcLogLikelihood();
-        } else {
-            tmpPointer.optimizeByNormalisation();
-            logLikelihood = -tmpPointer.calcFreeEnergy();
+    /** the scores of a sequence scored by {@link #getLogProbFor(Sequence, int, int)} and the state of the model */
+    private class Scan {
+        Sequence<?> sequence;
+        /** the scores of the windows window, window + 1, ... */
+        double[] scores;
+        int window;
+        /** true, if scores contains all windows of sequence */
+        boolean all;
+
+        CompiledBayesNet net;
+        long version;
+        String topology;
+        boolean likelihood, allowIndependent;
+
+        void setState() {
+            topology = getLearnedTopology(sequence);
+            net = bnh.getCompiledNet();
+            version = getParameterVersion();
+            likelihood = getContext().calcLogLikelihood;
+            allowIndependent = getContext().allowIndependentTransitions;
         }
 
-        // reset toplogies, if topologies from data set were uesed
-        if (parent.learnedTopology != null) {
-            this.reinitEdgelengths(oldTopologies);
+        /** @return true, if the model has not changed since the scores were calculated */
+        boolean isUpToDate() {
+            String current = getLearnedTopology(sequence);
+            return net == bnh.getCompiledNet() && version == getParameterVersion()
+                    && (current == null ? topology == null : current.equals(topology))
+                    && likelihood == getContext().calcLogLikelihood
+                    && allowIndependent == getContext().allowIndependentTransitions;
         }
-        return logLikelihood;
     }
 
     @Override
@@ -294,6 +442,7 @@ public class PhyloBayesModel extends AbstractPhyloModel {
         XMLParser.appendObjectWithTags(xml, order, "_order");
         XMLParser.appendObjectWithTags(xml, length, "modelLength");
         XMLParser.appendObjectWithTags(xml, alphabets, "alphabets");
+        XMLParser.appendObjectWithTags(xml, getContext(), "context");
         return xml;
     }
 
@@ -305,27 +454,41 @@ public class PhyloBayesModel extends AbstractPhyloModel {
 
         bnh = new BayesNetHandler(XMLParser.extractForTag(xml, "_bnh"));
         bnh.setSimpleRoot();
+        // models written before the context was stored get the static defaults
+        if (XMLParser.hasTag(xml, "context", null, null)) {
+            setContext((ModelContext) XMLParser.extractObjectForTags(xml, "context"));
+        } else {
+            bnh.setContext(getContext());
+        }
         trained = true;
     }
 
     @Override
     public PhyloBayesModel clone() {
-        if (!CLONING_ALLOWED)
+        if (!getContext().cloningAllowed)
             return this;
-        StringBuffer xml = this.toXML();
-        try {
-            PhyloBayesModel pbm = new PhyloBayesModel(xml);
-            return pbm;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return this;
+        // structural copy of the net, no detour over the XML representation
+        PhyloBayesModel pbm = new PhyloBayesModel(length, order, bnh.copy(), alphabets);
+        pbm.setContext(new ModelContext(getContext()));
+        return pbm;
     }
 
     // #########################################################################
     // ########################### Hilfsfunktionen #############################
     // #########################################################################
 
+    /** @return a new context initialised with the static flags of {@link PhyloBayesModel} */
+    @Override
+    protected ModelContext createContext() {
+        ModelContext context = new ModelContext();
+        context.trainMotif = TRAIN_MOTIF;
+        context.edgeLearning = EDGE_LEARNING;
+        context.calcLogLikelihood = CALC_LOGLIKELIHOOD;
+        context.cloningAllowed = CLONING_ALLOWED;
+        context.assumeFilteredData = ASSUME_FILTERED_DATA;
+        return context;
+    }
+
     /** fills the underlying bayes net with random or uniformly distributed parameters */
     public void fillParameter(boolean randomly) {
         if (randomly) {
@@ -333,10 +496,11 @@ public class PhyloBayesModel extends AbstractPhyloModel {
         } else {
 			LOGGER.info("Setting parameters equal distributed");
         }
-        EvolModel gfs = EvolModel.getInstance(1);
+        String modelClass = getContext().evolModelClass;
+        EvolModel gfs;
         for (int i = 0; i < bnh.getVirtualTrees().length; i++) {
-            gfs = EvolModel
-                    .getInstance((int) Math.pow(Alphabet.size, bnh.getVirtualTree(i).getNode(0).numberOfParents));
+            gfs = EvolModel.getInstance(modelClass,
+                    (int) Math.pow(Alphabet.size, bnh.getVirtualTree(i).getNode(0).numberOfParents));
             bnh.getVirtualTree(i).setEvolModel(gfs);
 
             if (randomly) { // set random parameters
@@ -377,9 +541,9 @@ public class PhyloBayesModel extends AbstractPhyloModel {
     /** Draw random motif, with the underlying parameters using the given old observation for the underlying bayesnet */
     public String[] emitSample(int[] observation) {
         int org = bnh.getVirtualTree(0).numberOfLeafs;
-        String[] seq = new String[org];
+        StringBuilder[] seq = new StringBuilder[org];
         for (int o = 0; o < org; o++) {
-            seq[o] = "";
+            seq[o] = new StringBuilder(length);
         }
         // generate full observation
         int[] fullObs = null;
@@ -390,10 +554,14 @@ public class PhyloBayesModel extends AbstractPhyloModel {
         }
         for (int i = 0; i < length; i++) {
             for (int o = 0; o < org; o++) {
-				seq[o] += alphabets.getSymbol(0, fullObs[bnh.getVirtualTree(i).getLeaf(o).nodeNumber]);
+				seq[o].append(alphabets.getSymbol(0, fullObs[bnh.getVirtualTree(i).getLeaf(o).nodeNumber]));
             }
         }
-        return seq;
+        String[] sample = new String[org];
+        for (int o = 0; o < org; o++) {
+            sample[o] = seq[o].toString();
+        }
+        return sample;
     }
 
     public void setTemperature(double t) {
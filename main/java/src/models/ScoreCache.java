@@ -0,0 +1,120 @@
+package models;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.jstacs.data.Sequence;
+
+/**
+ * Bounded cache for the scores of background models. For each sequence a set of arrays is stored, usually the prefix
+ * sums of the scores of all positions (see {@link #toPrefixSums(double[])}), so that the score of any subsequence can
+ * be answered in constant time. Each entry is tagged with the version of the model parameters it was calculated for
+ * and optionally with a tag (e.g. the topology used for the sequence) and is ignored once the version or the tag
+ * changes. If more than {@link #getCapacity()} values are cached, the least recently
+ * used sequences are removed.
+ */
+public class ScoreCache {
+
+    /** the maximal number of cached values */
+    private final long capacity;
+
+    /** number of currently cached values */
+    private long size;
+
+    private final LinkedHashMap<Sequence<?>, Entry> entries = new LinkedHashMap<Sequence<?>, Entry>(16, 0.75f, true);
+
+    /**
+     * @param capacity
+     *            the maximal number of cached values (summed length of all arrays)
+     */
+    public ScoreCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /** @return the maximal number of cached values */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the arrays stored for the given sequence.
+     *
+     * @param version
+     *            the current version of the model parameters
+     * @return the stored arrays, null if nothing or only arrays of another version are stored
+     */
+    public double[][] get(Sequence<?> sequence, long version) {
+        return get(sequence, version, null);
+    }
+
+    /**
+     * Returns the arrays stored for the given sequence.
+     *
+     * @param version
+     *            the current version of the model parameters
+     * @param tag
+     *            the tag the arrays have been stored with, may be null
+     * @return the stored arrays, null if nothing or only arrays of another version or tag are stored
+     */
+    public synchronized double[][] get(Sequence<?> sequence, long version, Object tag) {
+        Entry entry = entries.get(sequence);
+        return entry != null && entry.version == version
+                && (tag == null ? entry.tag == null : tag.equals(entry.tag)) ? entry.values : null;
+    }
+
+    /** stores the given arrays for the given sequence and version of the model parameters */
+    public void put(Sequence<?> sequence, long version, double[]... values) {
+        put(sequence, version, null, values);
+    }
+
+    /** stores the given arrays for the given sequence, version of the model parameters and tag */
+    public synchronized void put(Sequence<?> sequence, long version, Object tag, double[]... values) {
+        Entry old = entries.put(sequence, new Entry(version, tag, values));
+        if (old != null) {
+            size -= old.size;
+        }
+        size += entries.get(sequence).size;
+        Iterator<Map.Entry<Sequence<?>, Entry>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            Map.Entry<Sequence<?>, Entry> eldest = it.next();
+            if (eldest.getKey() != sequence) {
+                size -= eldest.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    /** removes all entries */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /** @return prefixSums with prefixSums[k] = scores[0] + ... + scores[k - 1] */
+    public static double[] toPrefixSums(double[] scores) {
+        double[] prefixSums = new double[scores.length + 1];
+        for (int k = 0; k < scores.length; k++) {
+            prefixSums[k + 1] = prefixSums[k] + scores[k];
+        }
+        return prefixSums;
+    }
+
+    private static final class Entry {
+        final long version;
+        final Object tag;
+        final double[][] values;
+        final long size;
+
+        Entry(long version, Object tag, double[][] values) {
+            this.version = version;
+            this.tag = tag;
+            this.values = values;
+            long size = 0;
+            for (double[] v : values) {
+                size += v.length;
+            }
+            this.size = size;
+        }
+    }
+}
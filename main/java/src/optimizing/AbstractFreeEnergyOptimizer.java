@@ -2,12 +2,17 @@ package optimizing;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
+import algorithm.ExpectedCounts;
 import algorithm.MeanFieldForBayesNet;
 import bayesNet.BayesNetHandler;
 import de.jstacs.WrongAlphabetException;
+import de.jstacs.algorithms.optimization.DimensionException;
 import de.jstacs.algorithms.optimization.EvaluationException;
 import de.jstacs.algorithms.optimization.NumericalDifferentiableFunction;
+import de.jstacs.algorithms.optimization.termination.AbstractTerminationCondition;
 import de.jstacs.algorithms.optimization.termination.TerminationCondition;
 import de.jstacs.data.EmptySampleException;
 import de.jstacs.data.Sample;
@@ -35,6 +40,41 @@ public abstract class AbstractFreeEnergyOptimizer extends NumericalDifferentiabl
     private Sample[] singleSequenceSample;
     public static boolean OPTIMIZE_MEANFIELDS = false;
 
+    /**
+     * Default of {@link models.ModelContext#parallelEvaluation}. If true, the free energies of the
+     * {@link MeanFieldForBayesNet}s are calculated in parallel using the common {@link java.util.concurrent.ForkJoinPool}.
+     * The summation is always done sequentially, so the result does not depend on the number of threads.
+     */
+    public static boolean PARALLEL_EVALUATION = true;
+
+    /**
+     * Default of {@link models.ModelContext#analyticGradients}. If true, the closed form gradient (see
+     * {@link #getAnalyticGradient(double[])}) is used instead of numerical differentiation. A closed form gradient costs at most one pass over the data instead of
+     * {@link #getDimensionOfScope()} + 1 evaluations of the function.
+     */
+    public static boolean ANALYTIC_GRADIENTS = true;
+
+    /**
+     * Default of {@link models.ModelContext#parallelPositions}. If true, optimizers handling each position separately
+     * optimize all positions at the same time, see {@link #optimizePositionsInParallel(int)}.
+     */
+    public static boolean PARALLEL_POSITIONS = false;
+
+    /** number of MeanFields whose expected counts are accumulated by one task */
+    private static final int COUNTS_CHUNK_SIZE = 256;
+
+    /** cached expected counts of the MeanFields */
+    private ExpectedCounts expectedCounts;
+
+    /** state of the MeanFields, weights and flags the cached expected counts have been calculated for */
+    private MeanFieldForBayesNet[] countedMeanFields;
+    private long[] countedStates;
+    private double[] countedWeights;
+    private boolean countedAllowIndependent;
+
+    /** the trees of the MeanFields whose free energy is optimized, -1 for the last tree of each MeanField */
+    private int firstTree = 0, lastTree = -1;
+
     /**
      * A pointer to the meanfields which should be optimized. Each element represents one set of positions (e.g. a
      * motif)
@@ -68,6 +108,16 @@ public abstract class AbstractFreeEnergyOptimizer extends NumericalDifferentiabl
         this.bnh = model.getBNH();
     }
 
+    /**
+     * Restricts the free energy and the expected counts to the trees first, ..., last of the MeanFields. As long as the
+     * MeanFields are fixed, the free energy of the other trees does not depend on the parameters of these trees, so
+     * the optimum does not change.
+     */
+    public void setTrees(int first, int last) {
+        this.firstTree = first;
+        this.lastTree = last;
+    }
+
     /**
      * Sets a pointer to the weights, which should be used for optimizing
      * 
@@ -93,24 +143,146 @@ public abstract class AbstractFreeEnergyOptimizer extends NumericalDifferentiabl
      * @throws IOException
      */
     protected double getWeightedLogLikelihoodSum() throws EvaluationException {
+        final double[] freeEnergies = new double[vlfbn.length];
+        IntStream range = IntStream.range(0, vlfbn.length);
+        if (model.getContext().parallelEvaluation) {
+            range = range.parallel();
+        }
+        try {
+            range.forEach(u -> freeEnergies[u] = getFreeEnergy(u));
+        } catch (IllegalArgumentException e) {
+            throw new EvaluationException("Observation could not be initialised", e);
+        }
+
         double sum = 0;
         for (int u = 0; u < vlfbn.length; u++) {
-            try {
+            if (weights != null) {
+                sum -= freeEnergies[u] * weights[u];
+            } else {
+                sum -= freeEnergies[u];
+            }
+        }
+        return sum;
+    }
+
+    /** Calculates the free energy of the MeanField with index u. Each MeanField holds its own observation. */
+    private double getFreeEnergy(int u) {
+        vlfbn[u].initObservation();
+        if (OPTIMIZE_MEANFIELDS) {
+            vlfbn[u].optimizeByNormalisation();
+        }
+        return lastTree < 0 ? vlfbn[u].calcFreeEnergy() : vlfbn[u].calcFreeEnergy(firstTree, lastTree);
+    }
+
+    /**
+     * Returns the gradient of {@link #evaluateFunction(double[])}. If {@link models.ModelContext#analyticGradients} is
+     * set for the model, the closed form gradient is used. Otherwise the gradient is determined numerically.
+     */
+    @Override
+    public double[] evaluateGradientOfFunction(double[] x) throws DimensionException, EvaluationException {
+        if (model.getContext().analyticGradients) {
+            if (x == null || x.length != getDimensionOfScope()) {
+                throw new DimensionException(x == null ? 0 : x.length, getDimensionOfScope());
+            }
+            return getAnalyticGradient(x);
+        }
+        return super.evaluateGradientOfFunction(x);
+    }
+
+    /**
+     * Calculates the gradient of {@link #evaluateFunction(double[])} in closed form. Implementations set the parameters
+     * x and contract the derivatives of the conditional probabilities concerning x with
+     * {@link #getExpectedCounts()}.
+     */
+    protected abstract double[] getAnalyticGradient(double[] x) throws EvaluationException;
+
+    /**
+     * Returns the weighted sum of the expected counts of all MeanFields. The weighted log likelihood sum is
+     * sum_{node,l,a} counts[node][l][a] * log P_node[l][a] plus the constant entropy of the MeanFields, so its
+     * derivative concerning P_node[l][a] is counts[node][l][a] / P_node[l][a]. As long as the MeanFields are not
+     * optimized, the counts do not depend on the parameters and are cached until a MeanField or the weights change.
+     */
+    protected ExpectedCounts getExpectedCounts() throws EvaluationException {
+        final long[] states = new long[vlfbn.length];
+        IntStream range = IntStream.range(0, vlfbn.length);
+        try {
+            (model.getContext().parallelEvaluation ? range.parallel() : range).forEach(u -> {
                 vlfbn[u].initObservation();
                 if (OPTIMIZE_MEANFIELDS) {
                     vlfbn[u].optimizeByNormalisation();
                 }
-            } catch (Exception e) {
-                throw new EvaluationException("Observation could not be initialised", e);
+                states[u] = vlfbn[u].getState();
+            });
+        } catch (IllegalArgumentException e) {
+            throw new EvaluationException("Observation could not be initialised", e);
+        }
+        if (expectedCounts != null && countedMeanFields == vlfbn && Arrays.equals(countedStates, states)
+                && Arrays.equals(countedWeights, weights)
+                && countedAllowIndependent == bnh.getContext().allowIndependentTransitions) {
+            return expectedCounts;
+        }
+
+        // the chunks do not depend on the number of threads, so the sum is deterministic
+        final ExpectedCounts[] partialCounts = new ExpectedCounts[(vlfbn.length + COUNTS_CHUNK_SIZE - 1)
+                / COUNTS_CHUNK_SIZE];
+        IntStream chunks = IntStream.range(0, partialCounts.length);
+        (model.getContext().parallelEvaluation ? chunks.parallel() : chunks).forEach(c -> {
+            partialCounts[c] = new ExpectedCounts(bnh.getCompiledNet());
+            for (int u = c * COUNTS_CHUNK_SIZE; u < Math.min(vlfbn.length, (c + 1) * COUNTS_CHUNK_SIZE); u++) {
+                vlfbn[u].addExpectedCounts(firstTree, lastTree < 0 ? vlfbn[u].seq.getLength() - 1 : lastTree,
+                        weights != null ? weights[u] : 1, partialCounts[c]);
             }
+        });
+        ExpectedCounts counts = new ExpectedCounts(bnh.getCompiledNet());
+        for (ExpectedCounts partial : partialCounts) {
+            counts.add(partial);
+        }
 
-            if (weights != null) {
-                sum -= vlfbn[u].calcFreeEnergy() * weights[u];
-            } else {
-                sum -= vlfbn[u].calcFreeEnergy();
+        expectedCounts = counts;
+        countedMeanFields = vlfbn;
+        countedStates = states;
+        countedWeights = weights == null ? null : weights.clone();
+        countedAllowIndependent = bnh.getContext().allowIndependentTransitions;
+        return counts;
+    }
+
+    /**
+     * Optimizes the positions 0, ..., positions - 1 at the same time. Each position is optimized by its own copy of
+     * this optimizer (see {@link PositionOptimizer#newInstance()}) that only evaluates the tree of its position (see
+     * {@link #setTrees(int, int)}) and only changes the parameters of this tree. As the MeanFields are fixed, the
+     * positions are independent and the result is the same as optimizing one position after another. Not possible if
+     * {@link #OPTIMIZE_MEANFIELDS} is set, then the positions are optimized one after another.
+     * 
+     * @throws IllegalStateException
+     *             if this optimizer is no {@link PositionOptimizer}
+     */
+    public void optimizePositionsInParallel(int positions) throws CloneNotSupportedException {
+        if (!(this instanceof PositionOptimizer)) {
+            throw new IllegalStateException(getClass().getSimpleName() + " does not optimize single positions");
+        }
+        final AbstractFreeEnergyOptimizer[] optimizers = new AbstractFreeEnergyOptimizer[positions];
+        for (int k = 0; k < positions; k++) {
+            optimizers[k] = ((PositionOptimizer) this).newInstance();
+            optimizers[k].setModel(model);
+            optimizers[k].setVariationalLikelihood(vlfbn);
+            optimizers[k].setWeights(weights);
+            optimizers[k].setTerminationCondition(
+                    tc instanceof AbstractTerminationCondition ? ((AbstractTerminationCondition) tc).clone() : tc);
+            optimizers[k].setTrees(k, k);
+            ((PositionOptimizer) optimizers[k]).initPosition(k);
+        }
+        if (OPTIMIZE_MEANFIELDS) {
+            for (AbstractFreeEnergyOptimizer optimizer : optimizers) {
+                optimizer.startOptimizing(false);
             }
+            return;
         }
-        return sum;
+        // the observations and flags of the MeanFields must be up to date before they are shared by the positions
+        for (MeanFieldForBayesNet mf : vlfbn) {
+            mf.initObservation();
+            mf.calcFreeEnergy();
+        }
+        IntStream.range(0, positions).parallel().forEach(k -> optimizers[k].startOptimizing(false));
     }
 
     protected SafeOutputStream getOutputStream(boolean output) {
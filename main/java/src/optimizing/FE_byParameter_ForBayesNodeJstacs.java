@@ -1,5 +1,6 @@
 package optimizing;
 
+import algorithm.ExpectedCounts;
 import algorithm.MeanFieldForBayesNet;
 import de.jstacs.algorithms.optimization.DimensionException;
 import de.jstacs.algorithms.optimization.EvaluationException;
@@ -15,7 +16,7 @@ import util.MatrixLinearisation;
  * An optimizer for free Energy of a BayesNet, concerning the equilibrium frequencies of the evolutionary models in the
  * underlying {@link MeanFieldForBayesNet}s. This optimizer handles each position separately.
  */
-public class FE_byParameter_ForBayesNodeJstacs extends AbstractFreeEnergyOptimizer {
+public class FE_byParameter_ForBayesNodeJstacs extends AbstractFreeEnergyOptimizer implements PositionOptimizer {
     /** The position which should be trained */
     private int pos;
 
@@ -30,10 +31,16 @@ public class FE_byParameter_ForBayesNodeJstacs extends AbstractFreeEnergyOptimiz
 
 
     /** sets the position, which should be optimized */
+    @Override
     public void initPosition(int pos) {
         this.pos = pos;
     }
 
+    @Override
+    public FE_byParameter_ForBayesNodeJstacs newInstance() throws CloneNotSupportedException {
+        return new FE_byParameter_ForBayesNodeJstacs();
+    }
+
     private double[] tmpPi;
 
     @Override
@@ -45,10 +52,20 @@ public class FE_byParameter_ForBayesNodeJstacs extends AbstractFreeEnergyOptimiz
         return getWeightedLogLikelihoodSum();
     }
 
+    @Override
+    protected double[] getAnalyticGradient(double[] lambda) throws EvaluationException {
+        initParameters(lambda);
+        ExpectedCounts counts = getExpectedCounts();
+        double[][] gradPi = new double[bnh.getVirtualTree(pos).getEvolModel().getStatDistr().length][Alphabet.size];
+        bnh.getVirtualTree(pos).addStatDistrGradient(counts, gradPi);
+        return MatrixLinearisation.piGradient2lambdaGradient(tmpPi, MatrixLinearisation.linearize(gradPi),
+                Alphabet.size);
+    }
+
     private void initParameters(double[] lambda) {
         EvolModel evol = bnh.getVirtualTree(pos).getEvolModel(); // get a pointer to the FelsteinModel
         MatrixLinearisation.lambda2pi(lambda, tmpPi, Alphabet.size);
-        MatrixLinearisation.fillMatrix(tmpPi, evol.getStatDistr());
+        evol.fillStatDistr(tmpPi);
         bnh.getVirtualTree(pos).initParametersFromGF();
     }
     
@@ -2,6 +2,7 @@ package optimizing;
 
 import java.util.Arrays;
 
+import algorithm.ExpectedCounts;
 import de.jstacs.algorithms.optimization.DimensionException;
 import de.jstacs.algorithms.optimization.EvaluationException;
 import de.jstacs.algorithms.optimization.LimitedMedianStartDistance;
@@ -48,6 +49,22 @@ public class MotifParamOptimizer extends AbstractFreeEnergyOptimizer {
         return getWeightedLogLikelihoodSum();
     }
 
+    @Override
+    protected double[] getAnalyticGradient(double[] lambda) throws EvaluationException {
+        this.initParameters(lambda);
+        ExpectedCounts counts = getExpectedCounts();
+        double[] gradient = new double[dimension];
+        for (int i = 0; i < bnh.motifLength; i++) {
+            double[][] pi = bnh.getVirtualTree(i).getEvolModel().getStatDistr();
+            double[][] gradPi = new double[pi.length][Alphabet.size];
+            bnh.getVirtualTree(i).addStatDistrGradient(counts, gradPi);
+            double[] tmp = MatrixLinearisation.piGradient2lambdaGradient(MatrixLinearisation.linearize(pi),
+                    MatrixLinearisation.linearize(gradPi), Alphabet.size);
+            System.arraycopy(tmp, 0, gradient, bufferPositions[i], bufferLength[i]);
+        }
+        return gradient;
+    }
+
     private void initParameters(double[] lambda) {
         for (int i = 0; i < bnh.motifLength; i++) {
             EvolModel evol = bnh.getVirtualTree(i).getEvolModel();
@@ -55,7 +72,7 @@ public class MotifParamOptimizer extends AbstractFreeEnergyOptimizer {
             MatrixLinearisation.lambda2pi(
                     Arrays.copyOfRange(lambda, bufferPositions[i], bufferPositions[i] + bufferLength[i]), tmp,
                     Alphabet.size);
-            MatrixLinearisation.fillMatrix(tmp, evol.getStatDistr());
+            evol.fillStatDistr(tmp);
             bnh.getVirtualTree(i).initParametersFromGF();
         }        
     }
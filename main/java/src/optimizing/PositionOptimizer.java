@@ -0,0 +1,17 @@
+package optimizing;
+
+/**
+ * An {@link AbstractFreeEnergyOptimizer} that optimizes one position after another. Such optimizers can optimize all
+ * positions at the same time, see {@link AbstractFreeEnergyOptimizer#optimizePositionsInParallel(int)}.
+ */
+public interface PositionOptimizer {
+
+    /** sets the position, which should be optimized */
+    public void initPosition(int pos);
+
+    /**
+     * @return a new optimizer of the same kind and configuration, without model, MeanFields and weights, the optimizer
+     *         must implement {@link PositionOptimizer}
+     */
+    public AbstractFreeEnergyOptimizer newInstance() throws CloneNotSupportedException;
+}
@@ -2,6 +2,7 @@ package optimizing;
 
 import java.util.Arrays;
 
+import algorithm.ExpectedCounts;
 import de.jstacs.algorithms.optimization.DimensionException;
 import de.jstacs.algorithms.optimization.EvaluationException;
 import de.jstacs.algorithms.optimization.LimitedMedianStartDistance;
@@ -67,6 +68,25 @@ public class TemperatureBasedMotifParamOptimizer extends AbstractFreeEnergyOptim
     // Parameters needed in evaluateFunction
 
     
+    @Override
+    protected double[] getAnalyticGradient(double[] lambda) throws EvaluationException {
+        initParameters(lambda);
+        ExpectedCounts counts = getExpectedCounts();
+        double[] gradient = new double[dimension];
+        for (int i = 0; i < bnh.motifLength; i++) {
+            double[][] pi = bnh.getVirtualTree(i).getEvolModel().getStatDistr();
+            double[][] gradPi = new double[pi.length][Alphabet.size];
+            bnh.getVirtualTree(i).addStatDistrGradient(counts, gradPi);
+            double[] tmp = MatrixLinearisation.piGradient2lambdaGradient(MatrixLinearisation.linearize(pi),
+                    MatrixLinearisation.linearize(gradPi), Alphabet.size);
+            System.arraycopy(tmp, 0, gradient, bufferPositions[i], bufferLength[i]);
+            // TEMPERATURE = exp(lambda) + MIN_TEMPERATURE
+            gradient[dimension - 1] += bnh.getVirtualTree(i).getTemperatureGradient(counts)
+                    * (bnh.getVirtualTree(i).TEMPERATURE - MIN_TEMPERATURE);
+        }
+        return gradient;
+    }
+
     private void initParameters(double[] lambda) {
         for (int i = 0; i < bnh.motifLength; i++) {
             EvolModel evol = bnh.getVirtualTree(i).getEvolModel();
@@ -77,7 +97,7 @@ public class TemperatureBasedMotifParamOptimizer extends AbstractFreeEnergyOptim
             MatrixLinearisation.lambda2pi(
                     Arrays.copyOfRange(lambda, bufferPositions[i], bufferPositions[i] + bufferLength[i]), pi,
                     Alphabet.size);
-            MatrixLinearisation.fillMatrix(pi, evol.getStatDistr()); // fills stationary distribution form vector pi
+            evol.fillStatDistr(pi); // fills stationary distribution form vector pi
             bnh.getVirtualTree(i).initParametersFromGF();
         }
     }
@@ -1,5 +1,6 @@
 package optimizing;
 
+import algorithm.ExpectedCounts;
 import models.AbstractPhyloModel;
 import bayesNet.BayesNetHandler;
 import de.jstacs.algorithms.optimization.DimensionException;
@@ -56,6 +57,19 @@ public class TemperatureOptimizer extends AbstractFreeEnergyOptimizer {
     // Parameters needed in evaluateFunction
 
     
+    @Override
+    protected double[] getAnalyticGradient(double[] lambda) throws EvaluationException {
+        initParameters(lambda);
+        ExpectedCounts counts = getExpectedCounts();
+        double[] gradient = new double[dimension];
+        for (int i = 0; i < bnh.motifLength; i++) {
+            // TEMPERATURE = exp(lambda) + MIN_TEMPERATURE
+            gradient[learnLocalTemperatures ? i : 0] += bnh.getVirtualTree(i).getTemperatureGradient(counts)
+                    * (bnh.getVirtualTree(i).TEMPERATURE - MIN_TEMPERATURE);
+        }
+        return gradient;
+    }
+
     private void initParameters(double[] lambda) {
         for (int i = 0; i < bnh.motifLength; i++) {
             if(learnLocalTemperatures) {
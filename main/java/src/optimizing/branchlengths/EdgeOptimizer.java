@@ -2,6 +2,7 @@ package optimizing.branchlengths;
 
 import java.util.ArrayList;
 
+import algorithm.ExpectedCounts;
 import algorithm.MeanFieldForBayesNet;
 import bayesNet.BayesNetNode;
 import de.jstacs.algorithms.optimization.DimensionException;
@@ -11,6 +12,7 @@ import de.jstacs.algorithms.optimization.NegativeDifferentiableFunction;
 import de.jstacs.algorithms.optimization.Optimizer;
 import de.jstacs.utils.SafeOutputStream;
 import optimizing.AbstractFreeEnergyOptimizer;
+import optimizing.PositionOptimizer;
 import optimizing.PreparedConditions;
 
 /**
@@ -19,7 +21,7 @@ import optimizing.PreparedConditions;
  * 
  * @author Chaos
  */
-public class EdgeOptimizer extends AbstractFreeEnergyOptimizer {
+public class EdgeOptimizer extends AbstractFreeEnergyOptimizer implements PositionOptimizer {
     public static double MINIMUM_BRANCH_LENGTH = 0.0005;
     private boolean optimzeGlobally = false;
     private boolean optimizeBranchlengthsEqual = false;
@@ -42,6 +44,43 @@ public class EdgeOptimizer extends AbstractFreeEnergyOptimizer {
 
     @Override
     public double evaluateFunction(double[] edgesExp) throws DimensionException, EvaluationException {
+        initParameters(edgesExp);
+        return this.getWeightedLogLikelihoodSum();
+    }
+
+    @Override
+    protected double[] getAnalyticGradient(double[] edgesExp) throws EvaluationException {
+        initParameters(edgesExp);
+        ExpectedCounts counts = getExpectedCounts();
+        double[] gradient = new double[edgesExp.length];
+        for (int i = getStart(); i < getEnd(); i++) {
+            int k = 0;
+            for (int n = 0; n < bnh.getVirtualTree(i).numberOfNodes; n++) {
+                BayesNetNode bn = bnh.getVirtualTree(i).getNode(n);
+                if (!bn.props.isPhyloRoot()) {
+                    gradient[k] += bnh.getVirtualTree(i).getBranchLengthGradient(counts, bn);
+                    if(!optimizeBranchlengthsEqual) {
+                        k++;
+                    }
+                }
+            }
+        }
+        for (int k = 0; k < gradient.length; k++) {
+            gradient[k] *= getBranchLengthDerivative(edgesExp[k]);
+        }
+        return gradient;
+    }
+
+    /**
+     * @return the derivative of the branch length (exp(x) + {@link #MINIMUM_BRANCH_LENGTH}) / (1 + exp(x)) concerning
+     *         x
+     */
+    public static double getBranchLengthDerivative(double x) {
+        double sigmoid = 1. / (1 + Math.exp(-x));
+        return (1 - MINIMUM_BRANCH_LENGTH) * sigmoid * (1 - sigmoid);
+    }
+
+    private void initParameters(double[] edgesExp) {
         double[] edgesPi = new double[edgesExp.length];
         for (int i = 0; i < edgesPi.length; i++) {
             edgesPi[i] = (Math.exp(edgesExp[i]) + MINIMUM_BRANCH_LENGTH) / (1 + Math.exp(edgesExp[i]));
@@ -49,17 +88,10 @@ public class EdgeOptimizer extends AbstractFreeEnergyOptimizer {
                 edgesPi[i] = 1;
             }
         }
-        // estimate positions to train on
-        int start = 0, length = bnh.motifLength;
-        if (!optimzeGlobally) {
-            start = pos;
-            length = pos + 1;
-        }
-        
-        for (int i = start; i < length; i++) {
+        for (int i = getStart(); i < getEnd(); i++) {
             int k = 0;
-            for (int n = 0; n < bnh.getVirtualTree(pos).numberOfNodes; n++) {
-                BayesNetNode bn = bnh.getVirtualTree(pos).getNode(n);
+            for (int n = 0; n < bnh.getVirtualTree(i).numberOfNodes; n++) {
+                BayesNetNode bn = bnh.getVirtualTree(i).getNode(n);
                 if (!bn.props.isPhyloRoot()) {
                     bn.setDistanceToParent(edgesPi[k]);
                     // if branch length should be optimized independently, try to set next
@@ -70,14 +102,32 @@ public class EdgeOptimizer extends AbstractFreeEnergyOptimizer {
             }
             bnh.getVirtualTree(i).initParametersFromGF();
         }
-        return this.getWeightedLogLikelihoodSum();
+    }
+
+    /** @return the first position to train on */
+    private int getStart() {
+        return optimzeGlobally ? 0 : pos;
+    }
+
+    /** @return the position after the last position to train on */
+    private int getEnd() {
+        return optimzeGlobally ? bnh.motifLength : pos + 1;
     }
 
     /** sets the position, which should be optimized */
+    @Override
     public void initPosition(int pos) {
         this.pos = pos;
     }
 
+    @Override
+    public EdgeOptimizer newInstance() throws CloneNotSupportedException {
+        if (optimzeGlobally) {
+            throw new UnsupportedOperationException("A global EdgeOptimizer optimizes all positions at once");
+        }
+        return new EdgeOptimizer(false, optimizeBranchlengthsEqual);
+    }
+
     /** startet die optimierung, ohne Ausgabe */
     public void startOptimizing() {
         this.startOptimizing(false);
@@ -2,6 +2,7 @@ package optimizing.branchlengths;
 
 import java.util.ArrayList;
 
+import algorithm.ExpectedCounts;
 import algorithm.MeanFieldForBayesNet;
 import bayesNet.BayesNetNode;
 import de.jstacs.algorithms.optimization.DimensionException;
@@ -31,6 +32,35 @@ public class GlobalEdgeOptimizer extends AbstractFreeEnergyOptimizer {
 
     @Override
     public double evaluateFunction(double[] edgesExp) throws DimensionException, EvaluationException {
+        initParameters(edgesExp);
+        double val = this.getWeightedLogLikelihoodSum();
+//        double val = this.getSumKLDivergences();
+//        double val = this.getNegativeSumDifferenceOfIC();
+//        double val = this.getSumEuclideanDistance();
+        return val;
+    }
+
+    @Override
+    protected double[] getAnalyticGradient(double[] edgesExp) throws EvaluationException {
+        initParameters(edgesExp);
+        ExpectedCounts counts = getExpectedCounts();
+        double[] gradient = new double[edgesExp.length];
+        for (int i = 0; i < bnh.motifLength; i++) {
+            int k = 0;
+            for (int n = 0; n < bnh.getVirtualTree(i).numberOfNodes; n++) {
+                BayesNetNode bn = bnh.getVirtualTree(i).getNode(n);
+                if (!bn.props.isPhyloRoot()) {
+                    gradient[k++] += bnh.getVirtualTree(i).getBranchLengthGradient(counts, bn);
+                }
+            }
+        }
+        for (int k = 0; k < gradient.length; k++) {
+            gradient[k] *= EdgeOptimizer.getBranchLengthDerivative(edgesExp[k]);
+        }
+        return gradient;
+    }
+
+    private void initParameters(double[] edgesExp) {
         double[] edgesPi = new double[edgesExp.length];
         for (int i = 0; i < edgesPi.length; i++) {
             edgesPi[i] = (Math.exp(edgesExp[i]) + EdgeOptimizer.MINIMUM_BRANCH_LENGTH) / (1 + Math.exp(edgesExp[i]));
@@ -49,11 +79,6 @@ public class GlobalEdgeOptimizer extends AbstractFreeEnergyOptimizer {
             }
             bnh.getVirtualTree(i).initParametersFromGF();
         }
-        double val = this.getWeightedLogLikelihoodSum();
-//        double val = this.getSumKLDivergences();
-//        double val = this.getNegativeSumDifferenceOfIC();
-//        double val = this.getSumEuclideanDistance();
-        return val;
     }
 
     /** Starts optimizing without output */
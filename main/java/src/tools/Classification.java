@@ -14,8 +14,6 @@ import de.jstacs.utils.DoubleList;
 import io.FileUtil;
 import io.SampleUtil;
 import models.ModelUtil;
-import models.PhyloBackground;
-import models.PhyloBayesModel;
 import models.PhyloPreparedAbstractModel;
 import training.TrainingUtil;
 import util.Config;
@@ -58,9 +56,7 @@ public class Classification {
 			TrainingUtil.trainModel(bestBG, sampleTrainBG, 1e-2, 2, null);
 		}
 	
-		PhyloBackground.ENABLE_CACHING = false;
-        PhyloBayesModel.ENABLE_CACHING = false;
-        PhyloBayesModel.CLONING_ALLOWED = false;
+		ModelUtil.prepareForClassification(bestSHM, bestBG);
 
 		LOGGER.info("Start tests on " + sampleTestFG.getNumberOfElements() + " FG-seqs and " + sampleTestBG.getNumberOfElements() + " BG-seqs.");
 //        double dynamicClassificationRate = ClassificationUtil.getDynamicClassificationRate(bestSHM, bestBG, sampleTestFG, sampleTestBG);
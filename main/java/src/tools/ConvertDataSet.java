@@ -0,0 +1,34 @@
+package tools;
+
+import java.util.Properties;
+
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
+import io.BinaryDataSet;
+import io.PhyloSample;
+import io.SampleUtil;
+import util.Config;
+
+/**
+ * Converts a fasta data set once into the {@link BinaryDataSet} format, which is read by all tools using
+ * {@link SampleUtil} without parsing. If <code>topology.weight</code> is given, the branch lengths of each alignment are
+ * learned by {@link PhyloSample#train(PhyloSample, double, String)} and stored as well.
+ */
+public class ConvertDataSet {
+	public static void main(String[] args) throws Exception {
+		Properties props = new Properties();
+		Config.parseProperties(props, args, false);
+		Config.replaceInternalPlaceholder(props);
+
+		String inputFile = Config.getProperty(props, "input.file", false).asString();
+		String outputFile = Config.getProperty(props, "output.file", false).asString();
+		String newick = Config.getProperty(props, "model.newick", false).asString();
+
+		PhyloSample sample = SampleUtil.getDataSet(inputFile, newick, new AlphabetContainer(new UnobservableDNAAlphabet()));
+		if (props.containsKey("topology.weight")) {
+			PhyloSample.train(sample, Config.getProperty(props, "topology.weight", false).asDouble(), newick);
+		}
+		BinaryDataSet.save(sample, outputFile);
+		System.out.println("Converted " + sample.getNumberOfElements() + " alignments to " + outputFile);
+	}
+}
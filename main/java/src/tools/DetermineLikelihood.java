@@ -5,9 +5,8 @@ import java.util.Properties;
 import de.jstacs.data.Sample;
 import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
 import io.SampleUtil;
+import models.AbstractPhyloModel;
 import models.ModelUtil;
-import models.PhyloBackground;
-import models.PhyloBayesModel;
 import models.PhyloPreparedAbstractModel;
 import util.Config;
 import util.Util;
@@ -33,8 +32,9 @@ public class DetermineLikelihood {
         // get datasets
         Sample[] samples = SampleUtil.getDataSets(props, trainedSHM.alphabets);
 
-        PhyloBayesModel.ENABLE_CACHING = false;
-        PhyloBackground.ENABLE_CACHING = false;
+        for (AbstractPhyloModel model : ModelUtil.getPhyloModels(trainedSHM, trainedBackground)) {
+            model.getContext().enableCaching = false;
+        }
 
         // ##########################################################################
         // load learned model
@@ -5,9 +5,7 @@ import java.util.Properties;
 import de.jstacs.data.AlphabetContainer;
 import de.jstacs.data.Sample;
 import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
-import evolution.EvolModel;
 import io.SampleUtil;
-import models.PhyloBackground;
 import training.TrainingUtil;
 import util.Config;
 
@@ -20,7 +18,6 @@ import util.Config;
  */
 public class LearnTree {
     public static void main(String[] args) throws Exception {
-		EvolModel.MODEL_CLASS = "FS81alpha";
         Properties props = new Properties();
         Config.parseProperties(props, args, false);
         Config.replaceInternalPlaceholder(props);
@@ -30,11 +27,8 @@ public class LearnTree {
 
         Sample[] samples = SampleUtil.getDataSets(props, alphabet);
         Sample union = Sample.union(samples[0],samples[1],samples[2],samples[3]);
-        
-        PhyloBackground.ENABLE_CACHING = true;
-        PhyloBackground.EDGE_LEARNING_ONE_LENGTH = false;
 
-		String learnedTree = TrainingUtil.learnTree(union, newick);
+		String learnedTree = TrainingUtil.learnTree(union, newick, "FS81alpha");
 
         System.out.println(learnedTree);
     }
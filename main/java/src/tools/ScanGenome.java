@@ -0,0 +1,52 @@
+package tools;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Properties;
+
+import classification.GenomeScanner;
+import de.jstacs.models.Model;
+import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
+import models.ModelUtil;
+import models.PhyloBackground;
+import models.PhyloBayesModel;
+import util.Config;
+
+/**
+ * Scans whole genome alignments in MAF format with the motif of a trained {@link SingleHiddenMotifMixture}, see
+ * {@link GenomeScanner}. The background is the flanking model of the mixture or, if given,
+ * <code>input.model.background</code>.
+ * <br>
+ * Example configuration: --input.maf=chr21.maf,chr22.maf <br>
+ * --input.model.shm=shm.xml <br>
+ * --output.hits=hits.txt <br>
+ * --scan.threshold=5 <br>
+ * --scan.threads=8
+ */
+public class ScanGenome {
+	public static void main(String[] args) throws Exception {
+		Properties props = new Properties();
+		Config.parseProperties(props, args, false);
+		Config.replaceInternalPlaceholder(props);
+
+		SingleHiddenMotifMixture shm = ModelUtil.getTrainedSHM(props);
+		Model bg = props.containsKey("input.model.background") ? ModelUtil.getTrainedBackground(props) : shm.model[1];
+		if (!(shm.model[0] instanceof PhyloBayesModel) || !(bg instanceof PhyloBackground)) {
+			throw new IllegalArgumentException("Only a PhyloBayesModel can be scanned against a PhyloBackground.");
+		}
+		String[] mafFiles = Config.getProperty(props, "input.maf", false).asString().split(",");
+		String hitFile = Config.getProperty(props, "output.hits", false).asString();
+		double threshold = Config.getProperty(props, "scan.threshold", "0").asDouble();
+		GenomeScanner.THREADS = Config.getProperty(props, "scan.threads", String.valueOf(GenomeScanner.THREADS)).asInt();
+
+		GenomeScanner scanner = new GenomeScanner((PhyloBayesModel) shm.model[0], (PhyloBackground) bg, threshold);
+		System.out.println("Scan " + Arrays.toString(mafFiles) + " for species " + scanner.getSpecies());
+		try (Writer out = new BufferedWriter(new FileWriter(hitFile))) {
+			out.write("#reference\tstrand\tposition\tblock\tcolumn\tscore\n");
+			scanner.scan(Arrays.asList(mafFiles), out);
+		}
+		System.out.println("Wrote " + scanner.hits + " hits to " + hitFile);
+	}
+}
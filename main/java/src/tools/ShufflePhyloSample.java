@@ -13,10 +13,14 @@ import de.jstacs.data.alphabets.DoubleSymbolException;
 import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
 import de.jstacs.data.sequences.WrongSequenceTypeException;
 import io.PhyloSample;
+import io.PhyloSampleReader;
 import io.SampleUtil;
 import util.Config;
 
 public class ShufflePhyloSample {
+	/** the number of alignments in memory at the same time */
+	public static int BATCH_SIZE = 1000;
+
 	public static void main(String[] args) throws IllegalArgumentException, EmptySampleException, WrongAlphabetException, WrongLengthException, IOException,
 	        WrongSequenceTypeException, DoubleSymbolException {
 		Properties props = new Properties();
@@ -27,13 +31,16 @@ public class ShufflePhyloSample {
 		String outputFile = Config.getProperty(props, "output.file", false).asString();
 		String newick = Config.getProperty(props, "model.newick", false).asString();
 
-		PhyloSample sample = SampleUtil.getDataSet(inputFile, newick, new AlphabetContainer(new UnobservableDNAAlphabet()));
-		PhyloSample shuffledSample = sample.shuffle(newick);
-
-		String fasta = SampleUtil.toFasta(shuffledSample);
+		// the alignments are shuffled independently, so the sample is processed batch by batch
+		PhyloSampleReader reader = new PhyloSampleReader(inputFile, newick, new AlphabetContainer(new UnobservableDNAAlphabet()));
 		File output = new File(outputFile);
 		FileWriter fw = new FileWriter(output);
-		fw.write(fasta);
+		PhyloSample batch;
+		while ((batch = reader.nextBatch(BATCH_SIZE)) != null) {
+			PhyloSample shuffledSample = batch.shuffle(newick);
+			fw.write(SampleUtil.toFasta(shuffledSample));
+		}
 		fw.close();
+		reader.close();
 	}
 }
@@ -0,0 +1,114 @@
+package tools;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Properties;
+
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+import de.jstacs.models.Model;
+import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
+import io.BinaryDataSet;
+import io.PhyloSample;
+import models.AlignmentSimulator;
+import models.ModelUtil;
+import models.PhyloBackground;
+import models.PhyloBayesModel;
+import util.Config;
+
+/**
+ * Draws a synthetic data set by an {@link AlignmentSimulator} from a trained background and, if
+ * <code>input.model.shm</code> is given, the motif of a trained {@link SingleHiddenMotifMixture}. The data set is
+ * written in the {@link BinaryDataSet} format, if the name of the output file ends with {@link BinaryDataSet#EXTENSION},
+ * and as fasta file like the data sets in data/synthetic_data otherwise, i.e. the motif is written in upper case.
+ * <br>
+ * Example configuration: --input.model.background=bg.xml <br>
+ * --input.model.shm=shm.xml <br>
+ * --simulate.number=6000 <br>
+ * --simulate.length.min=300 <br>
+ * --simulate.length.max=400 <br>
+ * --simulate.zoops=1.0 <br>
+ * --simulate.seed=0 <br>
+ * --output.file=data.fg
+ */
+public class SimulateAlignments {
+	public static void main(String[] args) throws Exception {
+		Properties props = new Properties();
+		Config.parseProperties(props, args, false);
+		Config.replaceInternalPlaceholder(props);
+
+		Model bg = ModelUtil.getTrainedBackground(props);
+		Model motif = props.containsKey("input.model.shm") ? ModelUtil.getTrainedSHM(props).model[0] : null;
+		if (!(bg instanceof PhyloBackground) || (motif != null && !(motif instanceof PhyloBayesModel))) {
+			throw new IllegalArgumentException("Only a PhyloBayesModel and a PhyloBackground can be simulated.");
+		}
+		int n = Config.getProperty(props, "simulate.number", false).asInt();
+		int minLength = Config.getProperty(props, "simulate.length.min", false).asInt();
+		int maxLength = Config.getProperty(props, "simulate.length.max", String.valueOf(minLength)).asInt();
+		double zoops = Config.getProperty(props, "simulate.zoops", "1").asDouble();
+		long seed = Long.parseLong(Config.getProperty(props, "simulate.seed", "0").asString());
+		AlignmentSimulator.THREADS = Config.getProperty(props, "simulate.threads", String.valueOf(AlignmentSimulator.THREADS)).asInt();
+		String outputFile = Config.getProperty(props, "output.file", false).asString();
+
+		AlignmentSimulator simulator = new AlignmentSimulator((PhyloBackground) bg, (PhyloBayesModel) motif, zoops);
+		long startTime = System.currentTimeMillis();
+		PhyloSample sample = simulator.simulate(n, minLength, maxLength, seed);
+		long columns = 0;
+		for (int i = 0; i < sample.getNumberOfElements(); i++) {
+			columns += sample.getElementAt(i).getLength();
+		}
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+		System.out.println(String.format(Locale.US, "Simulated %d alignments, %d columns (%.0f columns/s)", n, columns,
+				columns / seconds));
+
+		if (outputFile.endsWith(BinaryDataSet.EXTENSION)) {
+			BinaryDataSet.save(sample, outputFile);
+		} else {
+			try (Writer out = new BufferedWriter(new FileWriter(outputFile), 1 << 16)) {
+				writeFasta(sample, motif == null ? 0 : motif.getLength(), out);
+			}
+		}
+		System.out.println("Wrote " + n + " alignments to " + outputFile);
+	}
+
+	/** writes each sequence annotated by gene, species and, if the alignment contains the motif, MOTIF_POS */
+	private static void writeFasta(PhyloSample sample, int motifLength, Writer out) throws Exception {
+		AlphabetContainer con = sample.getAlphabetContainer();
+		int size = (int) con.getAlphabetLengthAt(0);
+		char[] lower = new char[size], upper = new char[size];
+		for (int a = 0; a < size; a++) {
+			lower[a] = con.getSymbol(0, a).toLowerCase().charAt(0);
+			upper[a] = con.getSymbol(0, a).toUpperCase().charAt(0);
+		}
+		char[] line = new char[0];
+		for (int i = 0; i < sample.getNumberOfElements(); i++) {
+			MultiDimensionalDiscreteSequence alignment = (MultiDimensionalDiscreteSequence) sample.getElementAt(i);
+			String gene = null;
+			int motifPos = -1;
+			for (SequenceAnnotation a : alignment.getAnnotation()) {
+				if (a.getType().equals("gene")) {
+					gene = a.getIdentifier();
+				} else if (a.getType().equals(AlignmentSimulator.MOTIF_POS)) {
+					motifPos = Integer.parseInt(a.getIdentifier());
+				}
+			}
+			int length = alignment.getLength();
+			if (line.length < length) {
+				line = new char[length];
+			}
+			for (int o = 0; o < alignment.getNumberOfSequences(); o++) {
+				out.write(">gene=" + gene + "; species=" + sample.getSpecies().get(o) + ";"
+						+ (motifPos >= 0 ? " MOTIF_POS=" + motifPos + ";" : "") + "\n");
+				for (int u = 0; u < length; u++) {
+					int code = alignment.getSequence(o).discreteVal(u);
+					line[u] = u >= motifPos && u < motifPos + motifLength ? upper[code] : lower[code];
+				}
+				out.write(line, 0, length);
+				out.write('\n');
+			}
+		}
+	}
+}
@@ -21,8 +21,6 @@ import io.SampleUtil;
 import models.AbstractAlignmentBasedModel;
 import models.AbstractPhyloModel;
 import models.ModelUtil;
-import models.PhyloBackground;
-import models.PhyloBayesModel;
 import models.PhyloPreparedAbstractModel;
 import util.Config;
 import util.PWMUtil;
@@ -42,17 +40,12 @@ public class PostTrainModel {
 
     @SuppressWarnings("javadoc")
     public static void main(String[] args) throws Exception {
-        // do classification
-        PhyloBayesModel.ENABLE_CACHING = false;
-        PhyloBayesModel.CLONING_ALLOWED = false;
-        
-        
         Properties props = new Properties();
         Config.parseProperties(props, args, false);
         Config.replaceInternalPlaceholder(props);
 
-        PhyloBayesModel.ASSUME_FILTERED_DATA = Config.getProperty(props, "model.fg.learnTemperature", "0").asInt();
-        PhyloBackground.ASSUME_FILTERED_DATA = Config.getProperty(props, "model.bg.learnTemperature", "0").asInt(); 
+        int fgTemperature = Config.getProperty(props, "model.fg.learnTemperature", "0").asInt();
+        int bgTemperature = Config.getProperty(props, "model.bg.learnTemperature", "0").asInt();
     	PhyloPreparedAbstractModel.MOTIF_QUALITY_THRESHOLD = Config.getProperty(props, "algorithm.training.motif_qualitiy_threshold","0.0").asDouble();
     	PhyloPreparedAbstractModel.PROB_THRESH_FOR_WEIGHTS = Config.getProperty(props, "algorithm.training.prob_thresh_for_weights","0.8").asDouble();
     	
@@ -66,6 +59,9 @@ public class PostTrainModel {
         // get trained SHM to predict positions
         SingleHiddenMotifMixture bestSHM = ModelUtil.getTrainedSHM(props);
         PhyloPreparedAbstractModel bestBG = ModelUtil.getTrainedBackground(props);
+        // do classification
+        ModelUtil.prepareForClassification(bestSHM, bestBG);
+        ModelUtil.setAssumeFilteredData(fgTemperature, bgTemperature, bestSHM, bestBG);
 
         // get datasets
         Sample[] samples = SampleUtil.getDataSets(props, bestSHM.alphabets);
@@ -84,6 +80,8 @@ public class PostTrainModel {
 
         SingleHiddenMotifMixture newSHM = ModelUtil.getNewSHM(props, alphabet, stopCondition);
         AbstractModel trainingBG = ModelUtil.getNewBackground(props, alphabet);
+        ModelUtil.prepareForClassification(newSHM, trainingBG);
+        ModelUtil.setAssumeFilteredData(fgTemperature, bgTemperature, newSHM, trainingBG);
 
         // only SHM and StrandModel are cloned. references to not clone supporting models stay
         SingleHiddenMotifMixture trainingSHM = (SingleHiddenMotifMixture) bestSHM.clone();
@@ -118,14 +116,12 @@ public class PostTrainModel {
         }
         
 		LOGGER.info("Writing SHM model to " + modelFileSHM);
-		FileUtil.writeFile(modelFileSHM, trainingSHM.toXML().toString());
+		ModelUtil.saveModel(trainingSHM, modelFileSHM);
 		LOGGER.info("Writing BG model to " + modelFileBG);
-		FileUtil.writeFile(modelFileBG, trainingBG.toXML().toString());
+		ModelUtil.saveModel(trainingBG, modelFileBG);
         // perform classification tests
         
 
-        PhyloBayesModel.ENABLE_CACHING = false;
-        PhyloBayesModel.CLONING_ALLOWED = false;
 		LOGGER.info("Start tests on " + sampleTestFG.getNumberOfElements() + " FG-seqs and " + sampleTestBG.getNumberOfElements() + " BG-seqs.");
         double[] classTest = ClassificationUtil
                 .performClassificationTest(newSHM, trainingBG, sampleTestFG, sampleTestBG);
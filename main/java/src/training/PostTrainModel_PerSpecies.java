@@ -29,8 +29,6 @@ import models.AbstractAlignmentBasedModel;
 import models.AbstractPhyloModel;
 import models.AlignmentBasedModel;
 import models.ModelUtil;
-import models.PhyloBackground;
-import models.PhyloBayesModel;
 import models.PhyloPreparedAbstractModel;
 import projects.dispom.PFMComparator;
 import util.Config;
@@ -50,10 +48,7 @@ public class PostTrainModel_PerSpecies {
 
 	@SuppressWarnings("javadoc")
 	public static void main(String[] args) throws Exception {
-		// do classification
 		StringBuilder sbR = new StringBuilder();
-		PhyloBayesModel.ENABLE_CACHING = false;
-		PhyloBayesModel.CLONING_ALLOWED = false;
 
 		Properties props = new Properties();
 		Config.parseProperties(props, args, false);
@@ -61,8 +56,8 @@ public class PostTrainModel_PerSpecies {
 
 		String TF = Config.getProperty(props, "TF", false).toString();
 		String pValTable = Config.getProperty(props, "output.pValTable", "").toString();
-		PhyloBayesModel.ASSUME_FILTERED_DATA = Config.getProperty(props, "model.fg.learnTemperature", "0").asInt();
-		PhyloBackground.ASSUME_FILTERED_DATA = Config.getProperty(props, "model.bg.learnTemperature", "0").asInt();
+		int fgTemperature = Config.getProperty(props, "model.fg.learnTemperature", "0").asInt();
+		int bgTemperature = Config.getProperty(props, "model.bg.learnTemperature", "0").asInt();
 		PhyloPreparedAbstractModel.MOTIF_QUALITY_THRESHOLD = Config.getProperty(props, "algorithm.training.motif_qualitiy_threshold", "0.0").asDouble();
 		PhyloPreparedAbstractModel.PROB_THRESH_FOR_WEIGHTS = Config.getProperty(props, "algorithm.training.prob_thresh_for_weights", "1.1").asDouble();
 
@@ -70,6 +65,9 @@ public class PostTrainModel_PerSpecies {
 
 		// get trained SHM to predict positions
 		SingleHiddenMotifMixture bestSHM = ModelUtil.getTrainedSHM(props);
+		// do classification
+		ModelUtil.prepareForClassification(bestSHM);
+		ModelUtil.setAssumeFilteredData(fgTemperature, bgTemperature, bestSHM);
 		sbR.append("TF[['" + TF + "']][['all']] = ");
 		sbR.append(R.linearizeMatrix(PWMUtil.getCondProbs(bestSHM.model[0], false)) + ";\n");
 		// get datasets
@@ -7,7 +7,6 @@ import org.apache.log4j.Logger;
 import de.jstacs.data.AlphabetContainer;
 import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
 import de.jstacs.models.AbstractModel;
-import io.FileUtil;
 import io.PhyloSample;
 import io.SampleUtil;
 import models.AbstractAlignmentBasedModel;
@@ -44,6 +43,6 @@ public class TrainBG {
 		LOGGER.info("Train BG on " + sampleTrainBG.getNumberOfElements() + " alignments.");
 		TrainingUtil.trainModel(newBG, sampleTrainBG, 1e-3, 0, null); // train BG-Model on background
 		LOGGER.info("Writing model to " + modelFileBG);
-		FileUtil.writeFile(modelFileBG, newBG.toXML().toString());
+		ModelUtil.saveModel(newBG, modelFileBG);
 	}
 }
@@ -16,7 +16,6 @@ import de.jstacs.data.Sample;
 import de.jstacs.data.Sequence;
 import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
 import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
-import io.FileUtil;
 import io.PhyloSample;
 import io.SampleUtil;
 import models.AbstractAlignmentBasedModel;
@@ -98,7 +97,7 @@ public class TrainModel {
 
 		LOGGER.info("Best Model: " + bestModel.getScoreForBestRun());
 		LOGGER.info("Writing model to " + modelFileSHM);
-		FileUtil.writeFile(modelFileSHM, bestModel.toXML().toString());
+		ModelUtil.saveModel(bestModel, modelFileSHM);
 	}
 }
 
@@ -23,7 +23,6 @@ import io.SampleUtil;
 import models.AbstractAlignmentBasedModel;
 import models.AbstractPhyloModel;
 import models.ModelUtil;
-import models.PhyloBayesModel;
 import models.PhyloPreparedAbstractModel;
 import util.Config;
 import util.PWMUtil;
@@ -118,12 +117,11 @@ public class TrainModelAndClassify {
 
 		LOGGER.info("Best Model: " + bestModel.getScoreForBestRun());
 
-		FileUtil.writeFile(modelFileSHM, bestModel.toXML().toString());
-		FileUtil.writeFile(modelFileBG, newBG.toXML().toString());
+		ModelUtil.saveModel(bestModel, modelFileSHM);
+		ModelUtil.saveModel(newBG, modelFileBG);
 
 		// do classification
-		PhyloBayesModel.ENABLE_CACHING = false;
-		PhyloBayesModel.CLONING_ALLOWED = false;
+		ModelUtil.prepareForClassification(bestModel, newBG);
 		double[] classTest = ClassificationUtil.performClassificationTest(bestModel, newBG, sampleTestFG, sampleTestBG);
 
 		StringBuilder sb = new StringBuilder();
@@ -12,13 +12,26 @@ import de.jstacs.models.Model;
 import de.jstacs.models.discrete.inhomogeneous.BayesianNetworkModel;
 import de.jstacs.models.mixture.StrandModel;
 import de.jstacs.models.mixture.motif.SingleHiddenMotifMixture;
+import evolution.EvolModel;
+import io.PhyloSample;
+import models.ModelContext;
 import models.PhyloBackground;
 import util.Util;
 
 public class TrainingUtil {
 	private static Logger LOGGER = Logger.getLogger(TrainingUtil.class);
 
+	/**
+	 * Trains the model on the data until the log likelihood changes by less than eps.
+	 * 
+	 * @param weights
+	 *            the weights of the sequences, if null the weights of a {@link PhyloSample} (see
+	 *            {@link PhyloSample#getWeights()}) are used
+	 */
 	public static void trainModel(Model model, Sample data, double eps, int minSteps, double[] weights) throws Exception {
+		if (weights == null && data instanceof PhyloSample) {
+			weights = ((PhyloSample) data).getWeights();
+		}
 		byte order = -1;
 		if (model instanceof StrandModel) {
 			order = ((de.jstacs.models.AbstractModel) ((StrandModel) model).model[0]).getMaximalMarkovOrder();
@@ -70,12 +83,22 @@ public class TrainingUtil {
 	}
 
 	public static String learnTree(Sample data, String initialTree) throws Exception {
+		return learnTree(data, initialTree, EvolModel.MODEL_CLASS);
+	}
+
+	/** learns the branch lengths of the given tree with a background of order 0 using the given evolutionary model */
+	public static String learnTree(Sample data, String initialTree, String evolModelClass) throws Exception {
 		LOGGER.info("Learning Tree, starting at " + initialTree);
 		PhyloBackground bg = new PhyloBackground((byte) 0, initialTree, data.getAlphabetContainer());
-		PhyloBackground.EDGE_LEARNING = true;
+		ModelContext context = bg.getContext();
+		context.edgeLearning = 1;
+		context.edgeLearningOneLength = false;
+		context.enableCaching = true;
+		if (!evolModelClass.equals(context.evolModelClass)) {
+			context.evolModelClass = evolModelClass;
+			bg.fillParameter(false);
+		}
 		trainModel(bg, data, 1e-1, 0, null);
-		PhyloBackground.EDGE_LEARNING = false;
-		PhyloBackground.EDGE_LEARNING_ONE_LENGTH = false;
 		return bg.getBNH().getVirtualTree(0).getNewickString();
 	}
 }
@@ -34,6 +34,30 @@ public class MatrixLinearisation {
         return vec;
     }
 
+    /**
+     * transforms a gradient concerning pi into the gradient concerning lambda, where pi is obtained from lambda by
+     * {@link #lambda2pi(double[], double[], int)}
+     * 
+     * @param pi
+     * @param gradPi the gradient concerning pi
+     * @param alphabetSize
+     * 
+     * @return the gradient concerning lambda
+     */
+    public static double[] piGradient2lambdaGradient(double[] pi, double[] gradPi, int alphabetSize) {
+        double[] gradLambda = new double[pi.length];
+        for (int i = 0; i < pi.length; i += alphabetSize) {
+            double mean = 0;
+            for (int a = i; a < i + alphabetSize; a++) {
+                mean += pi[a] * gradPi[a];
+            }
+            for (int a = i; a < i + alphabetSize; a++) {
+                gradLambda[a] = pi[a] * (gradPi[a] - mean);
+            }
+        }
+        return gradLambda;
+    }
+
     /**
      * wandelt eine Matrix vom lambda-raum in den pi-Raum um ACHTUNG:
      * Matrix-zeilen sollten gleich lang sein
@@ -133,7 +133,7 @@ public class PWMUtil {
         for (int i = 0; i < order.length; i++) {
             order[i] = i;
         }
-        Random r = new Random();
+        Random r = Util.getRandom();
         for (int i = 0; i < order.length / 2; i++) {
             int swap = r.nextInt(order.length - i) + i;
             int tmp = order[i];
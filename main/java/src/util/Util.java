@@ -8,6 +8,7 @@ import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,6 +36,58 @@ public class Util {
     public static long randomSeed = System.currentTimeMillis();
     static Random r = new Random();
 
+    /** random generators of threads with their own seed, see {@link #setThreadSeed(long)} */
+    private static final ThreadLocal<Random> threadR = new ThreadLocal<Random>();
+    private static final ThreadLocal<RandomNumberGenerator> threadRand = new ThreadLocal<RandomNumberGenerator>();
+
+    /**
+     * Lets all random methods of this class use generators seeded with the given seed in the current thread, so that
+     * threads drawing in parallel do not share the global generators and each thread draws a reproducible sequence.
+     * Has to be reverted by {@link #clearThreadSeed()}.
+     */
+    public static void setThreadSeed(long seed) {
+        threadR.set(new Random(seed));
+        threadRand.set(new RandomNumberGenerator(seed));
+    }
+
+    /** lets the current thread use the global random generators again */
+    public static void clearThreadSeed() {
+        threadR.remove();
+        threadRand.remove();
+    }
+
+    /**
+     * Calls task with generators seeded with the given seed in the current thread and restores the generators of the
+     * thread afterwards. So the numbers drawn by task are reproducible and do not change the numbers drawn by the
+     * caller, e.g. for random initial values that are overwritten anyway.
+     */
+    public static <T> T callWithThreadSeed(long seed, Supplier<T> task) {
+        Random oldR = threadR.get();
+        RandomNumberGenerator oldRand = threadRand.get();
+        setThreadSeed(seed);
+        try {
+            return task.get();
+        } finally {
+            if (oldR == null) {
+                clearThreadSeed();
+            } else {
+                threadR.set(oldR);
+                threadRand.set(oldRand);
+            }
+        }
+    }
+
+    /** @return the random generator of the current thread, the global one if no seed was set for this thread */
+    public static Random getRandom() {
+        Random local = threadR.get();
+        return local != null ? local : r;
+    }
+
+    private static RandomNumberGenerator getRandomNumberGenerator() {
+        RandomNumberGenerator local = threadRand.get();
+        return local != null ? local : rand;
+    }
+
     /** gets all species from a newickstring in specific order */
     public static ArrayList<String> getOrderedArrayListFromTree(String newickString) {
         ArrayList<String> al = new ArrayList<String>();
@@ -112,9 +165,13 @@ public class Util {
     }
 
     public static double[] getRandomStochVector(int size, double alpha) {
-        double[] v = new double[size];
-        for (int i = 0; i < size; i++) {
-            v[i] = rand.nextGamma(alpha, 1);
+        return fillRandomStochVector(new double[size], alpha);
+    }
+
+    /** overwrites v with a random stochastic vector like {@link #getRandomStochVector(int, double)} and returns v */
+    public static double[] fillRandomStochVector(double[] v, double alpha) {
+        for (int i = 0; i < v.length; i++) {
+            v[i] = getRandomNumberGenerator().nextGamma(alpha, 1);
         }
         Normalisation.sumNormalisation(v);
         return v;
@@ -138,7 +195,7 @@ public class Util {
 
     /** gibt eine Zufallszahl inklusive der Grenzen zur�ck */
     public static double getRandomDouble(double start, double end) {
-        double t = r.nextDouble();
+        double t = getRandom().nextDouble();
         t = t * (end - start) + start;
         return t;
     }
@@ -155,7 +212,7 @@ public class Util {
 
     /** gibt eine Zufallszahl inklusive der Grenzen zur�ck */
     public static int getRandomInt(int start, int end) {
-        int t = Math.abs(r.nextInt());
+        int t = Math.abs(getRandom().nextInt());
         t = t % (end + 1 - start) + start;
         return t;
     }
@@ -174,7 +231,7 @@ public class Util {
      * zieht aus einer Gaussverteilung mit der Mittelwert und Standardabweichung s
      */
     public static double getRandomGauss(double m, double s) {
-        return (r.nextGaussian() * s + m);
+        return (getRandom().nextGaussian() * s + m);
     }
 
     /** kopiert das �bergebene array (1D) */
@@ -0,0 +1,91 @@
+package io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import models.PhyloBackground;
+import models.TestModels;
+
+public class BinaryDataSetTest {
+
+    private static final String TOPOLOGY = "((((SPECIES_0:0.1,SPECIES_1:0.3):0.05,SPECIES_2:0.4):0.2,SPECIES_3:0.15):0.2,SPECIES_4:0.6)";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** the alignments, their annotations, learned topologies and weights survive a round trip */
+    @Test
+    public void roundTrip() throws Exception {
+        PhyloSample sample = TestModels.simulate(5, 7);
+        ((MultiDimensionalDiscreteSequence) sample.getElementAt(1)).learnedTopology = TOPOLOGY;
+        ((MultiDimensionalDiscreteSequence) sample.getElementAt(3)).learnedTopology = TOPOLOGY.replace("0.6", "0.25");
+        double[] weights = { 1, 0.5, 2, 1, 3 };
+        sample.setWeights(weights);
+
+        PhyloSample loaded = BinaryDataSet.load(save(sample));
+        assertEquals(sample.getSpecies(), loaded.getSpecies());
+        assertEquals(sample.getNumberOfElements(), loaded.getNumberOfElements());
+        assertArrayEquals(weights, loaded.getWeights(), 0);
+        PhyloBackground bg = TestModels.background((byte) 1, new Random(8));
+        for (int i = 0; i < sample.getNumberOfElements(); i++) {
+            MultiDimensionalDiscreteSequence a = (MultiDimensionalDiscreteSequence) sample.getElementAt(i);
+            MultiDimensionalDiscreteSequence b = (MultiDimensionalDiscreteSequence) loaded.getElementAt(i);
+            assertEquals(Arrays.toString(a.getAnnotation()), Arrays.toString(b.getAnnotation()));
+            assertEquals(a.getLength(), b.getLength());
+            for (int o = 0; o < a.getNumberOfSequences(); o++) {
+                assertEquals(Arrays.toString(a.getSequence(o).getAnnotation()),
+                        Arrays.toString(b.getSequence(o).getAnnotation()));
+                for (int u = 0; u < a.getLength(); u++) {
+                    assertEquals(PackedAlignment.getSymbol(a, u, o), PackedAlignment.getSymbol(b, u, o));
+                }
+            }
+            assertEquals(a.learnedTopology, b.learnedTopology);
+            assertTrue(b instanceof PackedAlignment);
+            if (a.learnedTopology == null) {
+                assertNull(((PackedAlignment) b).getLearnedBranchLengths());
+            } else {
+                assertNotNull(((PackedAlignment) b).getLearnedBranchLengths());
+            }
+            // the loaded branch lengths give the same scores as the parsed newick string
+            assertEquals(bg.getLogProbFor(a, 0, a.getLength() - 1), bg.getLogProbFor(b, 0, b.getLength() - 1), 1e-12);
+        }
+    }
+
+    /** a sample without weights is written with unit weights, which are not set when loading */
+    @Test
+    public void unitWeightsAreNotSet() throws Exception {
+        PhyloSample loaded = BinaryDataSet.load(save(TestModels.simulate(3, 9)));
+        assertNull(loaded.getWeights());
+    }
+
+    /** the stored branch lengths are not used once the topology of an alignment is replaced */
+    @Test
+    public void replacedTopologyDropsBranchLengths() throws Exception {
+        PhyloSample sample = TestModels.simulate(1, 10);
+        ((MultiDimensionalDiscreteSequence) sample.getElementAt(0)).learnedTopology = TOPOLOGY;
+        PackedAlignment loaded = (PackedAlignment) BinaryDataSet.load(save(sample)).getElementAt(0);
+        assertArrayEquals(new double[] { 0.1, 0.3, 0.05, 0.4, 0.2, 0.15, 0.2, 0.6 }, loaded.getLearnedBranchLengths(), 0);
+        loaded.learnedTopology = TestModels.NEWICK;
+        assertNull(loaded.getLearnedBranchLengths());
+    }
+
+    private String save(PhyloSample sample) throws Exception {
+        File file = folder.newFile("sample" + BinaryDataSet.EXTENSION);
+        file.delete();
+        BinaryDataSet.save(sample, file.getPath());
+        assertTrue(BinaryDataSet.isBinary(file.getPath()));
+        return file.getPath();
+    }
+}
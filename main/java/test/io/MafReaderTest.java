@@ -0,0 +1,91 @@
+package io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import io.MafReader.Block;
+import models.TestModels;
+
+public class MafReaderTest {
+
+    private static final String NEWICK = "((A:0.1,B:0.1):0.1,C:0.1)";
+
+    /** the codes of the DNA alphabet */
+    private static final int A = 0, C = 1, G = 2, T = 3, GAP = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBlocks() throws Exception {
+        String maf = "##maf version=1\n"
+                + "# comment\n"
+                + "\n"
+                + "a score=1\n"
+                + "s A.chr1 10 6 + 100 AC-GTN-a\n"
+                + "s X.chr9 0   8 + 50  ACGTACGT\n"
+                + "i X.chr9 N 0 C 0\n"
+                + "s C      5 5 - 20 A--GT-TC\n"
+                + "s A.chr2 0 8 + 50 TTTTTTTT\n"
+                + "\n"
+                + "a score=2\n"
+                + "s X.chr9 8 4 + 50 ACGT\n"
+                + "\n"
+                + "a\n"
+                + "s B.s 0 2 - 3 G-C\n";
+        try (MafReader reader = new MafReader(write(maf), NEWICK, TestModels.dna())) {
+            // species X is not in the tree, the second row of A is skipped, B is missing and filled with gaps, N is
+            // read as a gap and soft masked symbols are read, the columns of gaps only are removed
+            Block block = reader.next();
+            assertEquals(0, block.index);
+            assertEquals("A.chr1", block.reference);
+            assertEquals('+', block.strand);
+            assertArrayEquals(new int[] { 10, 11, 12, 13, 15, 15 }, block.positions);
+            assertRows(block.alignment, new int[][] { { A, C, G, T, GAP, A }, { GAP, GAP, GAP, GAP, GAP, GAP },
+                    { A, GAP, G, T, T, C } });
+
+            // block 1 contains no species of the tree and is skipped
+            block = reader.next();
+            assertEquals(2, block.index);
+            assertEquals("B.s", block.reference);
+            assertEquals('-', block.strand);
+            assertArrayEquals(new int[] { 0, 1 }, block.positions);
+            assertRows(block.alignment, new int[][] { { GAP, GAP }, { G, C }, { GAP, GAP } });
+
+            assertFalse(reader.hasNext());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedLines() throws Exception {
+        new MafReader(write("a score=1\ns A.chr1 10 6 +\n"), NEWICK, TestModels.dna()).close();
+    }
+
+    private static void assertRows(MultiDimensionalDiscreteSequence alignment, int[][] rows) {
+        assertEquals(rows.length, alignment.getNumberOfSequences());
+        assertEquals(rows[0].length, alignment.getLength());
+        for (int o = 0; o < rows.length; o++) {
+            for (int u = 0; u < rows[o].length; u++) {
+                assertEquals("species " + o + ", column " + u, rows[o][u], PackedAlignment.getSymbol(alignment, u, o));
+            }
+        }
+    }
+
+    private String write(String maf) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), maf.getBytes("ISO-8859-1"));
+        return file.getPath();
+    }
+}
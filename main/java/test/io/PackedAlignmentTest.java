@@ -0,0 +1,54 @@
+package io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import de.jstacs.data.sequences.annotation.SequenceAnnotation;
+import models.TestModels;
+
+public class PackedAlignmentTest {
+
+    /** the codes of three species, 4 is the gap and 5 to 7 are further unobserved codes */
+    private static final byte[][] CONTENT = { { 0, 1, 2, 3, 4, 0 }, { 3, 4, 1, 2, 5, 0 }, { 7, 4, 0, 1, 6, 0 } };
+
+    @Test
+    public void symbolsAreStoredWithoutLoss() throws Exception {
+        PackedAlignment alignment = create(CONTENT);
+        assertEquals(CONTENT.length, alignment.getNumberOfSequences());
+        assertEquals(CONTENT[0].length, alignment.getLength());
+        for (int o = 0; o < CONTENT.length; o++) {
+            for (int u = 0; u < CONTENT[o].length; u++) {
+                assertEquals(CONTENT[o][u], alignment.getSymbol(u, o));
+                assertEquals(CONTENT[o][u], alignment.getSequence(o).discreteVal(u));
+                assertEquals(CONTENT[o][u], PackedAlignment.getSymbol(alignment, u, o));
+            }
+        }
+    }
+
+    /** columns differing only in the codes of unobserved symbols have the same key */
+    @Test
+    public void columnKeysIgnoreUnobservedCodes() throws Exception {
+        PackedAlignment alignment = create(new byte[][] { { 0, 0, 0 }, { 4, 6, 1 }, { 2, 2, 2 } });
+        assertEquals(alignment.getColumnKey(0), alignment.getColumnKey(1));
+        assertNotEquals(alignment.getColumnKey(0), alignment.getColumnKey(2));
+        assertNotEquals(alignment.getColumn(0), alignment.getColumn(1));
+    }
+
+    @Test
+    public void unpackableContent() {
+        assertNull(PackedAlignment.pack(new byte[PackedAlignment.MAX_SPECIES + 1][2], 2));
+        assertNull(PackedAlignment.pack(new byte[][] { { 0, 8 } }, 2));
+    }
+
+    private static PackedAlignment create(byte[][] content) throws Exception {
+        SequenceAnnotation[][] annotations = new SequenceAnnotation[content.length][];
+        for (int o = 0; o < content.length; o++) {
+            annotations[o] = new SequenceAnnotation[] { new SequenceAnnotation("species", "SPECIES_" + o) };
+        }
+        return new PackedAlignment(new SequenceAnnotation[] { new SequenceAnnotation("gene", "test") },
+                TestModels.dna(), PackedAlignment.pack(content, content[0].length), annotations);
+    }
+}
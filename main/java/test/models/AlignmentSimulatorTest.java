@@ -0,0 +1,53 @@
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import io.PackedAlignment;
+import io.PhyloSample;
+
+public class AlignmentSimulatorTest {
+
+    private final int threads = AlignmentSimulator.THREADS;
+
+    @After
+    public void restoreThreads() {
+        AlignmentSimulator.THREADS = threads;
+    }
+
+    /** the alignments only depend on the seed, not on the number of threads */
+    @Test
+    public void sameSeedSameAlignments() throws Exception {
+        Random r = new Random(11);
+        AlignmentSimulator simulator = new AlignmentSimulator(TestModels.background((byte) 1, r),
+                TestModels.motif(6, (byte) 0, r), 0.5);
+        AlignmentSimulator.THREADS = 1;
+        String single = toString(simulator.simulate(40, 10, 50, 12));
+        AlignmentSimulator.THREADS = 4;
+        assertEquals(single, toString(simulator.simulate(40, 10, 50, 12)));
+        assertNotEquals(single, toString(simulator.simulate(40, 10, 50, 13)));
+    }
+
+    /** @return the annotations and the symbols of all alignments */
+    private static String toString(PhyloSample sample) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sample.getNumberOfElements(); i++) {
+            MultiDimensionalDiscreteSequence alignment = (MultiDimensionalDiscreteSequence) sample.getElementAt(i);
+            sb.append(Arrays.toString(alignment.getAnnotation())).append('\n');
+            for (int o = 0; o < alignment.getNumberOfSequences(); o++) {
+                for (int u = 0; u < alignment.getLength(); u++) {
+                    sb.append(PackedAlignment.getSymbol(alignment, u, o));
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
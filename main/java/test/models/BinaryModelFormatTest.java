@@ -0,0 +1,84 @@
+package models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.jstacs.NonParsableException;
+import io.PhyloSample;
+
+public class BinaryModelFormatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** the parameters, the context and the scores of a model survive a round trip */
+    @Test
+    public void roundTrip() throws Exception {
+        PhyloSample sample = TestModels.simulate(2, 3);
+        Random r = new Random(4);
+        for (byte order = 0; order < 2; order++) {
+            for (AbstractPhyloModel model : new AbstractPhyloModel[] { TestModels.motif(5, order, r),
+                    TestModels.background(order, r) }) {
+                ModelContext context = model.getContext();
+                context.cloningAllowed = false;
+                context.parallelEvaluation = !context.parallelEvaluation;
+                context.analyticGradients = !context.analyticGradients;
+                context.edgeLearning = 2;
+                context.assumeFilteredData = 1;
+
+                AbstractPhyloModel copy = (AbstractPhyloModel) BinaryModelFormat.fromByteArray(
+                        BinaryModelFormat.toByteArray(model));
+                assertEquals(model.getClass(), copy.getClass());
+                assertEquals(model.getLength(), copy.getLength());
+                assertEquals(model.getOrder(), copy.getOrder());
+                assertArrayEquals(model.getCondProbs(), copy.getCondProbs());
+                assertArrayEquals(model.getBNH().getBranchLengths(), copy.getBNH().getBranchLengths());
+
+                ModelContext copyContext = copy.getContext();
+                assertEquals(context.cloningAllowed, copyContext.cloningAllowed);
+                assertEquals(context.parallelEvaluation, copyContext.parallelEvaluation);
+                assertEquals(context.analyticGradients, copyContext.analyticGradients);
+                assertEquals(context.edgeLearning, copyContext.edgeLearning);
+                assertEquals(context.assumeFilteredData, copyContext.assumeFilteredData);
+
+                for (int i = 0; i < sample.getNumberOfElements(); i++) {
+                    int end = model.getLength() == 0 ? sample.getElementAt(i).getLength() - 1 : model.getLength() - 1;
+                    assertEquals(model.getLogProbFor(sample.getElementAt(i), 0, end),
+                            copy.getLogProbFor(sample.getElementAt(i), 0, end), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        PhyloBackground bg = TestModels.background((byte) 1, new Random(5));
+        File file = new File(folder.getRoot(), "bg" + BinaryModelFormat.EXTENSION);
+        BinaryModelFormat.save(bg, file.getPath());
+        assertTrue(BinaryModelFormat.isBinary(file.getPath()));
+        PhyloBackground copy = (PhyloBackground) BinaryModelFormat.load(file.getPath());
+        assertArrayEquals(bg.getCondProbs(), copy.getCondProbs());
+
+        File xml = folder.newFile("bg.xml");
+        Files.write(xml.toPath(), bg.toXML().toString().getBytes("UTF-8"));
+        assertFalse(BinaryModelFormat.isBinary(xml.getPath()));
+    }
+
+    @Test(expected = NonParsableException.class)
+    public void otherVersionIsRejected() throws Exception {
+        byte[] bytes = BinaryModelFormat.toByteArray(TestModels.background((byte) 0, new Random(6)));
+        // the version follows the magic number
+        bytes[7]++;
+        BinaryModelFormat.fromByteArray(bytes);
+    }
+}
@@ -0,0 +1,39 @@
+package models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.jstacs.data.Sequence;
+import de.jstacs.data.sequences.MultiDimensionalDiscreteSequence;
+import io.PhyloSample;
+
+public class PhyloBayesModelTest {
+
+    /**
+     * {@link PhyloBayesModel#scanAll(Sequence)} must give the score of each window like a request of this single
+     * window, for both orders and with and without a learned topology of the alignment.
+     */
+    @Test
+    public void scanAllEqualsSingleWindows() throws Exception {
+        PhyloSample sample = TestModels.simulate(3, 1);
+        MultiDimensionalDiscreteSequence withTopology = (MultiDimensionalDiscreteSequence) sample.getElementAt(2);
+        withTopology.learnedTopology = "((((SPECIES_0:0.1,SPECIES_1:0.3):0.05,SPECIES_2:0.4):0.2,SPECIES_3:0.15):0.2,SPECIES_4:0.6)";
+        Random r = new Random(2);
+        for (byte order = 0; order < 2; order++) {
+            PhyloBayesModel motif = TestModels.motif(6, order, r);
+            for (int i = 0; i < sample.getNumberOfElements(); i++) {
+                Sequence<?> alignment = sample.getElementAt(i);
+                double[] scores = motif.scanAll(alignment);
+                assertEquals(alignment.getLength() - 5, scores.length);
+                for (int u = 0; u < scores.length; u++) {
+                    // a new sub sequence for each window, so the scores of the last sequence are not reused
+                    double single = motif.getLogProbFor(alignment.getSubSequence(u, 6), 0, 5);
+                    assertEquals("order " + order + ", alignment " + i + ", window " + u, single, scores[u], 1e-9);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import de.jstacs.data.Sequence;
+import io.PhyloSample;
+
+public class ScoreCacheTest {
+
+    @Test
+    public void entriesAreTaggedWithVersionAndTag() throws Exception {
+        Sequence<?> sequence = TestModels.simulate(1, 1).getElementAt(0);
+        ScoreCache cache = new ScoreCache(100);
+        double[] scores = { 1, 2 };
+        cache.put(sequence, 3, "tree", scores);
+        assertSame(scores, cache.get(sequence, 3, "tree")[0]);
+        assertNull(cache.get(sequence, 4, "tree"));
+        assertNull(cache.get(sequence, 3, "other tree"));
+        assertNull(cache.get(sequence, 3));
+        cache.clear();
+        assertNull(cache.get(sequence, 3, "tree"));
+    }
+
+    /** the least recently used sequences are removed, but never the sequence just stored */
+    @Test
+    public void leastRecentlyUsedAreEvicted() throws Exception {
+        PhyloSample sample = TestModels.simulate(3, 2);
+        Sequence<?> s0 = sample.getElementAt(0), s1 = sample.getElementAt(1), s2 = sample.getElementAt(2);
+        ScoreCache cache = new ScoreCache(5);
+        cache.put(s0, 0, new double[2]);
+        cache.put(s1, 0, new double[2]);
+        // s0 is used again, so s1 is the eldest
+        assertNotNull(cache.get(s0, 0));
+        cache.put(s2, 0, new double[2]);
+        assertNull(cache.get(s1, 0));
+        assertNotNull(cache.get(s0, 0));
+        assertNotNull(cache.get(s2, 0));
+
+        cache.put(s1, 0, new double[10]);
+        assertNotNull(cache.get(s1, 0));
+        assertNull(cache.get(s0, 0));
+        assertNull(cache.get(s2, 0));
+    }
+
+    @Test
+    public void prefixSums() {
+        assertArrayEquals(new double[] { 0, 1, 3, 6 }, ScoreCache.toPrefixSums(new double[] { 1, 2, 3 }), 0);
+    }
+}
@@ -0,0 +1,61 @@
+package models;
+
+import java.util.Random;
+
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.alphabets.DoubleSymbolException;
+import de.jstacs.data.alphabets.UnobservableDNAAlphabet;
+import io.PhyloSample;
+
+/**
+ * Models with random parameters and alignments drawn from them, shared by the tests.
+ */
+public class TestModels {
+
+    /** the tree of the test models */
+    public static final String NEWICK = "((((SPECIES_0:0.2,SPECIES_1:0.2):0.2,SPECIES_2:0.2):0.2,SPECIES_3:0.2):0.2,SPECIES_4:0.2)";
+
+    /** @return the alphabet of the test models */
+    public static AlphabetContainer dna() throws DoubleSymbolException {
+        return new AlphabetContainer(new UnobservableDNAAlphabet());
+    }
+
+    /**
+     * @return n random conditional probabilities of dimension dim, each block of four values sums to one
+     */
+    public static double[][] probs(Random r, int n, int dim) {
+        double[][] p = new double[n][dim];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < dim; k += 4) {
+                double sum = 0;
+                for (int a = 0; a < 4; a++) {
+                    p[i][k + a] = 0.1 + r.nextDouble();
+                    sum += p[i][k + a];
+                }
+                for (int a = 0; a < 4; a++) {
+                    p[i][k + a] /= sum;
+                }
+            }
+        }
+        return p;
+    }
+
+    /** @return a background of order 0 or 1 with random parameters */
+    public static PhyloBackground background(byte order, Random r) throws DoubleSymbolException {
+        PhyloBackground bg = new PhyloBackground(order, NEWICK, dna());
+        bg.setCondProbs(order == 0 ? probs(r, 1, 4) : new double[][] { probs(r, 1, 4)[0], probs(r, 1, 16)[0] });
+        return bg;
+    }
+
+    /** @return a motif of order 0 or 1 with random parameters */
+    public static PhyloBayesModel motif(int length, byte order, Random r) throws DoubleSymbolException {
+        PhyloBayesModel motif = new PhyloBayesModel(length, order, NEWICK, dna());
+        motif.setCondProbs(probs(r, length, order == 0 ? 4 : 16));
+        return motif;
+    }
+
+    /** @return n alignments of 20 to 60 columns drawn from a background of order 1 */
+    public static PhyloSample simulate(int n, long seed) throws Exception {
+        return new AlignmentSimulator(background((byte) 1, new Random(seed))).simulate(n, 20, 60, seed);
+    }
+}